@@ -31,20 +31,77 @@ public class CloudSearch {
 
     private final static long SECONDS = 1000;
 
+    /** Receives the merged results of a search while it is still running. */
+    public interface ProgressListener {
+        /**
+         * Called on a search thread whenever new results were added. Use
+         * ImportKeysList.snapshot() to get a copy of the results so far.
+         */
+        void onResultsChanged(ImportKeysList results);
+    }
+
     public static ArrayList<ImportKeysListEntry> search(final String query, Preferences.CloudSearchPrefs cloudPrefs,
                                                         final Proxy proxy)
             throws Keyserver.CloudSearchFailureException {
-        final ArrayList<Keyserver> servers = new ArrayList<>();
-
-        // it's a Vector for sync, multiple threads might report problems
-        final Vector<Keyserver.CloudSearchFailureException> problems = new Vector<>();
+        return search(query, cloudPrefs, proxy, null, null);
+    }
 
+    /**
+     * Like search, but reports results to the listener as they arrive. Keyserver results are
+     * reported key by key while they are downloaded, keybase.io results all at once.
+     *
+     * If a cache is passed, cached results are returned without searching, and the results
+     * of a search are cached if all servers answered.
+     *
+     * @param listener listener for results so far, or null
+     * @param cache    cache for the results, or null
+     */
+    public static ArrayList<ImportKeysListEntry> search(final String query, Preferences.CloudSearchPrefs cloudPrefs,
+                                                        final Proxy proxy, final ProgressListener listener,
+                                                        CloudSearchCache cache)
+            throws Keyserver.CloudSearchFailureException {
+        ArrayList<Keyserver> servers = new ArrayList<>();
         if (cloudPrefs.searchKeyserver) {
             servers.add(new HkpKeyserver(cloudPrefs.keyserver));
         }
         if (cloudPrefs.searchKeybase) {
             servers.add(new KeybaseKeyserver());
         }
+        return search(query, servers, cloudPrefs, proxy, listener, cache);
+    }
+
+    /**
+     * Like search, but searches only the given keyserver, e.g. one found through a SRV record.
+     *
+     * @param cache cache for the results, or null
+     */
+    public static ArrayList<ImportKeysListEntry> search(final String query, HkpKeyserver keyserver,
+                                                        final Proxy proxy, CloudSearchCache cache)
+            throws Keyserver.CloudSearchFailureException {
+        ArrayList<Keyserver> servers = new ArrayList<>();
+        servers.add(keyserver);
+        // only the key for the cache, the keyserver is searched as it is
+        Preferences.CloudSearchPrefs cloudPrefs =
+                new Preferences.CloudSearchPrefs(true, false, keyserver.getUrl());
+        return search(query, servers, cloudPrefs, proxy, null, cache);
+    }
+
+    private static ArrayList<ImportKeysListEntry> search(final String query, ArrayList<Keyserver> servers,
+                                                         Preferences.CloudSearchPrefs cloudPrefs,
+                                                         final Proxy proxy, final ProgressListener listener,
+                                                         CloudSearchCache cache)
+            throws Keyserver.CloudSearchFailureException {
+        if (cache != null) {
+            ArrayList<ImportKeysListEntry> cachedResults = cache.get(query, cloudPrefs);
+            if (cachedResults != null) {
+                Log.d(Constants.TAG, "Cloud search results for '" + query + "' are cached");
+                return cachedResults;
+            }
+        }
+
+        // it's a Vector for sync, multiple threads might report problems
+        final Vector<Keyserver.CloudSearchFailureException> problems = new Vector<>();
+
         final ImportKeysList results = new ImportKeysList(servers.size());
 
         ArrayList<Thread> searchThreads = new ArrayList<>();
@@ -53,7 +110,23 @@ public class CloudSearch {
                 @Override
                 public void run() {
                     try {
-                        results.addAll(keyserver.search(query, proxy));
+                        if (keyserver instanceof HkpKeyserver) {
+                            ((HkpKeyserver) keyserver).search(query, proxy,
+                                    new Keyserver.SearchListener() {
+                                        @Override
+                                        public void onEntryFound(ImportKeysListEntry entry) {
+                                            results.add(entry);
+                                            if (listener != null) {
+                                                listener.onResultsChanged(results);
+                                            }
+                                        }
+                                    });
+                        } else {
+                            results.addAll(keyserver.search(query, proxy));
+                            if (listener != null) {
+                                listener.onResultsChanged(results);
+                            }
+                        }
                     } catch (Keyserver.CloudSearchFailureException e) {
                         problems.add(e);
                     }
@@ -66,6 +139,7 @@ public class CloudSearch {
         }
 
         // wait for either all the searches to come back, or 10 seconds. If using proxy, wait 30 seconds.
+        int outstandingSuppliers;
         synchronized (results) {
             try {
                 if (proxy != null) {
@@ -73,17 +147,19 @@ public class CloudSearch {
                 } else {
                     results.wait(10 * SECONDS);
                 }
-                for (Thread thread : searchThreads) {
-                    // kill threads that haven't returned yet
-                    thread.interrupt();
-		}
             } catch (InterruptedException ignored) {
             }
+            // count before interrupting, interrupted keyserver searches return what they have
+            outstandingSuppliers = results.outstandingSuppliers();
+            for (Thread thread : searchThreads) {
+                // kill threads that haven't returned yet
+                thread.interrupt();
+            }
         }
 
-        if (results.outstandingSuppliers() > 0) {
+        if (outstandingSuppliers > 0) {
             String message = "Launched " + servers.size() + " cloud searchers, but " +
-                    results.outstandingSuppliers() + "failed to complete.";
+                    outstandingSuppliers + "failed to complete.";
             problems.add(new Keyserver.QueryFailedException(message));
         }
 
@@ -98,6 +174,10 @@ public class CloudSearch {
             }
         }
 
+        if (cache != null && problems.isEmpty()) {
+            cache.put(query, cloudPrefs, results.snapshot());
+        }
+
         return results;
     }
 }
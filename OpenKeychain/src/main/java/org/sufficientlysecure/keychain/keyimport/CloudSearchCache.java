@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+import android.content.Context;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.ParcelableFileCache;
+import org.sufficientlysecure.keychain.util.ParcelableFileCache.IteratorWithSize;
+import org.sufficientlysecure.keychain.util.Preferences;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/** Caches the results of cloud searches, by query and searched servers.
+ *
+ * Searching for the same query again, e.g. when retyping an email address or importing keys
+ * for contacts, is answered from this cache instead of the network for the TTL set in the
+ * preferences. Results of searches which found no keys are cached as well, but at most for
+ * NEGATIVE_TTL, since a key may be uploaded any time. Only complete results are cached,
+ * searches where any of the servers failed are not.
+ *
+ * The cache holds the MAX_QUERIES most recently used queries, and is saved to a file in the
+ * cache dir after each change. Entries are copied in and out of the cache, so callers may
+ * modify the returned lists and entries.
+ */
+public class CloudSearchCache {
+
+    private static final String CACHE_FILENAME = "cloud_search_cache.pcl";
+    static final int MAX_QUERIES = 50;
+    // larger results are rarely searched for again, and would bloat the cache file
+    static final int MAX_RESULTS_PER_QUERY = 100;
+    static final long NEGATIVE_TTL = TimeUnit.MINUTES.toMillis(10);
+
+    private static CloudSearchCache sInstance;
+
+    private final Context mContext;
+    private final ParcelableFileCache<CachedResult> mFileCache;
+    private LinkedHashMap<String, CachedResult> mResults;
+
+    public static synchronized CloudSearchCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CloudSearchCache(context.getApplicationContext(), CACHE_FILENAME);
+        }
+        return sInstance;
+    }
+
+    CloudSearchCache(Context context, String filename) {
+        mContext = context;
+        mFileCache = new ParcelableFileCache<>(context, filename);
+    }
+
+    /** Returns a copy of the cached results for the query, or null if there are none. */
+    public ArrayList<ImportKeysListEntry> get(String query, Preferences.CloudSearchPrefs cloudPrefs) {
+        return get(query, cloudPrefs, System.currentTimeMillis());
+    }
+
+    synchronized ArrayList<ImportKeysListEntry> get(String query,
+            Preferences.CloudSearchPrefs cloudPrefs, long now) {
+        String key = getKey(query, cloudPrefs);
+        CachedResult result = getResults().get(key);
+        if (result == null) {
+            return null;
+        }
+
+        long ttl = getTtl();
+        if (result.mEntries.isEmpty()) {
+            ttl = Math.min(ttl, NEGATIVE_TTL);
+        }
+        if (now < result.mTime || now - result.mTime >= ttl) {
+            getResults().remove(key);
+            save();
+            return null;
+        }
+
+        ArrayList<ImportKeysListEntry> entries = ImportKeysList.copy(result.mEntries);
+        for (ImportKeysListEntry entry : entries) {
+            entry.setQuery(query);
+        }
+        return entries;
+    }
+
+    /** Caches complete results of a search, which may be empty. */
+    public void put(String query, Preferences.CloudSearchPrefs cloudPrefs,
+                    List<ImportKeysListEntry> entries) {
+        put(query, cloudPrefs, entries, System.currentTimeMillis());
+    }
+
+    synchronized void put(String query, Preferences.CloudSearchPrefs cloudPrefs,
+                          List<ImportKeysListEntry> entries, long now) {
+        if (getTtl() == 0 || entries.size() > MAX_RESULTS_PER_QUERY) {
+            return;
+        }
+        String key = getKey(query, cloudPrefs);
+        getResults().put(key, new CachedResult(key, now, ImportKeysList.copy(entries)));
+        save();
+    }
+
+    /** Drops the cached results for the query, so the next search goes to the network. */
+    public synchronized void invalidate(String query, Preferences.CloudSearchPrefs cloudPrefs) {
+        if (getResults().remove(getKey(query, cloudPrefs)) != null) {
+            save();
+        }
+    }
+
+    private long getTtl() {
+        return TimeUnit.SECONDS.toMillis(
+                Preferences.getPreferences(mContext).getCloudSearchCacheTtl());
+    }
+
+    /** Returns the key for the query, which is the same for all spellings of the query. */
+    static String getKey(String query, Preferences.CloudSearchPrefs cloudPrefs) {
+        String normalizedQuery = query.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ENGLISH);
+        return (cloudPrefs.searchKeyserver ? cloudPrefs.keyserver : "") + "|"
+                + (cloudPrefs.searchKeybase ? KeybaseKeyserver.ORIGIN : "") + "|"
+                + normalizedQuery;
+    }
+
+    private LinkedHashMap<String, CachedResult> getResults() {
+        if (mResults == null) {
+            mResults = new LinkedHashMap<String, CachedResult>(MAX_QUERIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+                    return size() > MAX_QUERIES;
+                }
+            };
+            load();
+        }
+        return mResults;
+    }
+
+    private void load() {
+        if (!mFileCache.exists()) {
+            return;
+        }
+        try {
+            // least recently used first, so the order of access is restored
+            IteratorWithSize<CachedResult> it = mFileCache.readCache(false);
+            while (it.hasNext()) {
+                CachedResult result = it.next();
+                mResults.put(result.mKey, result);
+            }
+        } catch (IOException e) {
+            // start with an empty cache then
+            Log.e(Constants.TAG, "could not read cloud search cache", e);
+        }
+    }
+
+    private void save() {
+        ArrayList<CachedResult> results = new ArrayList<>(mResults.values());
+        try {
+            mFileCache.writeCache(results.size(), results.iterator());
+        } catch (IOException e) {
+            // the results are still cached in memory
+            Log.e(Constants.TAG, "could not save cloud search cache", e);
+        }
+    }
+
+    // public, so Parcel can find its CREATOR
+    public static class CachedResult implements Parcelable {
+        final String mKey;
+        final long mTime;
+        final ArrayList<ImportKeysListEntry> mEntries;
+
+        CachedResult(String key, long time, ArrayList<ImportKeysListEntry> entries) {
+            mKey = key;
+            mTime = time;
+            mEntries = entries;
+        }
+
+        private CachedResult(Parcel source) {
+            mKey = source.readString();
+            mTime = source.readLong();
+            mEntries = source.createTypedArrayList(ImportKeysListEntry.CREATOR);
+        }
+
+        @Override
+        public int describeContents() {
+            return 0;
+        }
+
+        @Override
+        public void writeToParcel(Parcel dest, int flags) {
+            dest.writeString(mKey);
+            dest.writeLong(mTime);
+            dest.writeTypedList(mEntries);
+        }
+
+        public static final Creator<CachedResult> CREATOR = new Creator<CachedResult>() {
+            public CachedResult createFromParcel(final Parcel source) {
+                return new CachedResult(source);
+            }
+
+            public CachedResult[] newArray(final int size) {
+                return new CachedResult[size];
+            }
+        };
+    }
+
+}
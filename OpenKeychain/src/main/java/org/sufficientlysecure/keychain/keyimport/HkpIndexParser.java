@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
+import org.sufficientlysecure.keychain.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/** Parses a machine readable index, as returned by op=index&options=mr, line by line.
+ *
+ * Each call to next() reads only as far as the end of the next key, so results can be shown
+ * while the rest of the index is still being downloaded. The format has one pub line per key,
+ * followed by its uid lines:
+ *
+ * pub:%keyid%:%algo%:%keylen%:%creationdate%:%expirationdate%:%flags%
+ * <ul>
+ * <li>%<b>keyid</b>% = this is either the fingerprint or the key ID of the key.
+ * Either the 16-digit or 8-digit key IDs are acceptable, but obviously the fingerprint is best.
+ * </li>
+ * <li>%<b>algo</b>% = the algorithm number, (i.e. 1==RSA, 17==DSA, etc).
+ * See <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a></li>
+ * <li>%<b>keylen</b>% = the key length (i.e. 1024, 2048, 4096, etc.)</li>
+ * <li>%<b>creationdate</b>% = creation date of the key in standard
+ * <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a> form (i.e. number of
+ * seconds since 1/1/1970 UTC time)</li>
+ * <li>%<b>expirationdate</b>% = expiration date of the key in standard
+ * <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a> form (i.e. number of
+ * seconds since 1/1/1970 UTC time)</li>
+ * <li>%<b>flags</b>% = letter codes to indicate details of the key, if any. Flags may be in any
+ * order. The meaning of "disabled" is implementation-specific. Note that individual flags may
+ * be unimplemented, so the absence of a given flag does not necessarily mean the absence of the
+ * detail.
+ * <ul>
+ * <li>r == revoked</li>
+ * <li>d == disabled</li>
+ * <li>e == expired</li>
+ * </ul>
+ * </li>
+ * </ul>
+ *
+ * uid:%escaped uid string%:%creationdate%:%expirationdate%:%flags%
+ * <ul>
+ * <li>%<b>escaped uid string</b>% = the user ID string, with HTTP %-escaping for anything that
+ * isn't 7-bit safe as well as for the ":" character.  Any other characters may be escaped, as
+ * desired.</li>
+ * <li>%<b>creationdate</b>%, %<b>expirationdate</b>%, %<b>flags</b>% = as above</li>
+ * </ul>
+ *
+ * Other lines, like the info line at the start, are ignored.
+ *
+ * @see <a href="http://tools.ietf.org/html/draft-shaw-openpgp-hkp-00#section-5.2">
+ * 5.2. Machine Readable Indexes</a>
+ * in Internet-Draft OpenPGP HTTP Keyserver Protocol Document
+ */
+class HkpIndexParser {
+
+    private final BufferedReader mReader;
+    private final String mQuery;
+    private final String mOrigin;
+
+    // the pub line of the next key, if we already read it
+    private String[] mNextPubLine;
+
+    /**
+     * @param query  the query, which is set on every entry
+     * @param origin the keyserver, which is added as origin to every entry
+     */
+    HkpIndexParser(Reader reader, String query, String origin) {
+        mReader = new BufferedReader(reader);
+        mQuery = query;
+        mOrigin = origin;
+    }
+
+    /** Returns the next key of the index, or null if there are no more.
+     *
+     * Keys with malformed pub lines or without any valid user id are skipped.
+     */
+    ImportKeysListEntry next() throws IOException {
+        while (true) {
+            String[] pubLine = mNextPubLine;
+            mNextPubLine = null;
+            if (pubLine == null) {
+                pubLine = readPubLine();
+                if (pubLine == null) {
+                    return null;
+                }
+            }
+
+            ImportKeysListEntry entry = parsePubLine(pubLine);
+
+            ArrayList<String> userIds = new ArrayList<>();
+            String line;
+            while ((line = mReader.readLine()) != null) {
+                String[] fields = line.trim().split(":", -1);
+                if ("pub".equalsIgnoreCase(fields[0])) {
+                    mNextPubLine = fields;
+                    break;
+                }
+                if ("uid".equalsIgnoreCase(fields[0]) && fields.length >= 2) {
+                    String userId = decodeUserId(fields[1]);
+                    if (userId != null) {
+                        userIds.add(userId);
+                    }
+                }
+            }
+
+            if (entry == null) {
+                // skip this key
+                continue;
+            }
+            if (userIds.isEmpty()) {
+                Log.e(Constants.TAG, "No user ids for key " + entry.getKeyIdHex());
+                // skip this key
+                continue;
+            }
+            entry.setUserIds(userIds);
+            entry.setPrimaryUserId(userIds.get(0));
+            return entry;
+        }
+    }
+
+    private String[] readPubLine() throws IOException {
+        String line;
+        while ((line = mReader.readLine()) != null) {
+            String[] fields = line.trim().split(":", -1);
+            if ("pub".equalsIgnoreCase(fields[0])) {
+                return fields;
+            }
+        }
+        return null;
+    }
+
+    /** Returns an entry for the pub line, without user ids, or null if it is malformed. */
+    private ImportKeysListEntry parsePubLine(String[] fields) {
+        if (fields.length < 5) {
+            Log.e(Constants.TAG, "Too few fields in pub line.");
+            return null;
+        }
+
+        ImportKeysListEntry entry = new ImportKeysListEntry();
+        entry.setQuery(mQuery);
+        entry.addOrigin(mOrigin);
+
+        // field 1 contains the full fingerprint (v4) or the long key id if available
+        // see https://bitbucket.org/skskeyserver/sks-keyserver/pull-request/12/fixes-for-machine-readable-indexes/diff
+        String fingerprintOrKeyId = fields[1].toLowerCase(Locale.ENGLISH);
+        if (!isHex(fingerprintOrKeyId)) {
+            Log.e(Constants.TAG, "Fingerprint/long key id is not hex.");
+            return null;
+        }
+        if (fingerprintOrKeyId.length() == 40) {
+            entry.setFingerprintHex(fingerprintOrKeyId);
+            entry.setKeyIdHex("0x" + fingerprintOrKeyId.substring(fingerprintOrKeyId.length()
+                    - 16, fingerprintOrKeyId.length()));
+        } else if (fingerprintOrKeyId.length() == 16) {
+            // set key id only
+            entry.setKeyIdHex("0x" + fingerprintOrKeyId);
+        } else {
+            Log.e(Constants.TAG, "Wrong length for fingerprint/long key id.");
+            return null;
+        }
+
+        try {
+            int bitSize = Integer.parseInt(fields[3]);
+            entry.setBitStrength(bitSize);
+            int algorithmId = Integer.parseInt(fields[2]);
+            entry.setAlgorithm(KeyFormattingUtils.getAlgorithmInfo(algorithmId, bitSize, null));
+
+            final long creationDate = Long.parseLong(fields[4]);
+            final GregorianCalendar tmpGreg = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+            tmpGreg.setTimeInMillis(creationDate * 1000);
+            entry.setDate(tmpGreg.getTime());
+        } catch (NumberFormatException e) {
+            Log.e(Constants.TAG, "Conversation for bit size, algorithm, or creation date failed.", e);
+            return null;
+        }
+
+        String flags = fields.length > 6 ? fields[6].toLowerCase(Locale.ENGLISH) : "";
+        entry.setRevoked(flags.contains("r"));
+        entry.setExpired(flags.contains("e"));
+
+        return entry;
+    }
+
+    /** Returns the decoded user id, or null if its encoding is broken. */
+    private static String decodeUserId(String userId) {
+        userId = userId.trim();
+        if (userId.contains("%")) {
+            if (userId.contains("%%")) {
+                // The server encodes a percent sign as %%, so it is swapped out with its
+                // urlencoded counterpart to prevent errors
+                userId = userId.replace("%%", "%25");
+            }
+            try {
+                // converts Strings like "Universit%C3%A4t" to a proper encoding form "Universität".
+                userId = URLDecoder.decode(userId, "UTF8");
+            } catch (UnsupportedEncodingException ignored) {
+                // will never happen, because "UTF8" is supported
+            } catch (IllegalArgumentException e) {
+                Log.e(Constants.TAG, "User ID encoding broken", e);
+                return null;
+            }
+        }
+        return userId;
+    }
+
+    private static boolean isHex(String str) {
+        if (str.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (!(c >= '0' && c <= '9' || c >= 'a' && c <= 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -23,28 +23,24 @@ import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.Request;
 import com.squareup.okhttp.RequestBody;
 import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
 
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.pgp.PgpHelper;
-import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.Log;
-import org.sufficientlysecure.keychain.util.TlsHelper;
+import org.sufficientlysecure.keychain.util.OkHttpClientFactory;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
 import java.net.Proxy;
 import java.net.URL;
-import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
-import java.util.GregorianCalendar;
 import java.util.Locale;
-import java.util.TimeZone;
-import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import de.measite.minidns.Client;
 import de.measite.minidns.Question;
@@ -76,71 +72,6 @@ public class HkpKeyserver extends Keyserver {
     private short mPort;
     private boolean mSecure;
 
-    /**
-     * pub:%keyid%:%algo%:%keylen%:%creationdate%:%expirationdate%:%flags%
-     * <ul>
-     * <li>%<b>keyid</b>% = this is either the fingerprint or the key ID of the key.
-     * Either the 16-digit or 8-digit key IDs are acceptable, but obviously the fingerprint is best.
-     * </li>
-     * <li>%<b>algo</b>% = the algorithm number, (i.e. 1==RSA, 17==DSA, etc).
-     * See <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a></li>
-     * <li>%<b>keylen</b>% = the key length (i.e. 1024, 2048, 4096, etc.)</li>
-     * <li>%<b>creationdate</b>% = creation date of the key in standard
-     * <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a> form (i.e. number of
-     * seconds since 1/1/1970 UTC time)</li>
-     * <li>%<b>expirationdate</b>% = expiration date of the key in standard
-     * <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a> form (i.e. number of
-     * seconds since 1/1/1970 UTC time)</li>
-     * <li>%<b>flags</b>% = letter codes to indicate details of the key, if any. Flags may be in any
-     * order. The meaning of "disabled" is implementation-specific. Note that individual flags may
-     * be unimplemented, so the absence of a given flag does not necessarily mean the absence of the
-     * detail.
-     * <ul>
-     * <li>r == revoked</li>
-     * <li>d == disabled</li>
-     * <li>e == expired</li>
-     * </ul>
-     * </li>
-     * </ul>
-     *
-     * @see <a href="http://tools.ietf.org/html/draft-shaw-openpgp-hkp-00#section-5.2">
-     * 5.2. Machine Readable Indexes</a>
-     * in Internet-Draft OpenPGP HTTP Keyserver Protocol Document
-     */
-    public static final Pattern PUB_KEY_LINE = Pattern
-            .compile("pub:([0-9a-fA-F]+):([0-9]+):([0-9]+):([0-9]+):([0-9]*):([rde]*)[ \n\r]*" // pub line
-                            + "((uid:([^:]*):([0-9]+):([0-9]*):([rde]*)[ \n\r]*)+)", // one or more uid lines
-                    Pattern.CASE_INSENSITIVE
-            );
-
-    /**
-     * uid:%escaped uid string%:%creationdate%:%expirationdate%:%flags%
-     * <ul>
-     * <li>%<b>escaped uid string</b>% = the user ID string, with HTTP %-escaping for anything that
-     * isn't 7-bit safe as well as for the ":" character.  Any other characters may be escaped, as
-     * desired.</li>
-     * <li>%<b>creationdate</b>% = creation date of the key in standard
-     * <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a> form (i.e. number of
-     * seconds since 1/1/1970 UTC time)</li>
-     * <li>%<b>expirationdate</b>% = expiration date of the key in standard
-     * <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a> form (i.e. number of
-     * seconds since 1/1/1970 UTC time)</li>
-     * <li>%<b>flags</b>% = letter codes to indicate details of the key, if any. Flags may be in any
-     * order. The meaning of "disabled" is implementation-specific. Note that individual flags may
-     * be unimplemented, so the absence of a given flag does not necessarily mean the absence of
-     * the detail.
-     * <ul>
-     * <li>r == revoked</li>
-     * <li>d == disabled</li>
-     * <li>e == expired</li>
-     * </ul>
-     * </li>
-     * </ul>
-     */
-    public static final Pattern UID_LINE = Pattern
-            .compile("uid:([^:]*):([0-9]+):([0-9]*):([rde]*)",
-                    Pattern.CASE_INSENSITIVE);
-
     private static final short PORT_DEFAULT = 11371;
     private static final short PORT_DEFAULT_HKPS = 443;
 
@@ -194,65 +125,105 @@ public class HkpKeyserver extends Keyserver {
         return mSecure ? "https://" : "http://";
     }
 
-    /**
-     * returns a client with pinned certificate if necessary
-     *
-     * @param url   url to be queried by client
-     * @param proxy proxy to be used by client
-     * @return client with a pinned certificate if necessary
-     */
-    public static OkHttpClient getClient(URL url, Proxy proxy) throws IOException {
-        OkHttpClient client = new OkHttpClient();
-
-        try {
-            TlsHelper.usePinnedCertificateIfAvailable(client, url);
-        } catch (TlsHelper.TlsHelperException e) {
-            Log.w(Constants.TAG, e);
-        }
-
-        // don't follow any redirects
-        client.setFollowRedirects(false);
-        client.setFollowSslRedirects(false);
-
-        if (proxy != null) {
-            client.setProxy(proxy);
-            client.setConnectTimeout(30000, TimeUnit.MILLISECONDS);
-        } else {
-            client.setProxy(Proxy.NO_PROXY);
-            client.setConnectTimeout(5000, TimeUnit.MILLISECONDS);
-        }
-        client.setReadTimeout(45000, TimeUnit.MILLISECONDS);
-
-        return client;
+    /** Returns the url of this keyserver, which unlike toString includes the protocol. */
+    String getUrl() {
+        return getUrlPrefix() + mHost + ":" + mPort;
     }
 
     private String query(String request, Proxy proxy) throws QueryFailedException, HttpError {
+        return query(request, proxy, null).mBody;
+    }
+
+    /**
+     * Queries the keyserver, conditional on the ETag and Last-Modified of the validators if
+     * they are not null.
+     *
+     * @return the response, whose body is null if the keyserver answered 304 Not Modified
+     */
+    private QueryResponse query(String request, Proxy proxy, KeyserverValidators validators)
+            throws QueryFailedException, HttpError {
         try {
-            URL url = new URL(getUrlPrefix() + mHost + ":" + mPort + request);
-            Log.d(Constants.TAG, "hkp keyserver query: " + url + " Proxy: " + proxy);
-            OkHttpClient client = getClient(url, proxy);
-            Response response = client.newCall(new Request.Builder().url(url).build()).execute();
+            Response response = execute(request, proxy, validators);
 
             String responseBody = response.body().string(); // contains body both in case of success or failure
 
-            if (response.isSuccessful()) {
-                return responseBody;
+            if (validators != null && response.code() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                return new QueryResponse(null, response);
+            } else if (response.isSuccessful()) {
+                return new QueryResponse(responseBody, response);
             } else {
                 throw new HttpError(response.code(), responseBody);
             }
         } catch (IOException e) {
-            Log.e(Constants.TAG, "IOException at HkpKeyserver", e);
-            throw new QueryFailedException("Keyserver '" + mHost + "' is unavailable. Check your Internet connection!" +
-                    (proxy == null ? "" : " Using proxy " + proxy));
+            throw queryFailed(e, proxy);
         }
     }
 
     /**
-     * Results are sorted by creation date of key!
+     * Like query, but returns the response with its body still unread, so it can be read as a
+     * stream. The caller must close the body.
      */
+    private Response queryStream(String request, Proxy proxy)
+            throws QueryFailedException, HttpError {
+        try {
+            Response response = execute(request, proxy, null);
+            if (!response.isSuccessful()) {
+                throw new HttpError(response.code(), response.body().string());
+            }
+            return response;
+        } catch (IOException e) {
+            throw queryFailed(e, proxy);
+        }
+    }
+
+    private Response execute(String request, Proxy proxy, KeyserverValidators validators)
+            throws IOException {
+        URL url = new URL(getUrlPrefix() + mHost + ":" + mPort + request);
+        Log.d(Constants.TAG, "hkp keyserver query: " + url + " Proxy: " + proxy);
+        OkHttpClient client = OkHttpClientFactory.getClient(url, proxy);
+        Request.Builder builder = new Request.Builder().url(url);
+        if (validators != null && validators.mETag != null) {
+            builder.header("If-None-Match", validators.mETag);
+        }
+        if (validators != null && validators.mLastModified != null) {
+            builder.header("If-Modified-Since", validators.mLastModified);
+        }
+        return client.newCall(builder.build()).execute();
+    }
+
+    private QueryFailedException queryFailed(IOException e, Proxy proxy) {
+        Log.e(Constants.TAG, "IOException at HkpKeyserver", e);
+        return new QueryFailedException("Keyserver '" + mHost + "' is unavailable. Check your Internet connection!" +
+                (proxy == null ? "" : " Using proxy " + proxy));
+    }
+
+    private static class QueryResponse {
+        final String mBody;
+        final String mETag;
+        final String mLastModified;
+
+        QueryResponse(String body, Response response) {
+            mBody = body;
+            mETag = response.header("ETag");
+            mLastModified = response.header("Last-Modified");
+        }
+    }
+
     @Override
     public ArrayList<ImportKeysListEntry> search(String query, Proxy proxy) throws QueryFailedException,
             QueryNeedsRepairException {
+        return search(query, proxy, null);
+    }
+
+    /**
+     * Like search, but also passes each key to the listener as soon as it has been read from
+     * the response, while the rest of the index is still being downloaded. If the calling
+     * thread is interrupted, the search stops and returns the keys read so far.
+     *
+     * @param listener listener for keys as they arrive, or null
+     */
+    public ArrayList<ImportKeysListEntry> search(String query, Proxy proxy, SearchListener listener)
+            throws QueryFailedException, QueryNeedsRepairException {
         ArrayList<ImportKeysListEntry> results = new ArrayList<>();
 
         if (query.length() < 3) {
@@ -267,9 +238,9 @@ public class HkpKeyserver extends Keyserver {
         }
         String request = "/pks/lookup?op=index&options=mr&search=" + encodedQuery;
 
-        String data;
+        Response response;
         try {
-            data = query(request, proxy);
+            response = queryStream(request, proxy);
         } catch (HttpError e) {
             if (e.getData() != null) {
                 Log.d(Constants.TAG, "returned error data: " + e.getData().toLowerCase(Locale.ENGLISH));
@@ -293,104 +264,89 @@ public class HkpKeyserver extends Keyserver {
             throw new QueryFailedException("Querying server(s) for '" + mHost + "' failed.");
         }
 
-        final Matcher matcher = PUB_KEY_LINE.matcher(data);
-        while (matcher.find()) {
-            final ImportKeysListEntry entry = new ImportKeysListEntry();
-            entry.setQuery(query);
-            entry.addOrigin(getUrlPrefix() + mHost + ":" + mPort);
-
-            // group 1 contains the full fingerprint (v4) or the long key id if available
-            // see https://bitbucket.org/skskeyserver/sks-keyserver/pull-request/12/fixes-for-machine-readable-indexes/diff
-            String fingerprintOrKeyId = matcher.group(1).toLowerCase(Locale.ENGLISH);
-            if (fingerprintOrKeyId.length() == 40) {
-                entry.setFingerprintHex(fingerprintOrKeyId);
-                entry.setKeyIdHex("0x" + fingerprintOrKeyId.substring(fingerprintOrKeyId.length()
-                        - 16, fingerprintOrKeyId.length()));
-            } else if (fingerprintOrKeyId.length() == 16) {
-                // set key id only
-                entry.setKeyIdHex("0x" + fingerprintOrKeyId);
-            } else {
-                Log.e(Constants.TAG, "Wrong length for fingerprint/long key id.");
-                // skip this key
-                continue;
-            }
-
-            try {
-                int bitSize = Integer.parseInt(matcher.group(3));
-                entry.setBitStrength(bitSize);
-                int algorithmId = Integer.decode(matcher.group(2));
-                entry.setAlgorithm(KeyFormattingUtils.getAlgorithmInfo(algorithmId, bitSize, null));
-
-                final long creationDate = Long.parseLong(matcher.group(4));
-                final GregorianCalendar tmpGreg = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
-                tmpGreg.setTimeInMillis(creationDate * 1000);
-                entry.setDate(tmpGreg.getTime());
-            } catch (NumberFormatException e) {
-                Log.e(Constants.TAG, "Conversation for bit size, algorithm, or creation date failed.", e);
-                // skip this key
-                continue;
+        ResponseBody body = response.body();
+        try {
+            HkpIndexParser parser = new HkpIndexParser(body.charStream(), query,
+                    getUrlPrefix() + mHost + ":" + mPort);
+            ImportKeysListEntry entry;
+            while (!Thread.currentThread().isInterrupted() && (entry = parser.next()) != null) {
+                results.add(entry);
+                if (listener != null) {
+                    listener.onEntryFound(entry);
+                }
             }
-
+        } catch (IOException e) {
+            throw queryFailed(e, proxy);
+        } finally {
             try {
-                entry.setRevoked(matcher.group(6).contains("r"));
-                entry.setExpired(matcher.group(6).contains("e"));
-            } catch (NullPointerException e) {
-                Log.e(Constants.TAG, "Check for revocation or expiry failed.", e);
-                // skip this key
-                continue;
+                body.close();
+            } catch (IOException e) {
+                // never mind
             }
-
-            ArrayList<String> userIds = new ArrayList<>();
-            final String uidLines = matcher.group(7);
-            final Matcher uidMatcher = UID_LINE.matcher(uidLines);
-            while (uidMatcher.find()) {
-                String tmp = uidMatcher.group(1).trim();
-                if (tmp.contains("%")) {
-                    if (tmp.contains("%%")) {
-                        // The server encodes a percent sign as %%, so it is swapped out with its
-                        // urlencoded counterpart to prevent errors
-                        tmp = tmp.replace("%%", "%25");
-                    }
-                    try {
-                        // converts Strings like "Universit%C3%A4t" to a proper encoding form "Universität".
-                        tmp = URLDecoder.decode(tmp, "UTF8");
-                    } catch (UnsupportedEncodingException ignored) {
-                        // will never happen, because "UTF8" is supported
-                    } catch (IllegalArgumentException e) {
-                        Log.e(Constants.TAG, "User ID encoding broken", e);
-                        // skip this user id
-                        continue;
-                    }
-                }
-                userIds.add(tmp);
-            }
-            entry.setUserIds(userIds);
-            entry.setPrimaryUserId(userIds.get(0));
-
-            results.add(entry);
         }
         return results;
     }
 
     @Override
     public String get(String keyIdHex, Proxy proxy) throws QueryFailedException {
+        return getIfChanged(keyIdHex, proxy, null).mArmoredKey;
+    }
+
+    /**
+     * Like get, but skips a keyring which is unchanged since the download described by
+     * oldValidators. That is the case if the keyserver answers the conditional request with
+     * 304 Not Modified, or sends a keyring with the same digest as before.
+     *
+     * @param oldValidators validators of the last download of this keyring, or null
+     */
+    public ConditionalGetResult getIfChanged(String keyIdHex, Proxy proxy,
+                                             KeyserverValidators oldValidators)
+            throws QueryFailedException {
         String request = "/pks/lookup?op=get&options=mr&search=" + keyIdHex;
         Log.d(Constants.TAG, "hkp keyserver get: " + request + " using Proxy: " + proxy);
-        String data;
+        QueryResponse response;
         try {
-            data = query(request, proxy);
+            response = query(request, proxy, oldValidators);
         } catch (HttpError httpError) {
             Log.d(Constants.TAG, "Failed to get key at HkpKeyserver", httpError);
             throw new QueryFailedException("not found");
         }
-        if (data == null) {
+
+        if (response.mBody == null) {
+            Log.d(Constants.TAG, "key not modified at HkpKeyserver");
+            // the keyserver may or may not repeat the validators in a 304 response
+            return new ConditionalGetResult(null, new KeyserverValidators(
+                    response.mETag != null ? response.mETag : oldValidators.mETag,
+                    response.mLastModified != null
+                            ? response.mLastModified : oldValidators.mLastModified,
+                    oldValidators.mDigest));
+        }
+
+        Matcher matcher = PgpHelper.PGP_PUBLIC_KEY.matcher(response.mBody);
+        if (!matcher.find()) {
             throw new QueryFailedException("data is null");
         }
-        Matcher matcher = PgpHelper.PGP_PUBLIC_KEY.matcher(data);
-        if (matcher.find()) {
-            return matcher.group(1);
+        String armoredKey = matcher.group(1);
+        KeyserverValidators validators = new KeyserverValidators(
+                response.mETag, response.mLastModified, KeyserverValidators.digest(armoredKey));
+
+        if (oldValidators != null && Arrays.equals(oldValidators.mDigest, validators.mDigest)) {
+            Log.d(Constants.TAG, "key unchanged at HkpKeyserver");
+            return new ConditionalGetResult(null, validators);
+        }
+        return new ConditionalGetResult(armoredKey, validators);
+    }
+
+    public static class ConditionalGetResult {
+        /** The armored keyring, or null if it is unchanged. */
+        public final String mArmoredKey;
+        /** Validators of this download, to be passed to the next getIfChanged of the keyring. */
+        public final KeyserverValidators mValidators;
+
+        ConditionalGetResult(String armoredKey, KeyserverValidators validators) {
+            mArmoredKey = armoredKey;
+            mValidators = validators;
         }
-        throw new QueryFailedException("data is null");
     }
 
     @Override
@@ -417,7 +373,7 @@ public class HkpKeyserver extends Keyserver {
                     .post(body)
                     .build();
 
-            Response response = getClient(url, proxy).newCall(request).execute();
+            Response response = OkHttpClientFactory.getClient(url, proxy).newCall(request).execute();
 
             Log.d(Constants.TAG, "response code: " + response.code());
             Log.d(Constants.TAG, "answer: " + response.body().string());
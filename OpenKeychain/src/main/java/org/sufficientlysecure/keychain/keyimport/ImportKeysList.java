@@ -16,8 +16,11 @@
  */
 package org.sufficientlysecure.keychain.keyimport;
 
+import android.os.Parcel;
+
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 /**
  * Just an ArrayList, only with a synchronized dupe-merging add/addAll, and a sign-off method
@@ -105,6 +108,26 @@ public class ImportKeysList extends ArrayList<ImportKeysListEntry> {
         return modified;
     }
 
+    // NOTE: synchronized
+    /** Returns a copy of the list and its entries, which is safe to use while more keys are
+     * being added and merged into the entries of this list.
+     */
+    public synchronized ArrayList<ImportKeysListEntry> snapshot() {
+        return copy(this);
+    }
+
+    /** Returns deep copies of the entries, made by writing them to a Parcel and back. */
+    static ArrayList<ImportKeysListEntry> copy(List<ImportKeysListEntry> entries) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeTypedList(entries);
+            parcel.setDataPosition(0);
+            return parcel.createTypedArrayList(ImportKeysListEntry.CREATOR);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
     // NOTE: synchronized
     public synchronized void finishedAdding() {
         mSupplierCount--;
@@ -78,10 +78,12 @@ public class ImportKeysListEntry implements Serializable, Parcelable {
         if (mBitStrength != null) {
             dest.writeInt(mBitStrength);
         }
+        dest.writeString(mCurveOid);
         dest.writeString(mAlgorithm);
         dest.writeByte((byte) (mSecretKey ? 1 : 0));
         dest.writeByte((byte) (mSelected ? 1 : 0));
         dest.writeString(mExtraData);
+        dest.writeString(mQuery);
         dest.writeStringList(mOrigins);
     }
 
@@ -99,10 +101,12 @@ public class ImportKeysListEntry implements Serializable, Parcelable {
             vr.mFingerprintHex = source.readString();
             vr.mKeyIdHex = source.readString();
             vr.mBitStrength = source.readInt() != 0 ? source.readInt() : null;
+            vr.mCurveOid = source.readString();
             vr.mAlgorithm = source.readString();
             vr.mSecretKey = source.readByte() == 1;
             vr.mSelected = source.readByte() == 1;
             vr.mExtraData = source.readString();
+            vr.mQuery = source.readString();
             vr.mOrigins = new ArrayList<>();
             source.readStringList(vr.mOrigins);
 
@@ -69,6 +69,11 @@ public abstract class Keyserver {
         private static final long serialVersionUID = -507574859137295530L;
     }
 
+    /** Receives the results of a search as they arrive. */
+    public interface SearchListener {
+        void onEntryFound(ImportKeysListEntry entry);
+    }
+
     public abstract List<ImportKeysListEntry> search(String query, Proxy proxy)
             throws QueryFailedException, QueryNeedsRepairException;
 
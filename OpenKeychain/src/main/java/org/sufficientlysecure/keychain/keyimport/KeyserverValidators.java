@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/** What we know about the last version of a keyring we downloaded from a keyserver.
+ *
+ * The ETag and Last-Modified headers of the response are sent back with the next request
+ * for the same keyring, so the keyserver can answer 304 Not Modified instead of sending it
+ * again. Most keyservers don't support conditional requests, so the digest of the armored
+ * keyring is compared as well, which at least saves decoding and saving an unchanged keyring.
+ */
+public class KeyserverValidators {
+
+    /** The ETag header of the response, or null if there was none. */
+    public final String mETag;
+    /** The Last-Modified header of the response, or null if there was none. */
+    public final String mLastModified;
+    /** SHA-256 digest of the armored keyring. */
+    public final byte[] mDigest;
+
+    public KeyserverValidators(String eTag, String lastModified, byte[] digest) {
+        mETag = eTag;
+        mLastModified = lastModified;
+        mDigest = digest;
+    }
+
+    public static byte[] digest(String armoredKey) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(armoredKey.getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-256 is always available");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError("UTF-8 is always available");
+        }
+    }
+
+}
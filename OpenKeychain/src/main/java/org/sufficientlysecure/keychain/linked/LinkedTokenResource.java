@@ -1,11 +1,18 @@
 package org.sufficientlysecure.keychain.linked;
 
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.RequestBody;
+import com.squareup.okhttp.Response;
+
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpRequestBase;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.params.BasicHttpParams;
+import org.apache.http.util.EntityUtils;
 import org.json.JSONException;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.linked.resources.DnsResource;
@@ -17,6 +24,7 @@ import org.sufficientlysecure.keychain.operations.results.OperationResult.LogTyp
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.OkHttpClientFactory;
 import org.thoughtcrime.ssl.pinning.util.PinningHelper;
 
 import java.io.BufferedReader;
@@ -25,6 +33,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URI;
+import java.net.URL;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map.Entry;
@@ -243,17 +252,51 @@ public abstract class LinkedTokenResource extends LinkedResource {
     @SuppressWarnings("deprecation") // HttpRequestBase is deprecated
     public static String getResponseBody(Context context, HttpRequestBase request, String[] pins)
         throws IOException, HttpStatusException {
-        StringBuilder sb = new StringBuilder();
 
         request.setHeader("User-Agent", "Open Keychain");
 
+        if (pins != null) {
+            return getPinnedResponseBody(context, request, pins);
+        }
+
+        // same request, but on a client which keeps its connections around
+        URL url = request.getURI().toURL();
+        Request.Builder builder = new Request.Builder().url(url);
+        for (Header header : request.getAllHeaders()) {
+            builder.header(header.getName(), header.getValue());
+        }
+        RequestBody body = null;
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if (entity != null) {
+                Header contentType = entity.getContentType();
+                body = RequestBody.create(
+                        contentType == null ? null : MediaType.parse(contentType.getValue()),
+                        EntityUtils.toByteArray(entity));
+            }
+        }
+        builder.method(request.getMethod(), body);
+
+        // like the apache client, follow redirects
+        OkHttpClient client = OkHttpClientFactory.getClient(url, null).clone();
+        client.setFollowRedirects(true);
+        client.setFollowSslRedirects(true);
 
-        HttpClient httpClient;
-        if (pins == null) {
-            httpClient = new DefaultHttpClient(new BasicHttpParams());
-        } else {
-            httpClient = PinningHelper.getPinnedHttpClient(context, pins);
+        Response response = client.newCall(builder.build()).execute();
+        try {
+            if (response.code() != 200) {
+                throw new HttpStatusException(response.code(), response.message());
+            }
+            return readLines(response.body().byteStream());
+        } finally {
+            response.body().close();
         }
+    }
+
+    @SuppressWarnings("deprecation") // HttpRequestBase is deprecated
+    private static String getPinnedResponseBody(Context context, HttpRequestBase request,
+            String[] pins) throws IOException, HttpStatusException {
+        HttpClient httpClient = PinningHelper.getPinnedHttpClient(context, pins);
 
         HttpResponse response = httpClient.execute(request);
         int statusCode = response.getStatusLine().getStatusCode();
@@ -264,7 +307,11 @@ public abstract class LinkedTokenResource extends LinkedResource {
         }
 
         HttpEntity entity = response.getEntity();
-        InputStream inputStream = entity.getContent();
+        return readLines(entity.getContent());
+    }
+
+    private static String readLines(InputStream inputStream) throws IOException {
+        StringBuilder sb = new StringBuilder();
 
         BufferedReader bReader = new BufferedReader(
                 new InputStreamReader(inputStream, "UTF-8"), 8);
@@ -24,23 +24,19 @@ import java.net.Proxy;
 import java.util.ArrayList;
 import java.util.GregorianCalendar;
 import java.util.Iterator;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorCompletionService;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.content.Context;
 import android.support.annotation.NonNull;
 
+import org.spongycastle.util.encoders.Hex;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.keyimport.HkpKeyserver;
 import org.sufficientlysecure.keychain.keyimport.KeybaseKeyserver;
 import org.sufficientlysecure.keychain.keyimport.Keyserver;
+import org.sufficientlysecure.keychain.keyimport.KeyserverValidators;
 import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
 import org.sufficientlysecure.keychain.operations.results.ConsolidateResult;
 import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
@@ -48,6 +44,7 @@ import org.sufficientlysecure.keychain.operations.results.OperationResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
+import org.sufficientlysecure.keychain.pgp.CertFloodFilter;
 import org.sufficientlysecure.keychain.pgp.Progressable;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
@@ -56,6 +53,7 @@ import org.sufficientlysecure.keychain.service.ContactSyncAdapterService;
 import org.sufficientlysecure.keychain.service.ImportKeyringParcel;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
+import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.ParcelableFileCache;
 import org.sufficientlysecure.keychain.util.ParcelableFileCache.IteratorWithSize;
@@ -82,6 +80,9 @@ import org.sufficientlysecure.keychain.util.orbot.OrbotHelper;
  */
 public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
 
+    private KeyImportPipeline.Metrics mPipelineMetrics;
+    private CertFloodFilter mCertFloodFilter;
+
     public ImportOperation(Context context, ProviderHelper providerHelper, Progressable
             progressable) {
         super(context, providerHelper, progressable);
@@ -153,9 +154,6 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
         int position = 0;
         double progSteps = 100.0 / num;
 
-        KeybaseKeyserver keybaseServer = null;
-        HkpKeyserver keyServer = null;
-
         // iterate over all entries
         while (entries.hasNext()) {
             ParcelableKeyRing entry = entries.next();
@@ -168,98 +166,19 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
 
             try {
 
-                UncachedKeyRing key = null;
-
-                // If there is already byte data, use that
-                if (entry.mBytes != null) {
-                    key = UncachedKeyRing.decodeFromData(entry.mBytes);
-                }
-                // Otherwise, we need to fetch the data from a server first
-                else {
-
-                    // We fetch from keyservers first, because we tend to get more certificates
-                    // from there, so the number of certificates which are merged in later is
-                    // smaller.
-
-                    // If we have a keyServerUri and a fingerprint or at least a keyId,
-                    // download from HKP
-                    if (keyServerUri != null
-                            && (entry.mKeyIdHex != null || entry.mExpectedFingerprint != null)) {
-                        // Make sure we have the keyserver instance cached
-                        if (keyServer == null) {
-                            log.add(LogType.MSG_IMPORT_KEYSERVER, 1, keyServerUri);
-                            keyServer = new HkpKeyserver(keyServerUri);
-                        }
-
-                        try {
-                            byte[] data;
-                            // Download by fingerprint, or keyId - whichever is available
-                            if (entry.mExpectedFingerprint != null) {
-                                log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 2, "0x" +
-                                        entry.mExpectedFingerprint.substring(24));
-                                data = keyServer.get("0x" + entry.mExpectedFingerprint, proxy)
-                                        .getBytes();
-                            } else {
-                                log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 2, entry.mKeyIdHex);
-                                data = keyServer.get(entry.mKeyIdHex, proxy).getBytes();
-                            }
-                            key = UncachedKeyRing.decodeFromData(data);
-                            if (key != null) {
-                                log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_OK, 3);
-                            } else {
-                                log.add(LogType.MSG_IMPORT_FETCH_ERROR_DECODE, 3);
-                            }
-                        } catch (Keyserver.QueryFailedException e) {
-                            Log.d(Constants.TAG, "query failed", e);
-                            log.add(LogType.MSG_IMPORT_FETCH_ERROR_KEYSERVER, 3, e.getMessage());
-                        }
-                    }
-
-                    // If we have a keybase name, try to fetch from there
-                    if (entry.mKeybaseName != null) {
-                        // Make sure we have this cached
-                        if (keybaseServer == null) {
-                            keybaseServer = new KeybaseKeyserver();
-                        }
-
-                        try {
-                            log.add(LogType.MSG_IMPORT_FETCH_KEYBASE, 2, entry.mKeybaseName);
-                            byte[] data = keybaseServer.get(entry.mKeybaseName, proxy).getBytes();
-                            UncachedKeyRing keybaseKey = UncachedKeyRing.decodeFromData(data);
-
-                            // If there already is a key, merge the two
-                            if (key != null && keybaseKey != null) {
-                                log.add(LogType.MSG_IMPORT_MERGE, 3);
-                                keybaseKey = key.merge(keybaseKey, log, 4);
-                                // If the merge didn't fail, use the new merged key
-                                if (keybaseKey != null) {
-                                    key = keybaseKey;
-                                } else {
-                                    log.add(LogType.MSG_IMPORT_MERGE_ERROR, 4);
-                                }
-                            } else if (keybaseKey != null) {
-                                key = keybaseKey;
-                            }
-                        } catch (Keyserver.QueryFailedException e) {
-                            // download failed, too bad. just proceed
-                            Log.e(Constants.TAG, "query failed", e);
-                            log.add(LogType.MSG_IMPORT_FETCH_ERROR_KEYSERVER, 3, e.getMessage());
-                        }
-                    }
-                }
-
-                if (key == null) {
-                    log.add(LogType.MSG_IMPORT_FETCH_ERROR, 2);
+                FetchedKeyRing fetched = fetchKeyRing(entry, keyServerUri, proxy, log);
+                if (fetched == null) {
                     badKeys += 1;
                     continue;
                 }
-
-                // never import secret keys from keyserver!
-                if (entry.mBytes == null && key.isSecret()) {
-                    log.add(LogType.MSG_IMPORT_FETCH_ERROR_KEYSERVER_SECRET, 2);
-                    badKeys += 1;
+                // unchanged on the keyserver, this counts like an update which changed nothing
+                if (fetched.mKey == null) {
+                    updatedKeys += 1;
+                    importedMasterKeyIds.add(fetched.mMasterKeyId);
+                    position++;
                     continue;
                 }
+                UncachedKeyRing key = fetched.mKey;
 
                 // Another check if we have been cancelled
                 if (checkCancelled()) {
@@ -268,19 +187,19 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
                 }
 
                 SaveKeyringResult result;
-                // synchronizing prevents https://github.com/open-keychain/open-keychain/issues/1221
-                // and https://github.com/open-keychain/open-keychain/issues/1480
-                synchronized (mProviderHelper) {
-                    mProviderHelper.clearLog();
-                    if (key.isSecret()) {
-                        result = mProviderHelper.saveSecretKeyRing(key,
-                                new ProgressScaler(progressable, (int) (position * progSteps),
-                                        (int) ((position + 1) * progSteps), 100));
-                    } else {
-                        result = mProviderHelper.savePublicKeyRing(key,
-                                new ProgressScaler(progressable, (int) (position * progSteps),
-                                        (int) ((position + 1) * progSteps), 100), entry.mExpectedFingerprint);
-                    }
+                // concurrent saves of the same keyring, as in
+                // https://github.com/open-keychain/open-keychain/issues/1221
+                // and https://github.com/open-keychain/open-keychain/issues/1480,
+                // are serialized by ProviderHelper
+                mProviderHelper.clearLog();
+                if (key.isSecret()) {
+                    result = mProviderHelper.saveSecretKeyRing(key,
+                            new ProgressScaler(progressable, (int) (position * progSteps),
+                                    (int) ((position + 1) * progSteps), 100));
+                } else {
+                    result = mProviderHelper.savePublicKeyRing(key,
+                            new ProgressScaler(progressable, (int) (position * progSteps),
+                                    (int) ((position + 1) * progSteps), 100), entry.mExpectedFingerprint);
                 }
                 if (!result.success()) {
                     badKeys += 1;
@@ -301,7 +220,7 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
                         // this prevents file imports being noted as keyserver imports
                         mProviderHelper.renewKeyLastUpdatedTime(key.getMasterKeyId(),
                                 GregorianCalendar.getInstance().getTimeInMillis(),
-                                TimeUnit.MILLISECONDS);
+                                TimeUnit.MILLISECONDS, fetched.mValidators);
                     }
                 }
 
@@ -332,6 +251,164 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
         // so, we expect calling functions to take care of it. KeychainService handles this
         // ContactSyncAdapterService.requestSync();
 
+        return createImportResult(log, cancelled, newKeys, updatedKeys, badKeys, secret,
+                importedMasterKeyIds);
+    }
+
+    /**
+     * Decodes the keyring of an entry, or downloads it from the keyserver and/or keybase.io if
+     * the entry has no data.
+     *
+     * When refreshing a keyring we already have by its fingerprint, the keyserver is asked
+     * for changes since the last download only. If there are none, the keyring is not decoded
+     * at all, and only its last updated time is renewed here.
+     *
+     * @return the keyring, or null if it could not be obtained or must not be imported. The
+     * reason is added to the log.
+     */
+    FetchedKeyRing fetchKeyRing(ParcelableKeyRing entry, String keyServerUri, Proxy proxy,
+                                OperationLog log) throws IOException, PgpGeneralException {
+        UncachedKeyRing key = null;
+        KeyserverValidators validators = null;
+        int droppedCerts = 0;
+
+        // If there is already byte data, use that. It comes from a file or the clipboard,
+        // so we keep all of its certificates.
+        if (entry.mBytes != null) {
+            key = UncachedKeyRing.decodeFromData(entry.mBytes);
+        }
+        // Otherwise, we need to fetch the data from a server first
+        else {
+            // anybody can add certificates there, so they are limited
+            CertFloodFilter filter = getCertFloodFilter();
+
+            // We fetch from keyservers first, because we tend to get more certificates
+            // from there, so the number of certificates which are merged in later is
+            // smaller.
+
+            // If we have a keyServerUri and a fingerprint or at least a keyId,
+            // download from HKP
+            if (keyServerUri != null
+                    && (entry.mKeyIdHex != null || entry.mExpectedFingerprint != null)) {
+                log.add(LogType.MSG_IMPORT_KEYSERVER, 1, keyServerUri);
+                HkpKeyserver keyServer = new HkpKeyserver(keyServerUri);
+
+                try {
+                    HkpKeyserver.ConditionalGetResult result;
+                    // Download by fingerprint, or keyId - whichever is available
+                    if (entry.mExpectedFingerprint != null) {
+                        log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 2, "0x" +
+                                entry.mExpectedFingerprint.substring(24));
+                        // with data from keybase.io merged in, an unchanged download from
+                        // the keyserver doesn't mean the keyring is unchanged
+                        long masterKeyId = KeyFormattingUtils.getKeyIdFromFingerprint(
+                                Hex.decode(entry.mExpectedFingerprint));
+                        KeyserverValidators oldValidators = entry.mKeybaseName == null
+                                ? mProviderHelper.getKeyserverValidators(masterKeyId) : null;
+                        result = keyServer.getIfChanged("0x" + entry.mExpectedFingerprint,
+                                proxy, oldValidators);
+                        if (result.mArmoredKey == null) {
+                            log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_UNCHANGED, 3);
+                            mProviderHelper.renewKeyLastUpdatedTime(masterKeyId,
+                                    GregorianCalendar.getInstance().getTimeInMillis(),
+                                    TimeUnit.MILLISECONDS, result.mValidators);
+                            return new FetchedKeyRing(null, masterKeyId, result.mValidators);
+                        }
+                    } else {
+                        log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 2, entry.mKeyIdHex);
+                        result = keyServer.getIfChanged(entry.mKeyIdHex, proxy, null);
+                    }
+                    validators = result.mValidators;
+                    key = UncachedKeyRing.decodeFromData(result.mArmoredKey.getBytes(), filter);
+                    if (key != null) {
+                        droppedCerts += key.getDroppedCertCount();
+                        log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_OK, 3);
+                    } else {
+                        log.add(LogType.MSG_IMPORT_FETCH_ERROR_DECODE, 3);
+                    }
+                } catch (Keyserver.QueryFailedException e) {
+                    Log.d(Constants.TAG, "query failed", e);
+                    log.add(LogType.MSG_IMPORT_FETCH_ERROR_KEYSERVER, 3, e.getMessage());
+                }
+            }
+
+            // If we have a keybase name, try to fetch from there
+            if (entry.mKeybaseName != null) {
+                KeybaseKeyserver keybaseServer = new KeybaseKeyserver();
+
+                try {
+                    log.add(LogType.MSG_IMPORT_FETCH_KEYBASE, 2, entry.mKeybaseName);
+                    byte[] data = keybaseServer.get(entry.mKeybaseName, proxy).getBytes();
+                    UncachedKeyRing keybaseKey = UncachedKeyRing.decodeFromData(data, filter);
+                    droppedCerts += keybaseKey.getDroppedCertCount();
+
+                    // If there already is a key, merge the two
+                    if (key != null && keybaseKey != null) {
+                        log.add(LogType.MSG_IMPORT_MERGE, 3);
+                        keybaseKey = key.merge(keybaseKey, log, 4);
+                        // If the merge didn't fail, use the new merged key
+                        if (keybaseKey != null) {
+                            key = keybaseKey;
+                        } else {
+                            log.add(LogType.MSG_IMPORT_MERGE_ERROR, 4);
+                        }
+                    } else if (keybaseKey != null) {
+                        key = keybaseKey;
+                    }
+                } catch (Keyserver.QueryFailedException e) {
+                    // download failed, too bad. just proceed
+                    Log.e(Constants.TAG, "query failed", e);
+                    log.add(LogType.MSG_IMPORT_FETCH_ERROR_KEYSERVER, 3, e.getMessage());
+                }
+            }
+        }
+
+        if (key == null) {
+            log.add(LogType.MSG_IMPORT_FETCH_ERROR, 2);
+            return null;
+        }
+
+        if (droppedCerts > 0) {
+            log.add(LogType.MSG_IMPORT_FLOOD_DROPPED, 2, droppedCerts);
+        }
+
+        // never import secret keys from keyserver!
+        if (entry.mBytes == null && key.isSecret()) {
+            log.add(LogType.MSG_IMPORT_FETCH_ERROR_KEYSERVER_SECRET, 2);
+            return null;
+        }
+
+        return new FetchedKeyRing(key, key.getMasterKeyId(), validators);
+    }
+
+    /** A keyring obtained by fetchKeyRing. */
+    static class FetchedKeyRing {
+        /** The keyring, or null if it is unchanged on the keyserver since the last update. */
+        final UncachedKeyRing mKey;
+        final long mMasterKeyId;
+        /** Validators of the keyserver download, to be stored once the keyring is saved. */
+        final KeyserverValidators mValidators;
+
+        FetchedKeyRing(UncachedKeyRing key, long masterKeyId, KeyserverValidators validators) {
+            mKey = key;
+            mMasterKeyId = masterKeyId;
+            mValidators = validators;
+        }
+    }
+
+    /** Limits the third-party certificates of imported keys, preferring those we trust. */
+    private synchronized CertFloodFilter getCertFloodFilter() {
+        if (mCertFloodFilter == null) {
+            mCertFloodFilter = new CertFloodFilter(CertFloodFilter.DEFAULT_MAX_CERTS_PER_USER_ID,
+                    mProviderHelper.getTrustedMasterKeyIds());
+        }
+        return mCertFloodFilter;
+    }
+
+    /** Creates the result of an import from its counts, and adds the final log entry. */
+    static ImportKeyResult createImportResult(OperationLog log, boolean cancelled,
+                                              int newKeys, int updatedKeys, int badKeys,
+                                              int secret, ArrayList<Long> importedMasterKeyIds) {
         // convert to long array
         long[] importedMasterKeyIdsArray = new long[importedMasterKeyIds.size()];
         for (int i = 0; i < importedMasterKeyIds.size(); ++i) {
@@ -421,57 +498,33 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
         if (keyListIterator != null) {
             KeyImportAccumulator accumulator = new KeyImportAccumulator(totKeys, mProgressable);
 
-            final ProgressScaler ignoreProgressable = new ProgressScaler();
-
-            final int maxThreads = 200;
-            ExecutorService importExecutor = new ThreadPoolExecutor(0, maxThreads,
-                    30L, TimeUnit.SECONDS,
-                    new SynchronousQueue<Runnable>());
-
-            ExecutorCompletionService<ImportKeyResult> importCompletionService =
-                    new ExecutorCompletionService<>(importExecutor);
+            KeyImportPipeline pipeline = new KeyImportPipeline(this, keyServer, proxy, accumulator);
+            pipeline.run(keyListIterator);
+            mPipelineMetrics = pipeline.getMetrics();
+            Log.d(Constants.TAG, "Multi-threaded key import finished: " + mPipelineMetrics);
 
-            while (keyListIterator.hasNext()) { // submit all key rings to be imported
+            ImportKeyResult result = accumulator.getConsolidatedResult();
 
-                final ParcelableKeyRing pkRing = keyListIterator.next();
-
-                Callable<ImportKeyResult> importOperationCallable = new Callable<ImportKeyResult>
-                        () {
-
-                    @Override
-                    public ImportKeyResult call() {
-
-                        ArrayList<ParcelableKeyRing> list = new ArrayList<>();
-                        list.add(pkRing);
-
-                        return serialKeyRingImport(list.iterator(), 1, keyServer,
-                                ignoreProgressable, proxy);
-                    }
-                };
-
-                importCompletionService.submit(importOperationCallable);
-            }
-
-            while (!accumulator.isImportFinished()) { // accumulate the results of each import
-                try {
-                    accumulator.accumulateKeyImport(importCompletionService.take().get());
-                } catch (InterruptedException | ExecutionException e) {
-                    Log.e(Constants.TAG, "A key could not be imported during multi-threaded " +
-                            "import", e);
-                    // do nothing?
-                    if (e instanceof ExecutionException) {
-                        // Since serialKeyRingImport does not throw any exceptions, this is what
-                        // would have happened if
-                        // we were importing the key on this thread
-                        throw new RuntimeException();
-                    }
+            // Special: consolidate on secret key import (cannot be cancelled!)
+            if (result.mSecret > 0) {
+                setPreventCancel();
+                ConsolidateResult consolidateResult;
+                synchronized (mProviderHelper) {
+                    consolidateResult = mProviderHelper.consolidateDatabaseStep1(new ProgressScaler());
                 }
+                result.getLog().add(consolidateResult, 1);
             }
-            return accumulator.getConsolidatedResult();
+
+            return result;
         }
         return new ImportKeyResult(ImportKeyResult.RESULT_FAIL_NOTHING, new OperationLog());
     }
 
+    /** Returns the metrics of the last multi-threaded import, or null if there was none. */
+    KeyImportPipeline.Metrics getPipelineMetrics() {
+        return mPipelineMetrics;
+    }
+
     /**
      * Used to accumulate the results of individual key imports
      */
@@ -0,0 +1,436 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations;
+
+
+import java.io.IOException;
+import java.net.Proxy;
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.content.Context;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
+import org.sufficientlysecure.keychain.operations.ImportOperation.FetchedKeyRing;
+import org.sufficientlysecure.keychain.operations.ImportOperation.KeyImportAccumulator;
+import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
+import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.provider.ProviderHelper.PreparedKeyRing;
+import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.ProgressScaler;
+
+/**
+ * Imports a list of keyrings for ImportOperation in three stages:
+ * <ol>
+ * <li>Keyrings which are not included in their entry are downloaded by a few fetch threads.</li>
+ * <li>Keyrings are decoded, merged with their stored version and canonicalized by one worker
+ * thread per cpu core, see ProviderHelper.preparePublicKeyRing.</li>
+ * <li>A single writer thread saves the prepared keyrings, up to BATCH_SIZE of them in one
+ * transaction, see ProviderHelper.savePreparedKeyRings.</li>
+ * </ol>
+ * At most QUEUE_SIZE entries are in the pipeline at any time, so entries are only taken from
+ * the input iterator as fast as they can be saved. ProviderHelper keeps a keyring locked from
+ * the time it is prepared until it is saved, so entries for the same master key id are
+ * processed one after the other. Secret keyrings are rare, so the workers save them directly.
+ * The writer itself never waits for a keyring lock, so it can't block the workers that do.
+ */
+class KeyImportPipeline {
+
+    /** Maximum number of keyrings which are saved in a single transaction. */
+    static final int BATCH_SIZE = 50;
+    /** Maximum number of entries which are taken from the iterator but not finished yet. */
+    static final int QUEUE_SIZE = 2 * BATCH_SIZE;
+    /** Number of threads for downloads, which wait for the network rather than the cpu. */
+    static final int FETCH_THREADS = 4;
+
+    /** Marks the end of input for the writer thread. */
+    private static final ImportEntry END = new ImportEntry(null);
+
+    private final ImportOperation mOperation;
+    private final Context mContext;
+    private final String mKeyServerUri;
+    private final Proxy mProxy;
+    private final KeyImportAccumulator mAccumulator;
+
+    private final int mWorkerThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private final Semaphore mQueueSlots = new Semaphore(QUEUE_SIZE);
+    private final LinkedBlockingQueue<ImportEntry> mWriteQueue = new LinkedBlockingQueue<>();
+    private final Metrics mMetrics = new Metrics();
+    private volatile boolean mCancelled = false;
+
+    private ExecutorService mFetchExecutor;
+    private ExecutorService mWorkerExecutor;
+
+    KeyImportPipeline(ImportOperation operation, String keyServerUri, Proxy proxy,
+                      KeyImportAccumulator accumulator) {
+        mOperation = operation;
+        mContext = operation.mContext;
+        mKeyServerUri = keyServerUri;
+        mProxy = proxy;
+        mAccumulator = accumulator;
+    }
+
+    Metrics getMetrics() {
+        return mMetrics;
+    }
+
+    /** Imports all entries of the iterator, and returns once all of them are finished. */
+    void run(Iterator<ParcelableKeyRing> entries) {
+        mFetchExecutor = Executors.newFixedThreadPool(FETCH_THREADS);
+        mWorkerExecutor = Executors.newFixedThreadPool(mWorkerThreads);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWriter();
+            }
+        }, "KeyImportWriter");
+        writer.start();
+
+        try {
+            while (entries.hasNext()) {
+                if (mOperation.checkCancelled()) {
+                    mCancelled = true;
+                    break;
+                }
+
+                long start = System.nanoTime();
+                mQueueSlots.acquireUninterruptibly();
+                mMetrics.addBackpressure(System.nanoTime() - start);
+
+                final ImportEntry entry = new ImportEntry(entries.next());
+                ExecutorService executor =
+                        entry.mKeyRing.mBytes == null ? mFetchExecutor : mWorkerExecutor;
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        fetch(entry);
+                    }
+                });
+            }
+
+            // all slots are free again once all entries are finished
+            mQueueSlots.acquireUninterruptibly(QUEUE_SIZE);
+            mQueueSlots.release(QUEUE_SIZE);
+        } finally {
+            mWriteQueue.add(END);
+            mFetchExecutor.shutdown();
+            mWorkerExecutor.shutdown();
+        }
+
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Log.e(Constants.TAG, "interrupted while waiting for the import writer", e);
+            Thread.currentThread().interrupt();
+        }
+
+        if (mCancelled) {
+            OperationLog log = new OperationLog();
+            log.add(LogType.MSG_OPERATION_CANCELLED, 1);
+            mAccumulator.accumulateKeyImport(
+                    new ImportKeyResult(ImportKeyResult.RESULT_CANCELLED, log));
+        }
+    }
+
+    /** First stage, obtains the keyring of an entry. Runs on the fetch or worker executor. */
+    private void fetch(final ImportEntry entry) {
+        boolean handedOver = false;
+        try {
+            long start = System.nanoTime();
+            entry.mFetched = mOperation.fetchKeyRing(
+                    entry.mKeyRing, mKeyServerUri, mProxy, entry.mLog);
+            if (entry.mFetched != null) {
+                entry.mKey = entry.mFetched.mKey;
+            }
+            mMetrics.addFetch(System.nanoTime() - start);
+
+            // if the keyring is unchanged, fetchKeyRing took care of that already
+            if (entry.mKey != null) {
+                if (entry.mKeyRing.mBytes == null) {
+                    // downloaded keyrings are handed over to the workers
+                    mWorkerExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            prepare(entry);
+                        }
+                    });
+                } else {
+                    prepare(entry);
+                }
+                handedOver = true;
+            }
+        } catch (IOException | PgpGeneralException | RuntimeException | AssertionError e) {
+            // canonicalize asserts on some malformed keyrings
+            Log.e(Constants.TAG, "Encountered bad key on import!", e);
+        } finally {
+            // whatever happened, the entry must not keep its queue slot
+            if (!handedOver) {
+                finish(entry);
+            }
+        }
+    }
+
+    /** Second stage, prepares a public keyring for the writer. Runs on the worker executor. */
+    private void prepare(ImportEntry entry) {
+        boolean queued = false;
+        try {
+            if (mCancelled || mOperation.checkCancelled()) {
+                mCancelled = true;
+                entry.mCancelled = true;
+                return;
+            }
+
+            long start = System.nanoTime();
+            ProviderHelper providerHelper = new ProviderHelper(mContext);
+            if (entry.mKey.isSecret()) {
+                entry.mResult = providerHelper.saveSecretKeyRing(entry.mKey, new ProgressScaler());
+                mMetrics.addPrepare(System.nanoTime() - start);
+                return;
+            }
+
+            // this waits while the same keyring is in the pipeline already
+            entry.mPrepared = providerHelper.preparePublicKeyRing(entry.mKey,
+                    new ProgressScaler(), entry.mKeyRing.mExpectedFingerprint);
+            mMetrics.addPrepare(System.nanoTime() - start);
+
+            // nothing left to write, if there was an error or nothing changed
+            if (entry.mPrepared.getResult() != null) {
+                entry.mResult = entry.mPrepared.getResult();
+                if (entry.mResult.success()) {
+                    renewLastUpdatedTime(providerHelper, entry);
+                }
+                return;
+            }
+
+            mWriteQueue.add(entry);
+            queued = true;
+        } catch (RuntimeException | AssertionError e) {
+            // canonicalize asserts on some malformed keyrings
+            Log.e(Constants.TAG, "Encountered bad key on import!", e);
+        } finally {
+            // queued entries are finished by the writer
+            if (!queued) {
+                finish(entry);
+            }
+        }
+    }
+
+    /** Third stage, saves prepared keyrings in batches. Runs on the writer thread. */
+    private void runWriter() {
+        ProviderHelper providerHelper = new ProviderHelper(mContext);
+        ArrayList<ImportEntry> batch = new ArrayList<>();
+        while (true) {
+            try {
+                ImportEntry entry = mWriteQueue.take();
+                // END is queued only after all entries are finished, so this is the last one
+                if (entry == END) {
+                    return;
+                }
+                batch.add(entry);
+            } catch (InterruptedException e) {
+                Log.e(Constants.TAG, "import writer interrupted", e);
+                continue;
+            }
+            mWriteQueue.drainTo(batch, BATCH_SIZE - 1);
+
+            try {
+                write(providerHelper, batch);
+            } catch (Throwable e) {
+                // if the writer died, run() would wait for the entries of this batch forever
+                Log.e(Constants.TAG, "Encountered bad key on import!", e);
+            } finally {
+                for (ImportEntry entry : batch) {
+                    finish(entry);
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    private void write(ProviderHelper providerHelper, ArrayList<ImportEntry> batch) {
+        ArrayList<PreparedKeyRing> prepared = new ArrayList<>();
+        for (ImportEntry entry : batch) {
+            prepared.add(entry.mPrepared);
+        }
+
+        long start = System.nanoTime();
+        providerHelper.savePreparedKeyRings(prepared);
+        mMetrics.addWrite(prepared.size(), System.nanoTime() - start);
+
+        for (ImportEntry entry : batch) {
+            entry.mResult = entry.mPrepared.getResult();
+            if (entry.mResult.success()) {
+                renewLastUpdatedTime(providerHelper, entry);
+            }
+        }
+    }
+
+    private static void renewLastUpdatedTime(ProviderHelper providerHelper, ImportEntry entry) {
+        if (entry.mKeyRing.mBytes == null) {
+            // synonymous to isDownloadFromKeyserver.
+            // If no byte data was supplied, import from keyserver took place
+            // this prevents file imports being noted as keyserver imports
+            providerHelper.renewKeyLastUpdatedTime(entry.mKey.getMasterKeyId(),
+                    GregorianCalendar.getInstance().getTimeInMillis(),
+                    TimeUnit.MILLISECONDS, entry.mFetched.mValidators);
+        }
+    }
+
+    /** Reports the result of an entry, and makes room for the next one. Calls after the first
+     * one for the same entry do nothing.
+     */
+    private void finish(ImportEntry entry) {
+        if (!entry.mFinished.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            reportResult(entry);
+        } finally {
+            mQueueSlots.release();
+        }
+    }
+
+    private void reportResult(ImportEntry entry) {
+        // releases the keyring lock, if the entry failed before it was saved
+        if (entry.mPrepared != null) {
+            entry.mPrepared.discard();
+        }
+
+        // cancelled entries count as nothing, the cancellation is reported once in run()
+        if (entry.mCancelled) {
+            return;
+        }
+
+        int newKeys = 0, updatedKeys = 0, badKeys = 0, secret = 0;
+        ArrayList<Long> importedMasterKeyIds = new ArrayList<>();
+        SaveKeyringResult result = entry.mResult;
+        if (entry.mFetched != null && entry.mFetched.mKey == null) {
+            // unchanged on the keyserver, this counts like an update which changed nothing
+            updatedKeys = 1;
+            importedMasterKeyIds.add(entry.mFetched.mMasterKeyId);
+        } else if (result == null || !result.success()) {
+            badKeys = 1;
+        } else {
+            if (result.updated()) {
+                updatedKeys = 1;
+            } else {
+                newKeys = 1;
+                if (entry.mKey.isSecret()) {
+                    secret = 1;
+                }
+            }
+            importedMasterKeyIds.add(entry.mKey.getMasterKeyId());
+        }
+        if (result != null) {
+            entry.mLog.add(result, 2);
+        }
+
+        mAccumulator.accumulateKeyImport(ImportOperation.createImportResult(entry.mLog,
+                false, newKeys, updatedKeys, badKeys, secret, importedMasterKeyIds));
+    }
+
+    private static class ImportEntry {
+        final ParcelableKeyRing mKeyRing;
+        final OperationLog mLog = new OperationLog();
+
+        FetchedKeyRing mFetched;
+        UncachedKeyRing mKey;
+        PreparedKeyRing mPrepared;
+        SaveKeyringResult mResult;
+        boolean mCancelled = false;
+        final AtomicBoolean mFinished = new AtomicBoolean(false);
+
+        ImportEntry(ParcelableKeyRing keyRing) {
+            mKeyRing = keyRing;
+            mLog.add(LogType.MSG_IMPORT, 0, 1);
+        }
+    }
+
+    /** Number of entries and time spent in each stage of the pipeline, for profiling. */
+    static class Metrics {
+        private int mFetched = 0;
+        private long mFetchNanos = 0;
+        private int mPrepared = 0;
+        private long mPrepareNanos = 0;
+        private int mWritten = 0;
+        private long mWriteNanos = 0;
+        private int mTransactions = 0;
+        private int mLargestBatch = 0;
+        private long mBackpressureNanos = 0;
+
+        synchronized void addFetch(long nanos) {
+            mFetched += 1;
+            mFetchNanos += nanos;
+        }
+
+        synchronized void addPrepare(long nanos) {
+            mPrepared += 1;
+            mPrepareNanos += nanos;
+        }
+
+        synchronized void addWrite(int keyRings, long nanos) {
+            mWritten += keyRings;
+            mWriteNanos += nanos;
+            mTransactions += 1;
+            mLargestBatch = Math.max(mLargestBatch, keyRings);
+        }
+
+        synchronized void addBackpressure(long nanos) {
+            mBackpressureNanos += nanos;
+        }
+
+        synchronized int getWritten() {
+            return mWritten;
+        }
+
+        synchronized int getTransactions() {
+            return mTransactions;
+        }
+
+        synchronized int getLargestBatch() {
+            return mLargestBatch;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "fetched " + mFetched + " in " + toMillis(mFetchNanos) + "ms, "
+                    + "prepared " + mPrepared + " in " + toMillis(mPrepareNanos) + "ms, "
+                    + "wrote " + mWritten + " in " + mTransactions + " transactions "
+                    + "(largest " + mLargestBatch + ") in " + toMillis(mWriteNanos) + "ms, "
+                    + "waited " + toMillis(mBackpressureNanos) + "ms for queue slots";
+        }
+
+        private static long toMillis(long nanos) {
+            return TimeUnit.NANOSECONDS.toMillis(nanos);
+        }
+    }
+
+}
@@ -334,9 +334,11 @@ public abstract class OperationResult implements Parcelable {
         MSG_IP_FINGERPRINT_ERROR (LogLevel.ERROR, R.string.msg_ip_fingerprint_error),
         MSG_IP_FINGERPRINT_OK (LogLevel.INFO, R.string.msg_ip_fingerprint_ok),
         MSG_IP_INSERT_KEYRING (LogLevel.DEBUG, R.string.msg_ip_insert_keyring),
+        MSG_IP_INSERT_NEW_OK (LogLevel.DEBUG, R.string.msg_ip_insert_new_ok),
         MSG_IP_INSERT_SUBKEYS (LogLevel.DEBUG, R.string.msg_ip_insert_keys),
         MSG_IP_PREPARE (LogLevel.DEBUG, R.string.msg_ip_prepare),
         MSG_IP_REINSERT_SECRET (LogLevel.DEBUG, R.string.msg_ip_reinsert_secret),
+        MSG_IP_UPDATE_OLD_OK (LogLevel.DEBUG, R.string.msg_ip_update_old_ok),
         MSG_IP_MASTER (LogLevel.DEBUG, R.string.msg_ip_master),
         MSG_IP_MASTER_EXPIRED (LogLevel.DEBUG, R.string.msg_ip_master_expired),
         MSG_IP_MASTER_EXPIRES (LogLevel.DEBUG, R.string.msg_ip_master_expires),
@@ -406,6 +408,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_IP_UAT_CERTS_UNKNOWN (LogLevel.DEBUG, R.plurals.msg_ip_uat_certs_unknown),
         MSG_IP_UAT_CERT_GOOD_REVOKE (LogLevel.DEBUG, R.string.msg_ip_uat_cert_good_revoke),
         MSG_IP_UAT_CERT_GOOD (LogLevel.DEBUG, R.string.msg_ip_uat_cert_good),
+        MSG_IP_CERTS_VERIFIED_EARLIER (LogLevel.DEBUG, R.plurals.msg_ip_certs_verified_earlier),
 
         // import secret
         MSG_IS(LogLevel.START, R.string.msg_is),
@@ -648,6 +651,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_DC_CLEAR_META_TIME (LogLevel.DEBUG, R.string.msg_dc_clear_meta_time),
         MSG_DC_CLEAR (LogLevel.DEBUG, R.string.msg_dc_clear),
         MSG_DC_CLEAR_SIGNATURE_BAD (LogLevel.WARN, R.string.msg_dc_clear_signature_bad),
+        MSG_DC_CLEAR_SIGNATURE_HASH_NOT_ANNOUNCED (LogLevel.WARN, R.string.msg_dc_clear_signature_hash_not_announced),
         MSG_DC_CLEAR_SIGNATURE_CHECK (LogLevel.DEBUG, R.string.msg_dc_clear_signature_check),
         MSG_DC_CLEAR_SIGNATURE_OK (LogLevel.OK, R.string.msg_dc_clear_signature_ok),
         MSG_DC_CLEAR_SIGNATURE (LogLevel.DEBUG, R.string.msg_dc_clear_signature),
@@ -669,6 +673,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_DC_PENDING_NFC (LogLevel.INFO, R.string.msg_dc_pending_nfc),
         MSG_DC_PENDING_PASSPHRASE (LogLevel.INFO, R.string.msg_dc_pending_passphrase),
         MSG_DC_PREP_STREAMS (LogLevel.DEBUG, R.string.msg_dc_prep_streams),
+        MSG_DC_SESSION_KEY_CACHED (LogLevel.DEBUG, R.string.msg_dc_session_key_cached),
         MSG_DC (LogLevel.DEBUG, R.string.msg_dc),
         MSG_DC_SYM (LogLevel.DEBUG, R.string.msg_dc_sym),
         MSG_DC_SYM_SKIP (LogLevel.DEBUG, R.string.msg_dc_sym_skip),
@@ -716,6 +721,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_PSE_ERROR_UNLOCK (LogLevel.ERROR, R.string.msg_pse_error_unlock),
         MSG_PSE_KEY_OK (LogLevel.OK, R.string.msg_pse_key_ok),
         MSG_PSE_KEY_UNKNOWN (LogLevel.DEBUG, R.string.msg_pse_key_unknown),
+        MSG_PSE_KEY_BROKEN (LogLevel.ERROR, R.string.msg_pse_key_broken),
         MSG_PSE_KEY_WARN (LogLevel.WARN, R.string.msg_pse_key_warn),
         MSG_PSE_OK (LogLevel.OK, R.string.msg_pse_ok),
         MSG_PSE_PENDING_NFC (LogLevel.INFO, R.string.msg_pse_pending_nfc),
@@ -755,6 +761,8 @@ public abstract class OperationResult implements Parcelable {
         MSG_IMPORT_FETCH_KEYBASE (LogLevel.INFO, R.string.msg_import_fetch_keybase),
         MSG_IMPORT_FETCH_KEYSERVER (LogLevel.INFO, R.string.msg_import_fetch_keyserver),
         MSG_IMPORT_FETCH_KEYSERVER_OK (LogLevel.DEBUG, R.string.msg_import_fetch_keyserver_ok),
+        MSG_IMPORT_FETCH_KEYSERVER_UNCHANGED (LogLevel.OK, R.string.msg_import_fetch_keyserver_unchanged),
+        MSG_IMPORT_FLOOD_DROPPED (LogLevel.WARN, R.plurals.msg_import_flood_dropped),
         MSG_IMPORT_KEYSERVER (LogLevel.DEBUG, R.string.msg_import_keyserver),
         MSG_IMPORT_MERGE (LogLevel.DEBUG, R.string.msg_import_merge),
         MSG_IMPORT_MERGE_ERROR (LogLevel.ERROR, R.string.msg_import_merge_error),
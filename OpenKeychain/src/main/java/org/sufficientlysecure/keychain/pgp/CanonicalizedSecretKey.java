@@ -152,6 +152,15 @@ public class CanonicalizedSecretKey extends CanonicalizedPublicKey {
      * Returns true on right passphrase
      */
     public boolean unlock(Passphrase passphrase) throws PgpGeneralException {
+        return unlock(passphrase, null);
+    }
+
+    /**
+     * Returns true on right passphrase. If an UnlockedKeyCache is given, a private key
+     * which was unlocked with the same passphrase before is taken from there instead of
+     * running the S2K again, and a newly unlocked private key is put into it.
+     */
+    public boolean unlock(Passphrase passphrase, UnlockedKeyCache cache) throws PgpGeneralException {
         // handle keys on OpenPGP cards like they were unlocked
         S2K s2k = mSecretKey.getS2K();
         if (s2k != null
@@ -161,6 +170,20 @@ public class CanonicalizedSecretKey extends CanonicalizedPublicKey {
             return true;
         }
 
+        // unprotected keys are cheap to extract, no need to keep them around
+        if (s2k == null) {
+            cache = null;
+        }
+
+        if (cache != null) {
+            PGPPrivateKey cachedKey = cache.get(getKeyId(), passphrase);
+            if (cachedKey != null) {
+                mPrivateKey = cachedKey;
+                mPrivateKeyState = PRIVATE_KEY_STATE_UNLOCKED;
+                return true;
+            }
+        }
+
         // try to extract keys using the passphrase
         try {
             PBESecretKeyDecryptor keyDecryptor = new JcePBESecretKeyDecryptorBuilder().setProvider(
@@ -173,6 +196,10 @@ public class CanonicalizedSecretKey extends CanonicalizedPublicKey {
         if (mPrivateKey == null) {
             throw new PgpGeneralException("error extracting key");
         }
+
+        if (cache != null) {
+            cache.put(getRing().getMasterKeyId(), getKeyId(), passphrase, mPrivateKey);
+        }
         return true;
     }
 
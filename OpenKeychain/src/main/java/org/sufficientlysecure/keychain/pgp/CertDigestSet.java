@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.spongycastle.openpgp.PGPSignature;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+
+/** A set of certificates, by the digest of their encoding.
+ *
+ * This is used by UncachedKeyRing.merge to remember which certificates it has already seen.
+ * Each certificate is encoded straight into a SHA-256 digest, of which the first 128 bits are
+ * kept. This is not an exact comparison of the encoded certificates: it relies on the
+ * collision resistance of the digest, so two different certificates are only considered
+ * equal if their truncated digests collide. In return, it takes a fixed amount of memory per
+ * certificate, and lookups don't need to compare byte arrays.
+ */
+class CertDigestSet {
+
+    private final HashSet<CertDigest> mDigests = new HashSet<>();
+    private final MessageDigest mMessageDigest;
+    private final OutputStream mDigestStream;
+
+    CertDigestSet() {
+        try {
+            mMessageDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-256 is always available");
+        }
+        mDigestStream = new OutputStream() {
+            @Override
+            public void write(int oneByte) {
+                mMessageDigest.update((byte) oneByte);
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int count) {
+                mMessageDigest.update(buffer, offset, count);
+            }
+        };
+    }
+
+    /** Adds a certificate to the set.
+     *
+     * @return true if the certificate was not in the set before
+     */
+    boolean add(PGPSignature cert) throws IOException {
+        mMessageDigest.reset();
+        cert.encode(mDigestStream);
+        byte[] digest = mMessageDigest.digest();
+        return mDigests.add(new CertDigest(toLong(digest, 0), toLong(digest, 8)));
+    }
+
+    int size() {
+        return mDigests.size();
+    }
+
+    private static long toLong(byte[] data, int offset) {
+        long result = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            result = (result << 8) | (data[i] & 0xff);
+        }
+        return result;
+    }
+
+    private static class CertDigest {
+        final long mHigh, mLow;
+
+        CertDigest(long high, long low) {
+            mHigh = high;
+            mLow = low;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CertDigest)) {
+                return false;
+            }
+            CertDigest other = (CertDigest) o;
+            return mHigh == other.mHigh && mLow == other.mLow;
+        }
+
+        @Override
+        public int hashCode() {
+            // the digest is uniformly distributed already
+            return (int) mLow;
+        }
+    }
+
+}
@@ -0,0 +1,488 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.spongycastle.bcpg.BCPGInputStream;
+import org.spongycastle.bcpg.Packet;
+import org.spongycastle.bcpg.PacketTags;
+import org.spongycastle.bcpg.PublicKeyPacket;
+import org.spongycastle.bcpg.SecretKeyPacket;
+import org.spongycastle.bcpg.SignaturePacket;
+import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPSignature;
+import org.spongycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
+import org.sufficientlysecure.keychain.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/** Limits the number of third-party certificates per user id while a keyring is parsed.
+ *
+ * Keyservers accept certificates by anyone on any key, so a key can carry tens of thousands
+ * of them. Once such a keyring is parsed into a PGPKeyRing, all of its certificates are held
+ * in memory and walked by canonicalize, merge and ProviderHelper.
+ *
+ * This filter works on the raw packet stream instead, before it is parsed, one keyring at a
+ * time. For each user id or user attribute, it keeps at most mMaxCertsPerUserId certificates.
+ * Certificates by trusted certifiers are preferred, then newer ones over older ones. Two
+ * kinds of certificates are treated differently:
+ * <ul>
+ * <li>self-certificates are exempt from the limit. Anybody can claim the master key as
+ * issuer, so only the first mMaxCertsPerUserId claims per user id are exempt, and claims
+ * beyond that count against the limit like any other certificate. The claims are not
+ * verified here, canonicalize does that once the keyring is parsed.</li>
+ * <li>third-party certification revocations are kept only if their issuer is trusted, or also
+ * has a certification on the user id which is kept, and only the newest one per issuer.
+ * Anything else would let a flooder get past the limit with revocations by made up
+ * issuers.</li>
+ * </ul>
+ * All other packets are passed through as they are, and kept packets are not re-encoded.
+ *
+ * This is only meant for keyrings from keyservers. Keyrings from files, backups and our
+ * own database must be parsed without it, so nothing is lost.
+ */
+public class CertFloodFilter {
+
+    public static final int DEFAULT_MAX_CERTS_PER_USER_ID = 200;
+
+    private final int mMaxCertsPerUserId;
+    private final Set<Long> mTrustedCertifiers;
+
+    /**
+     * @param maxCertsPerUserId the maximum number of third-party certificates per user id
+     * @param trustedCertifiers master key ids whose certificates are kept in favor of others,
+     *                          or null
+     */
+    public CertFloodFilter(int maxCertsPerUserId, Set<Long> trustedCertifiers) {
+        mMaxCertsPerUserId = maxCertsPerUserId;
+        mTrustedCertifiers = trustedCertifiers;
+    }
+
+    /** Returns a stream of the packets which are kept. The given stream is read and filtered
+     * one keyring at a time, as the returned stream is read.
+     */
+    FilterResult filter(InputStream in) {
+        FilterResult result = new FilterResult();
+        result.mStream = new FilteredStream(in, result);
+        return result;
+    }
+
+    private class FilteredStream extends InputStream {
+        private final InputStream mIn;
+        private final FilterResult mResult;
+
+        // the filtered packets of the current keyring
+        private ByteArrayInputStream mBuffer = new ByteArrayInputStream(new byte[0]);
+        // the master key packet of the next keyring, if we already read it
+        private byte[] mNextKeyPacket;
+        private IOException mError;
+        private boolean mEnd = false;
+
+        FilteredStream(InputStream in, FilterResult result) {
+            mIn = in;
+            mResult = result;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return mBuffer.read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (count == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            return mBuffer.read(buffer, offset, count);
+        }
+
+        /** Filters the next keyring if the current one was read completely.
+         *
+         * @return false at the end of the stream
+         */
+        private boolean fill() throws IOException {
+            while (mBuffer.available() == 0) {
+                if (mError != null) {
+                    // keep what we had before it, the parser runs into the error after that
+                    throw mError;
+                }
+                if (mEnd) {
+                    return false;
+                }
+                mBuffer = new ByteArrayInputStream(filterNextKeyRing());
+            }
+            return true;
+        }
+
+        /** Reads and filters packets up to the master key packet of the next keyring. */
+        private byte[] filterNextKeyRing() throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            KeyRingState ring = null;
+            UserIdState userId = null;
+
+            byte[] packet = mNextKeyPacket;
+            mNextKeyPacket = null;
+            while (true) {
+                if (packet == null) {
+                    try {
+                        packet = readRawPacket(mIn);
+                    } catch (IOException e) {
+                        mError = e;
+                        break;
+                    }
+                    if (packet == null) {
+                        mEnd = true;
+                        break;
+                    }
+                }
+                int tag = getTag(packet);
+
+                if (userId != null && tag == PacketTags.SIGNATURE) {
+                    userId.addCertificate(new Certificate(userId.mIndex++, packet));
+                    packet = null;
+                    continue;
+                }
+
+                if (userId != null && tag == PacketTags.TRUST) {
+                    // trust packets belong to the preceding packet, and go wherever it goes
+                    userId.addTrustPacket(packet);
+                    packet = null;
+                    continue;
+                }
+
+                // anything else ends the current user id
+                if (userId != null) {
+                    userId.write(out);
+                    userId = null;
+                }
+
+                if (tag == PacketTags.PUBLIC_KEY || tag == PacketTags.SECRET_KEY) {
+                    if (ring != null) {
+                        // this is the next keyring
+                        mNextKeyPacket = packet;
+                        break;
+                    }
+                    ring = new KeyRingState(packet);
+                } else if (ring != null
+                        && (tag == PacketTags.USER_ID || tag == PacketTags.USER_ATTRIBUTE)) {
+                    userId = new UserIdState(ring, packet);
+                    packet = null;
+                    continue;
+                }
+
+                out.write(packet);
+                packet = null;
+            }
+
+            if (userId != null) {
+                userId.write(out);
+            }
+            if (ring != null && ring.mDropped > 0) {
+                mResult.addDropped(ring.mMasterKeyId, ring.mDropped);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static class KeyRingState {
+        final long mMasterKeyId;
+        int mDropped = 0;
+
+        KeyRingState(byte[] keyPacket) throws IOException {
+            Packet parsed = new BCPGInputStream(new ByteArrayInputStream(keyPacket)).readPacket();
+            PublicKeyPacket publicKeyPacket = parsed instanceof SecretKeyPacket
+                    ? ((SecretKeyPacket) parsed).getPublicKeyPacket()
+                    : (PublicKeyPacket) parsed;
+            try {
+                mMasterKeyId = new PGPPublicKey(publicKeyPacket, new JcaKeyFingerprintCalculator())
+                        .getKeyID();
+            } catch (PGPException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    /** The certificates of a single user id or user attribute. */
+    private class UserIdState {
+        final KeyRingState mRing;
+        byte[] mUserIdPacket;
+        int mIndex = 0;
+
+        // self-certificates, which are exempt from the limit
+        final ArrayList<Certificate> mKept = new ArrayList<>();
+        final PriorityQueue<Certificate> mLimited = new PriorityQueue<>(11, WORST_FIRST);
+        // the newest third-party revocation per issuer, kept depending on mLimited
+        final HashMap<Long, Certificate> mRevocations = new HashMap<>();
+        // issuers which already got a certificate preferred as trusted
+        final HashSet<Long> mTrustedIssuers = new HashSet<>();
+        int mSelfCertClaims = 0;
+        // the last certificate, so we know where trust packets belong
+        Certificate mLastCert;
+
+        UserIdState(KeyRingState ring, byte[] userIdPacket) {
+            mRing = ring;
+            mUserIdPacket = userIdPacket;
+        }
+
+        void addCertificate(Certificate cert) {
+            mLastCert = cert;
+
+            if (cert.mKeyId == mRing.mMasterKeyId && mSelfCertClaims < mMaxCertsPerUserId) {
+                mSelfCertClaims += 1;
+                mKept.add(cert);
+                return;
+            }
+
+            if (cert.mKeyId != mRing.mMasterKeyId
+                    && cert.mType == PGPSignature.CERTIFICATION_REVOCATION) {
+                Certificate previous = mRevocations.get(cert.mKeyId);
+                if (previous != null && previous.mCreationTime >= cert.mCreationTime) {
+                    mLastCert = null;
+                    mRing.mDropped += 1;
+                    return;
+                }
+                if (previous != null) {
+                    mRing.mDropped += 1;
+                }
+                mRevocations.put(cert.mKeyId, cert);
+                return;
+            }
+
+            // a flooder may claim a trusted issuer just as well, so prefer one per issuer only
+            cert.mTrusted = mTrustedCertifiers != null && mTrustedCertifiers.contains(cert.mKeyId)
+                    && mTrustedIssuers.add(cert.mKeyId);
+            mLimited.add(cert);
+            if (mLimited.size() > mMaxCertsPerUserId) {
+                Certificate worst = mLimited.poll();
+                if (worst == mLastCert) {
+                    mLastCert = null;
+                }
+                mRing.mDropped += 1;
+            }
+        }
+
+        void addTrustPacket(byte[] trustPacket) {
+            if (mLastCert != null) {
+                mLastCert.appendTrustPacket(trustPacket);
+            } else if (mIndex == 0) {
+                mUserIdPacket = concat(mUserIdPacket, trustPacket);
+            }
+        }
+
+        /** Writes the user id packet with its kept certificates, in their original order. */
+        void write(ByteArrayOutputStream out) throws IOException {
+            ArrayList<Certificate> certs = new ArrayList<>(mKept);
+            certs.addAll(mLimited);
+
+            HashSet<Long> keptIssuers = new HashSet<>();
+            for (Certificate cert : mLimited) {
+                keptIssuers.add(cert.mKeyId);
+            }
+            for (Certificate revocation : mRevocations.values()) {
+                if (keptIssuers.contains(revocation.mKeyId) || (mTrustedCertifiers != null
+                        && mTrustedCertifiers.contains(revocation.mKeyId))) {
+                    certs.add(revocation);
+                } else {
+                    mRing.mDropped += 1;
+                }
+            }
+            Collections.sort(certs, ORIGINAL_ORDER);
+
+            out.write(mUserIdPacket);
+            for (Certificate cert : certs) {
+                out.write(cert.mPacket);
+            }
+        }
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] result = new byte[first.length + second.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    private static int getTag(byte[] packet) {
+        int header = packet[0] & 0xff;
+        if ((header & 0x40) != 0) {
+            return header & 0x3f;
+        }
+        return (header & 0x3c) >> 2;
+    }
+
+    /** Reads a single packet, including its header, without parsing it.
+     *
+     * @return the raw packet, or null at the end of the stream
+     */
+    static byte[] readRawPacket(InputStream in) throws IOException {
+        int header = in.read();
+        if (header < 0) {
+            return null;
+        }
+        if ((header & 0x80) == 0) {
+            throw new IOException("invalid header encountered");
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(header);
+
+        // old format packet
+        if ((header & 0x40) == 0) {
+            int lengthType = header & 0x03;
+            if (lengthType == 3) {
+                // indeterminate length, the packet extends to the end of the stream
+                copy(in, out, Long.MAX_VALUE);
+                return out.toByteArray();
+            }
+            long length = 0;
+            for (int i = 0; i < (1 << lengthType); i++) {
+                length = (length << 8) | readByte(in, out);
+            }
+            copy(in, out, length);
+            return out.toByteArray();
+        }
+
+        // new format packet, possibly in several partial chunks
+        while (true) {
+            int first = readByte(in, out);
+            if (first < 192) {
+                copy(in, out, first);
+                return out.toByteArray();
+            } else if (first <= 223) {
+                copy(in, out, ((first - 192) << 8) + readByte(in, out) + 192);
+                return out.toByteArray();
+            } else if (first == 255) {
+                long length = 0;
+                for (int i = 0; i < 4; i++) {
+                    length = (length << 8) | readByte(in, out);
+                }
+                copy(in, out, length);
+                return out.toByteArray();
+            } else {
+                copy(in, out, 1 << (first & 0x1f));
+            }
+        }
+    }
+
+    private static int readByte(InputStream in, ByteArrayOutputStream out) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new IOException("premature end of stream in packet header");
+        }
+        out.write(b);
+        return b;
+    }
+
+    private static void copy(InputStream in, ByteArrayOutputStream out, long length) throws IOException {
+        byte[] buffer = new byte[4096];
+        while (length > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+            if (read < 0) {
+                if (length == Long.MAX_VALUE) {
+                    return;
+                }
+                throw new IOException("premature end of stream in packet");
+            }
+            out.write(buffer, 0, read);
+            if (length != Long.MAX_VALUE) {
+                length -= read;
+            }
+        }
+    }
+
+    static class FilterResult {
+        InputStream mStream;
+        private final HashMap<Long, Integer> mDropped = new HashMap<>();
+
+        private void addDropped(long masterKeyId, int dropped) {
+            Integer previous = mDropped.get(masterKeyId);
+            mDropped.put(masterKeyId, previous == null ? dropped : previous + dropped);
+            Log.w(Constants.TAG, "Dropped " + dropped + " third-party certificates from flooded key "
+                    + KeyFormattingUtils.convertKeyIdToHex(masterKeyId));
+        }
+
+        int getDroppedCount(long masterKeyId) {
+            Integer dropped = mDropped.get(masterKeyId);
+            return dropped == null ? 0 : dropped;
+        }
+    }
+
+    private static class Certificate {
+        final int mIndex;
+        byte[] mPacket;
+        final long mKeyId;
+        final int mType;
+        final long mCreationTime;
+        boolean mTrusted;
+
+        Certificate(int index, byte[] packet) throws IOException {
+            mIndex = index;
+            mPacket = packet;
+            SignaturePacket parsed = (SignaturePacket)
+                    new BCPGInputStream(new ByteArrayInputStream(packet)).readPacket();
+            mKeyId = parsed.getKeyID();
+            mType = parsed.getSignatureType();
+            mCreationTime = parsed.getCreationTime();
+        }
+
+        void appendTrustPacket(byte[] trustPacket) {
+            mPacket = concat(mPacket, trustPacket);
+        }
+    }
+
+    private static final Comparator<Certificate> ORIGINAL_ORDER = new Comparator<Certificate>() {
+        @Override
+        public int compare(Certificate lhs, Certificate rhs) {
+            return lhs.mIndex < rhs.mIndex ? -1 : (lhs.mIndex == rhs.mIndex ? 0 : 1);
+        }
+    };
+
+    /** Orders untrusted before trusted certificates, and older before newer ones. */
+    private static final Comparator<Certificate> WORST_FIRST = new Comparator<Certificate>() {
+        @Override
+        public int compare(Certificate lhs, Certificate rhs) {
+            if (lhs.mTrusted != rhs.mTrusted) {
+                return lhs.mTrusted ? 1 : -1;
+            }
+            if (lhs.mCreationTime != rhs.mCreationTime) {
+                return lhs.mCreationTime < rhs.mCreationTime ? -1 : 1;
+            }
+            // among equally old ones, drop later ones first
+            return lhs.mIndex > rhs.mIndex ? -1 : (lhs.mIndex == rhs.mIndex ? 0 : 1);
+        }
+    };
+
+}
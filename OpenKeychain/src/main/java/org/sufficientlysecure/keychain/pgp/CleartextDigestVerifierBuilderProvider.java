@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.spongycastle.asn1.ASN1Encoding;
+import org.spongycastle.asn1.ASN1ObjectIdentifier;
+import org.spongycastle.asn1.DERNull;
+import org.spongycastle.asn1.nist.NISTObjectIdentifiers;
+import org.spongycastle.asn1.oiw.OIWObjectIdentifiers;
+import org.spongycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.spongycastle.asn1.teletrust.TeleTrusTObjectIdentifiers;
+import org.spongycastle.asn1.x509.AlgorithmIdentifier;
+import org.spongycastle.asn1.x509.DigestInfo;
+import org.spongycastle.bcpg.HashAlgorithmTags;
+import org.spongycastle.bcpg.PublicKeyAlgorithmTags;
+import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.operator.PGPContentVerifier;
+import org.spongycastle.openpgp.operator.PGPContentVerifierBuilder;
+import org.spongycastle.openpgp.operator.PGPContentVerifierBuilderProvider;
+import org.spongycastle.openpgp.operator.PGPDigestCalculator;
+import org.spongycastle.openpgp.operator.PGPDigestCalculatorProvider;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPContentVerifierBuilderProvider;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPKeyConverter;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+
+/** A PGPContentVerifierBuilderProvider for cleartext signatures, which hashes the signed
+ * text before the signature is known.
+ *
+ * In a cleartext signed message, the signature follows the signed text, so the signing key
+ * is only known after all of the text has been read. Instead of buffering the text until
+ * then, it is hashed on the fly with each hash algorithm announced in the "Hash" armor
+ * header, see http://tools.ietf.org/html/rfc4880#section-7
+ *
+ * Verifiers built by this provider write the signature trailer into the corresponding
+ * digest, and check the signature value against the finished digest using the raw
+ * (NONEwith*) signature algorithms. Key algorithms without a raw signature algorithm are
+ * verified by the regular Jca verifier instead, over a copy of the text which is kept as
+ * long as it is no longer than MAX_BUFFERED_TEXT.
+ */
+public class CleartextDigestVerifierBuilderProvider implements PGPContentVerifierBuilderProvider {
+
+    private static final HashMap<String, Integer> HASH_NAMES = new HashMap<>();
+    static {
+        HASH_NAMES.put("MD5", HashAlgorithmTags.MD5);
+        HASH_NAMES.put("SHA1", HashAlgorithmTags.SHA1);
+        HASH_NAMES.put("RIPEMD160", HashAlgorithmTags.RIPEMD160);
+        HASH_NAMES.put("SHA224", HashAlgorithmTags.SHA224);
+        HASH_NAMES.put("SHA256", HashAlgorithmTags.SHA256);
+        HASH_NAMES.put("SHA384", HashAlgorithmTags.SHA384);
+        HASH_NAMES.put("SHA512", HashAlgorithmTags.SHA512);
+    }
+
+    /** Longest text kept for signatures which can't be checked against the digest. */
+    static final int MAX_BUFFERED_TEXT = 1 << 20;
+
+    private final HashMap<Integer, PGPDigestCalculator> mDigests = new HashMap<>();
+    private final ArrayList<OutputStream> mDigestStreams = new ArrayList<>();
+    // null once the text got longer than MAX_BUFFERED_TEXT
+    private ByteArrayOutputStream mText = new ByteArrayOutputStream();
+
+    /** @param armorHeaders the armor headers of the cleartext message, as returned by
+     *                     ArmoredInputStream.getArmorHeaders()
+     */
+    public CleartextDigestVerifierBuilderProvider(String[] armorHeaders) throws PGPException {
+        PGPDigestCalculatorProvider digestCalculatorProvider =
+                new JcaPGPDigestCalculatorProviderBuilder()
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build();
+
+        for (int hashAlgorithm : getAnnouncedHashAlgorithms(armorHeaders)) {
+            PGPDigestCalculator digest = digestCalculatorProvider.get(hashAlgorithm);
+            mDigests.put(hashAlgorithm, digest);
+            mDigestStreams.add(digest.getOutputStream());
+        }
+    }
+
+    /** Returns the hash algorithms listed in the "Hash" armor headers. The RFC says to assume
+     * MD5 if there is no such header, but since several implementations omit it we hash with
+     * all known algorithms in that case.
+     */
+    static ArrayList<Integer> getAnnouncedHashAlgorithms(String[] armorHeaders) {
+        ArrayList<Integer> result = new ArrayList<>();
+        if (armorHeaders != null) {
+            for (String header : armorHeaders) {
+                if (!header.startsWith("Hash:")) {
+                    continue;
+                }
+                for (String name : header.substring(5).split(",")) {
+                    Integer hashAlgorithm = HASH_NAMES.get(name.trim().toUpperCase(Locale.ENGLISH));
+                    if (hashAlgorithm != null && !result.contains(hashAlgorithm)) {
+                        result.add(hashAlgorithm);
+                    }
+                }
+            }
+        }
+        if (result.isEmpty()) {
+            Log.d(Constants.TAG, "no known hash algorithm in armor headers, hashing with all");
+            result.addAll(HASH_NAMES.values());
+        }
+        return result;
+    }
+
+    /** Returns true if the text was hashed with this algorithm, so a signature made with it
+     * can be verified.
+     */
+    public boolean hasDigest(int hashAlgorithm) {
+        return mDigests.containsKey(hashAlgorithm);
+    }
+
+    /** Hashes part of the (already canonicalized) signed text. */
+    public void update(byte[] buf, int off, int len) throws IOException {
+        for (OutputStream digestStream : mDigestStreams) {
+            digestStream.write(buf, off, len);
+        }
+        if (mText != null) {
+            if (mText.size() + len > MAX_BUFFERED_TEXT) {
+                mText = null;
+            } else {
+                mText.write(buf, off, len);
+            }
+        }
+    }
+
+    /** Returns a builder for verifiers of signatures with the given algorithms. If the hash
+     * algorithm was not announced, the text is gone by the time the signature is read, so the
+     * verifiers built for it never verify. Check hasDigest to tell this case apart.
+     */
+    @Override
+    public PGPContentVerifierBuilder get(final int keyAlgorithm, final int hashAlgorithm)
+            throws PGPException {
+        final String rawSignatureName = getRawSignatureName(keyAlgorithm);
+        if (rawSignatureName == null) {
+            return getJcaVerifierBuilder(keyAlgorithm, hashAlgorithm);
+        }
+
+        final PGPDigestCalculator digest = mDigests.get(hashAlgorithm);
+        if (digest == null) {
+            Log.w(Constants.TAG, "signature hash algorithm " + hashAlgorithm
+                    + " was not announced in armor header");
+        }
+
+        return new PGPContentVerifierBuilder() {
+            @Override
+            public PGPContentVerifier build(final PGPPublicKey publicKey) throws PGPException {
+                final Signature signature;
+                try {
+                    signature = Signature.getInstance(rawSignatureName,
+                            Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+                    signature.initVerify(new JcaPGPKeyConverter()
+                            .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME)
+                            .getPublicKey(publicKey));
+                } catch (GeneralSecurityException e) {
+                    throw new PGPException("unable to create verifier", e);
+                }
+
+                return new PGPContentVerifier() {
+                    @Override
+                    public OutputStream getOutputStream() {
+                        if (digest == null) {
+                            // the signature trailer is written here, but never used
+                            return new ByteArrayOutputStream();
+                        }
+                        return digest.getOutputStream();
+                    }
+
+                    @Override
+                    public int getHashAlgorithm() {
+                        return hashAlgorithm;
+                    }
+
+                    @Override
+                    public int getKeyAlgorithm() {
+                        return keyAlgorithm;
+                    }
+
+                    @Override
+                    public long getKeyID() {
+                        return publicKey.getKeyID();
+                    }
+
+                    @Override
+                    public boolean verify(byte[] expected) {
+                        if (digest == null) {
+                            return false;
+                        }
+                        try {
+                            signature.update(encodeDigest(keyAlgorithm, hashAlgorithm,
+                                    digest.getDigest()));
+                            return signature.verify(expected);
+                        } catch (SignatureException | IOException e) {
+                            Log.e(Constants.TAG, "error verifying signature", e);
+                            return false;
+                        }
+                    }
+                };
+            }
+        };
+    }
+
+    /** Returns a builder for verifiers which feed the kept copy of the text into a regular
+     * Jca verifier. If the text was too long to be kept, the verifiers built never verify.
+     */
+    PGPContentVerifierBuilder getJcaVerifierBuilder(int keyAlgorithm, int hashAlgorithm)
+            throws PGPException {
+        Log.d(Constants.TAG, "no raw signature for key algorithm " + keyAlgorithm
+                + ", verifying the kept text");
+        final PGPContentVerifierBuilder builder = new JcaPGPContentVerifierBuilderProvider()
+                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME)
+                .get(keyAlgorithm, hashAlgorithm);
+        final ByteArrayOutputStream text = mText;
+
+        return new PGPContentVerifierBuilder() {
+            @Override
+            public PGPContentVerifier build(final PGPPublicKey publicKey) throws PGPException {
+                final PGPContentVerifier verifier = builder.build(publicKey);
+                if (text != null) {
+                    try {
+                        text.writeTo(verifier.getOutputStream());
+                    } catch (IOException e) {
+                        throw new PGPException("unable to hash text", e);
+                    }
+                }
+
+                return new PGPContentVerifier() {
+                    @Override
+                    public OutputStream getOutputStream() {
+                        return verifier.getOutputStream();
+                    }
+
+                    @Override
+                    public int getHashAlgorithm() {
+                        return verifier.getHashAlgorithm();
+                    }
+
+                    @Override
+                    public int getKeyAlgorithm() {
+                        return verifier.getKeyAlgorithm();
+                    }
+
+                    @Override
+                    public long getKeyID() {
+                        return verifier.getKeyID();
+                    }
+
+                    @Override
+                    public boolean verify(byte[] expected) {
+                        if (text == null) {
+                            Log.w(Constants.TAG, "text too long to verify with key algorithm "
+                                    + verifier.getKeyAlgorithm());
+                            return false;
+                        }
+                        return verifier.verify(expected);
+                    }
+                };
+            }
+        };
+    }
+
+    /** Returns the raw signature algorithm for a key algorithm, or null if there is none. */
+    private static String getRawSignatureName(int keyAlgorithm) {
+        switch (keyAlgorithm) {
+            case PublicKeyAlgorithmTags.RSA_GENERAL:
+            case PublicKeyAlgorithmTags.RSA_SIGN:
+                return "NONEwithRSA";
+            case PublicKeyAlgorithmTags.DSA:
+                return "NONEwithDSA";
+            case PublicKeyAlgorithmTags.ECDSA:
+                return "NONEwithECDSA";
+            default:
+                return null;
+        }
+    }
+
+    /** RSA signatures are made over a DigestInfo structure (PKCS#1 v1.5), which
+     * NONEwithRSA expects to be prepared externally. DSA and ECDSA sign the digest directly.
+     */
+    private static byte[] encodeDigest(int keyAlgorithm, int hashAlgorithm, byte[] digest)
+            throws IOException {
+        if (keyAlgorithm != PublicKeyAlgorithmTags.RSA_GENERAL
+                && keyAlgorithm != PublicKeyAlgorithmTags.RSA_SIGN) {
+            return digest;
+        }
+        AlgorithmIdentifier algId = new AlgorithmIdentifier(
+                getDigestOid(hashAlgorithm), DERNull.INSTANCE);
+        return new DigestInfo(algId, digest).getEncoded(ASN1Encoding.DER);
+    }
+
+    private static ASN1ObjectIdentifier getDigestOid(int hashAlgorithm) throws IOException {
+        switch (hashAlgorithm) {
+            case HashAlgorithmTags.MD5:
+                return PKCSObjectIdentifiers.md5;
+            case HashAlgorithmTags.SHA1:
+                return OIWObjectIdentifiers.idSHA1;
+            case HashAlgorithmTags.RIPEMD160:
+                return TeleTrusTObjectIdentifiers.ripemd160;
+            case HashAlgorithmTags.SHA224:
+                return NISTObjectIdentifiers.id_sha224;
+            case HashAlgorithmTags.SHA256:
+                return NISTObjectIdentifiers.id_sha256;
+            case HashAlgorithmTags.SHA384:
+                return NISTObjectIdentifiers.id_sha384;
+            case HashAlgorithmTags.SHA512:
+                return NISTObjectIdentifiers.id_sha512;
+            default:
+                throw new IOException("unknown hash algorithm " + hashAlgorithm);
+        }
+    }
+
+}
@@ -23,6 +23,7 @@ import android.text.TextUtils;
 import org.sufficientlysecure.keychain.pgp.exception.PgpKeyNotFoundException;
 
 import java.io.Serializable;
+import java.util.Locale;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -77,6 +78,23 @@ public abstract class KeyRing {
         return new UserId(null, null, null);
     }
 
+    /**
+     * Returns the lower-cased email address of a user id, i.e. the part in angle brackets
+     * at its very end, or null if there is none. Unlike splitUserId, this doesn't care
+     * about the rest of the user id, so it also works for user ids like "<foo@bar.com>".
+     * This is used to index and look up user ids by email.
+     */
+    public static String extractEmail(final String userId) {
+        if (userId == null || !userId.endsWith(">")) {
+            return null;
+        }
+        int start = userId.lastIndexOf('<');
+        if (start < 0 || start + 1 >= userId.length() - 1) {
+            return null;
+        }
+        return userId.substring(start + 1, userId.length() - 1).toLowerCase(Locale.ENGLISH);
+    }
+
     /**
      * Returns a composed user id. Returns null if name is null!
      */
@@ -42,6 +42,7 @@ import org.spongycastle.openpgp.PGPSignatureList;
 import org.spongycastle.openpgp.PGPUtil;
 import org.spongycastle.openpgp.jcajce.JcaPGPObjectFactory;
 import org.spongycastle.openpgp.operator.PBEDataDecryptorFactory;
+import org.spongycastle.openpgp.operator.PGPContentVerifierBuilderProvider;
 import org.spongycastle.openpgp.operator.PGPDigestCalculatorProvider;
 import org.spongycastle.openpgp.operator.jcajce.CachingDataDecryptorFactory;
 import org.spongycastle.openpgp.operator.jcajce.JcaPGPContentVerifierBuilderProvider;
@@ -57,7 +58,6 @@ import org.sufficientlysecure.keychain.operations.results.OperationResult.LogTyp
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey.SecretKeyType;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
-import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
@@ -68,19 +68,25 @@ import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.Passphrase;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 
-import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.security.SignatureException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
 
 public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInputParcel> {
 
+    // lines of cleartext signed data are hashed with CRLF line endings, see RFC 4880, 7.1
+    private static final byte[] CANONICAL_LINE_ENDING = new byte[] { '\r', '\n' };
+
     public PgpDecryptVerifyOperation(Context context, ProviderHelper providerHelper, Progressable progressable) {
         super(context, providerHelper, progressable);
     }
@@ -139,11 +145,12 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
     @NonNull
     private DecryptVerifyResult executeInternal(PgpDecryptVerifyInputParcel input, CryptoInputParcel cryptoInput,
             InputData inputData, OutputStream outputStream) {
+        DecryptVerifyResult result;
         try {
             if (input.getDetachedSignature() != null) {
                 Log.d(Constants.TAG, "Detached signature present, verifying with this signature only");
 
-                return verifyDetachedSignature(input, inputData, outputStream, 0);
+                result = verifyDetachedSignature(input, inputData, outputStream, 0);
             } else {
                 // automatically works with PGP ascii armor and PGP binary
                 InputStream in = PGPUtil.getDecoderStream(inputData.getInputStream());
@@ -154,16 +161,16 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
                     Log.d(Constants.TAG, "ASCII Armor Header Line: " + aIn.getArmorHeaderLine());
 
                     if (input.isSignedLiteralData()) {
-                        return verifySignedLiteralData(input, aIn, outputStream, 0);
+                        result = verifySignedLiteralData(input, aIn, outputStream, 0);
                     } else if (aIn.isClearText()) {
                         // a cleartext signature, verify it with the other method
-                        return verifyCleartextSignature(aIn, outputStream, 0);
+                        result = verifyCleartextSignature(aIn, outputStream, 0);
                     } else {
                         // else: ascii armored encryption! go on...
-                        return decryptVerify(input, cryptoInput, in, outputStream, 0);
+                        result = decryptVerify(input, cryptoInput, in, outputStream, 0);
                     }
                 } else {
-                    return decryptVerify(input, cryptoInput, in, outputStream, 0);
+                    result = decryptVerify(input, cryptoInput, in, outputStream, 0);
                 }
             }
         } catch (PGPException e) {
@@ -184,6 +191,18 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
             log.add(LogType.MSG_DC_ERROR_IO, 1);
             return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
         }
+
+        // the keyserver sync prefers keys which are in use, written once the data is processed
+        OpenPgpSignatureResult signatureResult = result.getSignatureResult();
+        if (result.success() && signatureResult != null
+                && (signatureResult.getResult() == OpenPgpSignatureResult.RESULT_VALID_CONFIRMED
+                || signatureResult.getResult() == OpenPgpSignatureResult.RESULT_VALID_UNCONFIRMED)) {
+            mProviderHelper.renewKeysLastUsedTime(
+                    Collections.singletonList(signatureResult.getKeyId()),
+                    System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        return result;
     }
 
     /**Verify signed plaintext data (PGP/INLINE). */
@@ -222,9 +241,7 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         for (int i = 0; i < sigList.size(); ++i) {
             try {
                 long sigKeyId = sigList.get(i).getKeyID();
-                signingRing = mProviderHelper.getCanonicalizedPublicKeyRing(
-                        KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(sigKeyId)
-                );
+                signingRing = mProviderHelper.getCanonicalizedPublicKeyRingBySubkeyId(sigKeyId);
                 signingKey = signingRing.getPublicKey(sigKeyId);
                 signatureIndex = i;
             } catch (ProviderHelper.NotFoundException e) {
@@ -451,9 +468,7 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
             for (int i = 0; i < sigList.size(); ++i) {
                 try {
                     long sigKeyId = sigList.get(i).getKeyID();
-                    signingRing = mProviderHelper.getCanonicalizedPublicKeyRing(
-                            KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(sigKeyId)
-                    );
+                    signingRing = mProviderHelper.getCanonicalizedPublicKeyRingBySubkeyId(sigKeyId);
                     signingKey = signingRing.getPublicKey(sigKeyId);
                     signatureIndex = i;
                 } catch (ProviderHelper.NotFoundException e) {
@@ -713,9 +728,7 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
                 CanonicalizedSecretKeyRing secretKeyRing;
                 try {
                     // get actual keyring object based on master key id
-                    secretKeyRing = mProviderHelper.getCanonicalizedSecretKeyRing(
-                            KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(subKeyId)
-                    );
+                    secretKeyRing = mProviderHelper.getCanonicalizedSecretKeyRingBySubkeyId(subKeyId);
                 } catch (ProviderHelper.NotFoundException e) {
                     // continue with the next packet in the while loop
                     log.add(LogType.MSG_DC_ASKIP_NO_KEY, indent + 1);
@@ -878,7 +891,7 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
 
             try {
                 log.add(LogType.MSG_DC_UNLOCKING, indent + 1);
-                if (!secretEncryptionKey.unlock(passphrase)) {
+                if (!secretEncryptionKey.unlock(passphrase, UnlockedKeyCache.getInstance(mContext))) {
                     log.add(LogType.MSG_DC_ERROR_BAD_PASSPHRASE, indent + 1);
                     return result.with(new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log));
                 }
@@ -890,6 +903,22 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
             currentProgress += 2;
             updateProgress(R.string.progress_preparing_streams, currentProgress, 100);
 
+            // if the session key of this packet was decrypted recently, e.g. in a metadata only
+            // pass, use it instead of performing the private key operation again. keys on a
+            // security token are excluded, each decryption with them must involve the token
+            boolean useSessionKeyCache =
+                    secretEncryptionKey.getSecretKeyType() != SecretKeyType.DIVERT_TO_CARD;
+            SessionKeyCache sessionKeyCache = SessionKeyCache.getInstance(mContext);
+            if (useSessionKeyCache && !cryptoInput.getCryptoData().containsKey(
+                    ByteBuffer.wrap(encryptedDataAsymmetric.getSessionKey()[0]))) {
+                byte[] cachedSessionKey = sessionKeyCache.get(encryptedDataAsymmetric);
+                if (cachedSessionKey != null) {
+                    log.add(LogType.MSG_DC_SESSION_KEY_CACHED, indent + 1);
+                    cryptoInput.addCryptoData(
+                            encryptedDataAsymmetric.getSessionKey()[0], cachedSessionKey);
+                }
+            }
+
             CachingDataDecryptorFactory decryptorFactory
                     = secretEncryptionKey.getCachingDecryptorFactory(cryptoInput);
 
@@ -917,6 +946,10 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
             result.encryptedData = encryptedDataAsymmetric;
 
             cryptoInput.addCryptoData(decryptorFactory.getCachedSessionKeys());
+            if (useSessionKeyCache) {
+                sessionKeyCache.put(secretEncryptionKey.getRing().getMasterKeyId(),
+                        encryptedDataAsymmetric, decryptorFactory.getCachedSessionKeys());
+            }
 
         } else {
             // there wasn't even any useful data
@@ -953,31 +986,31 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
 
         OpenPgpSignatureResultBuilder signatureResultBuilder = new OpenPgpSignatureResultBuilder();
 
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-
         updateProgress(R.string.progress_reading_data, 0, 100);
 
-        ByteArrayOutputStream lineOut = new ByteArrayOutputStream();
-        int lookAhead = readInputLine(lineOut, aIn);
+        // The signature follows the text, so we can't feed it into the signature object
+        // directly. Instead, the text is hashed with all algorithms announced in the armor
+        // header while it is streamed to the output, and verified once the signature is known.
+        CleartextDigestVerifierBuilderProvider digestVerifierProvider =
+                new CleartextDigestVerifierBuilderProvider(aIn.getArmorHeaders());
+
+        OutputStream out = outputStream != null
+                ? new BufferedOutputStream(outputStream, 1 << 16) : null;
         byte[] lineSep = getLineSeparator();
+        long clearTextLength = 0;
 
-        byte[] line = lineOut.toByteArray();
-        out.write(line, 0, getLengthWithoutSeparator(line));
-        out.write(lineSep);
+        LineBuffer line = new LineBuffer();
+        int lookAhead = readInputLine(line, aIn);
+        clearTextLength += processLine(line, out, lineSep, digestVerifierProvider);
 
         while (lookAhead != -1 && aIn.isClearText()) {
-            lookAhead = readInputLine(lineOut, lookAhead, aIn);
-            line = lineOut.toByteArray();
-            out.write(line, 0, getLengthWithoutSeparator(line));
-            out.write(lineSep);
+            lookAhead = readInputLine(line, lookAhead, aIn);
+            digestVerifierProvider.update(CANONICAL_LINE_ENDING, 0, CANONICAL_LINE_ENDING.length);
+            clearTextLength += processLine(line, out, lineSep, digestVerifierProvider);
         }
 
-        out.close();
-
-        byte[] clearText = out.toByteArray();
-        if (outputStream != null) {
-            outputStream.write(clearText);
-            outputStream.close();
+        if (out != null) {
+            out.close();
         }
 
         updateProgress(R.string.progress_processing_signature, 60, 100);
@@ -989,50 +1022,35 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
             return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
         }
 
-        PGPSignature signature = processPGPSignatureList(sigList, signatureResultBuilder, log, indent);
+        PGPSignature signature = processPGPSignatureList(
+                sigList, signatureResultBuilder, log, indent, digestVerifierProvider);
 
         if (signature != null) {
-            try {
-                updateProgress(R.string.progress_verifying_signature, 90, 100);
-                log.add(LogType.MSG_DC_CLEAR_SIGNATURE_CHECK, indent);
-
-                InputStream sigIn = new BufferedInputStream(new ByteArrayInputStream(clearText));
-
-                lookAhead = readInputLine(lineOut, sigIn);
-
-                processLine(signature, lineOut.toByteArray());
-
-                if (lookAhead != -1) {
-                    do {
-                        lookAhead = readInputLine(lineOut, lookAhead, sigIn);
-
-                        signature.update((byte) '\r');
-                        signature.update((byte) '\n');
-
-                        processLine(signature, lineOut.toByteArray());
-                    } while (lookAhead != -1);
-                }
-
-                // Verify signature and check binding signatures
-                boolean validSignature = signature.verify();
-                if (validSignature) {
-                    log.add(LogType.MSG_DC_CLEAR_SIGNATURE_OK, indent + 1);
-                } else {
-                    log.add(LogType.MSG_DC_CLEAR_SIGNATURE_BAD, indent + 1);
-                }
-
-                // check for insecure hash algorithms
-                if (!PgpSecurityConstants.isSecureHashAlgorithm(signature.getHashAlgorithm())) {
-                    log.add(LogType.MSG_DC_INSECURE_HASH_ALGO, indent + 1);
-                    signatureResultBuilder.setInsecure(true);
-                }
+            updateProgress(R.string.progress_verifying_signature, 90, 100);
+            log.add(LogType.MSG_DC_CLEAR_SIGNATURE_CHECK, indent);
 
-                signatureResultBuilder.setValidSignature(validSignature);
+            // Verify signature and check binding signatures
+            boolean validSignature;
+            if (digestVerifierProvider.hasDigest(signature.getHashAlgorithm())) {
+                validSignature = signature.verify();
+            } else {
+                // the text was not hashed with this algorithm, and is gone by now
+                log.add(LogType.MSG_DC_CLEAR_SIGNATURE_HASH_NOT_ANNOUNCED, indent + 1);
+                validSignature = false;
+            }
+            if (validSignature) {
+                log.add(LogType.MSG_DC_CLEAR_SIGNATURE_OK, indent + 1);
+            } else {
+                log.add(LogType.MSG_DC_CLEAR_SIGNATURE_BAD, indent + 1);
+            }
 
-            } catch (SignatureException e) {
-                Log.d(Constants.TAG, "SignatureException", e);
-                return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
+            // check for insecure hash algorithms
+            if (!PgpSecurityConstants.isSecureHashAlgorithm(signature.getHashAlgorithm())) {
+                log.add(LogType.MSG_DC_INSECURE_HASH_ALGO, indent + 1);
+                signatureResultBuilder.setInsecure(true);
             }
+
+            signatureResultBuilder.setValidSignature(validSignature);
         }
 
         updateProgress(R.string.progress_done, 100, 100);
@@ -1043,7 +1061,7 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
                 "",
                 "text/plain",
                 -1,
-                clearText.length);
+                clearTextLength);
 
         DecryptVerifyResult result = new DecryptVerifyResult(DecryptVerifyResult.RESULT_OK, log);
         result.setSignatureResult(signatureResultBuilder.build());
@@ -1147,6 +1165,18 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
             PGPSignatureList sigList, OpenPgpSignatureResultBuilder signatureResultBuilder,
             OperationLog log, int indent)
             throws PGPException {
+        JcaPGPContentVerifierBuilderProvider contentVerifierBuilderProvider =
+                new JcaPGPContentVerifierBuilderProvider()
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+        return processPGPSignatureList(
+                sigList, signatureResultBuilder, log, indent, contentVerifierBuilderProvider);
+    }
+
+    private PGPSignature processPGPSignatureList(
+            PGPSignatureList sigList, OpenPgpSignatureResultBuilder signatureResultBuilder,
+            OperationLog log, int indent,
+            PGPContentVerifierBuilderProvider contentVerifierBuilderProvider)
+            throws PGPException {
         CanonicalizedPublicKeyRing signingRing = null;
         CanonicalizedPublicKey signingKey = null;
         int signatureIndex = -1;
@@ -1156,9 +1186,7 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         for (int i = 0; i < sigList.size(); ++i) {
             try {
                 long sigKeyId = sigList.get(i).getKeyID();
-                signingRing = mProviderHelper.getCanonicalizedPublicKeyRing(
-                        KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(sigKeyId)
-                );
+                signingRing = mProviderHelper.getCanonicalizedPublicKeyRingBySubkeyId(sigKeyId);
                 signingKey = signingRing.getPublicKey(sigKeyId);
                 signatureIndex = i;
             } catch (ProviderHelper.NotFoundException e) {
@@ -1174,9 +1202,6 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
 
             signatureResultBuilder.initValid(signingRing, signingKey);
 
-            JcaPGPContentVerifierBuilderProvider contentVerifierBuilderProvider =
-                    new JcaPGPContentVerifierBuilderProvider()
-                            .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
             signature.init(contentVerifierBuilderProvider, signingKey.getPublicKey());
         } else {
             // no key in our database -> return "unknown pub key" status including the first key id
@@ -1198,17 +1223,28 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
     }
 
     /**
+     * Writes a line of cleartext to the output, and its canonical form to the digests.
+     * Returns the number of bytes written to the output.
+     *
      * Mostly taken from ClearSignedFileProcessor in Bouncy Castle
      */
-    private static void processLine(PGPSignature sig, byte[] line)
-            throws SignatureException {
-        int length = getLengthWithoutWhiteSpace(line);
-        if (length > 0) {
-            sig.update(line, 0, length);
+    private static int processLine(LineBuffer line, OutputStream out, byte[] lineSep,
+            CleartextDigestVerifierBuilderProvider digestVerifierProvider) throws IOException {
+        int length = getLengthWithoutSeparator(line);
+        if (out != null) {
+            out.write(line.mBuf, 0, length);
+            out.write(lineSep);
+        }
+
+        int hashLength = getLengthWithoutWhiteSpace(line);
+        if (hashLength > 0) {
+            digestVerifierProvider.update(line.mBuf, 0, hashLength);
         }
+
+        return length + lineSep.length;
     }
 
-    private static int readInputLine(ByteArrayOutputStream bOut, InputStream fIn)
+    private static int readInputLine(LineBuffer bOut, InputStream fIn)
             throws IOException {
         bOut.reset();
 
@@ -1226,7 +1262,7 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         return lookAhead;
     }
 
-    private static int readInputLine(ByteArrayOutputStream bOut, int lookAhead, InputStream fIn)
+    private static int readInputLine(LineBuffer bOut, int lookAhead, InputStream fIn)
             throws IOException {
         bOut.reset();
 
@@ -1247,7 +1283,7 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         return lookAhead;
     }
 
-    private static int readPastEOL(ByteArrayOutputStream bOut, int lastCh, InputStream fIn)
+    private static int readPastEOL(LineBuffer bOut, int lastCh, InputStream fIn)
             throws IOException {
         int lookAhead = fIn.read();
 
@@ -1259,10 +1295,10 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         return lookAhead;
     }
 
-    private static int getLengthWithoutSeparator(byte[] line) {
-        int end = line.length - 1;
+    private static int getLengthWithoutSeparator(LineBuffer line) {
+        int end = line.mLength - 1;
 
-        while (end >= 0 && isLineEnding(line[end])) {
+        while (end >= 0 && isLineEnding(line.mBuf[end])) {
             end--;
         }
 
@@ -1273,10 +1309,10 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         return b == '\r' || b == '\n';
     }
 
-    private static int getLengthWithoutWhiteSpace(byte[] line) {
-        int end = line.length - 1;
+    private static int getLengthWithoutWhiteSpace(LineBuffer line) {
+        int end = line.mLength - 1;
 
-        while (end >= 0 && isWhiteSpace(line[end])) {
+        while (end >= 0 && isWhiteSpace(line.mBuf[end])) {
             end--;
         }
 
@@ -1291,4 +1327,21 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         String nl = System.getProperty("line.separator");
         return nl.getBytes();
     }
+
+    /** A growable buffer for a single line of input, which is reused for all lines. */
+    private static class LineBuffer {
+        byte[] mBuf = new byte[256];
+        int mLength = 0;
+
+        void reset() {
+            mLength = 0;
+        }
+
+        void write(int b) {
+            if (mLength == mBuf.length) {
+                mBuf = Arrays.copyOf(mBuf, mBuf.length * 2);
+            }
+            mBuf[mLength++] = (byte) b;
+        }
+    }
 }
@@ -22,6 +22,7 @@ package org.sufficientlysecure.keychain.pgp;
 import android.content.Context;
 import android.os.Parcelable;
 import android.support.annotation.NonNull;
+import android.support.v4.util.LongSparseArray;
 
 import org.spongycastle.bcpg.ArmoredOutputStream;
 import org.spongycastle.bcpg.BCPGOutputStream;
@@ -43,7 +44,6 @@ import org.sufficientlysecure.keychain.operations.results.OperationResult.LogTyp
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
-import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
@@ -62,9 +62,11 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.SignatureException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -200,7 +202,7 @@ public class PgpSignEncryptOperation extends BaseOperation {
                                     signingKeyRing.getMasterKeyId(), signingKey.getKeyId(),
                                     cryptoInput.getSignatureTime()), cryptoInput);
                         }
-                        if (!signingKey.unlock(localPassphrase)) {
+                        if (!signingKey.unlock(localPassphrase, UnlockedKeyCache.getInstance(mContext))) {
                             log.add(LogType.MSG_PSE_ERROR_BAD_PASSPHRASE, indent);
                             return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
                         }
@@ -259,33 +261,42 @@ public class PgpSignEncryptOperation extends BaseOperation {
             } else {
                 log.add(LogType.MSG_PSE_ASYMMETRIC, indent);
 
-                // Asymmetric encryption
-                for (long id : input.getEncryptionMasterKeyIds()) {
-                    try {
-                        CanonicalizedPublicKeyRing keyRing = mProviderHelper.getCanonicalizedPublicKeyRing(
-                                KeyRings.buildUnifiedKeyRingUri(id));
-                        Set<Long> encryptSubKeyIds = keyRing.getEncryptIds();
-                        for (Long subKeyId : encryptSubKeyIds) {
-                            CanonicalizedPublicKey key = keyRing.getPublicKey(subKeyId);
-                            cPk.addMethod(key.getPubKeyEncryptionGenerator(input.isHiddenRecipients()));
-                            log.add(LogType.MSG_PSE_KEY_OK, indent + 1,
-                                    KeyFormattingUtils.convertKeyIdToHex(subKeyId));
-                        }
-                        if (encryptSubKeyIds.isEmpty()) {
-                            log.add(LogType.MSG_PSE_KEY_WARN, indent + 1,
-                                    KeyFormattingUtils.convertKeyIdToHex(id));
-                            if (input.isFailOnMissingEncryptionKeyIds()) {
-                                return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
-                            }
+                // Asymmetric encryption, load all recipient keyrings at once
+                long[] encryptionMasterKeyIds = input.getEncryptionMasterKeyIds();
+                ArrayList<Long> brokenMasterKeyIds = new ArrayList<>();
+                LongSparseArray<CanonicalizedPublicKeyRing> keyRings = mProviderHelper
+                        .getCanonicalizedPublicKeyRings(encryptionMasterKeyIds, brokenMasterKeyIds);
+                ArrayList<Long> usedMasterKeyIds = new ArrayList<>();
+                for (long id : encryptionMasterKeyIds) {
+                    CanonicalizedPublicKeyRing keyRing = keyRings.get(id);
+                    if (keyRing == null) {
+                        log.add(brokenMasterKeyIds.contains(id)
+                                        ? LogType.MSG_PSE_KEY_BROKEN : LogType.MSG_PSE_KEY_UNKNOWN,
+                                indent + 1, KeyFormattingUtils.convertKeyIdToHex(id));
+                        if (input.isFailOnMissingEncryptionKeyIds()) {
+                            return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
                         }
-                    } catch (ProviderHelper.NotFoundException e) {
-                        log.add(LogType.MSG_PSE_KEY_UNKNOWN, indent + 1,
+                        continue;
+                    }
+                    usedMasterKeyIds.add(id);
+                    Set<Long> encryptSubKeyIds = keyRing.getEncryptIds();
+                    for (Long subKeyId : encryptSubKeyIds) {
+                        CanonicalizedPublicKey key = keyRing.getPublicKey(subKeyId);
+                        cPk.addMethod(key.getPubKeyEncryptionGenerator(input.isHiddenRecipients()));
+                        log.add(LogType.MSG_PSE_KEY_OK, indent + 1,
+                                KeyFormattingUtils.convertKeyIdToHex(subKeyId));
+                    }
+                    if (encryptSubKeyIds.isEmpty()) {
+                        log.add(LogType.MSG_PSE_KEY_WARN, indent + 1,
                                 KeyFormattingUtils.convertKeyIdToHex(id));
                         if (input.isFailOnMissingEncryptionKeyIds()) {
                             return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
                         }
                     }
                 }
+                // the keyserver sync prefers keys which are in use
+                mProviderHelper.renewKeysLastUsedTime(usedMasterKeyIds,
+                        System.currentTimeMillis(), TimeUnit.MILLISECONDS);
             }
         }
 
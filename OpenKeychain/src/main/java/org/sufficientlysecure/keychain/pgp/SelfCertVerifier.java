@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.spongycastle.openpgp.PGPKeyRing;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPSignature;
+import org.spongycastle.openpgp.PGPUserAttributeSubpacketVector;
+import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
+import org.sufficientlysecure.keychain.util.IterableIterator;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/** Verifies the self-signatures of a keyring for UncachedKeyRing.canonicalize.
+ *
+ * For keyrings with many self-signatures, all signatures issued by the master key are
+ * verified up front on a shared pool of threads. canonicalize still walks the keyring in
+ * the same order as before and asks for each verification result as it gets to it, so the
+ * log and the canonicalized keyring do not depend on the order the verifications finish in.
+ *
+ * Signatures which were not verified up front, and all signatures of small keyrings, are
+ * verified on the calling thread.
+ */
+class SelfCertVerifier {
+
+    // below this number of self-signatures, the overhead of the pool isn't worth it
+    static final int PARALLEL_THRESHOLD = 16;
+
+    private static final int NUM_THREADS = Runtime.getRuntime().availableProcessors();
+    private static ThreadPoolExecutor sExecutor;
+
+    private final PGPPublicKey mMasterKey;
+    private final IdentityHashMap<PGPSignature, Future<Boolean>> mResults = new IdentityHashMap<>();
+    private volatile boolean mFinished = false;
+
+    /**
+     * @param parallelThreshold the number of self-signatures from which on they are verified
+     *                          in parallel, usually PARALLEL_THRESHOLD
+     */
+    SelfCertVerifier(PGPKeyRing ring, int parallelThreshold) {
+        mMasterKey = ring.getPublicKey();
+
+        if (NUM_THREADS < 2 || countSelfCerts(ring) < parallelThreshold) {
+            return;
+        }
+
+        ThreadPoolExecutor executor = getExecutor();
+        final long masterKeyId = mMasterKey.getKeyID();
+
+        for (PGPSignature zert : new IterableIterator<PGPSignature>(mMasterKey.getKeySignatures())) {
+            if (zert.getKeyID() == masterKeyId) {
+                mResults.put(zert, executor.submit(new Verification(zert, null)));
+            }
+        }
+
+        for (byte[] rawUserId : new IterableIterator<byte[]>(mMasterKey.getRawUserIDs())) {
+            @SuppressWarnings("unchecked")
+            Iterator<PGPSignature> signaturesIt = mMasterKey.getSignaturesForID(rawUserId);
+            if (signaturesIt == null) {
+                continue;
+            }
+            for (PGPSignature zert : new IterableIterator<>(signaturesIt)) {
+                if (zert.getKeyID() == masterKeyId) {
+                    mResults.put(zert, executor.submit(new Verification(zert, rawUserId)));
+                }
+            }
+        }
+
+        for (PGPUserAttributeSubpacketVector userAttribute :
+                new IterableIterator<PGPUserAttributeSubpacketVector>(mMasterKey.getUserAttributes())) {
+            @SuppressWarnings("unchecked")
+            Iterator<PGPSignature> signaturesIt = mMasterKey.getSignaturesForUserAttribute(userAttribute);
+            if (signaturesIt == null) {
+                continue;
+            }
+            for (PGPSignature zert : new IterableIterator<>(signaturesIt)) {
+                if (zert.getKeyID() == masterKeyId) {
+                    mResults.put(zert, executor.submit(new Verification(zert, userAttribute)));
+                }
+            }
+        }
+
+        for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(ring.getPublicKeys())) {
+            if (key.isMasterKey()) {
+                continue;
+            }
+            for (PGPSignature zert : new IterableIterator<PGPSignature>(key.getSignatures())) {
+                if (zert.getKeyID() == masterKeyId) {
+                    mResults.put(zert, executor.submit(new Verification(zert, key)));
+                }
+            }
+        }
+    }
+
+    /** Verifies a signature directly on the master key. */
+    boolean verify(WrappedSignature cert) throws PgpGeneralException {
+        return getOrVerify(cert, null);
+    }
+
+    /** Verifies a self-certification of a user id. */
+    boolean verify(WrappedSignature cert, byte[] rawUserId) throws PgpGeneralException {
+        return getOrVerify(cert, rawUserId);
+    }
+
+    /** Verifies a self-certification of a user attribute. */
+    boolean verify(WrappedSignature cert, PGPUserAttributeSubpacketVector userAttribute)
+            throws PgpGeneralException {
+        return getOrVerify(cert, userAttribute);
+    }
+
+    /** Verifies a binding or revocation signature of a subkey. */
+    boolean verify(WrappedSignature cert, PGPPublicKey subKey) throws PgpGeneralException {
+        return getOrVerify(cert, subKey);
+    }
+
+    /** Returns the result of a verification which was started up front, or verifies now. */
+    private boolean getOrVerify(WrappedSignature cert, Object target) throws PgpGeneralException {
+        Future<Boolean> result = mResults.remove(cert.mSig);
+        if (result != null) {
+            return getResult(result);
+        }
+        return verify(mMasterKey, cert, target);
+    }
+
+    /** Verifies a signature by the master key on a target, which is either null for the master
+     * key itself, a raw user id, a user attribute, or a subkey.
+     */
+    private static boolean verify(PGPPublicKey masterKey, WrappedSignature cert, Object target)
+            throws PgpGeneralException {
+        cert.init(masterKey);
+        if (target == null) {
+            return cert.verifySignature(masterKey);
+        } else if (target instanceof byte[]) {
+            return cert.verifySignature(masterKey, (byte[]) target);
+        } else if (target instanceof PGPUserAttributeSubpacketVector) {
+            return cert.verifySignature(masterKey, (PGPUserAttributeSubpacketVector) target);
+        } else {
+            return cert.verifySignature(masterKey, (PGPPublicKey) target);
+        }
+    }
+
+    private class Verification implements Callable<Boolean> {
+        private final WrappedSignature mCert;
+        private final Object mTarget;
+
+        Verification(PGPSignature zert, Object target) {
+            mCert = new WrappedSignature(zert);
+            mTarget = target;
+        }
+
+        @Override
+        public Boolean call() throws PgpGeneralException {
+            if (mFinished) {
+                return false;
+            }
+            return verify(mMasterKey, mCert, mTarget);
+        }
+    }
+
+    /** Drops all verifications which were not asked for.
+     *
+     * Queued verifications are skipped, and running ones are waited for, so that no other
+     * thread uses the signature objects after canonicalize returned.
+     */
+    void finish() {
+        mFinished = true;
+        for (Future<Boolean> result : mResults.values()) {
+            try {
+                getResult(result);
+            } catch (PgpGeneralException | RuntimeException e) {
+                // never mind, nobody asked for this one
+            }
+        }
+        mResults.clear();
+    }
+
+    private static boolean getResult(Future<Boolean> result) throws PgpGeneralException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return result.get();
+                } catch (InterruptedException e) {
+                    // the verification is already queued, might as well wait for it
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof PgpGeneralException) {
+                throw (PgpGeneralException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new PgpGeneralException(cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static int countSelfCerts(PGPKeyRing ring) {
+        long masterKeyId = ring.getPublicKey().getKeyID();
+        int count = 0;
+        for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(ring.getPublicKeys())) {
+            for (PGPSignature zert : new IterableIterator<PGPSignature>(key.getSignatures())) {
+                if (zert.getKeyID() == masterKeyId) {
+                    count += 1;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = new ThreadPoolExecutor(NUM_THREADS, NUM_THREADS, 10, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "SelfCertVerifier");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            // don't keep threads around between imports
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
+}
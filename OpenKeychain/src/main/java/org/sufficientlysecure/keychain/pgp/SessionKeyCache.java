@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.support.v4.util.LruCache;
+
+import org.spongycastle.openpgp.PGPPublicKeyEncryptedData;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.service.PassphraseCacheService;
+import org.sufficientlysecure.keychain.util.Log;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+
+/** A short-lived, process-wide cache of decrypted session keys.
+ *
+ * Clients of the API commonly decrypt only the metadata of a message first, and then
+ * decrypt it fully in a second call. Each of these calls would otherwise have to decrypt
+ * the session key from the PKESK packet again, which means a private key operation.
+ *
+ * Session keys are cached by a digest of the PKESK packet, and expire after a few minutes.
+ * The passphrase is still required for every decryption, see PgpDecryptVerifyOperation.
+ * Session keys decrypted by a security token are never cached, so the token and its PIN
+ * are required for every decryption with it. Entries are dropped when the PassphraseCacheService times out
+ * or clears the passphrase of the key they were decrypted with.
+ */
+public class SessionKeyCache {
+
+    private static final int MAX_ENTRIES = 32;
+    private static final long TTL_MILLIS = 5 * 60 * 1000;
+
+    private static SessionKeyCache sInstance;
+
+    private final Context mContext;
+    private final LruCache<ByteBuffer, CachedSessionKey> mSessionKeys =
+            new LruCache<>(MAX_ENTRIES);
+
+    private int mSavedOperations = 0;
+
+    public static synchronized SessionKeyCache getInstance(Context context) {
+        Context appContext = context.getApplicationContext();
+        if (appContext == null) {
+            appContext = context;
+        }
+        // there is only one application context per process, except in unit tests
+        if (sInstance == null || sInstance.mContext != appContext) {
+            sInstance = new SessionKeyCache(appContext);
+        }
+        return sInstance;
+    }
+
+    private SessionKeyCache(Context context) {
+        mContext = context;
+
+        // only our own processes can send these, see PassphraseCacheService
+        PassphraseCacheService.registerCacheReceiver(context, new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (intent.hasExtra(PassphraseCacheService.EXTRA_KEY_ID)) {
+                    remove(intent.getLongExtra(PassphraseCacheService.EXTRA_KEY_ID, 0L));
+                } else {
+                    clear();
+                }
+            }
+        });
+    }
+
+    /** Returns the cached session data for encData, or null if there is none. */
+    public synchronized byte[] get(PGPPublicKeyEncryptedData encData) {
+        ByteBuffer digest = digestPkesk(encData);
+        CachedSessionKey cached = mSessionKeys.get(digest);
+        if (cached == null) {
+            return null;
+        }
+        if (cached.mExpiry < SystemClock.elapsedRealtime()) {
+            mSessionKeys.remove(digest);
+            return null;
+        }
+        mSavedOperations += 1;
+        Log.d(Constants.TAG, "SessionKeyCache: private key operations saved: " + mSavedOperations);
+        return cached.mSessionData;
+    }
+
+    /** Caches the session data of encData from a map of decrypted session keys, as returned
+     * by CachingDataDecryptorFactory.getCachedSessionKeys().
+     */
+    public synchronized void put(long masterKeyId, PGPPublicKeyEncryptedData encData,
+                                 Map<ByteBuffer, byte[]> sessionKeys) {
+        byte[] sessionData = sessionKeys.get(ByteBuffer.wrap(encData.getSessionKey()[0]));
+        if (sessionData == null) {
+            return;
+        }
+        mSessionKeys.put(digestPkesk(encData), new CachedSessionKey(masterKeyId,
+                encData.getKeyID(), sessionData, SystemClock.elapsedRealtime() + TTL_MILLIS));
+    }
+
+    /** Removes all session keys which were decrypted with keyId, either as master key or as
+     * subkey. This matches both modes of the PassphraseCacheService, by keyring or by subkey.
+     */
+    public synchronized void remove(long keyId) {
+        for (Map.Entry<ByteBuffer, CachedSessionKey> entry : mSessionKeys.snapshot().entrySet()) {
+            CachedSessionKey cached = entry.getValue();
+            if (cached.mMasterKeyId == keyId || cached.mSubKeyId == keyId) {
+                mSessionKeys.remove(entry.getKey());
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        mSessionKeys.evictAll();
+    }
+
+    /** Returns the number of private key operations which were saved by this cache. */
+    public synchronized int getSavedOperations() {
+        return mSavedOperations;
+    }
+
+    private static ByteBuffer digestPkesk(PGPPublicKeyEncryptedData encData) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(ByteBuffer.allocate(12)
+                    .putLong(encData.getKeyID()).putInt(encData.getAlgorithm()).array());
+            for (byte[] mpi : encData.getSessionKey()) {
+                digest.update(mpi);
+            }
+            return ByteBuffer.wrap(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            // every java implementation is required to support SHA-256
+            throw new AssertionError(e);
+        }
+    }
+
+    private static class CachedSessionKey {
+        final long mMasterKeyId;
+        final long mSubKeyId;
+        final byte[] mSessionData;
+        final long mExpiry;
+
+        CachedSessionKey(long masterKeyId, long subKeyId, byte[] sessionData, long expiry) {
+            mMasterKeyId = masterKeyId;
+            mSubKeyId = subKeyId;
+            mSessionData = sessionData;
+            mExpiry = expiry;
+        }
+    }
+
+}
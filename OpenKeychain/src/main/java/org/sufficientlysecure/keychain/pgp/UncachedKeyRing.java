@@ -52,13 +52,11 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
 import java.util.TimeZone;
-import java.util.TreeSet;
 
 /** Wrapper around PGPKeyRing class, to be constructed from bytes.
  *
@@ -83,6 +81,8 @@ public class UncachedKeyRing implements Serializable {
 
     final PGPKeyRing mRing;
     final boolean mIsSecret;
+    // number of third-party certificates dropped by the CertFloodFilter while parsing
+    int mDroppedCerts = 0;
 
     UncachedKeyRing(PGPKeyRing ring) {
         mRing = ring;
@@ -137,10 +137,19 @@ public class UncachedKeyRing implements Serializable {
         return mRing.getPublicKey().getVersion();
     }
 
+    public int getDroppedCertCount() {
+        return mDroppedCerts;
+    }
+
     public static UncachedKeyRing decodeFromData(byte[] data)
             throws PgpGeneralException, IOException {
+        return decodeFromData(data, null);
+    }
+
+    public static UncachedKeyRing decodeFromData(byte[] data, CertFloodFilter filter)
+            throws PgpGeneralException, IOException {
 
-        IteratorWithIOThrow<UncachedKeyRing> parsed = fromStream(new ByteArrayInputStream(data));
+        IteratorWithIOThrow<UncachedKeyRing> parsed = fromStream(new ByteArrayInputStream(data), filter);
 
         if ( ! parsed.hasNext()) {
             throw new PgpGeneralException("Object not recognized as PGPKeyRing!");
@@ -156,12 +165,23 @@ public class UncachedKeyRing implements Serializable {
 
     }
 
-    public static IteratorWithIOThrow<UncachedKeyRing> fromStream(final InputStream stream) {
+    public static IteratorWithIOThrow<UncachedKeyRing> fromStream(InputStream stream) {
+        return fromStream(stream, null);
+    }
+
+    /** Parses keyrings from a stream, which may be armored.
+     *
+     * @param filter limits the number of third-party certificates, before they are parsed.
+     *               Only for keyrings from keyservers, null to keep all certificates.
+     */
+    public static IteratorWithIOThrow<UncachedKeyRing> fromStream(final InputStream stream,
+            final CertFloodFilter filter) {
 
         return new IteratorWithIOThrow<UncachedKeyRing>() {
 
             UncachedKeyRing mNext = null;
             PGPObjectFactory mObjectFactory = null;
+            CertFloodFilter.FilterResult mFiltered = null;
 
             private void cacheNext() throws IOException {
                 if (mNext != null) {
@@ -173,7 +193,12 @@ public class UncachedKeyRing implements Serializable {
                         // if there are no objects left from the last factory, create a new one
                         if (mObjectFactory == null) {
                             InputStream in = PGPUtil.getDecoderStream(stream);
-                            mObjectFactory = new PGPObjectFactory(in, new JcaKeyFingerprintCalculator());
+                            if (filter != null) {
+                                mFiltered = filter.filter(in);
+                                in = mFiltered.mStream;
+                            }
+                            mObjectFactory = new PGPObjectFactory(in,
+                                    new JcaKeyFingerprintCalculator());
                         }
 
                         // go through all objects in this block
@@ -187,6 +212,9 @@ public class UncachedKeyRing implements Serializable {
                                 continue;
                             }
                             mNext = new UncachedKeyRing((PGPKeyRing) obj);
+                            if (mFiltered != null) {
+                                mNext.mDroppedCerts = mFiltered.getDroppedCount(mNext.getMasterKeyId());
+                            }
                             return;
                         }
                         // if we are past the while loop, that means the objectFactory had no next
@@ -294,8 +322,27 @@ public class UncachedKeyRing implements Serializable {
      * @return A canonicalized key, or null on fatal error (log will include a message in this case)
      *
      */
-    @SuppressWarnings("ConstantConditions")
     public CanonicalizedKeyRing canonicalize(OperationLog log, int indent, boolean forExport) {
+        return canonicalize(log, indent, forExport, SelfCertVerifier.PARALLEL_THRESHOLD);
+    }
+
+    /** Like canonicalize(log, indent, forExport), with the number of self-signatures from which
+     * on they are verified in parallel.
+     */
+    CanonicalizedKeyRing canonicalize(OperationLog log, int indent, boolean forExport,
+            int parallelThreshold) {
+        // self-signatures of large keyrings are verified in parallel, ahead of the walk below
+        SelfCertVerifier selfCerts = new SelfCertVerifier(mRing, parallelThreshold);
+        try {
+            return canonicalize(log, indent, forExport, selfCerts);
+        } finally {
+            selfCerts.finish();
+        }
+    }
+
+    @SuppressWarnings("ConstantConditions")
+    private CanonicalizedKeyRing canonicalize(OperationLog log, int indent, boolean forExport,
+            SelfCertVerifier selfCerts) {
 
         log.add(isSecret() ? LogType.MSG_KC_SECRET : LogType.MSG_KC_PUBLIC,
                 indent, KeyFormattingUtils.convertKeyIdToHex(getMasterKeyId()));
@@ -365,8 +412,7 @@ public class UncachedKeyRing implements Serializable {
                 }
 
                 try {
-                    cert.init(masterKey);
-                    if (!cert.verifySignature(masterKey)) {
+                    if (!selfCerts.verify(cert)) {
                         log.add(LogType.MSG_KC_MASTER_BAD, indent);
                         modified = PGPPublicKey.removeCertification(modified, zert);
                         badCerts += 1;
@@ -522,8 +568,7 @@ public class UncachedKeyRing implements Serializable {
 
                         // Otherwise, first make sure it checks out
                         try {
-                            cert.init(masterKey);
-                            if (!cert.verifySignature(masterKey, rawUserId)) {
+                            if (!selfCerts.verify(cert, rawUserId)) {
                                 log.add(LogType.MSG_KC_UID_BAD,
                                         indent, userId);
                                 modified = PGPPublicKey.removeCertification(modified, rawUserId, zert);
@@ -687,8 +732,7 @@ public class UncachedKeyRing implements Serializable {
 
                             // Otherwise, first make sure it checks out
                             try {
-                                cert.init(masterKey);
-                                if (!cert.verifySignature(masterKey, userAttribute)) {
+                                if (!selfCerts.verify(cert, userAttribute)) {
                                     log.add(LogType.MSG_KC_UAT_BAD,
                                             indent);
                                     modified = PGPPublicKey.removeCertification(modified, userAttribute, zert);
@@ -877,8 +921,7 @@ public class UncachedKeyRing implements Serializable {
 
                     // make sure the certificate checks out
                     try {
-                        cert.init(masterKey);
-                        if (!cert.verifySignature(masterKey, key)) {
+                        if (!selfCerts.verify(cert, key)) {
                             log.add(LogType.MSG_KC_SUB_BAD, indent);
                             badCerts += 1;
                             continue;
@@ -961,8 +1004,7 @@ public class UncachedKeyRing implements Serializable {
 
                     // make sure the certificate checks out
                     try {
-                        cert.init(masterKey);
-                        if (!cert.verifySignature(masterKey, key)) {
+                        if (!selfCerts.verify(cert, key)) {
                             log.add(LogType.MSG_KC_SUB_REVOKE_BAD, indent);
                             badCerts += 1;
                             continue;
@@ -1068,21 +1110,7 @@ public class UncachedKeyRing implements Serializable {
         }
 
         // remember which certs we already added. this is cheaper than semantic deduplication
-        Set<byte[]> certs = new TreeSet<>(new Comparator<byte[]>() {
-            public int compare(byte[] left, byte[] right) {
-                // check for length equality
-                if (left.length != right.length) {
-                    return left.length - right.length;
-                }
-                // compare byte-by-byte
-                for (int i = 0; i < left.length; i++) {
-                    if (left[i] != right[i]) {
-                        return (left[i] & 0xff) - (right[i] & 0xff);
-                    }
-                }
-                // ok they're the same
-                return 0;
-        }});
+        CertDigestSet certs = new CertDigestSet();
 
         try {
             PGPKeyRing result = mRing;
@@ -1091,7 +1119,7 @@ public class UncachedKeyRing implements Serializable {
             // Pre-load all existing certificates
             for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(result.getPublicKeys())) {
                 for (PGPSignature cert : new IterableIterator<PGPSignature>(key.getSignatures())) {
-                    certs.add(cert.getEncoded());
+                    certs.add(cert);
                 }
             }
 
@@ -1124,12 +1152,10 @@ public class UncachedKeyRing implements Serializable {
                         continue;
                     }
 
-                    byte[] encoded = cert.getEncoded();
                     // Known cert, skip it
-                    if (certs.contains(encoded)) {
+                    if (!certs.add(cert)) {
                         continue;
                     }
-                    certs.add(encoded);
                     modified = PGPPublicKey.addCertification(modified, cert);
                     newCerts += 1;
                 }
@@ -1155,13 +1181,11 @@ public class UncachedKeyRing implements Serializable {
                         if (cert.getKeyID() != masterKeyId && isSecret()) {
                             continue;
                         }
-                        byte[] encoded = cert.getEncoded();
                         // Known cert, skip it
-                        if (certs.contains(encoded)) {
+                        if (!certs.add(cert)) {
                             continue;
                         }
                         newCerts += 1;
-                        certs.add(encoded);
                         modified = PGPPublicKey.addCertification(modified, rawUserId, cert);
                     }
                 }
@@ -1180,13 +1204,11 @@ public class UncachedKeyRing implements Serializable {
                         if (cert.getKeyID() != masterKeyId && isSecret()) {
                             continue;
                         }
-                        byte[] encoded = cert.getEncoded();
                         // Known cert, skip it
-                        if (certs.contains(encoded)) {
+                        if (!certs.add(cert)) {
                             continue;
                         }
                         newCerts += 1;
-                        certs.add(encoded);
                         modified = PGPPublicKey.addCertification(modified, vector, cert);
                     }
                 }
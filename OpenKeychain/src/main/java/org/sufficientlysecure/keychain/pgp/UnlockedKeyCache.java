@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.support.v4.util.LongSparseArray;
+
+import org.spongycastle.openpgp.PGPPrivateKey;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.service.PassphraseCacheService;
+import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.Preferences;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/** A process-wide cache of unlocked private keys.
+ *
+ * Unlocking a secret key runs the S2K key derivation, which is deliberately expensive.
+ * If enabled in the preferences, private keys are kept in memory of the process which
+ * unlocked them, so that later operations with the same passphrase skip this step.
+ *
+ * A cached key is only returned for the exact passphrase it was unlocked with, so it is
+ * never usable without the passphrase being available from PassphraseCacheService or the
+ * user. Entries expire after the passphrase cache ttl, and are dropped whenever the
+ * PassphraseCacheService times out or clears the corresponding passphrase.
+ *
+ * Note that the key material can't be overwritten in memory, since it is held in
+ * immutable BigIntegers. Dropping an entry only removes all references to it.
+ */
+public class UnlockedKeyCache {
+
+    private static UnlockedKeyCache sInstance;
+
+    private final Context mContext;
+    private final LongSparseArray<CachedKey> mKeys = new LongSparseArray<>();
+
+    private int mHitCount = 0;
+    private int mMissCount = 0;
+
+    public static synchronized UnlockedKeyCache getInstance(Context context) {
+        Context appContext = context.getApplicationContext();
+        if (appContext == null) {
+            appContext = context;
+        }
+        // there is only one application context per process, except in unit tests
+        if (sInstance == null || sInstance.mContext != appContext) {
+            sInstance = new UnlockedKeyCache(appContext);
+        }
+        return sInstance;
+    }
+
+    private UnlockedKeyCache(Context context) {
+        mContext = context;
+
+        PassphraseCacheService.registerCacheReceiver(context, new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (intent.hasExtra(PassphraseCacheService.EXTRA_KEY_ID)) {
+                    remove(intent.getLongExtra(PassphraseCacheService.EXTRA_KEY_ID, 0L));
+                } else {
+                    clear();
+                }
+            }
+        });
+    }
+
+    public boolean isEnabled() {
+        return Preferences.getPreferences(mContext).getPassphraseCacheUnlockedKeys();
+    }
+
+    /** Returns the private key for subKeyId, if it was unlocked with the same passphrase
+     * before and has not expired yet. Using an entry extends its lifetime, like it does for
+     * cached passphrases.
+     */
+    public synchronized PGPPrivateKey get(long subKeyId, Passphrase passphrase) {
+        if (!isEnabled()) {
+            clear();
+            return null;
+        }
+
+        CachedKey cachedKey = mKeys.get(subKeyId);
+        if (cachedKey == null) {
+            mMissCount += 1;
+            return null;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        if (cachedKey.mExpiry < now) {
+            Log.d(Constants.TAG, "UnlockedKeyCache: key " + subKeyId + " expired, removed from memory");
+            mKeys.remove(subKeyId);
+            mMissCount += 1;
+            return null;
+        }
+
+        if (!MessageDigest.isEqual(cachedKey.mPassphraseDigest, digestPassphrase(passphrase))) {
+            mMissCount += 1;
+            return null;
+        }
+
+        cachedKey.mExpiry = now + getTtlMillis();
+        mHitCount += 1;
+        return cachedKey.mPrivateKey;
+    }
+
+    public synchronized void put(long masterKeyId, long subKeyId, Passphrase passphrase,
+                                 PGPPrivateKey privateKey) {
+        if (!isEnabled()) {
+            return;
+        }
+        long expiry = SystemClock.elapsedRealtime() + getTtlMillis();
+        mKeys.put(subKeyId, new CachedKey(
+                masterKeyId, privateKey, digestPassphrase(passphrase), expiry));
+    }
+
+    /** Removes all keys which belong to keyId, either as master key or as subkey. This
+     * matches both modes of the PassphraseCacheService, by keyring or by subkey.
+     */
+    public synchronized void remove(long keyId) {
+        for (int i = mKeys.size() - 1; i >= 0; i--) {
+            if (mKeys.keyAt(i) == keyId || mKeys.valueAt(i).mMasterKeyId == keyId) {
+                mKeys.removeAt(i);
+            }
+        }
+        Log.d(Constants.TAG, "UnlockedKeyCache: removed keys for " + keyId + " from memory");
+    }
+
+    public synchronized void clear() {
+        mKeys.clear();
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    private long getTtlMillis() {
+        return Preferences.getPreferences(mContext).getPassphraseCacheTtl() * 1000;
+    }
+
+    private static byte[] digestPassphrase(Passphrase passphrase) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (char c : passphrase.getCharArray()) {
+                digest.update((byte) (c >> 8));
+                digest.update((byte) c);
+            }
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            // every java implementation is required to support SHA-256
+            throw new AssertionError(e);
+        }
+    }
+
+    private static class CachedKey {
+        final long mMasterKeyId;
+        final PGPPrivateKey mPrivateKey;
+        final byte[] mPassphraseDigest;
+        long mExpiry;
+
+        CachedKey(long masterKeyId, PGPPrivateKey privateKey, byte[] passphraseDigest,
+                  long expiry) {
+            mMasterKeyId = masterKeyId;
+            mPrivateKey = privateKey;
+            mPassphraseDigest = passphraseDigest;
+            mExpiry = expiry;
+        }
+    }
+
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.support.v4.util.LongSparseArray;
+import android.support.v4.util.LruCache;
+
+import org.sufficientlysecure.keychain.pgp.CanonicalizedKeyRing;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKey;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+
+import java.util.List;
+
+/** A process-wide cache of parsed CanonicalizedKeyRing objects.
+ *
+ * Parsing a keyring blob is fairly expensive, and the same few keyrings are
+ * typically requested over and over again during decrypt, verify and sign
+ * operations. This cache holds parsed keyrings by master key id and type
+ * (public or secret), bounded by the total size of their encoded blobs.
+ *
+ * Entries are invalidated whenever KeychainProvider notifies a change on a
+ * /key_rings/ uri. The provider calls into this cache directly for its own
+ * process, all other processes (remote api, sync) are notified through a
+ * ContentObserver. Since the latter happens asynchronously, entries are only
+ * put into the cache if no invalidation happened since the corresponding
+ * query was started, see {@link #getGeneration()}.
+ *
+ * The cached objects are shared between callers, which is fine since the
+ * wrapped spongycastle keyrings are immutable.
+ *
+ * Additionally, this cache holds the master keys of all keyrings with a secret
+ * key, which are used to verify certifications on every saved public keyring.
+ * This set is only invalidated if a secret keyring changes, which the provider
+ * notifies on the /key_rings/_/secret uri, or if one of its keyrings changes.
+ */
+public class KeyRingCache {
+
+    // total size of cached keyring blobs, in bytes
+    private static final int MAX_SIZE_BYTES = 4 * 1024 * 1024;
+
+    private static KeyRingCache sInstance;
+
+    private final Context mContext;
+    private final LruCache<CacheKey, CacheEntry> mCache;
+    private long mGeneration = 0;
+
+    private LongSparseArray<CanonicalizedPublicKey> mTrustedKeys;
+    private long mTrustedKeysGeneration = 0;
+
+    public static synchronized KeyRingCache getInstance(Context context) {
+        Context appContext = context.getApplicationContext();
+        if (appContext == null) {
+            appContext = context;
+        }
+        // there is only one application context per process, except in unit tests
+        if (sInstance == null || sInstance.mContext != appContext) {
+            sInstance = new KeyRingCache(appContext);
+        }
+        return sInstance;
+    }
+
+    private KeyRingCache(Context context) {
+        mContext = context;
+        mCache = new LruCache<CacheKey, CacheEntry>(MAX_SIZE_BYTES) {
+            @Override
+            protected int sizeOf(CacheKey key, CacheEntry value) {
+                return value.mSize;
+            }
+        };
+
+        // a null handler means onChange is called directly on the binder thread
+        context.getContentResolver().registerContentObserver(KeyRings.CONTENT_URI, true,
+                new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        // no uri available, this only happens before api level 16
+                        invalidateAll();
+                    }
+
+                    @Override
+                    public void onChange(boolean selfChange, Uri uri) {
+                        invalidate(uri);
+                    }
+                });
+    }
+
+    /** Returns the current generation of this cache. The generation changes on every
+     * invalidation, so a value obtained before a query can be used to make sure no
+     * outdated data is put into the cache.
+     */
+    public synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    public CanonicalizedKeyRing get(long masterKeyId, boolean secret) {
+        CacheEntry entry = mCache.get(new CacheKey(masterKeyId, secret));
+        return entry == null ? null : entry.mRing;
+    }
+
+    /** Puts a keyring into the cache, unless the cache was invalidated since generation.
+     *
+     * @param size size of the encoded keyring, used for bounding the cache size.
+     */
+    public synchronized void put(long masterKeyId, boolean secret, CanonicalizedKeyRing ring,
+                                 int size, long generation) {
+        if (generation != mGeneration) {
+            return;
+        }
+        mCache.put(new CacheKey(masterKeyId, secret), new CacheEntry(ring, size));
+    }
+
+    /** Returns the master keys of all keyrings with a secret key, by master key id, or null
+     * if they are not cached. The returned array is shared, and must not be modified.
+     */
+    public synchronized LongSparseArray<CanonicalizedPublicKey> getTrustedKeys() {
+        return mTrustedKeys;
+    }
+
+    /** Returns the current generation of the trusted keys, which only changes if they are
+     * invalidated. See {@link #getGeneration()}.
+     */
+    public synchronized long getTrustedKeysGeneration() {
+        return mTrustedKeysGeneration;
+    }
+
+    /** Puts the master keys of all keyrings with a secret key into the cache, unless they
+     * were invalidated since generation.
+     */
+    public synchronized void putTrustedKeys(LongSparseArray<CanonicalizedPublicKey> trustedKeys,
+                                            long generation) {
+        if (generation != mTrustedKeysGeneration) {
+            return;
+        }
+        mTrustedKeys = trustedKeys;
+    }
+
+    /** Invalidates all cached data related to the keyring referred to by uri. If the uri doesn't
+     * refer to a specific keyring, the entire cache is invalidated. Uris outside of /key_rings/
+     * are ignored.
+     */
+    public void invalidate(Uri uri) {
+        if (uri == null) {
+            invalidateAll();
+            return;
+        }
+        List<String> segments = uri.getPathSegments();
+        if (segments.isEmpty() || !KeychainContract.BASE_KEY_RINGS.equals(segments.get(0))) {
+            return;
+        }
+        if (segments.size() >= 2) {
+            try {
+                invalidate(Long.parseLong(segments.get(1)));
+                if (segments.size() >= 3 && KeychainContract.PATH_SECRET.equals(segments.get(2))) {
+                    invalidateTrustedKeys();
+                }
+                return;
+            } catch (NumberFormatException e) {
+                // not a specific keyring, e.g. key_rings/unified
+            }
+        }
+        invalidateAll();
+    }
+
+    public synchronized void invalidate(long masterKeyId) {
+        mGeneration += 1;
+        mCache.remove(new CacheKey(masterKeyId, false));
+        mCache.remove(new CacheKey(masterKeyId, true));
+        if (mTrustedKeys != null && mTrustedKeys.indexOfKey(masterKeyId) >= 0) {
+            invalidateTrustedKeys();
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        mGeneration += 1;
+        mCache.evictAll();
+        invalidateTrustedKeys();
+    }
+
+    public synchronized void invalidateTrustedKeys() {
+        mTrustedKeysGeneration += 1;
+        mTrustedKeys = null;
+    }
+
+    public int getHitCount() {
+        return mCache.hitCount();
+    }
+
+    public int getMissCount() {
+        return mCache.missCount();
+    }
+
+    private static class CacheKey {
+        final long mMasterKeyId;
+        final boolean mSecret;
+
+        CacheKey(long masterKeyId, boolean secret) {
+            mMasterKeyId = masterKeyId;
+            mSecret = secret;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) o;
+            return mMasterKeyId == other.mMasterKeyId && mSecret == other.mSecret;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (int) (mMasterKeyId ^ (mMasterKeyId >>> 32)) + (mSecret ? 1 : 0);
+        }
+    }
+
+    private static class CacheEntry {
+        final CanonicalizedKeyRing mRing;
+        final int mSize;
+
+        CacheEntry(CanonicalizedKeyRing ring, int size) {
+            mRing = ring;
+            mSize = size;
+        }
+    }
+
+}
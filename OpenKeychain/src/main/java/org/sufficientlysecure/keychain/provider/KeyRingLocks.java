@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+import java.util.HashSet;
+
+/** Process-wide locks for saving keyrings, one per master key id.
+ *
+ * Saving a keyring reads its stored version, merges the new data into it, and writes back
+ * the difference. Two saves of the same keyring must not overlap, or one of them would
+ * overwrite the other. Saves of different keyrings can overlap, so each master key id has
+ * its own lock. Striping the locks instead would let up to a hundred keyrings prepared in
+ * parallel by KeyImportPipeline wait on each other for no reason.
+ *
+ * The locks are not owned by a thread, because a keyring prepared by
+ * ProviderHelper.preparePublicKeyRing is unlocked by whichever thread saves it. This also
+ * means they are not reentrant: a thread holding a lock must not save the same keyring again.
+ */
+class KeyRingLocks {
+
+    // master key ids of all keyrings which are currently locked
+    private static final HashSet<Long> sLocked = new HashSet<>();
+
+    static void lock(long masterKeyId) {
+        boolean interrupted = false;
+        synchronized (sLocked) {
+            while (!sLocked.add(masterKeyId)) {
+                try {
+                    sLocked.wait();
+                } catch (InterruptedException e) {
+                    // keep waiting, a save must not be skipped halfway
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static void unlock(long masterKeyId) {
+        synchronized (sLocked) {
+            sLocked.remove(masterKeyId);
+            sLocked.notifyAll();
+        }
+    }
+
+}
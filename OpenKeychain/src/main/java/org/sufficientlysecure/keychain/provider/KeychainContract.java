@@ -29,6 +29,7 @@ public class KeychainContract {
     interface KeyRingsColumns {
         String MASTER_KEY_ID = "master_key_id"; // not a database id
         String KEY_RING_DATA = "key_ring_data"; // PGPPublicKeyRing / PGPSecretKeyRing blob
+        String IMPORT_DIGEST = "import_digest"; // public only, sha-256 of the last imported ring
     }
 
     interface KeysColumns {
@@ -50,11 +51,20 @@ public class KeychainContract {
 
         String CREATION = "creation";
         String EXPIRY = "expiry";
+        String IS_EXPIRED = "is_expired"; // updated on expiry, see KeyExpiryReceiver
     }
 
     interface UpdatedKeysColumns {
         String MASTER_KEY_ID = "master_key_id"; // not a database id
         String LAST_UPDATED = "last_updated"; // time since epoch in seconds
+        String ETAG = "etag"; // of the last keyserver response
+        String LAST_MODIFIED = "last_modified"; // http date of the last keyserver response
+        String CONTENT_DIGEST = "content_digest"; // sha-256 of the last downloaded keyring
+    }
+
+    interface KeyUsageColumns {
+        String MASTER_KEY_ID = "master_key_id"; // not a database id
+        String LAST_USED = "last_used"; // time since epoch in seconds
     }
 
     interface UserPacketsColumns {
@@ -65,6 +75,27 @@ public class KeychainContract {
         String RANK = "rank"; // ONLY used for sorting! no key, no nothing!
         String IS_PRIMARY = "is_primary";
         String IS_REVOKED = "is_revoked";
+        String EMAIL = "email"; // lower-cased email part of user_id, for lookups
+    }
+
+    interface KeyRingsSearchColumns {
+        // full text search columns, the docid is the master key id
+        String PRIMARY_USER_ID = "primary_user_id";
+        String USER_IDS = "user_ids"; // all other user ids
+        String KEY_IDS = "key_ids"; // hex key ids and fingerprints of all keys
+    }
+
+    interface KeyRingSummaryColumns {
+        // materialized per-keyring values of the unified query, see KeychainDatabase
+        String MASTER_KEY_ID = "master_key_id";
+        String PRIMARY_USER_ID = "primary_user_id";
+        String HAS_ANY_SECRET = "has_any_secret";
+        String HAS_DUPLICATE_USER_ID = "has_duplicate_user_id";
+        // key id of a usable key with the capability, or null if there is none
+        String ENCRYPT_KEY_ID = "encrypt_key_id";
+        String SIGN_KEY_ID = "sign_key_id";
+        String CERTIFY_KEY_ID = "certify_key_id";
+        String AUTHENTICATE_KEY_ID = "authenticate_key_id";
     }
 
     interface CertsColumns {
@@ -77,6 +108,13 @@ public class KeychainContract {
         String DATA = "data";
     }
 
+    interface VerifiedCertsColumns {
+        String MASTER_KEY_ID = "master_key_id"; // foreign key to key_rings._ID
+        String KEY_ID_CERTIFIER = "key_id_certifier"; // master key id of a secret keyring
+        String DIGEST = "digest"; // see ProviderHelper.TrustedCertVerifier
+        String VERIFIED = "verified"; // result of the verification, as 0 or 1
+    }
+
     interface ApiAppsColumns {
         String PACKAGE_NAME = "package_name";
         String PACKAGE_CERTIFICATE = "package_signature";
@@ -105,19 +143,27 @@ public class KeychainContract {
 
     public static final String BASE_UPDATED_KEYS = "updated_keys";
 
+    public static final String BASE_KEY_USAGE = "key_usage";
+
     public static final String PATH_UNIFIED = "unified";
 
     public static final String PATH_FIND = "find";
     public static final String PATH_BY_EMAIL = "email";
     public static final String PATH_BY_SUBKEY = "subkey";
+    public static final String PATH_BY_QUERY = "query";
 
     public static final String PATH_PUBLIC = "public";
     public static final String PATH_SECRET = "secret";
     public static final String PATH_USER_IDS = "user_ids";
     public static final String PATH_LINKED_IDS = "linked_ids";
     public static final String PATH_PHOTO_ATTRIBUTES = "photo_attributes";
+    public static final String PATH_USER_PACKETS = "user_packets";
     public static final String PATH_KEYS = "keys";
     public static final String PATH_CERTS = "certs";
+    public static final String PATH_VERIFIED_CERTS = "verified_certs";
+    public static final String PATH_SEARCH = "search";
+    public static final String PATH_SUMMARY = "summary";
+    public static final String PATH_EXPIRY = "expiry";
 
     public static final String BASE_API_APPS = "api_apps";
     public static final String PATH_ACCOUNTS = "accounts";
@@ -136,6 +182,8 @@ public class KeychainContract {
         public static final String HAS_DUPLICATE_USER_ID = "has_duplicate_user_id";
         public static final String PUBKEY_DATA = "pubkey_data";
         public static final String PRIVKEY_DATA = "privkey_data";
+        // only meaningful for find by query, higher is a better match
+        public static final String SEARCH_RANK = "search_rank";
 
         public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
                 .appendPath(BASE_KEY_RINGS).build();
@@ -149,10 +197,21 @@ public class KeychainContract {
             return CONTENT_URI.buildUpon().appendPath(PATH_UNIFIED).build();
         }
 
+        /** Updating this uri marks all keys which expired by now as expired */
+        public static Uri buildExpiryUri() {
+            return CONTENT_URI.buildUpon().appendPath(PATH_EXPIRY).build();
+        }
+
         public static Uri buildGenericKeyRingUri(long masterKeyId) {
             return CONTENT_URI.buildUpon().appendPath(Long.toString(masterKeyId)).build();
         }
 
+        /** Inserting at this uri (re-)computes the summary of a keyring, see KeychainDatabase */
+        public static Uri buildKeyRingSummaryUri(long masterKeyId) {
+            return CONTENT_URI.buildUpon().appendPath(Long.toString(masterKeyId))
+                    .appendPath(PATH_SUMMARY).build();
+        }
+
         public static Uri buildGenericKeyRingUri(String masterKeyId) {
             return CONTENT_URI.buildUpon().appendPath(masterKeyId).build();
         }
@@ -176,6 +235,12 @@ public class KeychainContract {
                     .appendPath(PATH_BY_EMAIL).appendPath(email).build();
         }
 
+        /** Full text prefix search over user ids and key ids, see KeyRingsSearch */
+        public static Uri buildUnifiedKeyRingsFindByQueryUri(String query) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_FIND)
+                    .appendPath(PATH_BY_QUERY).appendPath(query).build();
+        }
+
         public static Uri buildUnifiedKeyRingsFindBySubkeyUri(long subkey) {
             return CONTENT_URI.buildUpon().appendPath(PATH_FIND)
                     .appendPath(PATH_BY_SUBKEY).appendPath(Long.toString(subkey)).build();
@@ -242,6 +307,22 @@ public class KeychainContract {
             return CONTENT_URI.buildUpon().appendPath(uri.getPathSegments().get(1)).appendPath(PATH_KEYS).build();
         }
 
+        /** Lean lookup of the key row with a specific key id, without the unified join */
+        public static Uri buildKeysFindBySubkeyUri(long subkey) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_FIND).appendPath(PATH_BY_SUBKEY)
+                    .appendPath(Long.toString(subkey)).appendPath(PATH_KEYS).build();
+        }
+
+    }
+
+    public static class KeyRingsSearch implements KeyRingsSearchColumns {
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
+                .appendPath(BASE_KEY_RINGS).build();
+
+        public static Uri buildKeyRingSearchUri(long masterKeyId) {
+            return CONTENT_URI.buildUpon().appendPath(Long.toString(masterKeyId))
+                    .appendPath(PATH_SEARCH).build();
+        }
     }
 
     public static class UpdatedKeys implements UpdatedKeysColumns, BaseColumns {
@@ -252,6 +333,18 @@ public class KeychainContract {
                 = "vnd.android.cursor.dir/vnd.org.sufficientlysecure.keychain.provider.updated_keys";
         public static final String CONTENT_ITEM_TYPE
                 = "vnd.android.cursor.item/vnd.org.sufficientlysecure.keychain.provider.updated_keys";
+
+        public static Uri buildUpdatedKeysUri(long masterKeyId) {
+            return CONTENT_URI.buildUpon().appendPath(Long.toString(masterKeyId)).build();
+        }
+    }
+
+    public static class KeyUsage implements KeyUsageColumns, BaseColumns {
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
+                .appendPath(BASE_KEY_USAGE).build();
+
+        public static final String CONTENT_TYPE
+                = "vnd.android.cursor.dir/vnd.org.sufficientlysecure.keychain.provider.key_usage";
     }
 
     public static class UserPackets implements UserPacketsColumns, BaseColumns {
@@ -291,6 +384,13 @@ public class KeychainContract {
             return CONTENT_URI.buildUpon().appendPath(uri.getPathSegments().get(1)).appendPath(PATH_PHOTO_ATTRIBUTES).build();
         }
 
+        /**
+         * All user ids and user attributes of a keyring, as stored in the user_packets table
+         */
+        public static Uri buildUserPacketsUri(long masterKeyId) {
+            return CONTENT_URI.buildUpon().appendPath(Long.toString(masterKeyId)).appendPath(PATH_USER_PACKETS).build();
+        }
+
     }
 
     public static class ApiApps implements ApiAppsColumns, BaseColumns {
@@ -383,6 +483,15 @@ public class KeychainContract {
                     .appendPath(PATH_CERTS).build();
         }
 
+        /**
+         * All certs of a keyring, for user ids and user attributes alike, as stored in the
+         * certs table
+         */
+        public static Uri buildUserPacketCertsUri(long masterKeyId) {
+            return CONTENT_URI.buildUpon().appendPath(Long.toString(masterKeyId))
+                    .appendPath(PATH_USER_PACKETS).appendPath(PATH_CERTS).build();
+        }
+
         public static Uri buildLinkedIdCertsUri(Uri uri, int rank) {
             return CONTENT_URI.buildUpon().appendPath(uri.getPathSegments().get(1))
                     .appendPath(PATH_LINKED_IDS).appendPath(Integer.toString(rank))
@@ -391,6 +500,20 @@ public class KeychainContract {
 
     }
 
+    public static class VerifiedCerts implements VerifiedCertsColumns, BaseColumns {
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
+                .appendPath(BASE_KEY_RINGS).build();
+
+        /**
+         * Verification results of third-party certificates on a keyring, by the secret
+         * keyrings which issued them
+         */
+        public static Uri buildVerifiedCertsUri(long masterKeyId) {
+            return CONTENT_URI.buildUpon().appendPath(Long.toString(masterKeyId))
+                    .appendPath(PATH_VERIFIED_CERTS).build();
+        }
+    }
+
     private KeychainContract() {
     }
 }
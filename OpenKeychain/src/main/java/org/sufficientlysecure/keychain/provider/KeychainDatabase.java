@@ -18,6 +18,7 @@
 
 package org.sufficientlysecure.keychain.provider;
 
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
@@ -26,16 +27,21 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.provider.BaseColumns;
 
 import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.pgp.KeyRing;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAppsAccountsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAppsAllowedKeysColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAppsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.CertsColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingSummaryColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingsColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingsSearchColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeysColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyUsageColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UpdatedKeysColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPacketsColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.VerifiedCertsColumns;
 import org.sufficientlysecure.keychain.ui.ConsolidateDialogActivity;
 import org.sufficientlysecure.keychain.util.Log;
 
@@ -43,6 +49,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 
 /**
  * SQLite Datatypes (from http://www.sqlite.org/datatype3.html)
@@ -54,7 +61,7 @@ import java.io.IOException;
  */
 public class KeychainDatabase extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "openkeychain.db";
-    private static final int DATABASE_VERSION = 13;
+    private static final int DATABASE_VERSION = 22;
     static Boolean apgHack = false;
     private Context mContext;
 
@@ -63,8 +70,12 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         String KEY_RINGS_SECRET = "keyrings_secret";
         String KEYS = "keys";
         String UPDATED_KEYS = "updated_keys";
+        String KEY_USAGE = "key_usage";
         String USER_PACKETS = "user_packets";
+        String KEY_RINGS_SEARCH = "keyrings_search";
+        String KEY_RING_SUMMARY = "keyring_summary";
         String CERTS = "certs";
+        String VERIFIED_CERTS = "verified_certs";
         String API_APPS = "api_apps";
         String API_ACCOUNTS = "api_accounts";
         String API_ALLOWED_KEYS = "api_allowed_keys";
@@ -73,7 +84,8 @@ public class KeychainDatabase extends SQLiteOpenHelper {
     private static final String CREATE_KEYRINGS_PUBLIC =
             "CREATE TABLE IF NOT EXISTS keyrings_public ("
                 + KeyRingsColumns.MASTER_KEY_ID + " INTEGER PRIMARY KEY,"
-                + KeyRingsColumns.KEY_RING_DATA + " BLOB"
+                + KeyRingsColumns.KEY_RING_DATA + " BLOB,"
+                + KeyRingsColumns.IMPORT_DIGEST + " BLOB"
             + ")";
 
     private static final String CREATE_KEYRINGS_SECRET =
@@ -104,12 +116,22 @@ public class KeychainDatabase extends SQLiteOpenHelper {
 
                 + KeysColumns.CREATION + " INTEGER, "
                 + KeysColumns.EXPIRY + " INTEGER, "
+                + KeysColumns.IS_EXPIRED + " INTEGER DEFAULT 0, "
 
                 + "PRIMARY KEY(" + KeysColumns.MASTER_KEY_ID + ", " + KeysColumns.RANK + "),"
                 + "FOREIGN KEY(" + KeysColumns.MASTER_KEY_ID + ") REFERENCES "
                     + Tables.KEY_RINGS_PUBLIC + "(" + KeyRingsColumns.MASTER_KEY_ID + ") ON DELETE CASCADE"
             + ")";
 
+    private static final String CREATE_KEYS_KEY_ID_INDEX =
+            "CREATE INDEX IF NOT EXISTS keys_key_id_index ON " + Tables.KEYS
+                + " (" + KeysColumns.KEY_ID + ")";
+
+    // serves the lookup of the next expiry, see getNextKeyExpiry
+    private static final String CREATE_KEYS_EXPIRY_INDEX =
+            "CREATE INDEX IF NOT EXISTS keys_expiry_index ON " + Tables.KEYS
+                + " (" + KeysColumns.IS_EXPIRED + ", " + KeysColumns.EXPIRY + ")";
+
     private static final String CREATE_USER_PACKETS =
             "CREATE TABLE IF NOT EXISTS " + Tables.USER_PACKETS + "("
                 + UserPacketsColumns.MASTER_KEY_ID + " INTEGER, "
@@ -120,12 +142,96 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                 + UserPacketsColumns.IS_PRIMARY + " INTEGER, "
                 + UserPacketsColumns.IS_REVOKED + " INTEGER, "
                 + UserPacketsColumns.RANK+ " INTEGER, "
+                + UserPacketsColumns.EMAIL + " TEXT, "
 
                 + "PRIMARY KEY(" + UserPacketsColumns.MASTER_KEY_ID + ", " + UserPacketsColumns.RANK + "), "
                 + "FOREIGN KEY(" + UserPacketsColumns.MASTER_KEY_ID + ") REFERENCES "
                     + Tables.KEY_RINGS_PUBLIC + "(" + KeyRingsColumns.MASTER_KEY_ID + ") ON DELETE CASCADE"
             + ")";
 
+    private static final String CREATE_USER_PACKETS_EMAIL_INDEX =
+            "CREATE INDEX IF NOT EXISTS user_packets_email_index ON " + Tables.USER_PACKETS
+                + " (" + UserPacketsColumns.EMAIL + ")";
+
+    // one row per keyring, with the master key id as docid
+    private static final String CREATE_KEYRINGS_SEARCH =
+            "CREATE VIRTUAL TABLE IF NOT EXISTS " + Tables.KEY_RINGS_SEARCH + " USING fts4("
+                + KeyRingsSearchColumns.PRIMARY_USER_ID + ", "
+                + KeyRingsSearchColumns.USER_IDS + ", "
+                + KeyRingsSearchColumns.KEY_IDS
+            + ")";
+
+    // virtual tables can't have foreign keys, so this replaces ON DELETE CASCADE
+    private static final String CREATE_KEYRINGS_SEARCH_DELETE_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS keyrings_search_delete AFTER DELETE ON "
+                + Tables.KEY_RINGS_PUBLIC + " BEGIN"
+                + " DELETE FROM " + Tables.KEY_RINGS_SEARCH
+                    + " WHERE docid = old." + KeyRingsColumns.MASTER_KEY_ID + ";"
+            + " END";
+
+    private static final String CREATE_KEYRING_SUMMARY =
+            "CREATE TABLE IF NOT EXISTS " + Tables.KEY_RING_SUMMARY + " ("
+                + KeyRingSummaryColumns.MASTER_KEY_ID + " INTEGER PRIMARY KEY, "
+                + KeyRingSummaryColumns.PRIMARY_USER_ID + " TEXT, "
+                + KeyRingSummaryColumns.HAS_ANY_SECRET + " INTEGER, "
+                + KeyRingSummaryColumns.HAS_DUPLICATE_USER_ID + " INTEGER, "
+                + KeyRingSummaryColumns.ENCRYPT_KEY_ID + " INTEGER, "
+                + KeyRingSummaryColumns.SIGN_KEY_ID + " INTEGER, "
+                + KeyRingSummaryColumns.CERTIFY_KEY_ID + " INTEGER, "
+                + KeyRingSummaryColumns.AUTHENTICATE_KEY_ID + " INTEGER, "
+                + "FOREIGN KEY(" + KeyRingSummaryColumns.MASTER_KEY_ID + ") REFERENCES "
+                    + Tables.KEY_RINGS_PUBLIC + "(" + KeyRingsColumns.MASTER_KEY_ID + ") ON DELETE CASCADE"
+            + ")";
+
+    private static final String CREATE_KEYRING_SUMMARY_USER_ID_INDEX =
+            "CREATE INDEX IF NOT EXISTS keyring_summary_user_id_index ON " + Tables.KEY_RING_SUMMARY
+                + " (" + KeyRingSummaryColumns.PRIMARY_USER_ID + ")";
+
+    // computes summary rows from the keys table "m", append a condition to restrict it
+    private static final String INSERT_KEYRING_SUMMARY =
+            "INSERT OR REPLACE INTO " + Tables.KEY_RING_SUMMARY + " ("
+                + KeyRingSummaryColumns.MASTER_KEY_ID + ", "
+                + KeyRingSummaryColumns.PRIMARY_USER_ID + ", "
+                + KeyRingSummaryColumns.HAS_ANY_SECRET + ", "
+                + KeyRingSummaryColumns.ENCRYPT_KEY_ID + ", "
+                + KeyRingSummaryColumns.SIGN_KEY_ID + ", "
+                + KeyRingSummaryColumns.CERTIFY_KEY_ID + ", "
+                + KeyRingSummaryColumns.AUTHENTICATE_KEY_ID
+            + ") SELECT m." + KeysColumns.MASTER_KEY_ID + ", "
+                + "(SELECT " + UserPacketsColumns.USER_ID + " FROM " + Tables.USER_PACKETS
+                    + " WHERE " + UserPacketsColumns.MASTER_KEY_ID + " = m." + KeysColumns.MASTER_KEY_ID
+                    + " AND " + UserPacketsColumns.RANK + " = 0), "
+                + "EXISTS (SELECT 1 FROM " + Tables.KEY_RINGS_SECRET
+                    + " WHERE " + KeyRingsColumns.MASTER_KEY_ID + " = m." + KeysColumns.MASTER_KEY_ID + "), "
+                + selectCapableKey(KeysColumns.CAN_ENCRYPT, false) + ", "
+                + selectCapableKey(KeysColumns.CAN_SIGN, true) + ", "
+                + selectCapableKey(KeysColumns.CAN_CERTIFY, true) + ", "
+                + selectCapableKey(KeysColumns.CAN_AUTHENTICATE, true)
+            + " FROM " + Tables.KEYS + " AS m WHERE m." + KeysColumns.RANK + " = 0";
+
+    // append a condition on keyring_summary to restrict this
+    private static final String UPDATE_KEYRING_SUMMARY_DUPLICATES =
+            "UPDATE " + Tables.KEY_RING_SUMMARY + " SET " + KeyRingSummaryColumns.HAS_DUPLICATE_USER_ID
+                + " = (SELECT COUNT(*) FROM " + Tables.KEY_RING_SUMMARY + " AS dups"
+                    + " WHERE dups." + KeyRingSummaryColumns.PRIMARY_USER_ID
+                        + " = " + Tables.KEY_RING_SUMMARY + "." + KeyRingSummaryColumns.PRIMARY_USER_ID
+                    + " AND dups." + KeyRingSummaryColumns.MASTER_KEY_ID
+                        + " != " + Tables.KEY_RING_SUMMARY + "." + KeyRingSummaryColumns.MASTER_KEY_ID
+                + ")";
+
+    /** Selects the key id of a non-revoked, non-expired key of keyring "m" with the given
+     * capability, or null if there is none.
+     */
+    private static String selectCapableKey(String capability, boolean needsSecret) {
+        return "(SELECT k." + KeysColumns.KEY_ID + " FROM " + Tables.KEYS + " AS k"
+                + " WHERE k." + KeysColumns.MASTER_KEY_ID + " = m." + KeysColumns.MASTER_KEY_ID
+                + " AND k." + KeysColumns.IS_REVOKED + " = 0"
+                + " AND k." + KeysColumns.IS_EXPIRED + " = 0"
+                + " AND k." + capability + " = 1"
+                + (needsSecret ? " AND k." + KeysColumns.HAS_SECRET + " > 1" : "")
+                + " LIMIT 1)";
+    }
+
     private static final String CREATE_CERTS =
             "CREATE TABLE IF NOT EXISTS " + Tables.CERTS + "("
                 + CertsColumns.MASTER_KEY_ID + " INTEGER,"
@@ -146,14 +252,54 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                     + Tables.USER_PACKETS + "(" + UserPacketsColumns.MASTER_KEY_ID + ", " + UserPacketsColumns.RANK + ") ON DELETE CASCADE"
             + ")";
 
+    // results of the verification of certificates issued by our secret keys, so they don't
+    // have to be verified again on every save. see ProviderHelper.TrustedCertVerifier
+    private static final String CREATE_VERIFIED_CERTS =
+            "CREATE TABLE IF NOT EXISTS " + Tables.VERIFIED_CERTS + " ("
+                + VerifiedCertsColumns.MASTER_KEY_ID + " INTEGER, "
+                + VerifiedCertsColumns.KEY_ID_CERTIFIER + " INTEGER, "
+                + VerifiedCertsColumns.DIGEST + " BLOB, "
+                + VerifiedCertsColumns.VERIFIED + " INTEGER, "
+
+                + "PRIMARY KEY(" + VerifiedCertsColumns.MASTER_KEY_ID + ", "
+                    + VerifiedCertsColumns.DIGEST + "), "
+                + "FOREIGN KEY(" + VerifiedCertsColumns.MASTER_KEY_ID + ") REFERENCES "
+                    + Tables.KEY_RINGS_PUBLIC + "(" + KeyRingsColumns.MASTER_KEY_ID + ") ON DELETE CASCADE"
+            + ")";
+
+    private static final String CREATE_VERIFIED_CERTS_CERTIFIER_INDEX =
+            "CREATE INDEX IF NOT EXISTS verified_certs_certifier ON " + Tables.VERIFIED_CERTS
+                + " (" + VerifiedCertsColumns.KEY_ID_CERTIFIER + ")";
+
+    // the certifier is not necessarily in keyrings_secret when the row is written, so this
+    // replaces a foreign key. rows of a deleted secret keyring are dropped with it
+    private static final String CREATE_VERIFIED_CERTS_DELETE_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS verified_certs_delete AFTER DELETE ON "
+                + Tables.KEY_RINGS_SECRET + " BEGIN"
+                + " DELETE FROM " + Tables.VERIFIED_CERTS
+                    + " WHERE " + VerifiedCertsColumns.KEY_ID_CERTIFIER
+                    + " = old." + KeyRingsColumns.MASTER_KEY_ID + ";"
+            + " END";
+
     private static final String CREATE_UPDATE_KEYS =
             "CREATE TABLE IF NOT EXISTS " + Tables.UPDATED_KEYS + " ("
                     + UpdatedKeysColumns.MASTER_KEY_ID + " INTEGER PRIMARY KEY, "
                     + UpdatedKeysColumns.LAST_UPDATED + " INTEGER, "
+                    + UpdatedKeysColumns.ETAG + " TEXT, "
+                    + UpdatedKeysColumns.LAST_MODIFIED + " TEXT, "
+                    + UpdatedKeysColumns.CONTENT_DIGEST + " BLOB, "
                     + "FOREIGN KEY(" + UpdatedKeysColumns.MASTER_KEY_ID + ") REFERENCES "
                     + Tables.KEY_RINGS_PUBLIC + "(" + KeyRingsColumns.MASTER_KEY_ID + ") ON DELETE CASCADE"
                     + ")";
 
+    private static final String CREATE_KEY_USAGE =
+            "CREATE TABLE IF NOT EXISTS " + Tables.KEY_USAGE + " ("
+                    + KeyUsageColumns.MASTER_KEY_ID + " INTEGER PRIMARY KEY, "
+                    + KeyUsageColumns.LAST_USED + " INTEGER, "
+                    + "FOREIGN KEY(" + KeyUsageColumns.MASTER_KEY_ID + ") REFERENCES "
+                    + Tables.KEY_RINGS_PUBLIC + "(" + KeyRingsColumns.MASTER_KEY_ID + ") ON DELETE CASCADE"
+                    + ")";
+
     private static final String CREATE_API_APPS =
             "CREATE TABLE IF NOT EXISTS " + Tables.API_APPS + " ("
                 + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
@@ -214,9 +360,20 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         db.execSQL(CREATE_KEYRINGS_PUBLIC);
         db.execSQL(CREATE_KEYRINGS_SECRET);
         db.execSQL(CREATE_KEYS);
+        db.execSQL(CREATE_KEYS_KEY_ID_INDEX);
+        db.execSQL(CREATE_KEYS_EXPIRY_INDEX);
         db.execSQL(CREATE_USER_PACKETS);
+        db.execSQL(CREATE_USER_PACKETS_EMAIL_INDEX);
+        db.execSQL(CREATE_KEYRINGS_SEARCH);
+        db.execSQL(CREATE_KEYRINGS_SEARCH_DELETE_TRIGGER);
+        db.execSQL(CREATE_KEYRING_SUMMARY);
+        db.execSQL(CREATE_KEYRING_SUMMARY_USER_ID_INDEX);
         db.execSQL(CREATE_CERTS);
+        db.execSQL(CREATE_VERIFIED_CERTS);
+        db.execSQL(CREATE_VERIFIED_CERTS_CERTIFIER_INDEX);
+        db.execSQL(CREATE_VERIFIED_CERTS_DELETE_TRIGGER);
         db.execSQL(CREATE_UPDATE_KEYS);
+        db.execSQL(CREATE_KEY_USAGE);
         db.execSQL(CREATE_API_APPS);
         db.execSQL(CREATE_API_APPS_ACCOUNTS);
         db.execSQL(CREATE_API_APPS_ALLOWED_KEYS);
@@ -291,12 +448,52 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                 db.execSQL("DELETE FROM api_accounts WHERE key_id BETWEEN 0 AND 3");
             case 12:
                 db.execSQL(CREATE_UPDATE_KEYS);
-                if (oldVersion == 10) {
-                    // no consolidate if we are updating from 10, we're just here for
-                    // the api_accounts fix and the new update keys table
-                    return;
-                }
             case 13:
+                // index for lookups by subkey id
+                db.execSQL(CREATE_KEYS_KEY_ID_INDEX);
+            case 14:
+                // indexed email column for lookups by email
+                addColumnIfMissing(db, Tables.USER_PACKETS, "email TEXT");
+                db.execSQL(CREATE_USER_PACKETS_EMAIL_INDEX);
+                backfillUserPacketEmails(db);
+            case 15:
+                // full text search, the index is filled by consolidate. this means we
+                // consolidate for all upgrades now, even from 10, 13 and 14
+                db.execSQL(CREATE_KEYRINGS_SEARCH);
+                db.execSQL(CREATE_KEYRINGS_SEARCH_DELETE_TRIGGER);
+            case 16:
+                // materialized keyring summary, created below along with the expiry state
+                // it depends on
+                // fall through
+            case 17:
+                // stored expiry state, and the materialized keyring summary based on it.
+                // these are computed right away since the unified query depends on them
+                addColumnIfMissing(db, Tables.KEYS, "is_expired INTEGER DEFAULT 0");
+                db.execSQL(CREATE_KEYS_EXPIRY_INDEX);
+                db.execSQL("DROP TABLE IF EXISTS " + Tables.KEY_RING_SUMMARY);
+                db.execSQL(CREATE_KEYRING_SUMMARY);
+                db.execSQL(CREATE_KEYRING_SUMMARY_USER_ID_INDEX);
+                db.execSQL("UPDATE " + Tables.KEYS + " SET " + KeysColumns.IS_EXPIRED + " = ("
+                        + KeysColumns.EXPIRY + " IS NOT NULL AND " + KeysColumns.EXPIRY
+                        + " <= " + System.currentTimeMillis() / 1000 + ")");
+                updateKeyRingSummary(db, null);
+            case 18:
+                // digest of the last imported keyring, for the early-out on re-import
+                addColumnIfMissing(db, Tables.KEY_RINGS_PUBLIC, "import_digest BLOB");
+            case 19:
+                // verification results of certificates by our secret keys
+                db.execSQL(CREATE_VERIFIED_CERTS);
+                db.execSQL(CREATE_VERIFIED_CERTS_CERTIFIER_INDEX);
+                db.execSQL(CREATE_VERIFIED_CERTS_DELETE_TRIGGER);
+            case 20:
+                // validators of the last keyserver response, for conditional keyserver updates
+                addColumnIfMissing(db, Tables.UPDATED_KEYS, "etag TEXT");
+                addColumnIfMissing(db, Tables.UPDATED_KEYS, "last_modified TEXT");
+                addColumnIfMissing(db, Tables.UPDATED_KEYS, "content_digest BLOB");
+            case 21:
+                // last use of keys, to prioritize them in keyserver syncs
+                db.execSQL(CREATE_KEY_USAGE);
+            case 22:
                 // do nothing here, just consolidate
 
         }
@@ -308,6 +505,156 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         mContext.getApplicationContext().startActivity(consolidateIntent);
     }
 
+    /** Adds a column to a table, unless a column of that name exists already. Upgrades
+     * from beta versions may find columns which a later version added.
+     *
+     * @param definition the column name followed by its type and constraints
+     */
+    private static void addColumnIfMissing(SQLiteDatabase db, String table, String definition) {
+        String column = definition.split(" ", 2)[0];
+        Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            int nameIndex = cursor.getColumnIndexOrThrow("name");
+            while (cursor.moveToNext()) {
+                if (column.equals(cursor.getString(nameIndex))) {
+                    return;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        db.execSQL("ALTER TABLE " + table + " ADD COLUMN " + definition);
+    }
+
+    /** (Re-)computes the keyring_summary row of a keyring from the keys, user_packets and
+     * keyrings_secret tables, or of all keyrings if masterKeyId is null. This also updates
+     * the duplicate flag of all keyrings with the same primary user id.
+     */
+    static void updateKeyRingSummary(SQLiteDatabase db, Long masterKeyId) {
+        db.beginTransaction();
+        try {
+            if (masterKeyId == null) {
+                db.execSQL(INSERT_KEYRING_SUMMARY);
+                db.execSQL(UPDATE_KEYRING_SUMMARY_DUPLICATES);
+            } else {
+                // the primary user id may have changed, so update duplicates of the old one too
+                String oldPrimaryUserId = getSummaryPrimaryUserId(db, masterKeyId);
+                String[] args = new String[] { Long.toString(masterKeyId) };
+                db.execSQL(INSERT_KEYRING_SUMMARY
+                        + " AND m." + KeysColumns.MASTER_KEY_ID + " = ?", args);
+                db.execSQL(UPDATE_KEYRING_SUMMARY_DUPLICATES
+                        + " WHERE " + KeyRingSummaryColumns.PRIMARY_USER_ID + " = ("
+                            + "SELECT " + KeyRingSummaryColumns.PRIMARY_USER_ID
+                            + " FROM " + Tables.KEY_RING_SUMMARY
+                            + " WHERE " + KeyRingSummaryColumns.MASTER_KEY_ID + " = ?)", args);
+                if (oldPrimaryUserId != null) {
+                    updateKeyRingSummaryDuplicates(db, oldPrimaryUserId);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /** Updates the duplicate flag of all keyrings with the given primary user id. This is
+     * needed after a keyring was deleted, since its summary is deleted with it.
+     */
+    static void updateKeyRingSummaryDuplicates(SQLiteDatabase db, String primaryUserId) {
+        db.execSQL(UPDATE_KEYRING_SUMMARY_DUPLICATES
+                + " WHERE " + KeyRingSummaryColumns.PRIMARY_USER_ID + " = ?",
+                new String[] { primaryUserId });
+    }
+
+    /** Marks all keys which expired by now as expired, and updates the summaries of their
+     * keyrings. The alarm for the next expiry is scheduled by KeyExpiryReceiver.
+     *
+     * @return the number of keyrings which had keys expire
+     */
+    int updateExpiryState(SQLiteDatabase db) {
+        long now = System.currentTimeMillis() / 1000;
+        String selection = KeysColumns.IS_EXPIRED + " = 0 AND "
+                + KeysColumns.EXPIRY + " IS NOT NULL AND " + KeysColumns.EXPIRY + " <= ?";
+        String[] args = new String[] { Long.toString(now) };
+
+        ArrayList<Long> masterKeyIds = new ArrayList<>();
+        db.beginTransaction();
+        try {
+            Cursor cursor = db.query(true, Tables.KEYS, new String[] { KeysColumns.MASTER_KEY_ID },
+                    selection, args, null, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    masterKeyIds.add(cursor.getLong(0));
+                }
+            } finally {
+                cursor.close();
+            }
+
+            if (!masterKeyIds.isEmpty()) {
+                ContentValues values = new ContentValues();
+                values.put(KeysColumns.IS_EXPIRED, 1);
+                db.update(Tables.KEYS, values, selection, args);
+                for (long masterKeyId : masterKeyIds) {
+                    updateKeyRingSummary(db, masterKeyId);
+                }
+                Log.d(Constants.TAG, "keys of " + masterKeyIds.size() + " keyrings expired");
+            }
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        KeyExpiryReceiver.scheduleNextExpiry(mContext, getNextKeyExpiry(db));
+        return masterKeyIds.size();
+    }
+
+    /** Returns the time of the next key expiry in seconds, or null if no key will expire */
+    static Long getNextKeyExpiry(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT MIN(" + KeysColumns.EXPIRY + ") FROM " + Tables.KEYS
+                + " WHERE " + KeysColumns.IS_EXPIRED + " = 0", null);
+        try {
+            return cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getLong(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /** Returns the primary user id stored in the summary of a keyring, or null if there is none */
+    static String getSummaryPrimaryUserId(SQLiteDatabase db, long masterKeyId) {
+        Cursor cursor = db.query(Tables.KEY_RING_SUMMARY,
+                new String[] { KeyRingSummaryColumns.PRIMARY_USER_ID },
+                KeyRingSummaryColumns.MASTER_KEY_ID + " = ?",
+                new String[] { Long.toString(masterKeyId) }, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /** Fills the email column for all existing user ids, see KeyRing.extractEmail */
+    private static void backfillUserPacketEmails(SQLiteDatabase db) {
+        Cursor cursor = db.query(Tables.USER_PACKETS, new String[] { "oid", UserPacketsColumns.USER_ID },
+                UserPacketsColumns.USER_ID + " IS NOT NULL", null, null, null, null);
+        if (cursor == null) {
+            return;
+        }
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            while (cursor.moveToNext()) {
+                values.put(UserPacketsColumns.EMAIL, KeyRing.extractEmail(cursor.getString(1)));
+                db.update(Tables.USER_PACKETS, values, "oid = ?",
+                        new String[] { Long.toString(cursor.getLong(0)) });
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            cursor.close();
+        }
+    }
+
     @Override
     public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         // NOTE: downgrading the database is explicitly not allowed to prevent
@@ -466,6 +813,8 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         getWritableDatabase().execSQL("delete from " + Tables.API_ACCOUNTS);
         getWritableDatabase().execSQL("delete from " + Tables.API_ALLOWED_KEYS);
         getWritableDatabase().execSQL("delete from " + Tables.API_APPS);
+        // this bypasses the provider, so make sure no stale keyrings are kept around
+        KeyRingCache.getInstance(mContext).invalidateAll();
     }
 
 }
@@ -21,7 +21,10 @@
 package org.sufficientlysecure.keychain.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
@@ -38,18 +41,25 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAllowedKeys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiApps;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingSummaryColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingsSearch;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyUsage;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UpdatedKeys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPacketsColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.VerifiedCerts;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+import org.sufficientlysecure.keychain.service.KeyExpiryReceiver;
 import org.sufficientlysecure.keychain.util.Log;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 
 public class KeychainProvider extends ContentProvider {
 
@@ -57,6 +67,7 @@ public class KeychainProvider extends ContentProvider {
     private static final int KEY_RINGS_PUBLIC = 102;
     private static final int KEY_RINGS_SECRET = 103;
     private static final int KEY_RINGS_USER_IDS = 104;
+    private static final int KEY_RINGS_EXPIRY = 105;
 
     private static final int KEY_RING_UNIFIED = 200;
     private static final int KEY_RING_KEYS = 201;
@@ -68,6 +79,11 @@ public class KeychainProvider extends ContentProvider {
     private static final int KEY_RING_LINKED_IDS = 207;
     private static final int KEY_RING_LINKED_ID_CERTS = 208;
     private static final int KEY_RING_PHOTO_ATTRIBUTES = 209;
+    private static final int KEY_RING_SEARCH = 210;
+    private static final int KEY_RING_SUMMARY = 211;
+    private static final int KEY_RING_USER_PACKETS = 212;
+    private static final int KEY_RING_USER_PACKET_CERTS = 213;
+    private static final int KEY_RING_VERIFIED_CERTS = 214;
 
     private static final int API_APPS = 301;
     private static final int API_APPS_BY_PACKAGE_NAME = 302;
@@ -77,9 +93,12 @@ public class KeychainProvider extends ContentProvider {
 
     private static final int KEY_RINGS_FIND_BY_EMAIL = 400;
     private static final int KEY_RINGS_FIND_BY_SUBKEY = 401;
+    private static final int KEYS_FIND_BY_SUBKEY = 402;
+    private static final int KEY_RINGS_FIND_BY_QUERY = 403;
 
     private static final int UPDATED_KEYS = 500;
     private static final int UPDATED_KEYS_SPECIFIC = 501;
+    private static final int KEY_USAGE = 502;
 
     protected UriMatcher mUriMatcher;
 
@@ -100,6 +119,7 @@ public class KeychainProvider extends ContentProvider {
          * key_rings/public
          * key_rings/secret
          * key_rings/user_ids
+         * key_rings/expiry
          * </pre>
          */
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS
@@ -114,12 +134,17 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS
                         + "/" + KeychainContract.PATH_USER_IDS,
                 KEY_RINGS_USER_IDS);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS
+                        + "/" + KeychainContract.PATH_EXPIRY,
+                KEY_RINGS_EXPIRY);
 
         /**
          * find by criteria other than master key id
          *
          * key_rings/find/email/_
          * key_rings/find/subkey/_
+         * key_rings/find/subkey/_/keys
+         * key_rings/find/query/_
          *
          */
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
@@ -128,6 +153,13 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
                 + KeychainContract.PATH_FIND + "/" + KeychainContract.PATH_BY_SUBKEY + "/*",
                 KEY_RINGS_FIND_BY_SUBKEY);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                + KeychainContract.PATH_FIND + "/" + KeychainContract.PATH_BY_SUBKEY + "/*/"
+                + KeychainContract.PATH_KEYS,
+                KEYS_FIND_BY_SUBKEY);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                + KeychainContract.PATH_FIND + "/" + KeychainContract.PATH_BY_QUERY + "/*",
+                KEY_RINGS_FIND_BY_QUERY);
 
         /**
          * list key_ring specifics
@@ -143,6 +175,11 @@ public class KeychainProvider extends ContentProvider {
          * key_rings/_/secret
          * key_rings/_/certs
          * key_rings/_/certs/_/_
+         * key_rings/_/search
+         * key_rings/_/summary
+         * key_rings/_/user_packets
+         * key_rings/_/user_packets/certs
+         * key_rings/_/verified_certs
          * </pre>
          */
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
@@ -176,6 +213,21 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
                         + KeychainContract.PATH_CERTS + "/*/*",
                 KEY_RING_CERTS_SPECIFIC);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
+                        + KeychainContract.PATH_SEARCH,
+                KEY_RING_SEARCH);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
+                        + KeychainContract.PATH_SUMMARY,
+                KEY_RING_SUMMARY);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
+                        + KeychainContract.PATH_USER_PACKETS,
+                KEY_RING_USER_PACKETS);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
+                        + KeychainContract.PATH_USER_PACKETS + "/" + KeychainContract.PATH_CERTS,
+                KEY_RING_USER_PACKET_CERTS);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
+                        + KeychainContract.PATH_VERIFIED_CERTS,
+                KEY_RING_VERIFIED_CERTS);
 
         /**
          * API apps
@@ -207,11 +259,21 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_UPDATED_KEYS, UPDATED_KEYS);
         matcher.addURI(authority, KeychainContract.BASE_UPDATED_KEYS + "/*", UPDATED_KEYS_SPECIFIC);
 
+        /**
+         * to access table containing last used dates of keys
+         */
+        matcher.addURI(authority, KeychainContract.BASE_KEY_USAGE, KEY_USAGE);
+
         return matcher;
     }
 
     private KeychainDatabase mKeychainDatabase;
 
+    // uris changed by the batch running on the current thread, notified after it is committed
+    private final ThreadLocal<HashSet<Uri>> mBatchChanges = new ThreadLocal<>();
+    // keyrings whose summary is outdated by updates in the batch running on the current thread
+    private final ThreadLocal<HashSet<Long>> mBatchSummaries = new ThreadLocal<>();
+
     /**
      * {@inheritDoc}
      */
@@ -227,6 +289,78 @@ public class KeychainProvider extends ContentProvider {
         return mKeychainDatabase;
     }
 
+    /**
+     * Applies all operations in a single transaction. Observers are notified once per changed
+     * uri after the transaction is committed, not once per operation.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = getDb().getWritableDatabase();
+
+        HashSet<Uri> changes = new HashSet<>();
+        HashSet<Long> summaries = new HashSet<>();
+        ContentProviderResult[] results;
+        db.beginTransaction();
+        mBatchChanges.set(changes);
+        mBatchSummaries.set(summaries);
+        try {
+            results = super.applyBatch(operations);
+            for (long masterKeyId : summaries) {
+                KeychainDatabase.updateKeyRingSummary(db, masterKeyId);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            mBatchChanges.remove();
+            mBatchSummaries.remove();
+            db.endTransaction();
+        }
+
+        for (Uri uri : changes) {
+            notifyChange(uri);
+        }
+        return results;
+    }
+
+    /**
+     * Inserts all values in a single transaction, see applyBatch.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        final SQLiteDatabase db = getDb().getWritableDatabase();
+
+        HashSet<Uri> changes = new HashSet<>();
+        int count;
+        db.beginTransaction();
+        mBatchChanges.set(changes);
+        try {
+            count = super.bulkInsert(uri, values);
+            db.setTransactionSuccessful();
+        } finally {
+            mBatchChanges.remove();
+            db.endTransaction();
+        }
+
+        for (Uri changedUri : changes) {
+            notifyChange(changedUri);
+        }
+        return count;
+    }
+
+    /**
+     * Invalidates cached keyrings and notifies observers of a change, or defers both until
+     * the end of the batch if one is running on this thread.
+     */
+    private void notifyChange(Uri uri) {
+        HashSet<Uri> batchChanges = mBatchChanges.get();
+        if (batchChanges != null) {
+            batchChanges.add(uri);
+            return;
+        }
+        KeyRingCache.getInstance(getContext()).invalidate(uri);
+        getContext().getContentResolver().notifyChange(uri, null);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -238,6 +372,7 @@ public class KeychainProvider extends ContentProvider {
                 return KeyRings.CONTENT_ITEM_TYPE;
 
             case KEY_RING_KEYS:
+            case KEYS_FIND_BY_SUBKEY:
                 return Keys.CONTENT_TYPE;
 
             case KEY_RING_USER_IDS:
@@ -251,6 +386,9 @@ public class KeychainProvider extends ContentProvider {
             case UPDATED_KEYS_SPECIFIC:
                 return UpdatedKeys.CONTENT_ITEM_TYPE;
 
+            case KEY_USAGE:
+                return KeyUsage.CONTENT_TYPE;
+
             case API_APPS:
                 return ApiApps.CONTENT_TYPE;
 
@@ -290,7 +428,8 @@ public class KeychainProvider extends ContentProvider {
             case KEY_RING_UNIFIED:
             case KEY_RINGS_UNIFIED:
             case KEY_RINGS_FIND_BY_EMAIL:
-            case KEY_RINGS_FIND_BY_SUBKEY: {
+            case KEY_RINGS_FIND_BY_SUBKEY:
+            case KEY_RINGS_FIND_BY_QUERY: {
                 HashMap<String, String> projectionMap = new HashMap<>();
                 projectionMap.put(KeyRings._ID, Tables.KEYS + ".oid AS _id");
                 projectionMap.put(KeyRings.MASTER_KEY_ID, Tables.KEYS + "." + Keys.MASTER_KEY_ID);
@@ -307,14 +446,9 @@ public class KeychainProvider extends ContentProvider {
                 projectionMap.put(KeyRings.ALGORITHM, Tables.KEYS + "." + Keys.ALGORITHM);
                 projectionMap.put(KeyRings.FINGERPRINT, Tables.KEYS + "." + Keys.FINGERPRINT);
                 projectionMap.put(KeyRings.USER_ID, Tables.USER_PACKETS + "." + UserPackets.USER_ID);
-                projectionMap.put(KeyRings.HAS_DUPLICATE_USER_ID,
-                        "(SELECT COUNT (*) FROM " + Tables.USER_PACKETS + " AS dups"
-                                + " WHERE dups." + UserPackets.MASTER_KEY_ID
-                                    + " != " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " AND dups." + UserPackets.RANK + " = 0"
-                                + " AND dups." + UserPackets.USER_ID
-                                    + " = "+ Tables.USER_PACKETS + "." + UserPackets.USER_ID
-                                + ") AS " + KeyRings.HAS_DUPLICATE_USER_ID);
+                // these are materialized in keyring_summary, see KeychainDatabase
+                projectionMap.put(KeyRings.HAS_DUPLICATE_USER_ID, Tables.KEY_RING_SUMMARY + "."
+                        + KeyRingSummaryColumns.HAS_DUPLICATE_USER_ID + " AS " + KeyRings.HAS_DUPLICATE_USER_ID);
                 projectionMap.put(KeyRings.VERIFIED, KeyRings.VERIFIED);
                 projectionMap.put(KeyRings.PUBKEY_DATA,
                         Tables.KEY_RINGS_PUBLIC + "." + KeyRingData.KEY_RING_DATA
@@ -323,20 +457,32 @@ public class KeychainProvider extends ContentProvider {
                         Tables.KEY_RINGS_SECRET + "." + KeyRingData.KEY_RING_DATA
                                 + " AS " + KeyRings.PRIVKEY_DATA);
                 projectionMap.put(KeyRings.HAS_SECRET, Tables.KEYS + "." + KeyRings.HAS_SECRET);
-                projectionMap.put(KeyRings.HAS_ANY_SECRET,
-                    "(EXISTS (SELECT * FROM " + Tables.KEY_RINGS_SECRET
-                        + " WHERE " + Tables.KEY_RINGS_SECRET + "." + KeyRingData.MASTER_KEY_ID
-                            + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                        + ")) AS " + KeyRings.HAS_ANY_SECRET);
-                projectionMap.put(KeyRings.HAS_ENCRYPT,
-                        "kE." + Keys.KEY_ID + " AS " + KeyRings.HAS_ENCRYPT);
-                projectionMap.put(KeyRings.HAS_SIGN,
-                        "kS." + Keys.KEY_ID + " AS " + KeyRings.HAS_SIGN);
-                projectionMap.put(KeyRings.HAS_CERTIFY,
-                        "kC." + Keys.KEY_ID + " AS " + KeyRings.HAS_CERTIFY);
-                projectionMap.put(KeyRings.IS_EXPIRED,
-                        "(" + Tables.KEYS + "." + Keys.EXPIRY + " IS NOT NULL AND " + Tables.KEYS + "." + Keys.EXPIRY
-                                + " < " + new Date().getTime() / 1000 + ") AS " + KeyRings.IS_EXPIRED);
+                projectionMap.put(KeyRings.HAS_ANY_SECRET, Tables.KEY_RING_SUMMARY + "."
+                        + KeyRingSummaryColumns.HAS_ANY_SECRET + " AS " + KeyRings.HAS_ANY_SECRET);
+                projectionMap.put(KeyRings.HAS_ENCRYPT, Tables.KEY_RING_SUMMARY + "."
+                        + KeyRingSummaryColumns.ENCRYPT_KEY_ID + " AS " + KeyRings.HAS_ENCRYPT);
+                projectionMap.put(KeyRings.HAS_SIGN, Tables.KEY_RING_SUMMARY + "."
+                        + KeyRingSummaryColumns.SIGN_KEY_ID + " AS " + KeyRings.HAS_SIGN);
+                projectionMap.put(KeyRings.HAS_CERTIFY, Tables.KEY_RING_SUMMARY + "."
+                        + KeyRingSummaryColumns.CERTIFY_KEY_ID + " AS " + KeyRings.HAS_CERTIFY);
+                projectionMap.put(KeyRings.HAS_AUTHENTICATE, Tables.KEY_RING_SUMMARY + "."
+                        + KeyRingSummaryColumns.AUTHENTICATE_KEY_ID + " AS " + KeyRings.HAS_AUTHENTICATE);
+                // expiry state is stored, see KeyExpiryReceiver
+                projectionMap.put(KeyRings.IS_EXPIRED, Tables.KEYS + "." + Keys.IS_EXPIRED);
+                // matches in the primary user id rank before matches in other user ids or key ids
+                String searchMatch = null, primarySearchMatch = null;
+                if (match == KEY_RINGS_FIND_BY_QUERY) {
+                    searchMatch = buildSearchMatch(uri.getLastPathSegment(), null);
+                    primarySearchMatch = buildSearchMatch(uri.getLastPathSegment(),
+                            KeyRingsSearch.PRIMARY_USER_ID);
+                }
+                projectionMap.put(KeyRings.SEARCH_RANK, primarySearchMatch == null
+                        ? "0 AS " + KeyRings.SEARCH_RANK
+                        : "(" + Tables.KEYS + "." + Keys.MASTER_KEY_ID + " IN ("
+                                + " SELECT docid FROM " + Tables.KEY_RINGS_SEARCH
+                                + " WHERE " + Tables.KEY_RINGS_SEARCH + " MATCH "
+                                    + DatabaseUtils.sqlEscapeString(primarySearchMatch)
+                            + ")) AS " + KeyRings.SEARCH_RANK);
                 qb.setProjectionMap(projectionMap);
 
                 if (projection == null) {
@@ -374,45 +520,11 @@ public class KeychainProvider extends ContentProvider {
                                 + " = "
                                     + Tables.KEY_RINGS_SECRET + "." + KeyRingData.MASTER_KEY_ID
                                 + ")" : "")
-                        + (plist.contains(KeyRings.HAS_ENCRYPT) ?
-                            " LEFT JOIN " + Tables.KEYS + " AS kE ON ("
-                                +"kE." + Keys.MASTER_KEY_ID
-                                    + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " AND kE." + Keys.IS_REVOKED + " = 0"
-                                + " AND kE." + Keys.CAN_ENCRYPT + " = 1"
-                                + " AND ( kE." + Keys.EXPIRY + " IS NULL OR kE." + Keys.EXPIRY
-                                    + " >= " + new Date().getTime() / 1000 + " )"
-                            + ")" : "")
-                        + (plist.contains(KeyRings.HAS_SIGN) ?
-                            " LEFT JOIN " + Tables.KEYS + " AS kS ON ("
-                                +"kS." + Keys.MASTER_KEY_ID
-                                    + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " AND kS." + Keys.IS_REVOKED + " = 0"
-                                + " AND kS." + Keys.CAN_SIGN + " = 1"
-                                + " AND kS." + Keys.HAS_SECRET + " > 1"
-                                + " AND ( kS." + Keys.EXPIRY + " IS NULL OR kS." + Keys.EXPIRY
-                                    + " >= " + new Date().getTime() / 1000 + " )"
-                            + ")" : "")
-                        + (plist.contains(KeyRings.HAS_AUTHENTICATE) ?
-                            " LEFT JOIN " + Tables.KEYS + " AS kA ON ("
-                                    +"kA." + Keys.MASTER_KEY_ID
-                                    + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                    + " AND kA." + Keys.IS_REVOKED + " = 0"
-                                    + " AND kA." + Keys.CAN_AUTHENTICATE + " = 1"
-                                    + " AND kA." + Keys.HAS_SECRET + " > 1"
-                                    + " AND ( kA." + Keys.EXPIRY + " IS NULL OR kA." + Keys.EXPIRY
-                                    + " >= " + new Date().getTime() / 1000 + " )"
-                                    + ")" : "")
-                        + (plist.contains(KeyRings.HAS_CERTIFY) ?
-                            " LEFT JOIN " + Tables.KEYS + " AS kC ON ("
-                                +"kC." + Keys.MASTER_KEY_ID
-                                + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " AND kC." + Keys.IS_REVOKED + " = 0"
-                                + " AND kC." + Keys.CAN_CERTIFY + " = 1"
-                                + " AND kC." + Keys.HAS_SECRET + " > 1"
-                                + " AND ( kC." + Keys.EXPIRY + " IS NULL OR kC." + Keys.EXPIRY
-                                + " >= " + new Date().getTime() / 1000 + " )"
-                                + ")" : "")
+                        + " LEFT JOIN " + Tables.KEY_RING_SUMMARY + " ON ("
+                                    + Tables.KEYS + "." + Keys.MASTER_KEY_ID
+                                + " = "
+                                    + Tables.KEY_RING_SUMMARY + "." + KeyRingSummaryColumns.MASTER_KEY_ID
+                                + ")"
                     );
                 qb.appendWhere(Tables.KEYS + "." + Keys.RANK + " = 0");
                 // in case there are multiple verifying certificates
@@ -439,30 +551,48 @@ public class KeychainProvider extends ContentProvider {
                         }
                         break;
                     }
+                    case KEY_RINGS_FIND_BY_QUERY: {
+                        // a query without any searchable words matches everything
+                        if (searchMatch != null) {
+                            qb.appendWhere(" AND " + Tables.KEYS + "." + Keys.MASTER_KEY_ID + " IN ("
+                                + " SELECT docid FROM " + Tables.KEY_RINGS_SEARCH
+                                    + " WHERE " + Tables.KEY_RINGS_SEARCH + " MATCH "
+                                        + DatabaseUtils.sqlEscapeString(searchMatch)
+                                + ")");
+                        }
+                        break;
+                    }
                     case KEY_RINGS_FIND_BY_EMAIL: {
                         String chunks[] = uri.getLastPathSegment().split(" *, *");
                         boolean gotCondition = false;
                         String emailWhere = "";
-                        // JAVA ♥
-                        for (int i = 0; i < chunks.length; ++i) {
-                            if (chunks[i].length() == 0) {
+                        for (String chunk : chunks) {
+                            if (chunk.length() == 0) {
                                 continue;
                             }
-                            if (i != 0) {
-                                emailWhere += " OR ";
+                            if (gotCondition) {
+                                emailWhere += ", ";
                             }
-                            emailWhere += "tmp." + UserPackets.USER_ID + " LIKE ";
-                            // match '*<email>', so it has to be at the *end* of the user id
-                            emailWhere += DatabaseUtils.sqlEscapeString("%<" + chunks[i] + ">");
+                            // the email column is lower-case, see KeyRing.extractEmail
+                            emailWhere += DatabaseUtils.sqlEscapeString(
+                                    chunk.trim().toLowerCase(Locale.ENGLISH));
                             gotCondition = true;
                         }
                         if(gotCondition) {
-                            qb.appendWhere(" AND EXISTS ("
-                                + " SELECT 1 FROM " + Tables.USER_PACKETS + " AS tmp"
-                                    + " WHERE tmp." + UserPackets.MASTER_KEY_ID
-                                            + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                        + " AND (" + emailWhere + ")"
-                                + ")");
+                            // joined on the email index, so sqlite can drive this from it
+                            qb.setTables(qb.getTables()
+                                    + " INNER JOIN " + Tables.USER_PACKETS + " AS emails ON ("
+                                        + "emails." + UserPackets.MASTER_KEY_ID
+                                        + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
+                                        + " AND emails." + UserPackets.EMAIL + " IN (" + emailWhere + ")"
+                                    + ")");
+                            // if requested, one row per key and matching email instead of per key
+                            if (plist.contains(KeyRings.EMAIL)) {
+                                projectionMap.put(KeyRings.EMAIL,
+                                        "emails." + UserPackets.EMAIL + " AS " + KeyRings.EMAIL);
+                                qb.setProjectionMap(projectionMap);
+                                groupBy += ", emails." + UserPackets.EMAIL;
+                            }
                         } else {
                             // TODO better way to do this?
                             Log.e(Constants.TAG, "Malformed find by email query!");
@@ -482,7 +612,8 @@ public class KeychainProvider extends ContentProvider {
                 break;
             }
 
-            case KEY_RING_KEYS: {
+            case KEY_RING_KEYS:
+            case KEYS_FIND_BY_SUBKEY: {
                 HashMap<String, String> projectionMap = new HashMap<>();
                 projectionMap.put(Keys._ID, Tables.KEYS + ".oid AS _id");
                 projectionMap.put(Keys.MASTER_KEY_ID, Tables.KEYS + "." + Keys.MASTER_KEY_ID);
@@ -498,13 +629,27 @@ public class KeychainProvider extends ContentProvider {
                 projectionMap.put(Keys.HAS_SECRET, Keys.HAS_SECRET);
                 projectionMap.put(Keys.CREATION, Keys.CREATION);
                 projectionMap.put(Keys.EXPIRY, Keys.EXPIRY);
+                projectionMap.put(Keys.IS_EXPIRED, Keys.IS_EXPIRED);
                 projectionMap.put(Keys.ALGORITHM, Keys.ALGORITHM);
                 projectionMap.put(Keys.FINGERPRINT, Keys.FINGERPRINT);
                 qb.setProjectionMap(projectionMap);
 
                 qb.setTables(Tables.KEYS);
-                qb.appendWhere(Keys.MASTER_KEY_ID + " = ");
-                qb.appendWhereEscapeString(uri.getPathSegments().get(1));
+                if (match == KEYS_FIND_BY_SUBKEY) {
+                    // this is served by the key_id index, no joins involved
+                    try {
+                        String subkey = Long.valueOf(uri.getPathSegments().get(3)).toString();
+                        qb.appendWhere(Keys.KEY_ID + " = " + subkey);
+                    } catch (NumberFormatException e) {
+                        Log.e(Constants.TAG, "Malformed find by subkey query!", e);
+                        qb.appendWhere("0");
+                    }
+                    // uri to watch is all /key_rings/
+                    uri = KeyRings.CONTENT_URI;
+                } else {
+                    qb.appendWhere(Keys.MASTER_KEY_ID + " = ");
+                    qb.appendWhereEscapeString(uri.getPathSegments().get(1));
+                }
 
                 break;
             }
@@ -570,6 +715,7 @@ public class KeychainProvider extends ContentProvider {
                 projectionMap.put(KeyRingData._ID, Tables.KEY_RINGS_PUBLIC + ".oid AS _id");
                 projectionMap.put(KeyRingData.MASTER_KEY_ID, KeyRingData.MASTER_KEY_ID);
                 projectionMap.put(KeyRingData.KEY_RING_DATA, KeyRingData.KEY_RING_DATA);
+                projectionMap.put(KeyRingData.IMPORT_DIGEST, KeyRingData.IMPORT_DIGEST);
                 qb.setProjectionMap(projectionMap);
 
                 qb.setTables(Tables.KEY_RINGS_PUBLIC);
@@ -656,6 +802,28 @@ public class KeychainProvider extends ContentProvider {
                 break;
             }
 
+            case KEY_RING_USER_PACKETS:
+            case KEY_RING_USER_PACKET_CERTS: {
+                // plain rows of the table, without joins or filtering by type
+                qb.setTables(match == KEY_RING_USER_PACKETS ? Tables.USER_PACKETS : Tables.CERTS);
+                qb.appendWhere(UserPackets.MASTER_KEY_ID + " = ");
+                qb.appendWhereEscapeString(uri.getPathSegments().get(1));
+
+                if (TextUtils.isEmpty(sortOrder)) {
+                    sortOrder = UserPackets.RANK + " ASC";
+                }
+
+                break;
+            }
+
+            case KEY_RING_VERIFIED_CERTS: {
+                qb.setTables(Tables.VERIFIED_CERTS);
+                qb.appendWhere(VerifiedCerts.MASTER_KEY_ID + " = ");
+                qb.appendWhereEscapeString(uri.getPathSegments().get(1));
+
+                break;
+            }
+
             case UPDATED_KEYS:
             case UPDATED_KEYS_SPECIFIC: {
                 HashMap<String, String> projectionMap = new HashMap<>();
@@ -664,6 +832,12 @@ public class KeychainProvider extends ContentProvider {
                         + UpdatedKeys.MASTER_KEY_ID);
                 projectionMap.put(UpdatedKeys.LAST_UPDATED, Tables.UPDATED_KEYS + "."
                         + UpdatedKeys.LAST_UPDATED);
+                projectionMap.put(UpdatedKeys.ETAG, Tables.UPDATED_KEYS + "."
+                        + UpdatedKeys.ETAG);
+                projectionMap.put(UpdatedKeys.LAST_MODIFIED, Tables.UPDATED_KEYS + "."
+                        + UpdatedKeys.LAST_MODIFIED);
+                projectionMap.put(UpdatedKeys.CONTENT_DIGEST, Tables.UPDATED_KEYS + "."
+                        + UpdatedKeys.CONTENT_DIGEST);
                 qb.setProjectionMap(projectionMap);
                 if (match == UPDATED_KEYS_SPECIFIC) {
                     qb.appendWhere(UpdatedKeys.MASTER_KEY_ID + " = ");
@@ -672,6 +846,11 @@ public class KeychainProvider extends ContentProvider {
                 break;
             }
 
+            case KEY_USAGE: {
+                qb.setTables(Tables.KEY_USAGE);
+                break;
+            }
+
             case API_APPS: {
                 qb.setTables(Tables.API_APPS);
 
@@ -761,8 +940,11 @@ public class KeychainProvider extends ContentProvider {
                     break;
                 }
                 case KEY_RING_SECRET: {
-                    db.insertOrThrow(Tables.KEY_RINGS_SECRET, null, values);
+                    // the old secret keyring is not deleted when its public keyring is updated
+                    db.replaceOrThrow(Tables.KEY_RINGS_SECRET, null, values);
                     keyId = values.getAsLong(KeyRings.MASTER_KEY_ID);
+                    KeychainDatabase.updateKeyRingSummary(db, keyId);
+                    notifyChange(KeyRingData.buildSecretKeyRingUri(keyId));
                     break;
                 }
                 case KEY_RING_KEYS: {
@@ -770,7 +952,8 @@ public class KeychainProvider extends ContentProvider {
                     keyId = values.getAsLong(Keys.MASTER_KEY_ID);
                     break;
                 }
-                case KEY_RING_USER_IDS: {
+                case KEY_RING_USER_IDS:
+                case KEY_RING_USER_PACKETS: {
                     // iff TYPE is null, user_id MUST be null as well
                     if (!(values.get(UserPacketsColumns.TYPE) == null
                             ? (values.get(UserPacketsColumns.USER_ID) != null && values.get(UserPacketsColumns.ATTRIBUTE_DATA) == null)
@@ -785,6 +968,28 @@ public class KeychainProvider extends ContentProvider {
                     keyId = values.getAsLong(UserPackets.MASTER_KEY_ID);
                     break;
                 }
+                case KEY_RING_SEARCH: {
+                    keyId = Long.parseLong(uri.getPathSegments().get(1));
+                    // fts tables don't support conflict resolution on the docid
+                    db.delete(Tables.KEY_RINGS_SEARCH, "docid = ?", new String[] { Long.toString(keyId) });
+                    values.put("docid", keyId);
+                    db.insertOrThrow(Tables.KEY_RINGS_SEARCH, null, values);
+                    break;
+                }
+                case KEY_RING_SUMMARY: {
+                    // values are ignored, the summary is computed from the other tables
+                    keyId = Long.parseLong(uri.getPathSegments().get(1));
+                    KeychainDatabase.updateKeyRingSummary(db, keyId);
+                    // this includes all updates of the batch so far
+                    HashSet<Long> batchSummaries = mBatchSummaries.get();
+                    if (batchSummaries != null) {
+                        batchSummaries.remove(keyId);
+                    }
+                    // the new keys may expire before the scheduled expiry
+                    KeyExpiryReceiver.scheduleNextExpiry(getContext(),
+                            KeychainDatabase.getNextKeyExpiry(db));
+                    break;
+                }
                 case KEY_RING_CERTS: {
                     // we replace here, keeping only the latest signature
                     // TODO this would be better handled in savePublicKeyRing directly!
@@ -792,12 +997,22 @@ public class KeychainProvider extends ContentProvider {
                     keyId = values.getAsLong(Certs.MASTER_KEY_ID);
                     break;
                 }
+                case KEY_RING_VERIFIED_CERTS: {
+                    // a newer result for the same digest is just as good
+                    db.replaceOrThrow(Tables.VERIFIED_CERTS, null, values);
+                    break;
+                }
                 case UPDATED_KEYS: {
                     long updatedKeyId = db.replace(Tables.UPDATED_KEYS, null, values);
                     rowUri = UpdatedKeys.CONTENT_URI.buildUpon().appendPath("" + updatedKeyId)
                             .build();
                     break;
                 }
+                case KEY_USAGE: {
+                    // fails quietly for keys which are not in the database (anymore)
+                    db.replace(Tables.KEY_USAGE, null, values);
+                    break;
+                }
                 case API_APPS: {
                     db.insertOrThrow(Tables.API_APPS, null, values);
                     break;
@@ -831,7 +1046,7 @@ public class KeychainProvider extends ContentProvider {
             }
 
             // notify of changes in db
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
 
         } catch (SQLiteConstraintException e) {
             Log.d(Constants.TAG, "Constraint exception on insert! Entry already existing?", e);
@@ -864,11 +1079,28 @@ public class KeychainProvider extends ContentProvider {
                 if (!TextUtils.isEmpty(additionalSelection)) {
                     selection += " AND (" + additionalSelection + ")";
                 }
-                // corresponding keys and userIds are deleted by ON DELETE CASCADE
+                long masterKeyId = Long.parseLong(uri.getPathSegments().get(1));
+                String primaryUserId = KeychainDatabase.getSummaryPrimaryUserId(db, masterKeyId);
+                // corresponding keys, userIds and summary are deleted by ON DELETE CASCADE
                 count = db.delete(Tables.KEY_RINGS_PUBLIC, selection, selectionArgs);
+                if (count > 0 && primaryUserId != null) {
+                    KeychainDatabase.updateKeyRingSummaryDuplicates(db, primaryUserId);
+                }
                 uri = KeyRings.buildGenericKeyRingUri(uri.getPathSegments().get(1));
                 break;
             }
+            case KEY_RING_KEYS:
+            case KEY_RING_USER_PACKETS:
+            case KEY_RING_CERTS: {
+                String table = match == KEY_RING_KEYS ? Tables.KEYS
+                        : match == KEY_RING_USER_PACKETS ? Tables.USER_PACKETS : Tables.CERTS;
+                long masterKeyId = Long.parseLong(uri.getPathSegments().get(1));
+                // certs of deleted user packets are deleted by ON DELETE CASCADE
+                count = db.delete(table, buildKeyRingSelection(masterKeyId, additionalSelection),
+                        selectionArgs);
+                uri = KeyRings.buildGenericKeyRingUri(masterKeyId);
+                break;
+            }
             case KEY_RING_SECRET: {
                 @SuppressWarnings("ConstantConditions") // ensured by uriMatcher above
                 String selection  = KeyRings.MASTER_KEY_ID + " = " + uri.getPathSegments().get(1);
@@ -876,6 +1108,11 @@ public class KeychainProvider extends ContentProvider {
                     selection += " AND (" + additionalSelection + ")";
                 }
                 count = db.delete(Tables.KEY_RINGS_SECRET, selection, selectionArgs);
+                if (count > 0) {
+                    KeychainDatabase.updateKeyRingSummary(db,
+                            Long.parseLong(uri.getPathSegments().get(1)));
+                    notifyChange(KeyRingData.buildSecretKeyRingUri(uri));
+                }
                 uri = KeyRings.buildGenericKeyRingUri(uri.getPathSegments().get(1));
                 break;
             }
@@ -901,7 +1138,7 @@ public class KeychainProvider extends ContentProvider {
         }
 
         // notify of changes in db
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
 
         return count;
     }
@@ -919,18 +1156,37 @@ public class KeychainProvider extends ContentProvider {
         try {
             final int match = mUriMatcher.match(uri);
             switch (match) {
-                case KEY_RING_KEYS: {
-                    if (values.size() != 1 || !values.containsKey(Keys.HAS_SECRET)) {
-                        throw new UnsupportedOperationException(
-                                "Only has_secret column may be updated!");
-                    }
+                case KEY_RING_PUBLIC:
+                case KEY_RING_KEYS:
+                case KEY_RING_USER_PACKETS:
+                case KEY_RING_CERTS: {
+                    String table = match == KEY_RING_PUBLIC ? Tables.KEY_RINGS_PUBLIC
+                            : match == KEY_RING_KEYS ? Tables.KEYS
+                            : match == KEY_RING_USER_PACKETS ? Tables.USER_PACKETS : Tables.CERTS;
                     // make sure we get a long value here
-                    Long mkid = Long.parseLong(uri.getPathSegments().get(1));
-                    String actualSelection = Keys.MASTER_KEY_ID + " = " + Long.toString(mkid);
-                    if (!TextUtils.isEmpty(selection)) {
-                        actualSelection += " AND (" + selection + ")";
+                    long mkid = Long.parseLong(uri.getPathSegments().get(1));
+                    count = db.update(table, values, buildKeyRingSelection(mkid, selection),
+                            selectionArgs);
+                    // the summary is computed from keys and user_packets, so any change there
+                    // updates it. in a batch, this happens once at its end
+                    if (match == KEY_RING_KEYS || match == KEY_RING_USER_PACKETS) {
+                        HashSet<Long> batchSummaries = mBatchSummaries.get();
+                        if (batchSummaries != null) {
+                            batchSummaries.add(mkid);
+                        } else {
+                            KeychainDatabase.updateKeyRingSummary(db, mkid);
+                        }
+                    }
+                    if (match == KEY_RING_KEYS && values.containsKey(Keys.HAS_SECRET)) {
+                        notifyChange(KeyRingData.buildSecretKeyRingUri(mkid));
                     }
-                    count = db.update(Tables.KEYS, values, actualSelection, selectionArgs);
+                    uri = KeyRings.buildGenericKeyRingUri(mkid);
+                    break;
+                }
+                case KEY_RINGS_EXPIRY: {
+                    // values are ignored, expiry is checked against the current time
+                    count = getDb().updateExpiryState(db);
+                    uri = KeyRings.CONTENT_URI;
                     break;
                 }
                 case API_APPS_BY_PACKAGE_NAME: {
@@ -949,7 +1205,7 @@ public class KeychainProvider extends ContentProvider {
             }
 
             // notify of changes in db
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
 
         } catch (SQLiteConstraintException e) {
             Log.d(Constants.TAG, "Constraint exception on update! Entry already existing?", e);
@@ -958,6 +1214,48 @@ public class KeychainProvider extends ContentProvider {
         return count;
     }
 
+    /**
+     * Builds the selection for the rows of a single keyring, in any of the tables which have
+     * a master_key_id column, combined with an optional additional selection.
+     */
+    private static String buildKeyRingSelection(long masterKeyId, String selection) {
+        String result = KeyRings.MASTER_KEY_ID + " = " + Long.toString(masterKeyId);
+        if (!TextUtils.isEmpty(selection)) {
+            result += " AND (" + selection + ")";
+        }
+        return result;
+    }
+
+    /**
+     * Builds an fts MATCH expression for a search query, which matches all rows that contain
+     * a word starting with each word in the query. The query is split into words the same
+     * way the simple fts tokenizer splits indexed text, so punctuation in the query (like
+     * the @ in an email address) doesn't need special treatment, and can't be used to inject
+     * fts query syntax. A leading 0x is stripped from words, to allow searching for key ids.
+     *
+     * @param column restrict matches to this column, or null for all columns
+     * @return the match expression, or null if the query doesn't contain any words
+     */
+    static String buildSearchMatch(String query, String column) {
+        StringBuilder result = new StringBuilder();
+        for (String word : query.toLowerCase(Locale.ENGLISH).split("[^\\p{L}\\p{N}]+")) {
+            if (word.startsWith("0x") && word.length() > 2) {
+                word = word.substring(2);
+            }
+            if (word.isEmpty()) {
+                continue;
+            }
+            if (result.length() > 0) {
+                result.append(' ');
+            }
+            if (column != null) {
+                result.append(column).append(':');
+            }
+            result.append(word).append('*');
+        }
+        return result.length() > 0 ? result.toString() : null;
+    }
+
     /**
      * Build default selection statement for API apps. If no extra selection is specified only build
      * where clause with rowId
@@ -28,8 +28,10 @@ import android.net.Uri;
 import android.os.RemoteException;
 import android.support.annotation.NonNull;
 import android.support.v4.util.LongSparseArray;
+import android.text.TextUtils;
 
 import org.spongycastle.bcpg.CompressionAlgorithmTags;
+import org.spongycastle.bcpg.PacketTags;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
@@ -38,12 +40,14 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.ParcelableFileCache.IteratorWithSize;
 import org.sufficientlysecure.keychain.util.Preferences;
+import org.sufficientlysecure.keychain.keyimport.KeyserverValidators;
 import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
 import org.sufficientlysecure.keychain.operations.ImportOperation;
 import org.sufficientlysecure.keychain.operations.results.ConsolidateResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedKeyRing;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKey;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey;
@@ -56,14 +60,19 @@ import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.pgp.UncachedPublicKey;
 import org.sufficientlysecure.keychain.pgp.WrappedSignature;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
+import org.sufficientlysecure.keychain.pgp.exception.PgpKeyNotFoundException;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAllowedKeys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiApps;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingsSearch;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyUsage;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UpdatedKeys;
+import org.sufficientlysecure.keychain.provider.KeychainContract.VerifiedCerts;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.remote.AccountSettings;
 import org.sufficientlysecure.keychain.remote.AppSettings;
 import org.sufficientlysecure.keychain.util.IterableIterator;
@@ -75,15 +84,26 @@ import org.sufficientlysecure.keychain.util.Utf8Util;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -97,6 +117,13 @@ import java.util.concurrent.TimeUnit;
  * method is called to start a new one specifically.
  */
 public class ProviderHelper {
+    // stays well below the 999 host parameters sqlite allows per statement
+    private static final int BULK_QUERY_SIZE = 500;
+
+    private static final int PARSE_THREADS = Runtime.getRuntime().availableProcessors();
+    // parses keyrings for bulk queries, shared by all instances
+    private static ThreadPoolExecutor sParseExecutor;
+
     private final Context mContext;
     private final ContentResolver mContentResolver;
     private OperationLog mLog;
@@ -218,7 +245,27 @@ public class ProviderHelper {
         return getGenericData(KeyRings.buildUnifiedKeyRingUri(masterKeyId), proj, types);
     }
 
+    /** Returns the master key ids of all keys whose certifications are trusted, which are
+     * those we have a secret key for.
+     */
+    public HashSet<Long> getTrustedMasterKeyIds() {
+        LongSparseArray<CanonicalizedPublicKey> trustedKeys = getTrustedMasterKeys();
+        HashSet<Long> result = new HashSet<>(trustedKeys.size());
+        for (int i = 0; i < trustedKeys.size(); i++) {
+            result.add(trustedKeys.keyAt(i));
+        }
+        return result;
+    }
+
     private LongSparseArray<CanonicalizedPublicKey> getTrustedMasterKeys() {
+        // this is needed for every saved keyring, but only changes with the secret keyrings
+        KeyRingCache cache = getKeyRingCache();
+        LongSparseArray<CanonicalizedPublicKey> cached = cache.getTrustedKeys();
+        if (cached != null) {
+            return cached;
+        }
+        long cacheGeneration = cache.getTrustedKeysGeneration();
+
         Cursor cursor = mContentResolver.query(KeyRings.buildUnifiedKeyRingsUri(), new String[]{
                 KeyRings.MASTER_KEY_ID,
                 // we pick from cache only information that is not easily available from keyrings
@@ -240,6 +287,7 @@ public class ProviderHelper {
                 }
             } while (cursor.moveToNext());
 
+            cache.putTrustedKeys(result, cacheGeneration);
             return result;
 
         } finally {
@@ -250,9 +298,13 @@ public class ProviderHelper {
 
     }
 
+    /**
+     * Returns the master key id of the keyring containing the given subkey. This is a lean
+     * lookup on the key_id index, which doesn't involve the unified keyring query.
+     */
     public long getMasterKeyId(long subKeyId) throws NotFoundException {
-        return (Long) getGenericData(KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(subKeyId),
-                KeyRings.MASTER_KEY_ID, FIELD_TYPE_INTEGER);
+        return (Long) getGenericData(Keys.buildKeysFindBySubkeyUri(subKeyId),
+                Keys.MASTER_KEY_ID, FIELD_TYPE_INTEGER);
     }
 
     public CachedPublicKeyRing getCachedPublicKeyRing(Uri queryUri) {
@@ -264,7 +316,7 @@ public class ProviderHelper {
     }
 
     public CanonicalizedPublicKeyRing getCanonicalizedPublicKeyRing(long id) throws NotFoundException {
-        return (CanonicalizedPublicKeyRing) getCanonicalizedKeyRing(KeyRings.buildUnifiedKeyRingUri(id), false);
+        return (CanonicalizedPublicKeyRing) getCanonicalizedKeyRing(id, false);
     }
 
     public CanonicalizedPublicKeyRing getCanonicalizedPublicKeyRing(Uri queryUri) throws NotFoundException {
@@ -272,14 +324,184 @@ public class ProviderHelper {
     }
 
     public CanonicalizedSecretKeyRing getCanonicalizedSecretKeyRing(long id) throws NotFoundException {
-        return (CanonicalizedSecretKeyRing) getCanonicalizedKeyRing(KeyRings.buildUnifiedKeyRingUri(id), true);
+        return (CanonicalizedSecretKeyRing) getCanonicalizedKeyRing(id, true);
     }
 
     public CanonicalizedSecretKeyRing getCanonicalizedSecretKeyRing(Uri queryUri) throws NotFoundException {
         return (CanonicalizedSecretKeyRing) getCanonicalizedKeyRing(queryUri, true);
     }
 
-    private KeyRing getCanonicalizedKeyRing(Uri queryUri, boolean secret) throws NotFoundException {
+    /**
+     * Retrieves the public keyring containing the given subkey. Unlike a query on
+     * KeyRings.buildUnifiedKeyRingsFindBySubkeyUri, this resolves the master key id
+     * through the key_id index first, so the keyring can be served from the cache.
+     */
+    public CanonicalizedPublicKeyRing getCanonicalizedPublicKeyRingBySubkeyId(long subKeyId)
+            throws NotFoundException {
+        return getCanonicalizedPublicKeyRing(getMasterKeyId(subKeyId));
+    }
+
+    /** Like getCanonicalizedPublicKeyRingBySubkeyId, but for secret keyrings. */
+    public CanonicalizedSecretKeyRing getCanonicalizedSecretKeyRingBySubkeyId(long subKeyId)
+            throws NotFoundException {
+        return getCanonicalizedSecretKeyRing(getMasterKeyId(subKeyId));
+    }
+
+    /**
+     * Retrieves a number of public keyrings at once. Keyrings which are not in the cache are
+     * loaded with a single query per BULK_QUERY_SIZE ids, and parsed in parallel. This is
+     * much faster than one getCanonicalizedPublicKeyRing call per key for larger numbers of
+     * keys, e.g. when encrypting to all members of a mailing list.
+     *
+     * @param brokenMasterKeyIds the ids of keyrings which are in the database, but could not
+     *                           be parsed, are added to this list
+     * @return the keyrings by master key id. Ids which are not in the database or could not be
+     *         parsed are missing from the result, so callers can tell which keys are unknown.
+     */
+    public LongSparseArray<CanonicalizedPublicKeyRing> getCanonicalizedPublicKeyRings(
+            long[] masterKeyIds, List<Long> brokenMasterKeyIds) {
+        LongSparseArray<CanonicalizedPublicKeyRing> result = new LongSparseArray<>();
+        KeyRingCache cache = getKeyRingCache();
+        long cacheGeneration = cache.getGeneration();
+
+        ArrayList<Long> uncachedIds = new ArrayList<>();
+        for (long masterKeyId : masterKeyIds) {
+            CanonicalizedPublicKeyRing ring =
+                    (CanonicalizedPublicKeyRing) cache.get(masterKeyId, false);
+            if (ring != null) {
+                result.put(masterKeyId, ring);
+            } else if (!uncachedIds.contains(masterKeyId)) {
+                uncachedIds.add(masterKeyId);
+            }
+        }
+        if (uncachedIds.isEmpty()) {
+            return result;
+        }
+
+        // query all blobs first, so the cursor isn't held open while parsing
+        final ArrayList<Long> ids = new ArrayList<>();
+        final ArrayList<byte[]> blobs = new ArrayList<>();
+        final ArrayList<Integer> verifieds = new ArrayList<>();
+        for (int offset = 0; offset < uncachedIds.size(); offset += BULK_QUERY_SIZE) {
+            List<Long> chunk = uncachedIds.subList(offset,
+                    Math.min(offset + BULK_QUERY_SIZE, uncachedIds.size()));
+            String[] selectionArgs = new String[chunk.size()];
+            for (int i = 0; i < selectionArgs.length; i++) {
+                selectionArgs[i] = Long.toString(chunk.get(i));
+            }
+            // generates ?,?,? as placeholders for selectionArgs
+            String selection = Tables.KEYS + "." + KeyRings.MASTER_KEY_ID
+                    + " IN (" + TextUtils.join(",", Collections.nCopies(chunk.size(), "?")) + ")";
+
+            Cursor cursor = mContentResolver.query(KeyRings.buildUnifiedKeyRingsUri(),
+                    new String[]{ KeyRings.MASTER_KEY_ID, KeyRings.VERIFIED, KeyRings.PUBKEY_DATA },
+                    selection, selectionArgs, null);
+            if (cursor == null) {
+                continue;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    ids.add(cursor.getLong(0));
+                    verifieds.add(cursor.getInt(1));
+                    blobs.add(cursor.getBlob(2));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        if (blobs.isEmpty()) {
+            return result;
+        }
+
+        ThreadPoolExecutor executor = getParseExecutor();
+        ArrayList<Future<CanonicalizedPublicKeyRing>> futures = new ArrayList<>();
+        try {
+            for (int i = 0; i < blobs.size(); i++) {
+                final byte[] blob = blobs.get(i);
+                final int verified = verifieds.get(i);
+                futures.add(executor.submit(new Callable<CanonicalizedPublicKeyRing>() {
+                    @Override
+                    public CanonicalizedPublicKeyRing call() {
+                        return new CanonicalizedPublicKeyRing(blob, verified);
+                    }
+                }));
+            }
+
+            for (int i = 0; i < futures.size(); i++) {
+                CanonicalizedPublicKeyRing ring;
+                try {
+                    ring = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    Log.e(Constants.TAG, "error parsing keyring in bulk query", e);
+                    brokenMasterKeyIds.add(ids.get(i));
+                    continue;
+                } catch (InterruptedException e) {
+                    Log.e(Constants.TAG, "interrupted while parsing keyrings in bulk query", e);
+                    Thread.currentThread().interrupt();
+                    brokenMasterKeyIds.addAll(ids.subList(i, ids.size()));
+                    break;
+                }
+                cache.put(ring.getMasterKeyId(), false, ring, blobs.get(i).length, cacheGeneration);
+                result.put(ring.getMasterKeyId(), ring);
+            }
+        } finally {
+            // nothing is left to cancel, unless we were interrupted
+            for (Future<CanonicalizedPublicKeyRing> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        return result;
+    }
+
+    private static synchronized ThreadPoolExecutor getParseExecutor() {
+        if (sParseExecutor == null) {
+            sParseExecutor = new ThreadPoolExecutor(PARSE_THREADS, PARSE_THREADS, 10, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "ProviderHelperParser");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            // don't keep threads around between bulk queries
+            sParseExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sParseExecutor;
+    }
+
+    public KeyRingCache getKeyRingCache() {
+        return KeyRingCache.getInstance(mContext);
+    }
+
+    private CanonicalizedKeyRing getCanonicalizedKeyRing(Uri queryUri, boolean secret) throws NotFoundException {
+        // queries for a specific unified keyring can be served from the cache
+        List<String> segments = queryUri.getPathSegments();
+        if (segments.size() == 3 && KeychainContract.PATH_UNIFIED.equals(segments.get(2))) {
+            try {
+                return getCanonicalizedKeyRing(Long.parseLong(segments.get(1)), secret);
+            } catch (NumberFormatException e) {
+                // not a master key id, just query normally
+            }
+        }
+        return queryCanonicalizedKeyRing(queryUri, secret, null, 0);
+    }
+
+    private CanonicalizedKeyRing getCanonicalizedKeyRing(long masterKeyId, boolean secret)
+            throws NotFoundException {
+        KeyRingCache cache = getKeyRingCache();
+        CanonicalizedKeyRing ring = cache.get(masterKeyId, secret);
+        if (ring != null) {
+            return ring;
+        }
+        return queryCanonicalizedKeyRing(KeyRings.buildUnifiedKeyRingUri(masterKeyId), secret,
+                cache, cache.getGeneration());
+    }
+
+    /** Queries and parses a keyring. If cache is non-null, the result is put into it. */
+    private CanonicalizedKeyRing queryCanonicalizedKeyRing(Uri queryUri, boolean secret,
+            KeyRingCache cache, long cacheGeneration) throws NotFoundException {
         Cursor cursor = mContentResolver.query(queryUri,
                 new String[]{
                         // we pick from cache only information that is not easily available from keyrings
@@ -297,9 +519,13 @@ public class ProviderHelper {
                 if (secret & !hasAnySecret) {
                     throw new NotFoundException("Secret key not available!");
                 }
-                return secret
+                CanonicalizedKeyRing ring = secret
                         ? new CanonicalizedSecretKeyRing(blob, true, verified)
                         : new CanonicalizedPublicKeyRing(blob, verified);
+                if (cache != null) {
+                    cache.put(ring.getMasterKeyId(), secret, ring, blob.length, cacheGeneration);
+                }
+                return ring;
             } else {
                 throw new NotFoundException("Key not found!");
             }
@@ -337,49 +563,78 @@ public class ProviderHelper {
     /**
      * Saves an UncachedKeyRing of the public variant into the db.
      * <p/>
-     * This method will not delete all previous data for this masterKeyId from the database prior
-     * to inserting. All public data is effectively re-inserted, secret keyrings are left deleted
-     * and need to be saved externally to be preserved past the operation.
+     * If there is a previous version of this keyring in the database, only the rows which
+     * differ from it are written. Rows of the secret keyring are left untouched, and need to be
+     * saved externally if its data changed as well.
      */
-    @SuppressWarnings("unchecked")
     private int saveCanonicalizedPublicKeyRing(CanonicalizedPublicKeyRing keyRing,
                                                Progressable progress, boolean selfCertsAreTrusted) {
+        PreparedKeyRing prepared =
+                prepareCanonicalizedPublicKeyRing(keyRing, progress, selfCertsAreTrusted, null, null);
+        if (prepared == null) {
+            return SaveKeyringResult.RESULT_ERROR;
+        }
+        try {
+            log(LogType.MSG_IP_APPLY_BATCH);
+            progress.setProgress(LogType.MSG_IP_APPLY_BATCH.getMsgId(), 75, 100);
+            mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, prepared.mOperations);
+            return onPublicKeyRingWritten(prepared);
+        } catch (RemoteException e) {
+            log(LogType.MSG_IP_ERROR_REMOTE_EX);
+            Log.e(Constants.TAG, "RemoteException during import", e);
+            return SaveKeyringResult.RESULT_ERROR;
+        } catch (OperationApplicationException e) {
+            log(LogType.MSG_IP_ERROR_OP_EXC);
+            Log.e(Constants.TAG, "OperationApplicationException during import", e);
+            return SaveKeyringResult.RESULT_ERROR;
+        }
+    }
 
-        // start with ok result
-        int result = SaveKeyringResult.SAVED_PUBLIC;
+    /**
+     * Builds the database operations to save a canonicalized public keyring, without applying
+     * them. See saveCanonicalizedPublicKeyRing.
+     *
+     * @return the prepared keyring, or null if there was an error
+     */
+    @SuppressWarnings("unchecked")
+    private PreparedKeyRing prepareCanonicalizedPublicKeyRing(CanonicalizedPublicKeyRing keyRing,
+            Progressable progress, boolean selfCertsAreTrusted,
+            CanonicalizedSecretKeyRing secretRing, byte[] importDigest) {
 
         long masterKeyId = keyRing.getMasterKeyId();
         UncachedPublicKey masterKey = keyRing.getPublicKey();
 
-        ArrayList<ContentProviderOperation> operations;
+        // rows for all keys and userIds included in keyRing object, to be written to the database
+        ContentValues keyRingRow = new ContentValues();
+        ArrayList<ContentValues> keyRows = new ArrayList<>();
+        ArrayList<ContentValues> userPacketRows = new ArrayList<>();
+        ArrayList<ContentValues> certRows = new ArrayList<>();
+        ArrayList<ContentValues> verifiedCertRows;
+        ContentProviderOperation searchIndexOperation;
         try {
 
             log(LogType.MSG_IP_PREPARE);
             mIndent += 1;
 
-            // save all keys and userIds included in keyRing object in database
-            operations = new ArrayList<>();
-
             log(LogType.MSG_IP_INSERT_KEYRING);
             { // insert keyring
-                ContentValues values = new ContentValues();
-                values.put(KeyRingData.MASTER_KEY_ID, masterKeyId);
+                keyRingRow.put(KeyRingData.MASTER_KEY_ID, masterKeyId);
                 try {
-                    values.put(KeyRingData.KEY_RING_DATA, keyRing.getEncoded());
+                    keyRingRow.put(KeyRingData.KEY_RING_DATA, keyRing.getEncoded());
                 } catch (IOException e) {
                     log(LogType.MSG_IP_ENCODE_FAIL);
-                    return SaveKeyringResult.RESULT_ERROR;
+                    return null;
+                }
+                // if this is not an import, the digest of the last import stays valid
+                if (importDigest != null) {
+                    keyRingRow.put(KeyRingData.IMPORT_DIGEST, importDigest);
                 }
-
-                Uri uri = KeyRingData.buildPublicKeyRingUri(masterKeyId);
-                operations.add(ContentProviderOperation.newInsert(uri).withValues(values).build());
             }
 
             log(LogType.MSG_IP_INSERT_SUBKEYS);
             progress.setProgress(LogType.MSG_IP_INSERT_SUBKEYS.getMsgId(), 40, 100);
             mIndent += 1;
             { // insert subkeys
-                Uri uri = Keys.buildKeysUri(masterKeyId);
                 int rank = 0;
                 for (CanonicalizedPublicKey key : keyRing.publicKeyIterator()) {
                     long keyId = key.getKeyId();
@@ -425,6 +680,7 @@ public class ProviderHelper {
                     Date expiryDate = key.getExpiryTime();
                     if (expiryDate != null) {
                         values.put(Keys.EXPIRY, expiryDate.getTime() / 1000);
+                        values.put(Keys.IS_EXPIRED, key.isExpired());
                         if (key.isExpired()) {
                             log(keyId == masterKeyId ?
                                             LogType.MSG_IP_MASTER_EXPIRED : LogType.MSG_IP_SUBKEY_EXPIRED,
@@ -434,9 +690,13 @@ public class ProviderHelper {
                                             LogType.MSG_IP_MASTER_EXPIRES : LogType.MSG_IP_SUBKEY_EXPIRES,
                                     expiryDate.toString());
                         }
+                    } else {
+                        // explicitly, so an expiry removed from the stored row is noticed
+                        values.putNull(Keys.EXPIRY);
+                        values.put(Keys.IS_EXPIRED, false);
                     }
 
-                    operations.add(ContentProviderOperation.newInsert(uri).withValues(values).build());
+                    keyRows.add(values);
                     ++rank;
                     mIndent -= 1;
                 }
@@ -445,6 +705,8 @@ public class ProviderHelper {
 
             // get a list of owned secret keys, for verification filtering
             LongSparseArray<CanonicalizedPublicKey> trustedKeys = getTrustedMasterKeys();
+            TrustedCertVerifier trustedCertVerifier =
+                    new TrustedCertVerifier(masterKeyId, masterKey, trustedKeys.size() > 0);
 
             // classify and order user ids. primary are moved to the front, revoked to the back,
             // otherwise the order in the keyfile is preserved.
@@ -497,9 +759,8 @@ public class ProviderHelper {
                     CanonicalizedPublicKey trustedKey = trustedKeys.get(certId);
 
                     try {
-                        cert.init(trustedKey);
                         // if it doesn't certify, leave a note and skip
-                        if (!cert.verifySignature(masterKey, rawUserId)) {
+                        if (!trustedCertVerifier.verify(trustedKey, cert, rawUserId)) {
                             log(LogType.MSG_IP_UID_CERT_BAD);
                             continue;
                         }
@@ -597,9 +858,8 @@ public class ProviderHelper {
                     CanonicalizedPublicKey trustedKey = trustedKeys.get(certId);
 
                     try {
-                        cert.init(trustedKey);
                         // if it doesn't certify, leave a note and skip
-                        if (!cert.verifySignature(masterKey, userAttribute)) {
+                        if (!trustedCertVerifier.verify(trustedKey, cert, userAttribute)) {
                             log(LogType.MSG_IP_UAT_CERT_BAD);
                             continue;
                         }
@@ -642,6 +902,10 @@ public class ProviderHelper {
             }
             mIndent -= 1;
 
+            if (trustedCertVerifier.mStoredResultsUsed > 0) {
+                log(LogType.MSG_IP_CERTS_VERIFIED_EARLIER, trustedCertVerifier.mStoredResultsUsed);
+            }
+
             progress.setProgress(LogType.MSG_IP_UID_REORDER.getMsgId(), 65, 100);
             log(LogType.MSG_IP_UID_REORDER);
             // primary before regular before revoked (see UserIdItem.compareTo)
@@ -650,10 +914,10 @@ public class ProviderHelper {
             // iterate and put into db
             for (int userIdRank = 0; userIdRank < uids.size(); userIdRank++) {
                 UserPacketItem item = uids.get(userIdRank);
-                operations.add(buildUserIdOperations(masterKeyId, item, userIdRank));
+                userPacketRows.add(buildUserPacketValues(masterKeyId, item, userIdRank));
 
                 if (item.selfRevocation != null) {
-                    operations.add(buildCertOperations(masterKeyId, userIdRank, item.selfRevocation,
+                    certRows.add(buildCertValues(masterKeyId, userIdRank, item.selfRevocation,
                             Certs.VERIFIED_SELF));
                     // don't bother with trusted certs if the uid is revoked, anyways
                     continue;
@@ -663,7 +927,7 @@ public class ProviderHelper {
                     throw new AssertionError("User ids MUST be self-certified at this point!!");
                 }
 
-                operations.add(buildCertOperations(masterKeyId, userIdRank, item.selfCert,
+                certRows.add(buildCertValues(masterKeyId, userIdRank, item.selfCert,
                         selfCertsAreTrusted ? Certs.VERIFIED_SECRET : Certs.VERIFIED_SELF));
 
                 // iterate over signatures
@@ -674,79 +938,85 @@ public class ProviderHelper {
                         // don't further process it
                         continue;
                     }
-                    // otherwise, build database operation
-                    operations.add(buildCertOperations(
+                    // otherwise, build database row
+                    certRows.add(buildCertValues(
                             masterKeyId, userIdRank, sig, Certs.VERIFIED_SECRET));
                 }
             }
 
+            verifiedCertRows = trustedCertVerifier.mNewResults;
+            searchIndexOperation = buildSearchIndexOperation(masterKeyId, keyRing, uids);
+
         } catch (IOException e) {
             log(LogType.MSG_IP_ERROR_IO_EXC);
             Log.e(Constants.TAG, "IOException during import", e);
-            return SaveKeyringResult.RESULT_ERROR;
+            return null;
         } finally {
             mIndent -= 1;
         }
 
-        // before deleting key, retrieve it's last updated time
-        final int INDEX_MASTER_KEY_ID = 0;
-        final int INDEX_LAST_UPDATED = 1;
-        Cursor lastUpdatedCursor = mContentResolver.query(
-                UpdatedKeys.CONTENT_URI,
-                new String[]{
-                        UpdatedKeys.MASTER_KEY_ID,
-                        UpdatedKeys.LAST_UPDATED
-                },
-                UpdatedKeys.MASTER_KEY_ID + " = ?",
-                new String[]{"" + masterKeyId},
-                null
-        );
-        if (lastUpdatedCursor.moveToNext()) {
-            // there was an entry to re-insert
-            // this operation must happen after the new key is inserted
-            ContentValues lastUpdatedEntry = new ContentValues(2);
-            lastUpdatedEntry.put(UpdatedKeys.MASTER_KEY_ID,
-                    lastUpdatedCursor.getLong(INDEX_MASTER_KEY_ID));
-            lastUpdatedEntry.put(UpdatedKeys.LAST_UPDATED,
-                    lastUpdatedCursor.getLong(INDEX_LAST_UPDATED));
-            operations.add(
-                    ContentProviderOperation
-                            .newInsert(UpdatedKeys.CONTENT_URI)
-                            .withValues(lastUpdatedEntry)
-                            .build()
-            );
-        }
-        lastUpdatedCursor.close();
+        // compare with the stored version of this keyring, if any, and write only the rows
+        // which changed. the old rows are not deleted, so rows which reference this keyring
+        // by ON DELETE CASCADE (e.g. the secret keyring and updated_keys) are kept as well
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        HashMap<List<Long>, ContentValues> storedKeyRing = getStoredRows(
+                KeyRingData.buildPublicKeyRingUri(masterKeyId), KeyRingData.MASTER_KEY_ID);
+        boolean isUpdate = !storedKeyRing.isEmpty();
+        addDiffOperations(operations, KeyRingData.buildPublicKeyRingUri(masterKeyId),
+                Collections.singletonList(keyRingRow), storedKeyRing, KeyRingData.MASTER_KEY_ID);
+        addDiffOperations(operations, Keys.buildKeysUri(masterKeyId), keyRows,
+                getStoredRows(Keys.buildKeysUri(masterKeyId), Keys.RANK), Keys.RANK);
+        // user packets before certs, which reference them by rank
+        addDiffOperations(operations, UserPackets.buildUserPacketsUri(masterKeyId), userPacketRows,
+                getStoredRows(UserPackets.buildUserPacketsUri(masterKeyId), UserPackets.RANK),
+                UserPackets.RANK);
+        addDiffOperations(operations, Certs.buildCertsUri(masterKeyId), certRows,
+                getStoredRows(Certs.buildUserPacketCertsUri(masterKeyId),
+                        Certs.RANK, Certs.KEY_ID_CERTIFIER),
+                Certs.RANK, Certs.KEY_ID_CERTIFIER);
+        int changedRows = operations.size();
+
+        // new verification results, these reference the keyring but change nothing about it
+        for (ContentValues row : verifiedCertRows) {
+            operations.add(ContentProviderOperation
+                    .newInsert(VerifiedCerts.buildVerifiedCertsUri(masterKeyId))
+                    .withValues(row)
+                    .build());
+        }
 
-        try {
-            // delete old version of this keyRing, which also deletes all keys and userIds on cascade
-            int deleted = mContentResolver.delete(
-                    KeyRingData.buildPublicKeyRingUri(masterKeyId), null, null);
-            if (deleted > 0) {
-                log(LogType.MSG_IP_DELETE_OLD_OK);
-                result |= SaveKeyringResult.UPDATED;
-            } else {
-                log(LogType.MSG_IP_DELETE_OLD_FAIL);
-            }
+        operations.add(searchIndexOperation);
 
-            log(LogType.MSG_IP_APPLY_BATCH);
-            progress.setProgress(LogType.MSG_IP_APPLY_BATCH.getMsgId(), 75, 100);
-            mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+        // must come last, the summary is computed from all of the rows written above
+        operations.add(
+                ContentProviderOperation
+                        .newInsert(KeyRings.buildKeyRingSummaryUri(masterKeyId))
+                        .withValues(new ContentValues())
+                        .build()
+        );
 
-            log(LogType.MSG_IP_SUCCESS);
-            progress.setProgress(LogType.MSG_IP_SUCCESS.getMsgId(), 90, 100);
-            return result;
+        return new PreparedKeyRing(masterKeyId, progress, operations, isUpdate, changedRows,
+                secretRing);
+    }
 
-        } catch (RemoteException e) {
-            log(LogType.MSG_IP_ERROR_REMOTE_EX);
-            Log.e(Constants.TAG, "RemoteException during import", e);
-            return SaveKeyringResult.RESULT_ERROR;
-        } catch (OperationApplicationException e) {
-            log(LogType.MSG_IP_ERROR_OP_EXC);
-            Log.e(Constants.TAG, "OperationApplicationException during import", e);
-            return SaveKeyringResult.RESULT_ERROR;
+    /**
+     * Logs the successful write of a prepared public keyring.
+     *
+     * @return the result of saving the public keyring
+     */
+    private int onPublicKeyRingWritten(PreparedKeyRing prepared) {
+        // start with ok result
+        int result = SaveKeyringResult.SAVED_PUBLIC;
+
+        if (prepared.mIsUpdate) {
+            log(LogType.MSG_IP_UPDATE_OLD_OK, prepared.mChangedRows);
+            result |= SaveKeyringResult.UPDATED;
+        } else {
+            log(LogType.MSG_IP_INSERT_NEW_OK);
         }
 
+        log(LogType.MSG_IP_SUCCESS);
+        prepared.mProgress.setProgress(LogType.MSG_IP_SUCCESS.getMsgId(), 90, 100);
+        return result;
     }
 
     private static class UserPacketItem implements Comparable<UserPacketItem> {
@@ -784,6 +1054,112 @@ public class ProviderHelper {
         }
     }
 
+    /**
+     * Verifies certificates issued by our secret keys on a public keyring, remembering the
+     * results in the verified_certs table. Refreshing a keyring from a keyserver usually
+     * brings the same certificates again, which are then not verified a second time.
+     *
+     * Results are stored by a SHA-256 digest of the certifying key's fingerprint, the
+     * certified key's fingerprint, the certified user id or attribute, and the certificate.
+     * A stored result is therefore valid exactly as long as all of these are the same, and
+     * never needs to be invalidated for correctness. Results by a secret keyring are deleted
+     * along with it by a trigger, see KeychainDatabase.
+     */
+    private class TrustedCertVerifier {
+        final long mMasterKeyId;
+        final UncachedPublicKey mMasterKey;
+        final byte[] mMasterKeyFingerprint;
+        final HashMap<ByteBuffer, Boolean> mStoredResults = new HashMap<>();
+        final ArrayList<ContentValues> mNewResults = new ArrayList<>();
+        int mStoredResultsUsed = 0;
+
+        TrustedCertVerifier(long masterKeyId, UncachedPublicKey masterKey,
+                boolean loadStoredResults) {
+            mMasterKeyId = masterKeyId;
+            mMasterKey = masterKey;
+            mMasterKeyFingerprint = masterKey.getFingerprint();
+            if (!loadStoredResults) {
+                return;
+            }
+            Cursor cursor = mContentResolver.query(VerifiedCerts.buildVerifiedCertsUri(masterKeyId),
+                    new String[] { VerifiedCerts.DIGEST, VerifiedCerts.VERIFIED }, null, null, null);
+            if (cursor == null) {
+                return;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    mStoredResults.put(ByteBuffer.wrap(cursor.getBlob(0)), cursor.getInt(1) != 0);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        boolean verify(CanonicalizedPublicKey trustedKey, WrappedSignature cert, byte[] rawUserId)
+                throws PgpGeneralException {
+            ByteBuffer digest = getDigest(trustedKey, cert, PacketTags.USER_ID, rawUserId);
+            Boolean result = mStoredResults.get(digest);
+            if (result != null) {
+                mStoredResultsUsed += 1;
+                return result;
+            }
+            cert.init(trustedKey);
+            return addResult(trustedKey, digest, cert.verifySignature(mMasterKey, rawUserId));
+        }
+
+        boolean verify(CanonicalizedPublicKey trustedKey, WrappedSignature cert,
+                WrappedUserAttribute userAttribute) throws PgpGeneralException {
+            ByteBuffer digest;
+            try {
+                digest = getDigest(trustedKey, cert, PacketTags.USER_ATTRIBUTE,
+                        userAttribute.getEncoded());
+            } catch (IOException e) {
+                throw new PgpGeneralException(e);
+            }
+            Boolean result = mStoredResults.get(digest);
+            if (result != null) {
+                mStoredResultsUsed += 1;
+                return result;
+            }
+            cert.init(trustedKey);
+            return addResult(trustedKey, digest, cert.verifySignature(mMasterKey, userAttribute));
+        }
+
+        private boolean addResult(CanonicalizedPublicKey trustedKey, ByteBuffer digest,
+                boolean verified) {
+            mStoredResults.put(digest, verified);
+            ContentValues values = new ContentValues();
+            values.put(VerifiedCerts.MASTER_KEY_ID, mMasterKeyId);
+            values.put(VerifiedCerts.KEY_ID_CERTIFIER, trustedKey.getKeyId());
+            values.put(VerifiedCerts.DIGEST, digest.array());
+            values.put(VerifiedCerts.VERIFIED, verified);
+            mNewResults.add(values);
+            return verified;
+        }
+
+        private ByteBuffer getDigest(CanonicalizedPublicKey trustedKey, WrappedSignature cert,
+                int packetTag, byte[] packetData) throws PgpGeneralException {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new AssertionError("SHA-256 is always available");
+            }
+            digest.update(trustedKey.getFingerprint());
+            digest.update(mMasterKeyFingerprint);
+            // tag and length, so user id and certificate can't be shifted against each other
+            digest.update((byte) packetTag);
+            digest.update(ByteBuffer.allocate(4).putInt(packetData.length).array());
+            digest.update(packetData);
+            try {
+                digest.update(cert.getEncoded());
+            } catch (IOException e) {
+                throw new PgpGeneralException(e);
+            }
+            return ByteBuffer.wrap(digest.digest());
+        }
+    }
+
     /**
      * Saves an UncachedKeyRing of the secret variant into the db.
      * This method will fail if no corresponding public keyring is in the database!
@@ -890,18 +1266,71 @@ public class ProviderHelper {
      * Save a public keyring into the database.
      * <p/>
      * This is a high level method, which takes care of merging all new information into the old and
-     * keep public and secret keyrings in sync.
+     * keep public and secret keyrings in sync. Saves of the same keyring are serialized, saves
+     * of different keyrings may run in parallel, see {@link KeyRingLocks}.
      */
     public SaveKeyringResult savePublicKeyRing(UncachedKeyRing publicRing, Progressable progress, String expectedFingerprint) {
+        PreparedKeyRing prepared = preparePublicKeyRing(publicRing, progress, expectedFingerprint);
+        if (prepared.mResult == null) {
+            try {
+                savePreparedKeyRings(Collections.singletonList(prepared));
+            } finally {
+                prepared.discard();
+            }
+        }
+        return prepared.mResult;
+    }
+
+    /**
+     * Merges a public keyring into the stored one and canonicalizes it, like savePublicKeyRing,
+     * but only prepares the database operations to save it. The prepared keyring is saved by
+     * savePreparedKeyRings, possibly in a batch with others, unless its result is already
+     * available here because there was an error or nothing changed.
+     * <p/>
+     * The operations are based on the stored version of the keyring, so the keyring stays
+     * locked against other saves until the prepared keyring is saved, or discarded with
+     * {@link PreparedKeyRing#discard()}.
+     */
+    public PreparedKeyRing preparePublicKeyRing(UncachedKeyRing publicRing, Progressable progress,
+                                                String expectedFingerprint) {
+        long masterKeyId = publicRing.getMasterKeyId();
 
+        // the lock is held until the prepared keyring is saved or discarded
+        KeyRingLocks.lock(masterKeyId);
+        PreparedKeyRing prepared = null;
+        try {
+            prepared = preparePublicKeyRingLocked(publicRing, progress, expectedFingerprint);
+            prepared.mLocked = prepared.mResult == null;
+            return prepared;
+        } finally {
+            if (prepared == null || !prepared.mLocked) {
+                KeyRingLocks.unlock(masterKeyId);
+            }
+        }
+    }
+
+    private PreparedKeyRing preparePublicKeyRingLocked(UncachedKeyRing publicRing,
+                                                       Progressable progress,
+                                                       String expectedFingerprint) {
+
+        long masterKeyId = publicRing.getMasterKeyId();
         try {
-            long masterKeyId = publicRing.getMasterKeyId();
             log(LogType.MSG_IP, KeyFormattingUtils.convertKeyIdToHex(masterKeyId));
             mIndent += 1;
 
             if (publicRing.isSecret()) {
                 log(LogType.MSG_IP_BAD_TYPE_SECRET);
-                return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                return new PreparedKeyRing(masterKeyId, SaveKeyringResult.RESULT_ERROR);
+            }
+
+            // Early breakout if this exact keyring was imported before. It was merged into the
+            // stored keyring back then, which only ever gains packets, so there is nothing new.
+            // This skips parsing the stored keyring, the merge and all signature checks.
+            byte[] importDigest = digestKeyRing(publicRing);
+            if (Arrays.equals(importDigest, getImportDigest(masterKeyId))
+                    && isMasterKeyFingerprint(masterKeyId, expectedFingerprint)) {
+                log(LogType.MSG_IP_SUCCESS_IDENTICAL);
+                return new PreparedKeyRing(masterKeyId, SaveKeyringResult.UPDATED);
             }
 
             CanonicalizedPublicKeyRing canPublicRing;
@@ -916,20 +1345,21 @@ public class ProviderHelper {
 
                 // If this is null, there is an error in the log so we can just return
                 if (publicRing == null) {
-                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                    return new PreparedKeyRing(masterKeyId, SaveKeyringResult.RESULT_ERROR);
                 }
 
                 // Canonicalize this keyring, to assert a number of assumptions made about it.
                 canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog, mIndent);
                 if (canPublicRing == null) {
-                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                    return new PreparedKeyRing(masterKeyId, SaveKeyringResult.RESULT_ERROR);
                 }
 
                 // Early breakout if nothing changed
                 if (Arrays.hashCode(publicRing.getEncoded())
                         == Arrays.hashCode(oldPublicRing.getEncoded())) {
                     log(LogType.MSG_IP_SUCCESS_IDENTICAL);
-                    return new SaveKeyringResult(SaveKeyringResult.UPDATED, mLog, null);
+                    saveImportDigest(masterKeyId, importDigest);
+                    return new PreparedKeyRing(masterKeyId, SaveKeyringResult.UPDATED);
                 }
             } catch (NotFoundException e) {
                 // Not an issue, just means we are dealing with a new keyring.
@@ -937,7 +1367,7 @@ public class ProviderHelper {
                 // Canonicalize this keyring, to assert a number of assumptions made about it.
                 canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog, mIndent);
                 if (canPublicRing == null) {
-                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                    return new PreparedKeyRing(masterKeyId, SaveKeyringResult.RESULT_ERROR);
                 }
 
             }
@@ -952,12 +1382,12 @@ public class ProviderHelper {
                 log(LogType.MSG_IP_MERGE_SECRET);
                 secretRing = secretRing.merge(publicRing, mLog, mIndent);
                 if (secretRing == null) {
-                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                    return new PreparedKeyRing(masterKeyId, SaveKeyringResult.RESULT_ERROR);
                 }
                 // This has always been a secret key ring, this is a safe cast
                 canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(mLog, mIndent);
                 if (canSecretRing == null) {
-                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                    return new PreparedKeyRing(masterKeyId, SaveKeyringResult.RESULT_ERROR);
                 }
 
             } catch (NotFoundException e) {
@@ -970,35 +1400,223 @@ public class ProviderHelper {
             if (expectedFingerprint != null) {
                 if (!canPublicRing.containsSubkey(expectedFingerprint)) {
                     log(LogType.MSG_IP_FINGERPRINT_ERROR);
-                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                    return new PreparedKeyRing(masterKeyId, SaveKeyringResult.RESULT_ERROR);
                 } else {
                     log(LogType.MSG_IP_FINGERPRINT_OK);
                 }
             }
 
-            int result = saveCanonicalizedPublicKeyRing(canPublicRing, progress, canSecretRing != null);
-
-            // Save the saved keyring (if any)
-            if (canSecretRing != null) {
-                progress.setProgress(LogType.MSG_IP_REINSERT_SECRET.getMsgId(), 90, 100);
-                int secretResult = saveCanonicalizedSecretKeyRing(canSecretRing);
-                if ((secretResult & SaveKeyringResult.RESULT_ERROR) != SaveKeyringResult.RESULT_ERROR) {
-                    result |= SaveKeyringResult.SAVED_SECRET;
-                }
+            // the secret keyring (if any) is saved along with the public one
+            PreparedKeyRing prepared = prepareCanonicalizedPublicKeyRing(
+                    canPublicRing, progress, canSecretRing != null, canSecretRing, importDigest);
+            if (prepared == null) {
+                return new PreparedKeyRing(masterKeyId, SaveKeyringResult.RESULT_ERROR);
             }
-
-            return new SaveKeyringResult(result, mLog, canSecretRing);
+            return prepared;
 
         } catch (IOException e) {
             log(LogType.MSG_IP_ERROR_IO_EXC);
-            return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+            return new PreparedKeyRing(masterKeyId, SaveKeyringResult.RESULT_ERROR);
         } finally {
             mIndent -= 1;
         }
 
     }
 
+    /** Returns the SHA-256 digest of the encoding of an imported keyring. */
+    private static byte[] digestKeyRing(UncachedKeyRing keyRing) throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(keyRing.getEncoded());
+        } catch (NoSuchAlgorithmException e) {
+            // every java implementation is required to support SHA-256
+            throw new AssertionError(e);
+        }
+    }
+
+    /** Returns the digest of the keyring which was last imported for masterKeyId, if any. */
+    private byte[] getImportDigest(long masterKeyId) {
+        Cursor cursor = mContentResolver.query(KeyRingData.buildPublicKeyRingUri(masterKeyId),
+                new String[]{KeyRingData.IMPORT_DIGEST}, null, null, null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getBlob(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void saveImportDigest(long masterKeyId, byte[] importDigest) {
+        ContentValues values = new ContentValues();
+        values.put(KeyRingData.IMPORT_DIGEST, importDigest);
+        mContentResolver.update(KeyRingData.buildPublicKeyRingUri(masterKeyId), values, null, null);
+    }
+
+    /**
+     * Checks an expected fingerprint against the stored master key, without parsing the
+     * keyring. Fingerprints of subkeys only match after a full merge.
+     */
+    private boolean isMasterKeyFingerprint(long masterKeyId, String expectedFingerprint) {
+        if (expectedFingerprint == null) {
+            return true;
+        }
+        try {
+            byte[] fingerprint = getCachedPublicKeyRing(masterKeyId).getFingerprint();
+            return KeyFormattingUtils.convertFingerprintToHex(fingerprint)
+                    .equalsIgnoreCase(expectedFingerprint);
+        } catch (PgpKeyNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Saves keyrings prepared by preparePublicKeyRing, which may come from different instances
+     * of ProviderHelper. All keyrings are written in a single transaction. If that fails, they
+     * are written one by one, so a single bad keyring doesn't fail the others. Afterwards, the
+     * result of each keyring is available from {@link PreparedKeyRing#getResult()}.
+     */
+    public void savePreparedKeyRings(List<PreparedKeyRing> keyRings) {
+        ArrayList<PreparedKeyRing> pending = new ArrayList<>();
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (PreparedKeyRing keyRing : keyRings) {
+            if (keyRing.mResult == null) {
+                pending.add(keyRing);
+                operations.addAll(keyRing.mOperations);
+            }
+        }
+
+        if (pending.size() > 1) {
+            try {
+                mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+                for (PreparedKeyRing keyRing : pending) {
+                    keyRing.finish(null);
+                }
+                return;
+            } catch (RemoteException | OperationApplicationException e) {
+                Log.e(Constants.TAG, "Saving batch of " + pending.size()
+                        + " keyrings failed, saving them one by one", e);
+            }
+        }
+
+        for (PreparedKeyRing keyRing : pending) {
+            try {
+                mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY,
+                        keyRing.mOperations);
+                keyRing.finish(null);
+            } catch (RemoteException e) {
+                Log.e(Constants.TAG, "RemoteException during import", e);
+                keyRing.finish(LogType.MSG_IP_ERROR_REMOTE_EX);
+            } catch (OperationApplicationException e) {
+                Log.e(Constants.TAG, "OperationApplicationException during import", e);
+                keyRing.finish(LogType.MSG_IP_ERROR_OP_EXC);
+            }
+        }
+    }
+
+    /**
+     * A public keyring which was merged and canonicalized by preparePublicKeyRing, along with
+     * the database operations to save it. Log entries of the save are added to the log of the
+     * ProviderHelper which prepared it.
+     */
+    public class PreparedKeyRing {
+        final long mMasterKeyId;
+        final Progressable mProgress;
+        final ArrayList<ContentProviderOperation> mOperations;
+        final boolean mIsUpdate;
+        final int mChangedRows;
+        final CanonicalizedSecretKeyRing mSecretRing;
+        SaveKeyringResult mResult;
+        boolean mLocked = false;
+
+        /** A keyring which is finished without being written, with the given result. */
+        PreparedKeyRing(long masterKeyId, int result) {
+            this(masterKeyId, null, null, false, 0, null);
+            mResult = new SaveKeyringResult(result, mLog, null);
+        }
+
+        PreparedKeyRing(long masterKeyId, Progressable progress,
+                        ArrayList<ContentProviderOperation> operations, boolean isUpdate,
+                        int changedRows, CanonicalizedSecretKeyRing secretRing) {
+            mMasterKeyId = masterKeyId;
+            mProgress = progress;
+            mOperations = operations;
+            mIsUpdate = isUpdate;
+            mChangedRows = changedRows;
+            mSecretRing = secretRing;
+        }
+
+        public long getMasterKeyId() {
+            return mMasterKeyId;
+        }
+
+        /** Returns the result of saving this keyring, or null if it is not saved yet. */
+        public SaveKeyringResult getResult() {
+            return mResult;
+        }
+
+        /** Returns the number of database operations which are still needed to save this keyring. */
+        public int getOperationCount() {
+            return mResult == null ? mOperations.size() : 0;
+        }
+
+        /**
+         * Finishes the save after the operations were applied, or failed with the given error.
+         * Also saves the secret keyring, if there is one.
+         */
+        void finish(LogType error) {
+            mIndent += 1;
+            try {
+                log(LogType.MSG_IP_APPLY_BATCH);
+                int result;
+                if (error == null) {
+                    result = onPublicKeyRingWritten(this);
+                } else {
+                    log(error);
+                    result = SaveKeyringResult.RESULT_ERROR;
+                }
+
+                // Save the saved keyring (if any)
+                if (mSecretRing != null) {
+                    mProgress.setProgress(LogType.MSG_IP_REINSERT_SECRET.getMsgId(), 90, 100);
+                    int secretResult = saveCanonicalizedSecretKeyRing(mSecretRing);
+                    if ((secretResult & SaveKeyringResult.RESULT_ERROR) != SaveKeyringResult.RESULT_ERROR) {
+                        result |= SaveKeyringResult.SAVED_SECRET;
+                    }
+                }
+
+                mResult = new SaveKeyringResult(result, mLog, mSecretRing);
+            } finally {
+                mIndent -= 1;
+                unlock();
+            }
+        }
+
+        /** Releases the lock of a keyring which will not be saved after all. */
+        public void discard() {
+            unlock();
+        }
+
+        private void unlock() {
+            if (mLocked) {
+                mLocked = false;
+                KeyRingLocks.unlock(mMasterKeyId);
+            }
+        }
+    }
+
     public SaveKeyringResult saveSecretKeyRing(UncachedKeyRing secretRing, Progressable progress) {
+        long masterKeyId = secretRing.getMasterKeyId();
+        KeyRingLocks.lock(masterKeyId);
+        try {
+            return saveSecretKeyRingLocked(secretRing, progress);
+        } finally {
+            KeyRingLocks.unlock(masterKeyId);
+        }
+    }
+
+    private SaveKeyringResult saveSecretKeyRingLocked(UncachedKeyRing secretRing,
+                                                      Progressable progress) {
 
         try {
             long masterKeyId = secretRing.getMasterKeyId();
@@ -1293,11 +1911,17 @@ public class ProviderHelper {
             ArrayList<ContentValues> updatedKeysValues = new ArrayList<>();
             final int INDEX_MASTER_KEY_ID = 0;
             final int INDEX_LAST_UPDATED = 1;
+            final int INDEX_ETAG = 2;
+            final int INDEX_LAST_MODIFIED = 3;
+            final int INDEX_CONTENT_DIGEST = 4;
             Cursor lastUpdatedCursor = mContentResolver.query(
                     UpdatedKeys.CONTENT_URI,
                     new String[]{
                             UpdatedKeys.MASTER_KEY_ID,
-                            UpdatedKeys.LAST_UPDATED
+                            UpdatedKeys.LAST_UPDATED,
+                            UpdatedKeys.ETAG,
+                            UpdatedKeys.LAST_MODIFIED,
+                            UpdatedKeys.CONTENT_DIGEST
                     },
                     null, null, null);
             while (lastUpdatedCursor.moveToNext()) {
@@ -1306,10 +1930,29 @@ public class ProviderHelper {
                         lastUpdatedCursor.getLong(INDEX_MASTER_KEY_ID));
                 values.put(UpdatedKeys.LAST_UPDATED,
                         lastUpdatedCursor.getLong(INDEX_LAST_UPDATED));
+                values.put(UpdatedKeys.ETAG,
+                        lastUpdatedCursor.getString(INDEX_ETAG));
+                values.put(UpdatedKeys.LAST_MODIFIED,
+                        lastUpdatedCursor.getString(INDEX_LAST_MODIFIED));
+                values.put(UpdatedKeys.CONTENT_DIGEST,
+                        lastUpdatedCursor.getBlob(INDEX_CONTENT_DIGEST));
                 updatedKeysValues.add(values);
             }
             lastUpdatedCursor.close();
 
+            // and the list of last used times, which goes with the keys as well
+            ArrayList<ContentValues> keyUsageValues = new ArrayList<>();
+            Cursor lastUsedCursor = mContentResolver.query(KeyUsage.CONTENT_URI,
+                    new String[]{ KeyUsage.MASTER_KEY_ID, KeyUsage.LAST_USED },
+                    null, null, null);
+            while (lastUsedCursor.moveToNext()) {
+                ContentValues values = new ContentValues();
+                values.put(KeyUsage.MASTER_KEY_ID, lastUsedCursor.getLong(0));
+                values.put(KeyUsage.LAST_USED, lastUsedCursor.getLong(1));
+                keyUsageValues.add(values);
+            }
+            lastUsedCursor.close();
+
             log.add(LogType.MSG_CON_DB_CLEAR, indent);
             mContentResolver.delete(KeyRings.buildUnifiedKeyRingsUri(), null, null);
 
@@ -1363,6 +2006,8 @@ public class ProviderHelper {
                     // TODO: can this cause issues in case a public key re-import failed?
                     mContentResolver.bulkInsert(UpdatedKeys.CONTENT_URI,
                             updatedKeysValues.toArray(new ContentValues[updatedKeysValues.size()]));
+                    mContentResolver.bulkInsert(KeyUsage.CONTENT_URI,
+                            keyUsageValues.toArray(new ContentValues[keyUsageValues.size()]));
                 } else {
                     log.add(LogType.MSG_CON_REIMPORT_PUBLIC_SKIP, indent);
                 }
@@ -1417,8 +2062,8 @@ public class ProviderHelper {
     /**
      * Build ContentProviderOperation to add PGPPublicKey to database corresponding to a keyRing
      */
-    private ContentProviderOperation
-    buildCertOperations(long masterKeyId, int rank, WrappedSignature cert, int verified)
+    private ContentValues
+    buildCertValues(long masterKeyId, int rank, WrappedSignature cert, int verified)
             throws IOException {
         ContentValues values = new ContentValues();
         values.put(Certs.MASTER_KEY_ID, masterKeyId);
@@ -1429,26 +2074,172 @@ public class ProviderHelper {
         values.put(Certs.VERIFIED, verified);
         values.put(Certs.DATA, cert.getEncoded());
 
-        Uri uri = Certs.buildCertsUri(masterKeyId);
-
-        return ContentProviderOperation.newInsert(uri).withValues(values).build();
+        return values;
     }
 
     /**
-     * Build ContentProviderOperation to add PublicUserIds to database corresponding to a keyRing
+     * Build row to add PublicUserIds to database corresponding to a keyRing
      */
-    private ContentProviderOperation
-    buildUserIdOperations(long masterKeyId, UserPacketItem item, int rank) {
+    private ContentValues
+    buildUserPacketValues(long masterKeyId, UserPacketItem item, int rank) {
         ContentValues values = new ContentValues();
         values.put(UserPackets.MASTER_KEY_ID, masterKeyId);
         values.put(UserPackets.TYPE, item.type);
         values.put(UserPackets.USER_ID, item.userId);
+        values.put(UserPackets.EMAIL, KeyRing.extractEmail(item.userId));
         values.put(UserPackets.ATTRIBUTE_DATA, item.attributeData);
         values.put(UserPackets.IS_PRIMARY, item.isPrimary);
         values.put(UserPackets.IS_REVOKED, item.selfRevocation != null);
         values.put(UserPackets.RANK, rank);
 
-        Uri uri = UserPackets.buildUserIdsUri(masterKeyId);
+        return values;
+    }
+
+    /**
+     * Loads the stored rows of a keyring at uri, mapped by the values of their key columns.
+     */
+    private HashMap<List<Long>, ContentValues> getStoredRows(Uri uri, String... keyColumns) {
+        HashMap<List<Long>, ContentValues> result = new HashMap<>();
+        Cursor cursor = mContentResolver.query(uri, null, null, null, null);
+        if (cursor == null) {
+            return result;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                ContentValues row = new ContentValues();
+                for (int i = 0; i < cursor.getColumnCount(); i++) {
+                    String column = cursor.getColumnName(i);
+                    switch (cursor.getType(i)) {
+                        case Cursor.FIELD_TYPE_NULL:
+                            row.putNull(column);
+                            break;
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            row.put(column, cursor.getLong(i));
+                            break;
+                        case Cursor.FIELD_TYPE_BLOB:
+                            row.put(column, cursor.getBlob(i));
+                            break;
+                        default:
+                            row.put(column, cursor.getString(i));
+                            break;
+                    }
+                }
+                result.put(getRowKey(row, keyColumns), row);
+            }
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+
+    /**
+     * Adds the operations which turn the stored rows at uri into the given rows, matching them
+     * by the values of their key columns. Rows which are equal to their stored version are not
+     * written, stored rows without a new version are deleted.
+     */
+    private static void addDiffOperations(ArrayList<ContentProviderOperation> operations, Uri uri,
+            List<ContentValues> rows, HashMap<List<Long>, ContentValues> storedRows,
+            String... keyColumns) {
+        StringBuilder selection = new StringBuilder();
+        for (String keyColumn : keyColumns) {
+            selection.append(selection.length() == 0 ? "" : " AND ").append(keyColumn).append(" = ?");
+        }
+
+        for (ContentValues row : rows) {
+            List<Long> key = getRowKey(row, keyColumns);
+            ContentValues storedRow = storedRows.remove(key);
+            if (storedRow == null) {
+                operations.add(ContentProviderOperation.newInsert(uri).withValues(row).build());
+            } else if (!isRowUnchanged(row, storedRow)) {
+                operations.add(ContentProviderOperation.newUpdate(uri).withValues(row)
+                        .withSelection(selection.toString(), getSelectionArgs(key)).build());
+            }
+        }
+
+        for (List<Long> key : storedRows.keySet()) {
+            operations.add(ContentProviderOperation.newDelete(uri)
+                    .withSelection(selection.toString(), getSelectionArgs(key)).build());
+        }
+    }
+
+    private static List<Long> getRowKey(ContentValues row, String[] keyColumns) {
+        Long[] key = new Long[keyColumns.length];
+        for (int i = 0; i < keyColumns.length; i++) {
+            key[i] = row.getAsLong(keyColumns[i]);
+        }
+        return Arrays.asList(key);
+    }
+
+    private static String[] getSelectionArgs(List<Long> key) {
+        String[] args = new String[key.size()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = Long.toString(key.get(i));
+        }
+        return args;
+    }
+
+    /**
+     * Returns true if all columns of row have the same value in storedRow. Columns which are
+     * not part of row, like has_secret, are not compared.
+     */
+    private static boolean isRowUnchanged(ContentValues row, ContentValues storedRow) {
+        for (String column : row.keySet()) {
+            Object value = row.get(column);
+            Object storedValue = storedRow.get(column);
+            // sqlite stores booleans and all integer types as a long
+            if (value instanceof Boolean) {
+                value = (Boolean) value ? 1L : 0L;
+            } else if (value instanceof Number) {
+                value = ((Number) value).longValue();
+            }
+            if (value instanceof byte[]) {
+                if (!(storedValue instanceof byte[]) || !Arrays.equals((byte[]) value, (byte[]) storedValue)) {
+                    return false;
+                }
+            } else if (value == null ? storedValue != null : !value.equals(storedValue)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Build ContentProviderOperation to add the full text search entry for a keyRing. The
+     * text is lower-cased here, since the fts tokenizer only folds the case of ascii letters.
+     */
+    private ContentProviderOperation buildSearchIndexOperation(long masterKeyId,
+            CanonicalizedPublicKeyRing keyRing, List<UserPacketItem> uids) {
+        String primaryUserId = null;
+        StringBuilder userIds = new StringBuilder();
+        for (UserPacketItem item : uids) {
+            if (item.userId == null) {
+                continue;
+            }
+            if (primaryUserId == null) {
+                // uids are sorted at this point, so this is the rank 0 user id
+                primaryUserId = item.userId;
+            } else {
+                userIds.append(item.userId).append('\n');
+            }
+        }
+
+        StringBuilder keyIds = new StringBuilder();
+        for (CanonicalizedPublicKey key : keyRing.publicKeyIterator()) {
+            String keyIdHex = KeyFormattingUtils.convertKeyIdToHex(key.getKeyId()).substring(2);
+            // long id, short id, and fingerprint
+            keyIds.append(keyIdHex).append(' ')
+                    .append(keyIdHex.substring(keyIdHex.length() - 8)).append(' ')
+                    .append(KeyFormattingUtils.convertFingerprintToHex(key.getFingerprint()))
+                    .append(' ');
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(KeyRingsSearch.PRIMARY_USER_ID,
+                primaryUserId == null ? null : primaryUserId.toLowerCase(Locale.ENGLISH));
+        values.put(KeyRingsSearch.USER_IDS, userIds.toString().toLowerCase(Locale.ENGLISH));
+        values.put(KeyRingsSearch.KEY_IDS, keyIds.toString());
+
+        Uri uri = KeyRingsSearch.buildKeyRingSearchUri(masterKeyId);
 
         return ContentProviderOperation.newInsert(uri).withValues(values).build();
     }
@@ -1473,13 +2264,72 @@ public class ProviderHelper {
     }
 
     public Uri renewKeyLastUpdatedTime(long masterKeyId, long time, TimeUnit timeUnit) {
+        return renewKeyLastUpdatedTime(masterKeyId, time, timeUnit, null);
+    }
+
+    /**
+     * Notes the time a keyring was last updated from a keyserver, along with the validators
+     * of the keyserver response if there are any.
+     */
+    public Uri renewKeyLastUpdatedTime(long masterKeyId, long time, TimeUnit timeUnit,
+                                       KeyserverValidators validators) {
         ContentValues values = new ContentValues();
         values.put(UpdatedKeys.MASTER_KEY_ID, masterKeyId);
         values.put(UpdatedKeys.LAST_UPDATED, timeUnit.toSeconds(time));
+        if (validators != null) {
+            values.put(UpdatedKeys.ETAG, validators.mETag);
+            values.put(UpdatedKeys.LAST_MODIFIED, validators.mLastModified);
+            values.put(UpdatedKeys.CONTENT_DIGEST, validators.mDigest);
+        }
 
         return mContentResolver.insert(UpdatedKeys.CONTENT_URI, values);
     }
 
+    /**
+     * Notes the time keyrings were last used to encrypt to, or to verify a signature. All of
+     * them are written in a single transaction, with a single change notification.
+     */
+    public void renewKeysLastUsedTime(Collection<Long> masterKeyIds, long time, TimeUnit timeUnit) {
+        if (masterKeyIds.isEmpty()) {
+            return;
+        }
+        ContentValues[] values = new ContentValues[masterKeyIds.size()];
+        int i = 0;
+        for (long masterKeyId : masterKeyIds) {
+            values[i] = new ContentValues();
+            values[i].put(KeyUsage.MASTER_KEY_ID, masterKeyId);
+            values[i].put(KeyUsage.LAST_USED, timeUnit.toSeconds(time));
+            i += 1;
+        }
+
+        mContentResolver.bulkInsert(KeyUsage.CONTENT_URI, values);
+    }
+
+    /**
+     * Returns the validators of the last keyserver response for a keyring, or null if it
+     * was never updated from a keyserver, or the validators weren't stored at the time.
+     */
+    public KeyserverValidators getKeyserverValidators(long masterKeyId) {
+        Cursor cursor = mContentResolver.query(UpdatedKeys.buildUpdatedKeysUri(masterKeyId),
+                new String[]{
+                        UpdatedKeys.ETAG,
+                        UpdatedKeys.LAST_MODIFIED,
+                        UpdatedKeys.CONTENT_DIGEST
+                },
+                null, null, null);
+        try {
+            if (cursor == null || !cursor.moveToFirst() || cursor.isNull(2)) {
+                return null;
+            }
+            return new KeyserverValidators(cursor.getString(0), cursor.getString(1),
+                    cursor.getBlob(2));
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
     public ArrayList<String> getRegisteredApiApps() {
         Cursor cursor = mContentResolver.query(ApiApps.CONTENT_URI, null, null, null, null);
 
@@ -68,8 +68,10 @@ import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 
 public class OpenPgpService extends RemoteService {
 
@@ -78,6 +80,7 @@ public class OpenPgpService extends RemoteService {
             KeyRings.MASTER_KEY_ID,
             KeyRings.IS_EXPIRED,
             KeyRings.IS_REVOKED,
+            KeyRings.EMAIL,
     };
 
     // do not pre-select revoked or expired keys
@@ -96,34 +99,43 @@ public class OpenPgpService extends RemoteService {
         ArrayList<String> missingEmails = new ArrayList<>();
         ArrayList<String> duplicateEmails = new ArrayList<>();
         if (!noUserIdsCheck) {
-            for (String email : encryptionUserIds) {
-                // try to find the key for this specific email
-                Uri uri = KeyRings.buildUnifiedKeyRingsFindByEmailUri(email);
-                Cursor cursor = getContentResolver().query(uri, EMAIL_SEARCH_PROJECTION, EMAIL_SEARCH_WHERE, null, null);
-                try {
-                    // result should be one entry containing the key id
-                    if (cursor != null && cursor.moveToFirst()) {
-                        long id = cursor.getLong(cursor.getColumnIndex(KeyRings.MASTER_KEY_ID));
-                        keyIds.add(id);
-                    } else {
-                        missingUserIdsCheck = true;
-                        missingEmails.add(email);
-                        Log.d(Constants.TAG, "user id missing");
+            // find the matching keys for all emails in a single query, one row per key and email
+            Uri uri = KeyRings.buildUnifiedKeyRingsFindByEmailUri(TextUtils.join(",", encryptionUserIds));
+            Cursor cursor = getContentResolver().query(uri, EMAIL_SEARCH_PROJECTION, EMAIL_SEARCH_WHERE, null, null);
+            HashMap<String, ArrayList<Long>> idsByEmail = new HashMap<>();
+            try {
+                while (cursor != null && cursor.moveToNext()) {
+                    String email = cursor.getString(cursor.getColumnIndex(KeyRings.EMAIL));
+                    ArrayList<Long> ids = idsByEmail.get(email);
+                    if (ids == null) {
+                        ids = new ArrayList<>();
+                        idsByEmail.put(email, ids);
                     }
+                    ids.add(cursor.getLong(cursor.getColumnIndex(KeyRings.MASTER_KEY_ID)));
+                }
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+
+            for (String email : encryptionUserIds) {
+                // the email column is lower-case, like the condition of the query
+                ArrayList<Long> ids = idsByEmail.get(email.trim().toLowerCase(Locale.ENGLISH));
+                if (ids == null) {
+                    missingUserIdsCheck = true;
+                    missingEmails.add(email);
+                    Log.d(Constants.TAG, "user id missing");
+                    continue;
+                }
+                // pre-select the first two matching keys, like before
+                keyIds.add(ids.get(0));
+                if (ids.size() > 1) {
                     // another entry for this email -> two keys with the same email inside user id
-                    if (cursor != null && cursor.moveToNext()) {
-                        duplicateUserIdsCheck = true;
-                        duplicateEmails.add(email);
-
-                        // also pre-select
-                        long id = cursor.getLong(cursor.getColumnIndex(KeyRings.MASTER_KEY_ID));
-                        keyIds.add(id);
-                        Log.d(Constants.TAG, "more than one user id with the same email");
-                    }
-                } finally {
-                    if (cursor != null) {
-                        cursor.close();
-                    }
+                    duplicateUserIdsCheck = true;
+                    duplicateEmails.add(email);
+                    keyIds.add(ids.get(1));
+                    Log.d(Constants.TAG, "more than one user id with the same email");
                 }
             }
         }
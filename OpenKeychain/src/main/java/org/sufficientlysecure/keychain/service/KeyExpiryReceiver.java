@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.service;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Build.VERSION;
+import android.os.Build.VERSION_CODES;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.util.Log;
+
+import java.util.Date;
+
+/** Updates the stored expiry state of keys at the time the next key expires.
+ *
+ * The expiry state is stored in the database, so queries don't have to compare against the
+ * current time. KeychainDatabase schedules this receiver for the next expiry whenever it
+ * updates the expiry state, and KeychainProvider whenever a keyring is saved. Since pending
+ * alarms are gone after a reboot or an update of the app, the state is also updated then.
+ * The alarm doesn't wake up the device, since the state is only needed when the database
+ * is queried, which implies that the device is awake.
+ */
+public class KeyExpiryReceiver extends BroadcastReceiver {
+
+    /** Schedules the expiry state update for the given time in seconds. Does nothing if the
+     * update is already scheduled for that time, or if expiry is null.
+     *
+     * Alarms for other times are left alone. They fire at most once, and the update they
+     * cause finds nothing to do.
+     */
+    public static void scheduleNextExpiry(Context context, Long expiry) {
+        if (expiry == null) {
+            return;
+        }
+
+        Intent intent = buildIntent(context, expiry);
+        // one shot alarms are gone once they fired, and all of them are gone after a reboot.
+        // FLAG_ONE_SHOT is part of what identifies the pending intent, so it is passed here too
+        if (PendingIntent.getBroadcast(context, 0, intent,
+                PendingIntent.FLAG_NO_CREATE | PendingIntent.FLAG_ONE_SHOT) != null) {
+            return;
+        }
+
+        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        PendingIntent pi = PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_ONE_SHOT);
+        if (VERSION.SDK_INT >= VERSION_CODES.KITKAT) {
+            am.setExact(AlarmManager.RTC, expiry * 1000, pi);
+        } else {
+            am.set(AlarmManager.RTC, expiry * 1000, pi);
+        }
+
+        Log.d(Constants.TAG, "KeyExpiryReceiver: next key expiry is " + new Date(expiry * 1000));
+    }
+
+    private static Intent buildIntent(Context context, long expiry) {
+        Intent intent = new Intent(context, KeyExpiryReceiver.class);
+        // extras don't tell pending intents apart, the data does
+        intent.setData(Uri.parse("expiry:" + expiry));
+        return intent;
+    }
+
+    @Override
+    public void onReceive(final Context context, Intent intent) {
+        // this is a database write, so don't do it on the main thread
+        final PendingResult result = goAsync();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // this also schedules the next expiry
+                    context.getContentResolver().update(
+                            KeyRings.buildExpiryUri(), new ContentValues(), null, null);
+                } finally {
+                    result.finish();
+                }
+            }
+        }).start();
+    }
+
+}
@@ -13,7 +13,6 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SyncResult;
-import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.drawable.Drawable;
@@ -34,18 +33,16 @@ import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
 import org.sufficientlysecure.keychain.operations.ImportOperation;
 import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult;
-import org.sufficientlysecure.keychain.provider.KeychainContract;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.ui.OrbotRequiredDialogActivity;
-import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.OkHttpClientFactory;
 import org.sufficientlysecure.keychain.util.ParcelableProxy;
 import org.sufficientlysecure.keychain.util.Preferences;
 import org.sufficientlysecure.keychain.util.orbot.OrbotHelper;
 
 import java.util.ArrayList;
-import java.util.GregorianCalendar;
 import java.util.Random;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -64,6 +61,16 @@ public class KeyserverSyncAdapterService extends Service {
             Constants.DEBUG_KEYSERVER_SYNC ? 30 * 1000 : TimeUnit.MINUTES.toMillis(5);
     // Time taken by Orbot before a new circuit is created
     public static final int ORBOT_CIRCUIT_TIMEOUT = (int) TimeUnit.MINUTES.toMillis(10);
+    // budget of a single sync: number of keys to update, see KeyserverSyncScheduler
+    public static final int MAX_KEYS_PER_SYNC = Constants.DEBUG_KEYSERVER_SYNC ? 10 : 200;
+    // over Tor, each key takes at least ORBOT_CIRCUIT_TIMEOUT
+    public static final int MAX_KEYS_PER_STAGGERED_SYNC = Constants.DEBUG_KEYSERVER_SYNC ? 2 : 24;
+    // budget of a single sync: time spent importing keys, in ms
+    public static final long MAX_IMPORT_TIME =
+            Constants.DEBUG_KEYSERVER_SYNC
+                    ? TimeUnit.MINUTES.toMillis(1) : TimeUnit.MINUTES.toMillis(10);
+    // number of keys imported at once in a direct update
+    private static final int UPDATE_BATCH_SIZE = 20;
 
 
     private static final String ACTION_IGNORE_TOR = "ignore_tor";
@@ -238,44 +245,77 @@ public class KeyserverSyncAdapterService extends Service {
         new Thread(new Runnable() {
             @Override
             public void run() {
+                long requests = OkHttpClientFactory.getRequestCount();
+                long handshakes = OkHttpClientFactory.getHandshakeCount();
                 ImportKeyResult result = updateKeysFromKeyserver(context, cryptoInputParcel);
+                // includes any other keyserver traffic of the process in the meantime
+                Log.d(Constants.TAG, "Keyserver sync made "
+                        + (OkHttpClientFactory.getRequestCount() - requests) + " requests with "
+                        + (OkHttpClientFactory.getHandshakeCount() - handshakes)
+                        + " TLS handshakes");
                 handleUpdateResult(result);
             }
         }).start();
     }
 
+    // one sync at a time, they share mCancelled and the saved queue of the scheduler
     private synchronized ImportKeyResult updateKeysFromKeyserver(final Context context,
                                                                  final CryptoInputParcel cryptoInputParcel) {
         mCancelled.set(false);
 
-        ArrayList<ParcelableKeyRing> keyList = getKeysToUpdate(context);
+        // no explicit proxy, retrieve from preferences. Check if we should do a staggered sync
+        boolean staggered = cryptoInputParcel.getParcelableProxy() == null
+                && Preferences.getPreferences(context).getProxyPrefs().torEnabled;
 
-        if (isUpdateCancelled()) { // if we've already been cancelled
-            return new ImportKeyResult(OperationResult.RESULT_CANCELLED,
-                    new OperationResult.OperationLog());
-        }
+        KeyserverSyncScheduler scheduler = new KeyserverSyncScheduler(context,
+                staggered ? MAX_KEYS_PER_STAGGERED_SYNC : MAX_KEYS_PER_SYNC, MAX_IMPORT_TIME);
+        int numKeys = scheduler.loadQueue();
+        Log.d(Constants.TAG, "Keyserver sync: " + numKeys + " keys due for an update");
+
+        try {
+            if (isUpdateCancelled()) { // if we've already been cancelled
+                return new ImportKeyResult(OperationResult.RESULT_CANCELLED,
+                        new OperationResult.OperationLog());
+            }
 
-        if (cryptoInputParcel.getParcelableProxy() == null) {
-            // no explicit proxy, retrieve from preferences. Check if we should do a staggered sync
-            if (Preferences.getPreferences(context).getProxyPrefs().torEnabled) {
-                return staggeredUpdate(context, keyList, cryptoInputParcel);
+            if (staggered) {
+                return staggeredUpdate(context, scheduler, numKeys, cryptoInputParcel);
             } else {
-                return directUpdate(context, keyList, cryptoInputParcel);
+                return directUpdate(context, scheduler, numKeys, cryptoInputParcel);
             }
-        } else {
-            return directUpdate(context, keyList, cryptoInputParcel);
+        } finally {
+            // whatever is left over is preferred next time
+            scheduler.saveQueue();
         }
     }
 
-    private ImportKeyResult directUpdate(Context context, ArrayList<ParcelableKeyRing> keyList,
-                                         CryptoInputParcel cryptoInputParcel) {
+    private ImportKeyResult directUpdate(Context context, KeyserverSyncScheduler scheduler,
+                                         int numKeys, CryptoInputParcel cryptoInputParcel) {
         Log.d(Constants.TAG, "Starting normal update");
-        ImportOperation importOp = new ImportOperation(context, new ProviderHelper(context), null);
-        return importOp.execute(
-                new ImportKeyringParcel(keyList,
-                        Preferences.getPreferences(context).getPreferredKeyserver()),
-                cryptoInputParcel
-        );
+        ImportOperation.KeyImportAccumulator accumulator
+                = new ImportOperation.KeyImportAccumulator(numKeys, null);
+        while (scheduler.hasNext()) {
+            if (isUpdateCancelled()) {
+                return new ImportKeyResult(ImportKeyResult.RESULT_CANCELLED,
+                        new OperationResult.OperationLog());
+            }
+            ArrayList<ParcelableKeyRing> keyList = scheduler.next(UPDATE_BATCH_SIZE);
+            long start = SystemClock.elapsedRealtime();
+            ImportKeyResult result =
+                    new ImportOperation(context, new ProviderHelper(context), null, mCancelled)
+                            .execute(
+                                    new ImportKeyringParcel(keyList,
+                                            Preferences.getPreferences(context)
+                                                    .getPreferredKeyserver()),
+                                    cryptoInputParcel
+                            );
+            scheduler.spend(SystemClock.elapsedRealtime() - start);
+            if (result.isPending()) {
+                return result;
+            }
+            accumulator.accumulateKeyImport(result);
+        }
+        return accumulator.getConsolidatedResult();
     }
 
 
@@ -286,16 +326,18 @@ public class KeyserverSyncAdapterService extends Service {
      *
      * @return result of the sync
      */
-    private ImportKeyResult staggeredUpdate(Context context, ArrayList<ParcelableKeyRing> keyList,
-                                            CryptoInputParcel cryptoInputParcel) {
+    private ImportKeyResult staggeredUpdate(Context context, KeyserverSyncScheduler scheduler,
+                                            int numKeys, CryptoInputParcel cryptoInputParcel) {
         Log.d(Constants.TAG, "Starting staggered update");
         // final int WEEK_IN_SECONDS = (int) TimeUnit.DAYS.toSeconds(7);
         final int WEEK_IN_SECONDS = 0;
         ImportOperation.KeyImportAccumulator accumulator
-                = new ImportOperation.KeyImportAccumulator(keyList.size(), null);
-        for (ParcelableKeyRing keyRing : keyList) {
+                = new ImportOperation.KeyImportAccumulator(numKeys, null);
+        while (scheduler.hasNext()) {
+            ArrayList<ParcelableKeyRing> keyWrapper = scheduler.next(1);
+            ParcelableKeyRing keyRing = keyWrapper.get(0);
             int waitTime;
-            int staggeredTime = new Random().nextInt(1 + 2 * (WEEK_IN_SECONDS / keyList.size()));
+            int staggeredTime = new Random().nextInt(1 + 2 * (WEEK_IN_SECONDS / numKeys));
             if (staggeredTime >= ORBOT_CIRCUIT_TIMEOUT) {
                 waitTime = staggeredTime;
             } else {
@@ -310,12 +352,14 @@ public class KeyserverSyncAdapterService extends Service {
                 // skip this one
                 continue;
             }
-            ArrayList<ParcelableKeyRing> keyWrapper = new ArrayList<>();
-            keyWrapper.add(keyRing);
+            // each key must be fetched over a new circuit, so don't reuse a connection. these
+            // are usually evicted during the wait already, but that's not guaranteed
+            OkHttpClientFactory.evictIdleConnections();
             if (isUpdateCancelled()) {
                 return new ImportKeyResult(ImportKeyResult.RESULT_CANCELLED,
                         new OperationResult.OperationLog());
             }
+            long start = SystemClock.elapsedRealtime();
             ImportKeyResult result =
                     new ImportOperation(context, new ProviderHelper(context), null, mCancelled)
                             .execute(
@@ -326,6 +370,7 @@ public class KeyserverSyncAdapterService extends Service {
                                     ),
                                     cryptoInputParcel
                             );
+            scheduler.spend(SystemClock.elapsedRealtime() - start);
             if (result.isPending()) {
                 return result;
             }
@@ -334,79 +379,6 @@ public class KeyserverSyncAdapterService extends Service {
         return accumulator.getConsolidatedResult();
     }
 
-    /**
-     * 1. Get keys which have been updated recently and therefore do not need to
-     * be updated now
-     * 2. Get list of all keys and filter out ones that don't need to be updated
-     * 3. Return keys to be updated
-     *
-     * @return list of keys that require update
-     */
-    private ArrayList<ParcelableKeyRing> getKeysToUpdate(Context context) {
-
-        // 1. Get keys which have been updated recently and don't need to updated now
-        final int INDEX_UPDATED_KEYS_MASTER_KEY_ID = 0;
-        final int INDEX_LAST_UPDATED = 1;
-
-        // all time in seconds not milliseconds
-        final long CURRENT_TIME = GregorianCalendar.getInstance().getTimeInMillis() / 1000;
-        Cursor updatedKeysCursor = context.getContentResolver().query(
-                KeychainContract.UpdatedKeys.CONTENT_URI,
-                new String[]{
-                        KeychainContract.UpdatedKeys.MASTER_KEY_ID,
-                        KeychainContract.UpdatedKeys.LAST_UPDATED
-                },
-                "? - " + KeychainContract.UpdatedKeys.LAST_UPDATED + " < " + KEY_UPDATE_LIMIT,
-                new String[]{"" + CURRENT_TIME},
-                null
-        );
-
-        ArrayList<Long> ignoreMasterKeyIds = new ArrayList<>();
-        while (updatedKeysCursor.moveToNext()) {
-            long masterKeyId = updatedKeysCursor.getLong(INDEX_UPDATED_KEYS_MASTER_KEY_ID);
-            Log.d(Constants.TAG, "Keyserver sync: Ignoring {" + masterKeyId + "} last updated at {"
-                    + updatedKeysCursor.getLong(INDEX_LAST_UPDATED) + "}s");
-            ignoreMasterKeyIds.add(masterKeyId);
-        }
-        updatedKeysCursor.close();
-
-        // 2. Make a list of public keys which should be updated
-        final int INDEX_MASTER_KEY_ID = 0;
-        final int INDEX_FINGERPRINT = 1;
-        Cursor keyCursor = context.getContentResolver().query(
-                KeychainContract.KeyRings.buildUnifiedKeyRingsUri(),
-                new String[]{
-                        KeychainContract.KeyRings.MASTER_KEY_ID,
-                        KeychainContract.KeyRings.FINGERPRINT
-                },
-                null,
-                null,
-                null
-        );
-
-        if (keyCursor == null) {
-            return new ArrayList<>();
-        }
-
-        ArrayList<ParcelableKeyRing> keyList = new ArrayList<>();
-        while (keyCursor.moveToNext()) {
-            long keyId = keyCursor.getLong(INDEX_MASTER_KEY_ID);
-            if (ignoreMasterKeyIds.contains(keyId)) {
-                continue;
-            }
-            Log.d(Constants.TAG, "Keyserver sync: Updating {" + keyId + "}");
-            String fingerprint = KeyFormattingUtils
-                    .convertFingerprintToHex(keyCursor.getBlob(INDEX_FINGERPRINT));
-            String hexKeyId = KeyFormattingUtils
-                    .convertKeyIdToHex(keyId);
-            // we aren't updating from keybase as of now
-            keyList.add(new ParcelableKeyRing(fingerprint, hexKeyId, null));
-        }
-        keyCursor.close();
-
-        return keyList;
-    }
-
     private boolean isUpdateCancelled() {
         return mCancelled.get();
     }
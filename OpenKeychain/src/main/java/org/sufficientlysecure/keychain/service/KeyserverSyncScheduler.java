@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.service;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import org.spongycastle.util.encoders.Hex;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyUsage;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UpdatedKeys;
+import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
+import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.ParcelableFileCache;
+import org.sufficientlysecure.keychain.util.ParcelableFileCache.IteratorWithSize;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides which keys a keyserver sync updates, and in which order.
+ *
+ * All keys which were not updated within KEY_UPDATE_LIMIT are due. They are ranked by how
+ * long ago they were updated, how recently they were used to encrypt to or to verify a
+ * signature, and how close they are to their expiry date, since those are the keys for which
+ * an update is most likely to matter. A sync takes keys from the top of the ranking for as
+ * long as its budget of keys and import time lasts.
+ *
+ * The keys left over are saved with the cache files, and ranked higher in the next sync, so
+ * that a small budget can't starve keys which never make it to the top on their own.
+ */
+class KeyserverSyncScheduler {
+
+    private static final String QUEUE_CACHE_FILENAME = "keyserver_sync_queue.pcl";
+
+    // how much each aspect adds to the priority of a key, at most
+    static final double MAX_STALENESS_PRIORITY = 4;
+    static final double MAX_USAGE_PRIORITY = 2;
+    static final double MAX_EXPIRY_PRIORITY = 2;
+    static final double DEFERRED_PRIORITY = 1;
+    // keys used or expiring within this time, in s, get a higher priority
+    static final long USAGE_HORIZON = TimeUnit.DAYS.toSeconds(30);
+    static final long EXPIRY_HORIZON = TimeUnit.DAYS.toSeconds(30);
+
+    private final Context mContext;
+    private final ParcelableFileCache<ParcelableKeyRing> mQueueCache;
+
+    private ArrayList<ParcelableKeyRing> mQueue = new ArrayList<>();
+    private int mPosition = 0;
+    private int mKeysLeft;
+    private long mImportMillisLeft;
+
+    /**
+     * @param maxKeys          maximum number of keys to be updated in this sync
+     * @param maxImportMillis  import time in ms after which no more keys are updated
+     */
+    KeyserverSyncScheduler(Context context, int maxKeys, long maxImportMillis) {
+        mContext = context;
+        mQueueCache = new ParcelableFileCache<>(context, QUEUE_CACHE_FILENAME);
+        mKeysLeft = maxKeys;
+        mImportMillisLeft = maxImportMillis;
+    }
+
+    /** Ranks all keys which are due for an update, and returns their number. */
+    int loadQueue() {
+        // all time in seconds not milliseconds
+        long now = System.currentTimeMillis() / 1000;
+
+        HashSet<Long> ignoreMasterKeyIds = new HashSet<>();
+        HashMap<Long, Long> lastUpdatedTimes = new HashMap<>();
+        Cursor updatedKeysCursor = mContext.getContentResolver().query(UpdatedKeys.CONTENT_URI,
+                new String[]{ UpdatedKeys.MASTER_KEY_ID, UpdatedKeys.LAST_UPDATED },
+                null, null, null);
+        if (updatedKeysCursor != null) {
+            while (updatedKeysCursor.moveToNext()) {
+                long masterKeyId = updatedKeysCursor.getLong(0);
+                long lastUpdated = updatedKeysCursor.getLong(1);
+                if (now - lastUpdated < KeyserverSyncAdapterService.KEY_UPDATE_LIMIT) {
+                    Log.d(Constants.TAG, "Keyserver sync: Ignoring {" + masterKeyId
+                            + "} last updated at {" + lastUpdated + "}s");
+                    ignoreMasterKeyIds.add(masterKeyId);
+                } else {
+                    lastUpdatedTimes.put(masterKeyId, lastUpdated);
+                }
+            }
+            updatedKeysCursor.close();
+        }
+
+        HashMap<Long, Long> lastUsedTimes = new HashMap<>();
+        Cursor keyUsageCursor = mContext.getContentResolver().query(KeyUsage.CONTENT_URI,
+                new String[]{ KeyUsage.MASTER_KEY_ID, KeyUsage.LAST_USED },
+                null, null, null);
+        if (keyUsageCursor != null) {
+            while (keyUsageCursor.moveToNext()) {
+                lastUsedTimes.put(keyUsageCursor.getLong(0), keyUsageCursor.getLong(1));
+            }
+            keyUsageCursor.close();
+        }
+
+        HashSet<Long> deferredMasterKeyIds = readDeferredMasterKeyIds();
+
+        final HashMap<ParcelableKeyRing, Double> priorities = new HashMap<>();
+        Cursor keyCursor = mContext.getContentResolver().query(
+                KeyRings.buildUnifiedKeyRingsUri(),
+                new String[]{ KeyRings.MASTER_KEY_ID, KeyRings.FINGERPRINT, KeyRings.EXPIRY },
+                null, null, null);
+        if (keyCursor == null) {
+            return 0;
+        }
+        while (keyCursor.moveToNext()) {
+            long masterKeyId = keyCursor.getLong(0);
+            if (ignoreMasterKeyIds.contains(masterKeyId)) {
+                continue;
+            }
+            String fingerprint = KeyFormattingUtils.convertFingerprintToHex(keyCursor.getBlob(1));
+            String hexKeyId = KeyFormattingUtils.convertKeyIdToHex(masterKeyId);
+            // we aren't updating from keybase as of now
+            ParcelableKeyRing keyRing = new ParcelableKeyRing(fingerprint, hexKeyId, null);
+            priorities.put(keyRing, getPriority(now, lastUpdatedTimes.get(masterKeyId),
+                    lastUsedTimes.get(masterKeyId), keyCursor.isNull(2) ? null : keyCursor.getLong(2),
+                    deferredMasterKeyIds.contains(masterKeyId)));
+            mQueue.add(keyRing);
+        }
+        keyCursor.close();
+
+        Collections.sort(mQueue, new Comparator<ParcelableKeyRing>() {
+            @Override
+            public int compare(ParcelableKeyRing lhs, ParcelableKeyRing rhs) {
+                return Double.compare(priorities.get(rhs), priorities.get(lhs));
+            }
+        });
+        mPosition = 0;
+        return mQueue.size();
+    }
+
+    /**
+     * Returns the priority of updating a key, higher is more urgent. All times are in seconds
+     * since the epoch, and null if unknown.
+     */
+    static double getPriority(long now, Long lastUpdated, Long lastUsed, Long expiry,
+                              boolean deferred) {
+        double priority = lastUpdated == null ? MAX_STALENESS_PRIORITY : Math.min(
+                MAX_STALENESS_PRIORITY,
+                (now - lastUpdated) / (double) KeyserverSyncAdapterService.KEY_UPDATE_LIMIT);
+        if (lastUsed != null) {
+            priority += MAX_USAGE_PRIORITY
+                    * Math.max(0, 1 - (now - lastUsed) / (double) USAGE_HORIZON);
+        }
+        // an expired key may have been extended, that's as interesting as an expiring one
+        if (expiry != null) {
+            priority += MAX_EXPIRY_PRIORITY
+                    * Math.max(0, 1 - Math.abs(expiry - now) / (double) EXPIRY_HORIZON);
+        }
+        if (deferred) {
+            priority += DEFERRED_PRIORITY;
+        }
+        return priority;
+    }
+
+    /** Returns true if there are keys left in the queue, and budget left to update them. */
+    boolean hasNext() {
+        return mPosition < mQueue.size() && mKeysLeft > 0 && mImportMillisLeft > 0;
+    }
+
+    /** Takes up to batchSize keys from the queue, as far as the budget of keys allows. */
+    ArrayList<ParcelableKeyRing> next(int batchSize) {
+        int end = Math.min(mQueue.size(), mPosition + Math.min(batchSize, mKeysLeft));
+        ArrayList<ParcelableKeyRing> batch = new ArrayList<>(mQueue.subList(mPosition, end));
+        mPosition = end;
+        mKeysLeft -= batch.size();
+        return batch;
+    }
+
+    /** Accounts for the time it took to import a batch of keys. */
+    void spend(long importMillis) {
+        mImportMillisLeft -= importMillis;
+    }
+
+    /** Saves the keys which are still in the queue for the next sync. */
+    void saveQueue() {
+        final List<ParcelableKeyRing> remaining = mQueue.subList(mPosition, mQueue.size());
+        Log.d(Constants.TAG, "Keyserver sync: deferring " + remaining.size() + " keys");
+        try {
+            mQueueCache.writeCache(remaining.size(), remaining.iterator());
+        } catch (IOException e) {
+            // they'll just not be preferred next time
+            Log.e(Constants.TAG, "could not save keyserver sync queue", e);
+        }
+    }
+
+    private HashSet<Long> readDeferredMasterKeyIds() {
+        HashSet<Long> masterKeyIds = new HashSet<>();
+        if (!mQueueCache.exists()) {
+            return masterKeyIds;
+        }
+        try {
+            IteratorWithSize<ParcelableKeyRing> it = mQueueCache.readCache();
+            while (it.hasNext()) {
+                ParcelableKeyRing keyRing = it.next();
+                masterKeyIds.add(KeyFormattingUtils.getKeyIdFromFingerprint(
+                        Hex.decode(keyRing.mExpectedFingerprint)));
+            }
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "could not read keyserver sync queue", e);
+        }
+        return masterKeyIds;
+    }
+
+}
@@ -91,6 +91,8 @@ public class PassphraseCacheService extends Service {
 
     public static final String BROADCAST_ACTION_PASSPHRASE_CACHE_SERVICE = Constants.INTENT_PREFIX
             + "PASSPHRASE_CACHE_BROADCAST";
+    public static final String BROADCAST_ACTION_PASSPHRASE_CACHE_CLEARED = Constants.INTENT_PREFIX
+            + "PASSPHRASE_CACHE_CLEARED";
 
     public static final String EXTRA_TTL = "ttl";
     public static final String EXTRA_KEY_ID = "key_id";
@@ -332,11 +334,36 @@ public class PassphraseCacheService extends Service {
         }
     }
 
+    /**
+     * Sends a broadcast about cleared passphrases to the other processes of OpenKeychain. It
+     * is not sent to other apps, and only receivers registered with registerCacheReceiver get it.
+     */
+    public static void sendCacheBroadcast(Context context, Intent intent) {
+        intent.setPackage(context.getPackageName());
+        context.sendBroadcast(intent, getCacheBroadcastPermission(context));
+    }
+
+    /**
+     * Registers a receiver for timed out and cleared passphrases, in any process of OpenKeychain.
+     * The broadcasts are protected by a signature-level permission, so other apps can't send them.
+     */
+    public static void registerCacheReceiver(Context context, BroadcastReceiver receiver) {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(BROADCAST_ACTION_PASSPHRASE_CACHE_SERVICE);
+        filter.addAction(BROADCAST_ACTION_PASSPHRASE_CACHE_CLEARED);
+        context.registerReceiver(receiver, filter, getCacheBroadcastPermission(context), null);
+    }
+
+    private static String getCacheBroadcastPermission(Context context) {
+        return context.getPackageName() + ".PASSPHRASE_CACHE_BROADCAST";
+    }
+
     /**
      * Build pending intent that is executed by alarm manager to time out a specific passphrase
      */
     private static PendingIntent buildIntent(Context context, long referenceKeyId) {
         Intent intent = new Intent(BROADCAST_ACTION_PASSPHRASE_CACHE_SERVICE);
+        intent.setPackage(context.getPackageName());
         intent.putExtra(EXTRA_KEY_ID, referenceKeyId);
         // request code should be unique for each PendingIntent, thus keyId is used
         return PendingIntent.getBroadcast(context, (int) referenceKeyId, intent,
@@ -431,6 +458,11 @@ public class PassphraseCacheService extends Service {
                     am.cancel(buildIntent(this, referenceKeyId));
                     mPassphraseCache.delete(referenceKeyId);
 
+                    // tell other processes to drop the unlocked key, see UnlockedKeyCache
+                    Intent clearedIntent = new Intent(BROADCAST_ACTION_PASSPHRASE_CACHE_CLEARED);
+                    clearedIntent.putExtra(EXTRA_KEY_ID, referenceKeyId);
+                    sendCacheBroadcast(this, clearedIntent);
+
                 } else {
 
                     // Stop all ttl alarms
@@ -439,6 +471,8 @@ public class PassphraseCacheService extends Service {
                     }
                     mPassphraseCache.clear();
 
+                    sendCacheBroadcast(this, new Intent(BROADCAST_ACTION_PASSPHRASE_CACHE_CLEARED));
+
                 }
                 break;
             }
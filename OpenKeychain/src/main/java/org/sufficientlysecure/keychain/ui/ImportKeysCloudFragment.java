@@ -53,6 +53,9 @@ public class ImportKeysCloudFragment extends Fragment {
     private AutoCompleteTextView mQueryEditText;
     private View mConfigButton;
 
+    // the query whose results are shown
+    private String mLastQuery;
+
     /**
      * Creates new instance of this fragment
      *
@@ -168,8 +171,11 @@ public class ImportKeysCloudFragment extends Fragment {
             // assume we are also meant to search keybase.io
             cloudSearchPrefs = new Preferences.CloudSearchPrefs(true, true, explicitKeyserver);
         }
+        // searching for the shown query again means the user wants fresh results
+        boolean refresh = query.trim().equals(mLastQuery);
+        mLastQuery = query.trim();
         mImportActivity.loadCallback(
-                new ImportKeysListFragment.CloudLoaderState(query, cloudSearchPrefs));
+                new ImportKeysListFragment.CloudLoaderState(query, cloudSearchPrefs, refresh));
         toggleKeyboard(false);
     }
 
@@ -191,10 +191,20 @@ public class ImportKeysListFragment extends ListFragment implements
     static public class CloudLoaderState extends LoaderState {
         Preferences.CloudSearchPrefs mCloudPrefs;
         String mServerQuery;
+        boolean mRefresh;
 
         CloudLoaderState(String serverQuery, Preferences.CloudSearchPrefs cloudPrefs) {
+            this(serverQuery, cloudPrefs, false);
+        }
+
+        /**
+         * @param refresh if true, cached results for this query are not used
+         */
+        CloudLoaderState(String serverQuery, Preferences.CloudSearchPrefs cloudPrefs,
+                         boolean refresh) {
             mServerQuery = serverQuery;
             mCloudPrefs = cloudPrefs;
+            mRefresh = refresh;
         }
     }
 
@@ -310,8 +320,11 @@ public class ImportKeysListFragment extends ListFragment implements
             }
             case LOADER_ID_CLOUD: {
                 CloudLoaderState ls = (CloudLoaderState) mLoaderState;
+                boolean refresh = ls.mRefresh;
+                // don't refresh again when the loader is only restarted
+                ls.mRefresh = false;
                 return new ImportKeysListCloudLoader(getActivity(), ls.mServerQuery, ls.mCloudPrefs,
-                        mParcelableProxy);
+                        mParcelableProxy, refresh);
             }
 
             default:
@@ -344,6 +357,10 @@ public class ImportKeysListFragment extends ListFragment implements
         mCachedKeyData = null;
 
         GetKeyResult getKeyResult = (GetKeyResult) data.getOperationResult();
+        if (getKeyResult == null) {
+            // partial result of a cloud search which is still running
+            return;
+        }
         switch (loader.getId()) {
             case LOADER_ID_BYTES:
 
@@ -270,27 +270,15 @@ public class KeyListFragment extends LoaderFragment
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
         // This is called when a new Loader needs to be created. This
         // sample only has one Loader, so we don't care about the ID.
-        Uri baseUri = KeyRings.buildUnifiedKeyRingsUri();
-        String where = null;
-        String whereArgs[] = null;
-        if (mQuery != null) {
-            String[] words = mQuery.trim().split("\\s+");
-            whereArgs = new String[words.length];
-            for (int i = 0; i < words.length; ++i) {
-                if (where == null) {
-                    where = "";
-                } else {
-                    where += " AND ";
-                }
-                where += KeyRings.USER_ID + " LIKE ?";
-                whereArgs[i] = "%" + words[i] + "%";
-            }
-        }
+        // full text search if there is a query, see KeychainProvider.buildSearchMatch. results
+        // are not ranked here, the sticky headers need them in alphabetical order
+        Uri baseUri = TextUtils.isEmpty(mQuery) ? KeyRings.buildUnifiedKeyRingsUri()
+                : KeyRings.buildUnifiedKeyRingsFindByQueryUri(mQuery);
 
         // Now create and return a CursorLoader that will take care of
         // creating a Cursor for the data being displayed.
         return new CursorLoader(getActivity(), baseUri,
-                KeyListAdapter.PROJECTION, where, whereArgs, ORDER);
+                KeyListAdapter.PROJECTION, null, null, ORDER);
     }
 
     @Override
@@ -252,7 +252,9 @@ public class SelectPublicKeyFragment extends ListFragmentWorkaround implements T
 
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        Uri baseUri = KeyRings.buildUnifiedKeyRingsUri();
+        // full text search if there is a query, see KeychainProvider.buildSearchMatch
+        Uri baseUri = TextUtils.isEmpty(mQuery) ? KeyRings.buildUnifiedKeyRingsUri()
+                : KeyRings.buildUnifiedKeyRingsFindByQueryUri(mQuery);
 
         // These are the rows that we will retrieve.
         String[] projection = new String[]{
@@ -265,6 +267,7 @@ public class SelectPublicKeyFragment extends ListFragmentWorkaround implements T
                 KeyRings.VERIFIED,
                 KeyRings.HAS_DUPLICATE_USER_ID,
                 KeyRings.CREATION,
+                KeyRings.SEARCH_RANK,
         };
 
         String inMasterKeyList = null;
@@ -279,30 +282,16 @@ public class SelectPublicKeyFragment extends ListFragmentWorkaround implements T
             inMasterKeyList += ")";
         }
 
-        String orderBy = KeyRings.USER_ID + " ASC";
+        // best matches first, this is always 0 without a query
+        String orderBy = KeyRings.SEARCH_RANK + " DESC, " + KeyRings.USER_ID + " ASC";
         if (inMasterKeyList != null) {
             // sort by selected master keys
             orderBy = inMasterKeyList + " DESC, " + orderBy;
         }
-        String where = null;
-        String whereArgs[] = null;
-        if (mQuery != null) {
-            String[] words = mQuery.trim().split("\\s+");
-            whereArgs = new String[words.length];
-            for (int i = 0; i < words.length; ++i) {
-                if (where == null) {
-                    where = "";
-                } else {
-                    where += " AND ";
-                }
-                where += KeyRings.USER_ID + " LIKE ?";
-                whereArgs[i] = "%" + words[i] + "%";
-            }
-        }
 
         // Now create and return a CursorLoader that will take care of
         // creating a Cursor for the data being displayed.
-        return new CursorLoader(getActivity(), baseUri, projection, where, whereArgs, orderBy);
+        return new CursorLoader(getActivity(), baseUri, projection, null, null, orderBy);
     }
 
     @Override
@@ -106,6 +106,9 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
             initializePassphraseCacheSubs(
                     (CheckBoxPreference) findPreference(Constants.Pref.PASSPHRASE_CACHE_SUBS));
 
+            initializePassphraseCacheUnlockedKeys(
+                    (CheckBoxPreference) findPreference(Constants.Pref.PASSPHRASE_CACHE_UNLOCKED_KEYS));
+
             initializePassphraseCacheTtl(
                     (IntegerListPreference) findPreference(Constants.Pref.PASSPHRASE_CACHE_TTL));
 
@@ -234,6 +237,9 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
             initializePassphraseCacheSubs(
                     (CheckBoxPreference) findPreference(Constants.Pref.PASSPHRASE_CACHE_SUBS));
 
+            initializePassphraseCacheUnlockedKeys(
+                    (CheckBoxPreference) findPreference(Constants.Pref.PASSPHRASE_CACHE_UNLOCKED_KEYS));
+
             initializePassphraseCacheTtl(
                     (IntegerListPreference) findPreference(Constants.Pref.PASSPHRASE_CACHE_TTL));
 
@@ -599,6 +605,18 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
         });
     }
 
+    private static void initializePassphraseCacheUnlockedKeys(
+            final CheckBoxPreference mPassphraseCacheUnlockedKeys) {
+        mPassphraseCacheUnlockedKeys.setChecked(sPreferences.getPassphraseCacheUnlockedKeys());
+        mPassphraseCacheUnlockedKeys.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+            public boolean onPreferenceChange(Preference preference, Object newValue) {
+                mPassphraseCacheUnlockedKeys.setChecked((Boolean) newValue);
+                sPreferences.setPassphraseCacheUnlockedKeys((Boolean) newValue);
+                return false;
+            }
+        });
+    }
+
     private static void initializePassphraseCacheTtl(final IntegerListPreference mPassphraseCacheTtl) {
         mPassphraseCacheTtl.setValue("" + sPreferences.getPassphraseCacheTtl());
         mPassphraseCacheTtl.setSummary(mPassphraseCacheTtl.getEntry());
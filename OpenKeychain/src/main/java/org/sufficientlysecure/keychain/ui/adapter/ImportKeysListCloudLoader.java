@@ -18,11 +18,16 @@
 package org.sufficientlysecure.keychain.ui.adapter;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.support.v4.content.AsyncTaskLoader;
 
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.keyimport.CloudSearch;
+import org.sufficientlysecure.keychain.keyimport.CloudSearchCache;
+import org.sufficientlysecure.keychain.keyimport.ImportKeysList;
 import org.sufficientlysecure.keychain.keyimport.ImportKeysListEntry;
 import org.sufficientlysecure.keychain.keyimport.Keyserver;
 import org.sufficientlysecure.keychain.operations.results.GetKeyResult;
@@ -38,16 +43,25 @@ import java.util.ArrayList;
 
 public class ImportKeysListCloudLoader
         extends AsyncTaskLoader<AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>> {
+    // minimum time between two deliveries of partial results
+    private static final long PARTIAL_RESULT_INTERVAL_MS = 300;
+
     Context mContext;
 
 
     Preferences.CloudSearchPrefs mCloudPrefs;
     String mServerQuery;
     private ParcelableProxy mParcelableProxy;
+    private boolean mRefresh;
 
     private ArrayList<ImportKeysListEntry> mEntryList = new ArrayList<>();
     private AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> mEntryListWrapper;
 
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // identifies the running search, partial results of any other search are dropped
+    private volatile Object mCurrentSearch;
+    private long mLastPartialResultTime;
+
     /**
      * Searches a keyserver as specified in cloudPrefs, using an explicit proxy if passed
      *
@@ -56,14 +70,16 @@ public class ImportKeysListCloudLoader
      * @param cloudPrefs      contains keyserver to search on, whether to search on the keyserver,
      *                        and whether to search keybase.io
      * @param parcelableProxy explicit proxy to use. If null, will retrieve from preferences
+     * @param refresh         if true, cached results are not used, but replaced
      */
     public ImportKeysListCloudLoader(Context context, String serverQuery, Preferences.CloudSearchPrefs cloudPrefs,
-                                     @Nullable ParcelableProxy parcelableProxy) {
+                                     @Nullable ParcelableProxy parcelableProxy, boolean refresh) {
         super(context);
         mContext = context;
         mServerQuery = serverQuery;
         mCloudPrefs = cloudPrefs;
         mParcelableProxy = parcelableProxy;
+        mRefresh = refresh;
     }
 
     @Override
@@ -132,11 +148,34 @@ public class ImportKeysListCloudLoader
             parcelableProxy = mParcelableProxy;
         }
 
+        final Object search = new Object();
+        mCurrentSearch = search;
+        synchronized (this) {
+            mLastPartialResultTime = 0;
+        }
+        // with an enforced fingerprint check, only the complete result is meaningful
+        CloudSearch.ProgressListener progressListener = enforceFingerprint ? null
+                : new CloudSearch.ProgressListener() {
+                    @Override
+                    public void onResultsChanged(ImportKeysList results) {
+                        deliverPartialResult(search, results);
+                    }
+                };
+
+        CloudSearchCache cache = CloudSearchCache.getInstance(mContext);
+        if (mRefresh) {
+            cache.invalidate(mServerQuery, mCloudPrefs);
+            // only the first load of this loader is a refresh
+            mRefresh = false;
+        }
+
         try {
             ArrayList<ImportKeysListEntry> searchResult = CloudSearch.search(
                     mServerQuery,
                     mCloudPrefs,
-                    parcelableProxy.getProxy()
+                    parcelableProxy.getProxy(),
+                    progressListener,
+                    cache
             );
 
             mEntryList.clear();
@@ -181,6 +220,33 @@ public class ImportKeysListCloudLoader
             log.add(logType, 0);
             GetKeyResult getKeyResult = new GetKeyResult(error, log);
             mEntryListWrapper = new AsyncTaskResultWrapper<>(mEntryList, getKeyResult);
+        } finally {
+            mCurrentSearch = null;
+        }
+    }
+
+    /**
+     * Delivers the results found so far, without an operation result, so the first keys can be
+     * shown while the search is still running. Called on the search threads, and rate limited
+     * so that the list isn't rebuilt for every single key.
+     */
+    private synchronized void deliverPartialResult(final Object search, ImportKeysList results) {
+        long now = SystemClock.elapsedRealtime();
+        if (mLastPartialResultTime != 0 && now - mLastPartialResultTime < PARTIAL_RESULT_INTERVAL_MS) {
+            return;
         }
+        mLastPartialResultTime = now;
+
+        final AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> partialResult =
+                new AsyncTaskResultWrapper<>(results.snapshot(), null);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // the search may have finished or been replaced in the meantime
+                if (mCurrentSearch == search && isStarted()) {
+                    deliverResult(partialResult);
+                }
+            }
+        });
     }
 }
@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URL;
 
 import android.app.Activity;
 import android.support.design.widget.TextInputLayout;
@@ -55,9 +56,9 @@ import com.squareup.okhttp.Request;
 
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
-import org.sufficientlysecure.keychain.keyimport.HkpKeyserver;
 import org.sufficientlysecure.keychain.ui.util.Notify;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.OkHttpClientFactory;
 import org.sufficientlysecure.keychain.util.Preferences;
 import org.sufficientlysecure.keychain.util.TlsHelper;
 import org.sufficientlysecure.keychain.util.orbot.OrbotHelper;
@@ -354,22 +355,20 @@ public class AddEditKeyserverDialogFragment extends DialogFragment implements On
 
                     Log.d("Converted URL", newKeyserver.toString());
 
-                    OkHttpClient client = HkpKeyserver.getClient(newKeyserver.toURL(), proxy);
-
-                    // don't follow any redirects
-                    client.setFollowRedirects(false);
-                    client.setFollowSslRedirects(false);
-
-                    if (onlyTrustedKeyserver
-                            && !TlsHelper.usePinnedCertificateIfAvailable(client, newKeyserver.toURL())) {
-                        Log.w(Constants.TAG, "No pinned certificate for this host in OpenKeychain's assets.");
-                        reason = FailureReason.NO_PINNED_CERTIFICATE;
-                        return reason;
+                    URL url = newKeyserver.toURL();
+                    OkHttpClient client;
+                    if (onlyTrustedKeyserver) {
+                        if (TlsHelper.getPinnedHost(url) == null) {
+                            Log.w(Constants.TAG, "No pinned certificate for this host in OpenKeychain's assets.");
+                            reason = FailureReason.NO_PINNED_CERTIFICATE;
+                            return reason;
+                        }
+                        client = OkHttpClientFactory.getPinnedClient(url, proxy);
+                    } else {
+                        client = OkHttpClientFactory.getClient(url, proxy);
                     }
 
-                    client.newCall(new Request.Builder().url(newKeyserver.toURL()).build()).execute();
-                } catch (TlsHelper.TlsHelperException e) {
-                    reason = FailureReason.CONNECTION_FAILED;
+                    client.newCall(new Request.Builder().url(url).build()).execute().body().close();
                 } catch (MalformedURLException | URISyntaxException e) {
                     Log.w(Constants.TAG, "Invalid keyserver URL entered by user.");
                     reason = FailureReason.INVALID_URL;
@@ -19,6 +19,8 @@ package org.sufficientlysecure.keychain.util;
 
 import android.content.Context;
 
+import org.sufficientlysecure.keychain.keyimport.CloudSearch;
+import org.sufficientlysecure.keychain.keyimport.CloudSearchCache;
 import org.sufficientlysecure.keychain.keyimport.HkpKeyserver;
 import org.sufficientlysecure.keychain.keyimport.ImportKeysListEntry;
 import org.sufficientlysecure.keychain.keyimport.Keyserver;
@@ -70,13 +72,15 @@ public class EmailKeyHelper {
 
     public static Set<ImportKeysListEntry> getEmailKeys(Context context, String mail, Proxy proxy) {
         Set<ImportKeysListEntry> keys = new HashSet<>();
+        // contacts are imported again and again, so don't search for the same mails every time
+        CloudSearchCache cache = CloudSearchCache.getInstance(context);
 
         // Try _hkp._tcp SRV record first
         String[] mailparts = mail.split("@");
         if (mailparts.length == 2) {
             HkpKeyserver hkp = HkpKeyserver.resolve(mailparts[1]);
             if (hkp != null) {
-                keys.addAll(getEmailKeys(mail, hkp, proxy));
+                keys.addAll(getEmailKeys(mail, hkp, proxy, cache));
             }
         }
 
@@ -84,18 +88,21 @@ public class EmailKeyHelper {
             // Most users don't have the SRV record, so ask a default server as well
             String server = Preferences.getPreferences(context).getPreferredKeyserver();
             if (server != null) {
-                HkpKeyserver hkp = new HkpKeyserver(server);
-                keys.addAll(getEmailKeys(mail, hkp, proxy));
+                keys.addAll(getEmailKeys(mail, new HkpKeyserver(server), proxy, cache));
             }
         }
         return keys;
     }
 
-    public static List<ImportKeysListEntry> getEmailKeys(String mail, Keyserver keyServer,
-                                                         Proxy proxy) {
+    /**
+     * @param keyserver the keyserver to search on
+     * @param cache     cache for the search results, or null
+     */
+    public static List<ImportKeysListEntry> getEmailKeys(String mail, HkpKeyserver keyserver,
+                                                         Proxy proxy, CloudSearchCache cache) {
         Set<ImportKeysListEntry> keys = new HashSet<>();
         try {
-            for (ImportKeysListEntry key : keyServer.search(mail, proxy)) {
+            for (ImportKeysListEntry key : CloudSearch.search(mail, keyserver, proxy, cache)) {
                 if (key.isRevoked() || key.isExpired()) continue;
                 for (String userId : key.getUserIds()) {
                     if (userId.toLowerCase().contains(mail.toLowerCase(Locale.ENGLISH))) {
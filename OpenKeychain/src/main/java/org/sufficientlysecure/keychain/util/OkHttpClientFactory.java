@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Response;
+
+import org.sufficientlysecure.keychain.Constants;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Proxy;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Process-wide registry of OkHttpClients for keyserver traffic.
+ *
+ * There is one client per proxy and pinned certificate, and all of them share a single
+ * bounded connection pool. Consecutive requests to the same keyserver, e.g. all keys of a
+ * keyserver sync, can therefore reuse a kept-alive connection instead of doing a new TCP
+ * and TLS handshake (and with Orbot, a new circuit) each time. Idle connections are closed
+ * by the pool after KEEP_ALIVE_DURATION_MS.
+ *
+ * The returned clients are shared, they must not be modified! Use clone() for a client
+ * with different settings, which still uses the same connection pool.
+ */
+public class OkHttpClientFactory {
+
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+    private static final long KEEP_ALIVE_DURATION_MS = TimeUnit.MINUTES.toMillis(2);
+
+    private static final ConnectionPool sConnectionPool =
+            new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_DURATION_MS);
+    // by proxy and host of the pinned certificate
+    private static final HashMap<List<Object>, OkHttpClient> sClients = new HashMap<>();
+
+    private static final AtomicLong sRequestCount = new AtomicLong();
+    private static final AtomicLong sHandshakeCount = new AtomicLong();
+
+    /**
+     * Returns a client for url, with a pinned certificate if we have one for its host.
+     *
+     * @param url   url to be queried by client
+     * @param proxy proxy to be used by client, or null for a direct connection
+     */
+    public static OkHttpClient getClient(URL url, Proxy proxy) {
+        String pinnedHost = TlsHelper.getPinnedHost(url);
+        if (pinnedHost != null) {
+            try {
+                return getClient(proxy, pinnedHost);
+            } catch (TlsHelper.TlsHelperException e) {
+                Log.w(Constants.TAG, e);
+            }
+        }
+        try {
+            return getClient(proxy, null);
+        } catch (TlsHelper.TlsHelperException e) {
+            throw new AssertionError("no certificate is pinned without a pinned host");
+        }
+    }
+
+    /**
+     * Returns a client for url which accepts only the pinned certificate for its host.
+     *
+     * @throws IOException if there is no pinned certificate for the host, or it can't be used
+     */
+    public static OkHttpClient getPinnedClient(URL url, Proxy proxy) throws IOException {
+        String pinnedHost = TlsHelper.getPinnedHost(url);
+        if (pinnedHost == null) {
+            throw new IOException("no pinned certificate found for URL!");
+        }
+        try {
+            return getClient(proxy, pinnedHost);
+        } catch (TlsHelper.TlsHelperException e) {
+            Log.e(Constants.TAG, "TlsHelper failed", e);
+            throw new IOException("TlsHelper failed");
+        }
+    }
+
+    private static synchronized OkHttpClient getClient(Proxy proxy, String pinnedHost)
+            throws TlsHelper.TlsHelperException {
+        if (proxy == null) {
+            proxy = Proxy.NO_PROXY;
+        }
+        List<Object> key = Arrays.<Object>asList(proxy, pinnedHost);
+        OkHttpClient client = sClients.get(key);
+        if (client != null) {
+            return client;
+        }
+
+        client = new OkHttpClient();
+        client.setConnectionPool(sConnectionPool);
+
+        SSLSocketFactory sslSocketFactory = pinnedHost != null
+                ? TlsHelper.getPinnedSslSocketFactory(pinnedHost)
+                : (SSLSocketFactory) SSLSocketFactory.getDefault();
+        client.setSslSocketFactory(new CountingSslSocketFactory(sslSocketFactory));
+        client.interceptors().add(new Interceptor() {
+            @Override
+            public Response intercept(Chain chain) throws IOException {
+                sRequestCount.incrementAndGet();
+                return chain.proceed(chain.request());
+            }
+        });
+
+        // don't follow any redirects
+        client.setFollowRedirects(false);
+        client.setFollowSslRedirects(false);
+
+        client.setProxy(proxy);
+        if (proxy != Proxy.NO_PROXY) {
+            client.setConnectTimeout(30000, TimeUnit.MILLISECONDS);
+        } else {
+            client.setConnectTimeout(5000, TimeUnit.MILLISECONDS);
+        }
+        client.setReadTimeout(45000, TimeUnit.MILLISECONDS);
+
+        sClients.put(key, client);
+        return client;
+    }
+
+    /** Closes all idle connections, so that the next request opens a new one. */
+    public static void evictIdleConnections() {
+        sConnectionPool.evictAll();
+    }
+
+    /** Returns the number of requests made with clients of this registry so far. */
+    public static long getRequestCount() {
+        return sRequestCount.get();
+    }
+
+    /** Returns the number of TLS connections opened by clients of this registry so far. */
+    public static long getHandshakeCount() {
+        return sHandshakeCount.get();
+    }
+
+    /** Counts the sockets it creates, each of which does a TLS handshake. */
+    private static class CountingSslSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory mFactory;
+
+        CountingSslSocketFactory(SSLSocketFactory factory) {
+            mFactory = factory;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return mFactory.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return mFactory.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose)
+                throws IOException {
+            sHandshakeCount.incrementAndGet();
+            return mFactory.createSocket(socket, host, port, autoClose);
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            sHandshakeCount.incrementAndGet();
+            return mFactory.createSocket();
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            sHandshakeCount.incrementAndGet();
+            return mFactory.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+                throws IOException {
+            sHandshakeCount.incrementAndGet();
+            return mFactory.createSocket(host, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            sHandshakeCount.incrementAndGet();
+            return mFactory.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+                int localPort) throws IOException {
+            sHandshakeCount.incrementAndGet();
+            return mFactory.createSocket(address, port, localAddress, localPort);
+        }
+    }
+
+}
@@ -21,8 +21,6 @@ import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.OkUrlFactory;
 import com.textuality.keybase.lib.KeybaseUrlConnectionClient;
 
-import org.sufficientlysecure.keychain.Constants;
-
 import java.io.IOException;
 import java.net.Proxy;
 import java.net.URL;
@@ -34,17 +32,6 @@ import java.util.concurrent.TimeUnit;
  */
 public class OkHttpKeybaseClient implements KeybaseUrlConnectionClient {
 
-    private final OkUrlFactory factory;
-
-    private static OkUrlFactory generateUrlFactory() {
-        OkHttpClient client = new OkHttpClient();
-        return new OkUrlFactory(client);
-    }
-
-    public OkHttpKeybaseClient() {
-        factory = generateUrlFactory();
-    }
-
     @Override
     public URLConnection openConnection(URL url) throws IOException {
         return openConnection(url, null);
@@ -52,28 +39,21 @@ public class OkHttpKeybaseClient implements KeybaseUrlConnectionClient {
 
     @Override
     public URLConnection openConnection(URL url, Proxy proxy) throws IOException {
+        // forced the usage of keybase.io pinned certificate
+        OkHttpClient client = OkHttpClientFactory.getPinnedClient(url, proxy).clone();
+
         if (proxy != null) {
-            factory.client().setProxy(proxy);
-            factory.client().setConnectTimeout(30000, TimeUnit.MILLISECONDS);
-            factory.client().setReadTimeout(40000, TimeUnit.MILLISECONDS);
+            client.setConnectTimeout(30000, TimeUnit.MILLISECONDS);
+            client.setReadTimeout(40000, TimeUnit.MILLISECONDS);
         } else {
-            factory.client().setConnectTimeout(5000, TimeUnit.MILLISECONDS);
-            factory.client().setReadTimeout(25000, TimeUnit.MILLISECONDS);
+            client.setConnectTimeout(5000, TimeUnit.MILLISECONDS);
+            client.setReadTimeout(25000, TimeUnit.MILLISECONDS);
         }
 
-        factory.client().setFollowSslRedirects(false);
-
-        // forced the usage of keybase.io pinned certificate
-        try {
-            if (!TlsHelper.usePinnedCertificateIfAvailable(factory.client(), url)) {
-                throw new IOException("no pinned certificate found for URL!");
-            }
-        } catch (TlsHelper.TlsHelperException e) {
-            Log.e(Constants.TAG, "TlsHelper failed", e);
-            throw new IOException("TlsHelper failed");
-        }
+        client.setFollowRedirects(true);
+        client.setFollowSslRedirects(false);
 
-        return factory.open(url);
+        return new OkUrlFactory(client).open(url);
     }
 
-}
\ No newline at end of file
+}
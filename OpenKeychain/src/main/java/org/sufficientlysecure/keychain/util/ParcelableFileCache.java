@@ -86,6 +86,12 @@ public class ParcelableFileCache<E extends Parcelable> {
 
     }
 
+    /** Returns true if there is a cache file which can be read. */
+    public boolean exists() {
+        File cacheDir = mContext.getCacheDir();
+        return cacheDir != null && new File(cacheDir, mFilename).exists();
+    }
+
     /**
      * Reads from cache file and deletes it afterward. Convenience function for readCache(boolean).
      * @return an IteratorWithSize object containing entries read from the cache file
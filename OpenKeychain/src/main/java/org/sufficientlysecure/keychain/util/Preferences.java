@@ -109,6 +109,27 @@ public class Preferences {
         editor.commit();
     }
 
+    public boolean getPassphraseCacheUnlockedKeys() {
+        return mSharedPreferences.getBoolean(Pref.PASSPHRASE_CACHE_UNLOCKED_KEYS, false);
+    }
+
+    public void setPassphraseCacheUnlockedKeys(boolean value) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putBoolean(Pref.PASSPHRASE_CACHE_UNLOCKED_KEYS, value);
+        editor.commit();
+    }
+
+    /** Returns for how many seconds cloud search results are cached, 0 for not at all. */
+    public int getCloudSearchCacheTtl() {
+        return mSharedPreferences.getInt(Pref.CLOUD_SEARCH_CACHE_TTL, 3600);
+    }
+
+    public void setCloudSearchCacheTtl(int value) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putInt(Pref.CLOUD_SEARCH_CACHE_TTL, value);
+        editor.commit();
+    }
+
     public boolean getCachedConsolidate() {
         return mSharedPreferences.getBoolean(Pref.CACHED_CONSOLIDATE, false);
     }
@@ -19,8 +19,6 @@ package org.sufficientlysecure.keychain.util;
 
 import android.content.res.AssetManager;
 
-import com.squareup.okhttp.OkHttpClient;
-
 import org.sufficientlysecure.keychain.Constants;
 
 import java.io.ByteArrayInputStream;
@@ -39,6 +37,7 @@ import java.util.HashMap;
 import java.util.Map;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManagerFactory;
 
 public class TlsHelper {
@@ -50,6 +49,7 @@ public class TlsHelper {
     }
 
     private static Map<String, byte[]> sPinnedCertificates = new HashMap<>();
+    private static Map<String, SSLSocketFactory> sPinnedSslSocketFactories = new HashMap<>();
 
     /**
      * Add certificate from assets to pinned certificate map.
@@ -74,37 +74,46 @@ public class TlsHelper {
     }
 
     /**
-     * Use pinned certificate for OkHttpClient if we have one.
-     *
-     * @return true, if certificate is available, false if not
-     * @throws TlsHelperException
-     * @throws IOException
+     * Returns the host of the pinned certificate to use for url, or null if there is none.
      */
-    public static boolean usePinnedCertificateIfAvailable(OkHttpClient client, URL url) throws TlsHelperException, IOException {
+    public static String getPinnedHost(URL url) {
         if (url.getProtocol().equals("https")) {
             // use certificate PIN from assets if we have one
             for (String host : sPinnedCertificates.keySet()) {
                 if (url.getHost().endsWith(host)) {
-                    pinCertificate(sPinnedCertificates.get(host), client);
-                    return true;
+                    return host;
                 }
             }
         }
-        return false;
+        return null;
+    }
+
+    /**
+     * Returns a socket factory which accepts only the pinned certificate of host. The factory
+     * is created once per host, so that clients using it can share their connections.
+     *
+     * @param host host of a pinned certificate, see getPinnedHost
+     * @throws TlsHelperException
+     */
+    public static synchronized SSLSocketFactory getPinnedSslSocketFactory(String host)
+            throws TlsHelperException {
+        SSLSocketFactory factory = sPinnedSslSocketFactories.get(host);
+        if (factory == null) {
+            factory = pinCertificate(sPinnedCertificates.get(host));
+            sPinnedSslSocketFactories.put(host, factory);
+        }
+        return factory;
     }
 
     /**
-     * Modifies the client to accept only requests with a given certificate. Applies to all URLs requested by the
-     * client.
+     * Creates a socket factory which accepts only requests with a given certificate. Applies
+     * to all URLs requested with it.
      * Therefore a client that is pinned this way should be used to only make requests to URLs with passed certificate.
      *
      * @param certificate certificate to pin
-     * @param client      OkHttpClient to enforce pinning on
      * @throws TlsHelperException
-     * @throws IOException
      */
-    private static void pinCertificate(byte[] certificate, OkHttpClient client)
-            throws TlsHelperException, IOException {
+    private static SSLSocketFactory pinCertificate(byte[] certificate) throws TlsHelperException {
         // We don't use OkHttp's CertificatePinner since it can not be used to pin self-signed
         // certificate if such certificate is not accepted by TrustManager.
         // (Refer to note at end of description:
@@ -130,8 +139,9 @@ public class TlsHelper {
             SSLContext context = SSLContext.getInstance("TLS");
             context.init(null, tmf.getTrustManagers(), null);
 
-            client.setSslSocketFactory(context.getSocketFactory());
-        } catch (CertificateException | KeyStoreException | KeyManagementException | NoSuchAlgorithmException e) {
+            return context.getSocketFactory();
+        } catch (CertificateException | KeyStoreException | KeyManagementException | NoSuchAlgorithmException
+                | IOException e) {
             throw new TlsHelperException(e);
         }
     }
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.util.Preferences;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class CloudSearchCacheTest {
+
+    static final String FILENAME = "cloud_search_cache_test.pcl";
+    static final Preferences.CloudSearchPrefs PREFS =
+            new Preferences.CloudSearchPrefs(true, true, "keyserver.example.org");
+    static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    CloudSearchCache mCache;
+
+    @Before
+    public void setUp() {
+        ShadowLog.stream = System.out;
+        Preferences.getPreferences(RuntimeEnvironment.application).setCloudSearchCacheTtl(
+                (int) TimeUnit.HOURS.toSeconds(2));
+        mCache = new CloudSearchCache(RuntimeEnvironment.application, FILENAME);
+    }
+
+    @Test
+    public void testGet() {
+        long now = 1000 * HOUR;
+        mCache.put("Alice@Example.org", PREFS, createEntries("0x0123456789abcdef"), now);
+
+        ArrayList<ImportKeysListEntry> cached = mCache.get(" alice@example.org", PREFS, now + HOUR);
+        Assert.assertNotNull("spelling of the query should not matter", cached);
+        Assert.assertEquals("entry should be cached", 1, cached.size());
+        Assert.assertEquals("entry should be cached",
+                "0x0123456789abcdef", cached.get(0).getKeyIdHex());
+        Assert.assertEquals("query should be set to the one searched for",
+                " alice@example.org", cached.get(0).getQuery());
+
+        cached.get(0).setSelected(true);
+        Assert.assertFalse("returned entries should be copies",
+                mCache.get("alice@example.org", PREFS, now + HOUR).get(0).isSelected());
+
+        Assert.assertNull("other servers should have their own results", mCache.get(
+                "alice@example.org", new Preferences.CloudSearchPrefs(true, false, "keyserver.example.org"),
+                now + HOUR));
+        Assert.assertNull("results should expire after the ttl",
+                mCache.get("alice@example.org", PREFS, now + 2 * HOUR));
+        Assert.assertNull("expired results should be dropped",
+                mCache.get("alice@example.org", PREFS, now + HOUR));
+    }
+
+    @Test
+    public void testNegative() {
+        long now = 1000 * HOUR;
+        mCache.put("nobody@example.org", PREFS, new ArrayList<ImportKeysListEntry>(), now);
+
+        ArrayList<ImportKeysListEntry> cached = mCache.get("nobody@example.org", PREFS, now + 1000);
+        Assert.assertNotNull("empty results should be cached", cached);
+        Assert.assertTrue("empty results should be cached", cached.isEmpty());
+        Assert.assertNull("empty results should expire earlier", mCache.get(
+                "nobody@example.org", PREFS, now + CloudSearchCache.NEGATIVE_TTL));
+    }
+
+    @Test
+    public void testInvalidate() {
+        long now = 1000 * HOUR;
+        mCache.put("alice@example.org", PREFS, createEntries("0x0123456789abcdef"), now);
+        mCache.invalidate("alice@example.org", PREFS);
+        Assert.assertNull("invalidated results should be gone",
+                mCache.get("alice@example.org", PREFS, now));
+    }
+
+    @Test
+    public void testLeastRecentlyUsed() {
+        long now = 1000 * HOUR;
+        for (int i = 0; i < CloudSearchCache.MAX_QUERIES; i++) {
+            mCache.put("query " + i, PREFS, createEntries("0x0123456789abcdef"), now);
+        }
+        // use the oldest one, so the second oldest is dropped instead
+        Assert.assertNotNull(mCache.get("query 0", PREFS, now));
+        mCache.put("query new", PREFS, createEntries("0x0123456789abcdef"), now);
+
+        Assert.assertNotNull("recently used results should be kept",
+                mCache.get("query 0", PREFS, now));
+        Assert.assertNull("least recently used results should be dropped",
+                mCache.get("query 1", PREFS, now));
+        Assert.assertNotNull("new results should be cached", mCache.get("query new", PREFS, now));
+    }
+
+    @Test
+    public void testPersistence() {
+        long now = System.currentTimeMillis();
+        mCache.put("alice@example.org", PREFS, createEntries("0x0123456789abcdef"), now);
+
+        CloudSearchCache reopened = new CloudSearchCache(RuntimeEnvironment.application, FILENAME);
+        ArrayList<ImportKeysListEntry> cached = reopened.get("alice@example.org", PREFS, now);
+        Assert.assertNotNull("results should be read from the cache file", cached);
+        Assert.assertEquals("entry should be read from the cache file",
+                "0x0123456789abcdef", cached.get(0).getKeyIdHex());
+        Assert.assertEquals("user ids should be read from the cache file",
+                "Alice <alice@example.org>", cached.get(0).getPrimaryUserId());
+    }
+
+    @Test
+    public void testDisabled() {
+        Preferences.getPreferences(RuntimeEnvironment.application).setCloudSearchCacheTtl(0);
+        long now = 1000 * HOUR;
+        mCache.put("alice@example.org", PREFS, createEntries("0x0123456789abcdef"), now);
+        Assert.assertNull("nothing should be cached with a ttl of 0",
+                mCache.get("alice@example.org", PREFS, now));
+    }
+
+    private static ArrayList<ImportKeysListEntry> createEntries(String keyIdHex) {
+        ImportKeysListEntry entry = new ImportKeysListEntry();
+        entry.setKeyIdHex(keyIdHex);
+        ArrayList<String> userIds = new ArrayList<>();
+        userIds.add("Alice <alice@example.org>");
+        entry.setUserIds(userIds);
+        entry.setPrimaryUserId(userIds.get(0));
+
+        ArrayList<ImportKeysListEntry> entries = new ArrayList<>();
+        entries.add(entry);
+        return entries;
+    }
+
+}
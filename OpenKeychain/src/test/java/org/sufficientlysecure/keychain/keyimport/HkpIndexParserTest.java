@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+
+import java.io.Reader;
+import java.io.StringReader;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class HkpIndexParserTest {
+
+    static final String ORIGIN = "hkp://keyserver.example.org:11371";
+
+    @Before
+    public void setUp() {
+        ShadowLog.stream = System.out;
+    }
+
+    @Test
+    public void testParse() throws Exception {
+        String index = "info:1:3\n"
+                + "pub:D4AB192964F76A7F8F8A9B357BD18320DEADFA11:1:2048:1230768000::\n"
+                + "uid:Alice <alice@example.org>:1230768000::\n"
+                + "uid:Universit%C3%A4t 100%% <alice@example.com>:1230768000::\n"
+                + "pub:0123456789abcdef:17:1024:1230768000:1262304000:re\r\n"
+                + "uid:Bob <bob@example.org>:1230768000::\r\n";
+
+        HkpIndexParser parser = new HkpIndexParser(new StringReader(index), "example", ORIGIN);
+
+        ImportKeysListEntry alice = parser.next();
+        Assert.assertNotNull("first key must be parsed", alice);
+        Assert.assertEquals("fingerprint must be lowercase",
+                "d4ab192964f76a7f8f8a9b357bd18320deadfa11", alice.getFingerprintHex());
+        Assert.assertEquals("key id must be taken from fingerprint",
+                "0x7bd18320deadfa11", alice.getKeyIdHex());
+        Assert.assertEquals("bit strength must be parsed", 2048, (int) alice.getBitStrength());
+        Assert.assertEquals("algorithm must be parsed", "RSA", alice.getAlgorithm());
+        Assert.assertEquals("creation date must be parsed",
+                1230768000L * 1000, alice.getDate().getTime());
+        Assert.assertEquals("query must be set", "example", alice.getQuery());
+        Assert.assertTrue("origin must be set", alice.getOrigins().contains(ORIGIN));
+        Assert.assertFalse("key must not be revoked", alice.isRevoked());
+        Assert.assertFalse("key must not be expired", alice.isExpired());
+        Assert.assertEquals("both user ids must be parsed", 2, alice.getUserIds().size());
+        Assert.assertEquals("first user id must be primary",
+                "Alice <alice@example.org>", alice.getPrimaryUserId());
+        Assert.assertEquals("user id must be decoded",
+                "Universität 100% <alice@example.com>", alice.getUserIds().get(1));
+
+        ImportKeysListEntry bob = parser.next();
+        Assert.assertNotNull("second key must be parsed", bob);
+        Assert.assertNull("there is no fingerprint for a key id", bob.getFingerprintHex());
+        Assert.assertEquals("key id must be parsed", "0x0123456789abcdef", bob.getKeyIdHex());
+        Assert.assertEquals("algorithm must be parsed", "DSA", bob.getAlgorithm());
+        Assert.assertTrue("revoked flag must be parsed", bob.isRevoked());
+        Assert.assertTrue("expired flag must be parsed", bob.isExpired());
+        Assert.assertEquals("user id must be parsed", "Bob <bob@example.org>", bob.getPrimaryUserId());
+
+        Assert.assertNull("there must be no more keys", parser.next());
+    }
+
+    @Test
+    public void testSkipMalformed() throws Exception {
+        String index = "info:1:4\n"
+                // short key id
+                + "pub:DEADFA11:1:2048:1230768000::\n"
+                + "uid:Short <short@example.org>:1230768000::\n"
+                // no creation date
+                + "pub:0123456789abcdef:1:2048:::\n"
+                + "uid:Broken <broken@example.org>:1230768000::\n"
+                // only a broken user id
+                + "pub:1111111111111111:1:2048:1230768000::\n"
+                + "uid:%ZZ:1230768000::\n"
+                + "pub:2222222222222222:1:2048:1230768000::\n"
+                + "uid:Carol <carol@example.org>:1230768000::\n";
+
+        HkpIndexParser parser = new HkpIndexParser(new StringReader(index), "example", ORIGIN);
+
+        ImportKeysListEntry carol = parser.next();
+        Assert.assertNotNull("valid key must be parsed", carol);
+        Assert.assertEquals("malformed keys must be skipped",
+                "0x2222222222222222", carol.getKeyIdHex());
+        Assert.assertNull("there must be no more keys", parser.next());
+    }
+
+    @Test
+    public void testIncremental() throws Exception {
+        final String[] chunks = new String[] {
+                "info:1:2\n"
+                        + "pub:0123456789abcdef:1:2048:1230768000::\n"
+                        + "uid:Alice <alice@example.org>:1230768000::\n",
+                "pub:2222222222222222:1:2048:1230768000::\n"
+                        + "uid:Carol <carol@example.org>:1230768000::\n"
+        };
+
+        // hands out one chunk per read, like a slow download
+        final int[] chunksRead = new int[] { 0 };
+        Reader reader = new Reader() {
+            @Override
+            public int read(char[] buffer, int offset, int count) {
+                if (chunksRead[0] == chunks.length) {
+                    chunksRead[0] += 1;
+                    return -1;
+                }
+                String chunk = chunks[chunksRead[0]++];
+                chunk.getChars(0, chunk.length(), buffer, offset);
+                return chunk.length();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        HkpIndexParser parser = new HkpIndexParser(reader, "example", ORIGIN);
+        Assert.assertEquals("first key must be parsed",
+                "0x0123456789abcdef", parser.next().getKeyIdHex());
+        Assert.assertTrue("first key must be returned before the end of the index",
+                chunksRead[0] <= chunks.length);
+        Assert.assertEquals("second key must be parsed",
+                "0x2222222222222222", parser.next().getKeyIdHex());
+        Assert.assertNull("there must be no more keys", parser.next());
+    }
+
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations;
+
+
+import java.io.IOException;
+import java.net.Proxy;
+import java.security.Security;
+import java.util.ArrayList;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.spongycastle.bcpg.sig.KeyFlags;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
+import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
+import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.service.ImportKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.util.ParcelableProxy;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class ImportOperationTest {
+
+    static final int NUM_KEYS = 8;
+    // more entries than fit into the pipeline at once
+    static final int NUM_COPIES = KeyImportPipeline.QUEUE_SIZE / NUM_KEYS + 2;
+
+    static ArrayList<UncachedKeyRing> mStaticRings = new ArrayList<>();
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+        ShadowLog.stream = System.out;
+
+        PgpKeyOperation op = new PgpKeyOperation(null);
+        for (int i = 0; i < NUM_KEYS; i++) {
+            SaveKeyringParcel parcel = new SaveKeyringParcel();
+            parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                    Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+            parcel.mAddUserIds.add("import " + i);
+            parcel.mNewUnlock = new ChangeUnlockParcel(new Passphrase());
+
+            PgpEditKeyResult result = op.createSecretKeyRing(parcel);
+            Assert.assertTrue("initial test key creation must succeed", result.success());
+            mStaticRings.add(result.getRing().extractPublicKeyRing());
+        }
+    }
+
+    @Test
+    public void testImportPipeline() throws Exception {
+        ArrayList<ParcelableKeyRing> keyList = new ArrayList<>();
+        for (int i = 0; i < NUM_COPIES; i++) {
+            for (UncachedKeyRing ring : mStaticRings) {
+                keyList.add(new ParcelableKeyRing(ring.getEncoded()));
+            }
+        }
+        keyList.add(new ParcelableKeyRing(new byte[] { 1, 2, 3 }));
+
+        ImportOperation op = new ImportOperation(RuntimeEnvironment.application,
+                new ProviderHelper(RuntimeEnvironment.application), null);
+        ImportKeyResult result = op.execute(new ImportKeyringParcel(keyList, null),
+                new CryptoInputParcel(ParcelableProxy.getForNoProxy()));
+
+        Assert.assertEquals("each keyring should be new once",
+                NUM_KEYS, result.mNewKeys);
+        Assert.assertEquals("all copies of a keyring should be updates",
+                NUM_KEYS * (NUM_COPIES - 1), result.mUpdatedKeys);
+        Assert.assertEquals("the undecodable entry should be bad", 1, result.mBadKeys);
+
+        ProviderHelper providerHelper = new ProviderHelper(RuntimeEnvironment.application);
+        for (UncachedKeyRing ring : mStaticRings) {
+            Assert.assertEquals("keyring should be saved", ring.getMasterKeyId(),
+                    providerHelper.getCachedPublicKeyRing(ring.getMasterKeyId()).getMasterKeyId());
+        }
+
+        KeyImportPipeline.Metrics metrics = op.getPipelineMetrics();
+        Assert.assertEquals("copies of a saved keyring should not be written again",
+                NUM_KEYS, metrics.getWritten());
+        Assert.assertTrue("keyrings should be written in at most one transaction each",
+                metrics.getTransactions() <= NUM_KEYS);
+        Assert.assertTrue("batches should not exceed the batch size",
+                metrics.getLargestBatch() <= KeyImportPipeline.BATCH_SIZE);
+    }
+
+    @Test(timeout = 60000)
+    public void testImportPipelineError() throws Exception {
+        ArrayList<ParcelableKeyRing> keyList = new ArrayList<>();
+        // more failing entries than there are queue slots
+        for (int i = 0; i < KeyImportPipeline.QUEUE_SIZE + 2; i++) {
+            keyList.add(new ParcelableKeyRing(new byte[] { 1, 2, 3 }));
+        }
+        keyList.add(new ParcelableKeyRing(mStaticRings.get(0).getEncoded()));
+
+        ImportOperation op = new ImportOperation(RuntimeEnvironment.application,
+                new ProviderHelper(RuntimeEnvironment.application), null) {
+            @Override
+            FetchedKeyRing fetchKeyRing(ParcelableKeyRing entry, String keyServerUri,
+                                        Proxy proxy, OperationLog log)
+                    throws IOException, PgpGeneralException {
+                if (entry.mBytes.length == 3) {
+                    throw new Error("failing fetch");
+                }
+                return super.fetchKeyRing(entry, keyServerUri, proxy, log);
+            }
+        };
+        ImportKeyResult result = op.execute(new ImportKeyringParcel(keyList, null),
+                new CryptoInputParcel(ParcelableProxy.getForNoProxy()));
+
+        Assert.assertEquals("entries failing with an error should be bad",
+                KeyImportPipeline.QUEUE_SIZE + 2, result.mBadKeys);
+        Assert.assertEquals("entries after the failing ones should still be imported",
+                1, result.mNewKeys + result.mUpdatedKeys);
+    }
+
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.support.KeyringBuilder;
+import org.sufficientlysecure.keychain.support.TestDataUtil;
+
+import java.io.ByteArrayInputStream;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class CertFloodFilterTest {
+
+    static final int NUM_CERTS = 5000;
+    static final int MAX_CERTS = 10;
+    static final long TRUSTED_KEY_ID = KeyringBuilder.THIRD_PARTY_KEY_ID_BASE + 5;
+
+    static byte[] mFloodedRing;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+        ShadowLog.stream = System.out;
+
+        mFloodedRing = KeyringBuilder.encodedRingWithManyThirdPartyCertificates(NUM_CERTS);
+    }
+
+    @Test
+    public void testFloodedKeyring() throws Exception {
+        CertFloodFilter filter = new CertFloodFilter(MAX_CERTS, Collections.singleton(TRUSTED_KEY_ID));
+        UncachedKeyRing ring = UncachedKeyRing.decodeFromData(mFloodedRing, filter);
+
+        Assert.assertEquals("all but the maximum number of third-party certificates should be dropped",
+                NUM_CERTS - MAX_CERTS, ring.getDroppedCertCount());
+
+        ArrayList<Long> expected = new ArrayList<>();
+        expected.add(KeyringBuilder.KEY_ID.longValue());
+        expected.add(TRUSTED_KEY_ID);
+        for (int i = NUM_CERTS - MAX_CERTS + 1; i < NUM_CERTS; i++) {
+            expected.add(KeyringBuilder.THIRD_PARTY_KEY_ID_BASE + i);
+        }
+        Assert.assertEquals("self certificate, trusted and newest certificates should be kept, in order",
+                expected, getCertifierIds(ring));
+
+        Assert.assertNotNull("filtered keyring should canonicalize",
+                ring.canonicalize(new OperationLog(), 0));
+    }
+
+    @Test
+    public void testNotLimitedByDefault() throws Exception {
+        UncachedKeyRing ring = UncachedKeyRing.decodeFromData(mFloodedRing);
+
+        Assert.assertEquals("nothing should be dropped without a filter", 0, ring.getDroppedCertCount());
+        Assert.assertEquals("all certificates should be kept without a filter",
+                NUM_CERTS + 1, getCertifierIds(ring).size());
+    }
+
+    @Test
+    public void testForgedSelfCertificates() throws Exception {
+        int forged = 3 * MAX_CERTS;
+        byte[] data = KeyringBuilder.encodedRingWithForgedSelfCertificates(forged);
+        UncachedKeyRing ring = UncachedKeyRing.decodeFromData(data, new CertFloodFilter(MAX_CERTS, null));
+
+        // the correct self certificate and the first forged ones are exempt from the limit,
+        // the others count against it
+        Assert.assertEquals("forged self certificates beyond the exempt ones should be limited",
+                forged + 1 - 2 * MAX_CERTS, ring.getDroppedCertCount());
+        Assert.assertEquals("only the first self certificates should be exempt from the limit",
+                2 * MAX_CERTS, getCertifierIds(ring).size());
+
+        CanonicalizedKeyRing canonicalized = ring.canonicalize(new OperationLog(), 0);
+        Assert.assertNotNull("filtered keyring should canonicalize", canonicalized);
+        Assert.assertEquals("canonicalize should drop the forged self certificates",
+                1, getCertifierIds(canonicalized.getUncachedKeyRing()).size());
+    }
+
+    @Test
+    public void testRevocationsOfKeptCertificates() throws Exception {
+        // revocations by the issuers of the newest certificates, which are kept
+        byte[] data = KeyringBuilder.encodedRingWithThirdPartyRevocations(
+                NUM_CERTS, NUM_CERTS - MAX_CERTS, MAX_CERTS);
+        UncachedKeyRing ring = UncachedKeyRing.decodeFromData(data, new CertFloodFilter(MAX_CERTS, null));
+
+        Assert.assertEquals("only certifications should be dropped",
+                NUM_CERTS - MAX_CERTS, ring.getDroppedCertCount());
+        Assert.assertEquals("revocations by issuers of kept certificates should be kept",
+                1 + 2 * MAX_CERTS, getCertifierIds(ring).size());
+    }
+
+    @Test
+    public void testRevocationFlood() throws Exception {
+        // revocations by issuers which have no certificate at all
+        int revocations = 3 * MAX_CERTS;
+        byte[] data = KeyringBuilder.encodedRingWithThirdPartyRevocations(
+                NUM_CERTS, NUM_CERTS, revocations);
+        UncachedKeyRing ring = UncachedKeyRing.decodeFromData(data, new CertFloodFilter(MAX_CERTS, null));
+
+        Assert.assertEquals("revocations without a kept certification should be dropped",
+                NUM_CERTS - MAX_CERTS + revocations, ring.getDroppedCertCount());
+        Assert.assertEquals("revocations must not get past the limit",
+                1 + MAX_CERTS, getCertifierIds(ring).size());
+    }
+
+    @Test
+    public void testFilteredPerKeyring() throws Exception {
+        byte[] data = TestDataUtil.concatAll(mFloodedRing, mFloodedRing);
+        PositionInputStream in = new PositionInputStream(data);
+        UncachedKeyRing.IteratorWithIOThrow<UncachedKeyRing> it = UncachedKeyRing.fromStream(in,
+                new CertFloodFilter(MAX_CERTS, null));
+
+        Assert.assertTrue("first keyring should be parsed", it.hasNext());
+        Assert.assertEquals("certificates of the first keyring should be limited",
+                MAX_CERTS + 1, getCertifierIds(it.next()).size());
+        Assert.assertTrue("second keyring should not be read before it is needed",
+                in.getPosition() < mFloodedRing.length + 4096);
+
+        Assert.assertTrue("second keyring should be parsed", it.hasNext());
+        Assert.assertEquals("certificates of the second keyring should be limited",
+                MAX_CERTS + 1, getCertifierIds(it.next()).size());
+        Assert.assertFalse("there should be no more keyrings", it.hasNext());
+    }
+
+    @Test
+    public void testUnfloodedKeyring() throws Exception {
+        byte[] data = KeyringBuilder.encodedRingWithManyThirdPartyCertificates(MAX_CERTS);
+        UncachedKeyRing unfiltered = UncachedKeyRing.decodeFromData(data,
+                new CertFloodFilter(Integer.MAX_VALUE, null));
+        UncachedKeyRing filtered = UncachedKeyRing.decodeFromData(data,
+                new CertFloodFilter(MAX_CERTS, null));
+
+        Assert.assertEquals("nothing should be dropped below the limit", 0, filtered.getDroppedCertCount());
+        Assert.assertArrayEquals("keyring below the limit should be unchanged",
+                unfiltered.getEncoded(), filtered.getEncoded());
+    }
+
+    private static ArrayList<Long> getCertifierIds(UncachedKeyRing ring) {
+        UncachedPublicKey masterKey = ring.getPublicKey();
+        ArrayList<Long> result = new ArrayList<>();
+        Iterator<WrappedSignature> it = masterKey.getSignaturesForRawId(
+                masterKey.getUnorderedRawUserIds().get(0));
+        while (it.hasNext()) {
+            result.add(it.next().getKeyId());
+        }
+        return result;
+    }
+
+    private static class PositionInputStream extends ByteArrayInputStream {
+        PositionInputStream(byte[] data) {
+            super(data);
+        }
+
+        synchronized int getPosition() {
+            return pos;
+        }
+    }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.spongycastle.bcpg.HashAlgorithmTags;
+import org.spongycastle.bcpg.PublicKeyAlgorithmTags;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.PGPKeyPair;
+import org.spongycastle.openpgp.PGPSignature;
+import org.spongycastle.openpgp.PGPSignatureGenerator;
+import org.spongycastle.openpgp.operator.PGPContentVerifierBuilder;
+import org.spongycastle.openpgp.operator.PGPContentVerifierBuilderProvider;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPKeyPair;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.util.Date;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class CleartextDigestVerifierBuilderProviderTest {
+
+    static final String[] HEADERS = new String[] { "Hash: SHA256" };
+
+    static PGPKeyPair mKeyPair;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+        ShadowLog.stream = System.out;
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA",
+                Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+        generator.initialize(1024);
+        mKeyPair = new JcaPGPKeyPair(PublicKeyAlgorithmTags.RSA_GENERAL,
+                generator.generateKeyPair(), new Date());
+    }
+
+    @Test
+    public void testRawVerify() throws Exception {
+        byte[] text = "dies ist ein plaintext".getBytes();
+        PGPSignature signature = sign(text);
+
+        CleartextDigestVerifierBuilderProvider provider =
+                new CleartextDigestVerifierBuilderProvider(HEADERS);
+        provider.update(text, 0, text.length);
+
+        signature.init(provider, mKeyPair.getPublicKey());
+        Assert.assertTrue("signature should verify against the digest", signature.verify());
+    }
+
+    @Test
+    public void testJcaFallback() throws Exception {
+        byte[] text = "dies ist ein plaintext".getBytes();
+        PGPSignature signature = sign(text);
+
+        {
+            CleartextDigestVerifierBuilderProvider provider =
+                    new CleartextDigestVerifierBuilderProvider(HEADERS);
+            provider.update(text, 0, text.length);
+
+            signature.init(jcaFallbackOf(provider), mKeyPair.getPublicKey());
+            Assert.assertTrue("signature should verify against the kept text", signature.verify());
+        }
+
+        {
+            byte[] modified = "dies ist ein plaintexx".getBytes();
+            CleartextDigestVerifierBuilderProvider provider =
+                    new CleartextDigestVerifierBuilderProvider(HEADERS);
+            provider.update(modified, 0, modified.length);
+
+            signature.init(jcaFallbackOf(provider), mKeyPair.getPublicKey());
+            Assert.assertFalse("signature of changed text must not verify", signature.verify());
+        }
+    }
+
+    @Test
+    public void testJcaFallbackTooLong() throws Exception {
+        byte[] text = new byte[CleartextDigestVerifierBuilderProvider.MAX_BUFFERED_TEXT + 1];
+        PGPSignature signature = sign(text);
+
+        CleartextDigestVerifierBuilderProvider provider =
+                new CleartextDigestVerifierBuilderProvider(HEADERS);
+        provider.update(text, 0, text.length);
+
+        signature.init(jcaFallbackOf(provider), mKeyPair.getPublicKey());
+        Assert.assertFalse("text which was not kept must not verify", signature.verify());
+
+        signature.init(provider, mKeyPair.getPublicKey());
+        Assert.assertTrue("signature should still verify against the digest", signature.verify());
+    }
+
+    private static PGPSignature sign(byte[] text) throws PGPException {
+        PGPSignatureGenerator generator = new PGPSignatureGenerator(
+                new JcaPGPContentSignerBuilder(PublicKeyAlgorithmTags.RSA_GENERAL,
+                        HashAlgorithmTags.SHA256)
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME));
+        generator.init(PGPSignature.CANONICAL_TEXT_DOCUMENT, mKeyPair.getPrivateKey());
+        generator.update(text);
+        return generator.generate();
+    }
+
+    /** Verifies with the fallback, as it is used for key algorithms without raw signature. */
+    private static PGPContentVerifierBuilderProvider jcaFallbackOf(
+            final CleartextDigestVerifierBuilderProvider provider) {
+        return new PGPContentVerifierBuilderProvider() {
+            @Override
+            public PGPContentVerifierBuilder get(int keyAlgorithm, int hashAlgorithm)
+                    throws PGPException {
+                return provider.getJcaVerifierBuilder(keyAlgorithm, hashAlgorithm);
+            }
+        };
+    }
+
+}
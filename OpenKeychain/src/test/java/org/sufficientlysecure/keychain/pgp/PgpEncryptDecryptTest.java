@@ -18,8 +18,12 @@
 package org.sufficientlysecure.keychain.pgp;
 
 
+import android.content.Intent;
+
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.security.Security;
 import java.util.ArrayList;
@@ -35,6 +39,7 @@ import org.junit.runner.RunWith;
 import org.openintents.openpgp.OpenPgpDecryptionResult;
 import org.openintents.openpgp.OpenPgpMetadata;
 import org.openintents.openpgp.OpenPgpSignatureResult;
+import org.robolectric.Robolectric;
 import org.robolectric.RobolectricGradleTestRunner;
 import org.robolectric.RuntimeEnvironment;
 import org.robolectric.annotation.Config;
@@ -52,6 +57,7 @@ import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
 import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.service.PassphraseCacheService;
 import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
 import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
 import org.sufficientlysecure.keychain.service.SaveKeyringParcel.ChangeUnlockParcel;
@@ -340,6 +346,117 @@ public class PgpEncryptDecryptTest {
 
     }
 
+    @Test
+    public void testCleartextSignVerify() {
+
+        String plaintext = "dies ist ein plaintext ☭\n"
+                + "- with a dash escaped line   \n"
+                + "\ttrailing whitespace is not signed \t \n"
+                + "\n"
+                + TestingUtils.genPassphrase(true);
+
+        byte[] ciphertext = signCleartext(mStaticRing1, mKeyPhrase1, plaintext.getBytes());
+
+        { // verification should succeed
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            DecryptVerifyResult result = verifyCleartext(ciphertext, out);
+
+            Assert.assertTrue("verification must succeed", result.success());
+            Assert.assertEquals("signatureResult should be RESULT_VALID_CONFIRMED",
+                    OpenPgpSignatureResult.RESULT_VALID_CONFIRMED, result.getSignatureResult().getResult());
+            Assert.assertEquals("decryptionResult should be RESULT_NOT_ENCRYPTED",
+                    OpenPgpDecryptionResult.RESULT_NOT_ENCRYPTED, result.getDecryptionResult().getResult());
+            // trailing whitespace is stripped when signing
+            String[] lines = new String(out.toByteArray()).split("\n");
+            Assert.assertEquals("first line must be unchanged",
+                    "dies ist ein plaintext ☭", lines[0]);
+            Assert.assertEquals("dash escaped line must be unescaped",
+                    "- with a dash escaped line", lines[1]);
+            Assert.assertEquals("trailing whitespace must be stripped",
+                    "\ttrailing whitespace is not signed", lines[2]);
+
+            OpenPgpMetadata metadata = result.getDecryptionMetadata();
+            Assert.assertEquals("filesize must be correct",
+                    out.toByteArray().length, metadata.getOriginalSize());
+        }
+
+        { // changed trailing whitespace is not part of the signature
+            String modified = new String(ciphertext).replace("escaped line", "escaped line \t");
+            DecryptVerifyResult result = verifyCleartext(modified.getBytes(), new ByteArrayOutputStream());
+
+            Assert.assertEquals("signatureResult should be RESULT_VALID_CONFIRMED",
+                    OpenPgpSignatureResult.RESULT_VALID_CONFIRMED, result.getSignatureResult().getResult());
+        }
+
+        { // changed text must fail verification
+            String modified = new String(ciphertext).replace("plaintext", "plaintexx");
+            DecryptVerifyResult result = verifyCleartext(modified.getBytes(), new ByteArrayOutputStream());
+
+            Assert.assertEquals("signatureResult should be RESULT_INVALID_SIGNATURE",
+                    OpenPgpSignatureResult.RESULT_INVALID_SIGNATURE, result.getSignatureResult().getResult());
+        }
+
+        { // a hash algorithm missing from the armor header must not abort verification
+            String modified = new String(ciphertext).replaceFirst("Hash: [A-Za-z0-9]+", "Hash: MD5");
+            DecryptVerifyResult result = verifyCleartext(modified.getBytes(), new ByteArrayOutputStream());
+
+            Assert.assertTrue("verification must not abort", result.success());
+            Assert.assertTrue("unannounced hash algorithm must be logged",
+                    result.getLog().containsType(LogType.MSG_DC_CLEAR_SIGNATURE_HASH_NOT_ANNOUNCED));
+            Assert.assertEquals("signatureResult should be RESULT_INVALID_SIGNATURE",
+                    OpenPgpSignatureResult.RESULT_INVALID_SIGNATURE, result.getSignatureResult().getResult());
+        }
+
+    }
+
+    @Test
+    public void testCleartextSignVerifyRsa() {
+
+        new ProviderHelper(RuntimeEnvironment.application).saveSecretKeyRing(
+                mStaticRingInsecure, new ProgressScaler());
+
+        String plaintext = "dies ist ein plaintext ☭\n" + TestingUtils.genPassphrase(true);
+        byte[] ciphertext = signCleartext(mStaticRingInsecure, mKeyPhraseInsecure, plaintext.getBytes());
+
+        DecryptVerifyResult result = verifyCleartext(ciphertext, new ByteArrayOutputStream());
+
+        // the signature itself is good, but the key is too short
+        Assert.assertEquals("signatureResult should be RESULT_INVALID_INSECURE",
+                OpenPgpSignatureResult.RESULT_INVALID_INSECURE, result.getSignatureResult().getResult());
+
+    }
+
+    @Test
+    public void testCleartextVerifyStreamed() throws Exception {
+
+        // a few times the size of the buffers the text is streamed through
+        final long size = 256 * 1024;
+
+        ByteArrayOutputStream signed = new ByteArrayOutputStream();
+        { // sign generated text
+            InputData data = new InputData(new GeneratedTextInputStream(size), size);
+
+            PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                    new ProviderHelper(RuntimeEnvironment.application), null);
+            PgpSignEncryptResult result = op.execute(cleartextSignParcel(mStaticRing1),
+                    new CryptoInputParcel(mKeyPhrase1), data, signed);
+            Assert.assertTrue("signing must succeed", result.success());
+        }
+
+        // don't log every line here
+        ShadowLog.stream = oldShadowStream;
+
+        CountingOutputStream out = new CountingOutputStream();
+        DecryptVerifyResult result = verifyCleartext(signed.toByteArray(), out);
+
+        Assert.assertEquals("signatureResult should be RESULT_VALID_CONFIRMED",
+                OpenPgpSignatureResult.RESULT_VALID_CONFIRMED, result.getSignatureResult().getResult());
+        Assert.assertEquals("filesize must be correct",
+                out.mCount, result.getDecryptionMetadata().getOriginalSize());
+
+    }
+
     @Test
     public void testAsymmetricEncryptDecrypt() {
 
@@ -437,6 +554,108 @@ public class PgpEncryptDecryptTest {
 
     }
 
+    @Test
+    public void testAsymmetricMetadataThenDecrypt() {
+
+        String plaintext = "dies ist ein plaintext ☭" + TestingUtils.genPassphrase(true);
+        byte[] ciphertext;
+
+        { // encrypt data with key
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(plaintext.getBytes());
+
+            PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                    new ProviderHelper(RuntimeEnvironment.application), null);
+
+            InputData data = new InputData(in, in.available());
+            PgpSignEncryptInputParcel input = new PgpSignEncryptInputParcel();
+
+            input.setEncryptionMasterKeyIds(new long[] { mStaticRing1.getMasterKeyId() });
+            input.setSymmetricEncryptionAlgorithm(
+                    PgpSecurityConstants.OpenKeychainSymmetricKeyAlgorithmTags.AES_128);
+            PgpSignEncryptResult result = op.execute(input, new CryptoInputParcel(new Date()),
+                    data, out);
+            Assert.assertTrue("encryption must succeed", result.success());
+
+            ciphertext = out.toByteArray();
+        }
+
+        SessionKeyCache sessionKeyCache = SessionKeyCache.getInstance(RuntimeEnvironment.application);
+
+        { // metadata only decryption performs the private key operation
+
+            ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(
+                    mKeyPhrase1, mStaticRing1.getMasterKeyId(), null);
+            PgpDecryptVerifyInputParcel input = new PgpDecryptVerifyInputParcel()
+                    .setDecryptMetadataOnly(true);
+            DecryptVerifyResult result = op.execute(input, new CryptoInputParcel(), data, null);
+
+            Assert.assertTrue("metadata decryption must succeed", result.success());
+            Assert.assertFalse("first decryption must not use a cached session key",
+                    result.getLog().containsType(LogType.MSG_DC_SESSION_KEY_CACHED));
+            Assert.assertEquals("no private key operation should be saved yet",
+                    0, sessionKeyCache.getSavedOperations());
+        }
+
+        { // full decryption in a separate call uses the cached session key
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(
+                    mKeyPhrase1, mStaticRing1.getMasterKeyId(), null);
+            PgpDecryptVerifyInputParcel input = new PgpDecryptVerifyInputParcel();
+            DecryptVerifyResult result = op.execute(input, new CryptoInputParcel(), data, out);
+
+            Assert.assertTrue("decryption must succeed", result.success());
+            Assert.assertArrayEquals("decrypted ciphertext should equal plaintext",
+                    out.toByteArray(), plaintext.getBytes());
+            Assert.assertTrue("second decryption must use the cached session key",
+                    result.getLog().containsType(LogType.MSG_DC_SESSION_KEY_CACHED));
+            Assert.assertEquals("one private key operation should be saved",
+                    1, sessionKeyCache.getSavedOperations());
+        }
+
+        { // a cached session key doesn't make the passphrase unnecessary
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(
+                    null, mStaticRing1.getMasterKeyId(), null);
+            PgpDecryptVerifyInputParcel input = new PgpDecryptVerifyInputParcel();
+            DecryptVerifyResult result = op.execute(input, new CryptoInputParcel(), data, out);
+
+            Assert.assertTrue("decryption with no passphrase should return pending", result.isPending());
+        }
+
+        { // the session key is dropped when the passphrase is cleared
+
+            PassphraseCacheService.sendCacheBroadcast(RuntimeEnvironment.application,
+                    new Intent(PassphraseCacheService.BROADCAST_ACTION_PASSPHRASE_CACHE_CLEARED));
+            Robolectric.flushForegroundThreadScheduler();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(
+                    mKeyPhrase1, mStaticRing1.getMasterKeyId(), null);
+            DecryptVerifyResult result = op.execute(new PgpDecryptVerifyInputParcel(),
+                    new CryptoInputParcel(), data, out);
+
+            Assert.assertTrue("decryption must succeed", result.success());
+            Assert.assertFalse("decryption after clear must not use a cached session key",
+                    result.getLog().containsType(LogType.MSG_DC_SESSION_KEY_CACHED));
+        }
+
+    }
+
     @Test
     public void testAsymmetricMultiSubkeyEncrypt() throws Exception {
 
@@ -873,6 +1092,80 @@ public class PgpEncryptDecryptTest {
         }
     }
 
+    private PgpSignEncryptInputParcel cleartextSignParcel(UncachedKeyRing ring) {
+        PgpSignEncryptInputParcel input = new PgpSignEncryptInputParcel();
+        input.setSignatureMasterKeyId(ring.getMasterKeyId());
+        input.setSignatureSubKeyId(KeyringTestingHelper.getSubkeyId(ring, 1));
+        input.setCleartextSignature(true);
+        input.setEnableAsciiArmorOutput(true);
+        input.setDetachedSignature(false);
+        return input;
+    }
+
+    private byte[] signCleartext(UncachedKeyRing ring, Passphrase passphrase, byte[] plaintext) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayInputStream in = new ByteArrayInputStream(plaintext);
+
+        PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                new ProviderHelper(RuntimeEnvironment.application), null);
+
+        InputData data = new InputData(in, in.available());
+        PgpSignEncryptResult result = op.execute(cleartextSignParcel(ring),
+                new CryptoInputParcel(passphrase), data, out);
+        Assert.assertTrue("signing must succeed", result.success());
+
+        return out.toByteArray();
+    }
+
+    private DecryptVerifyResult verifyCleartext(byte[] ciphertext, OutputStream out) {
+        ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+        InputData data = new InputData(in, in.available());
+
+        PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(null, null, null);
+        return op.execute(new PgpDecryptVerifyInputParcel(), new CryptoInputParcel(), data, out);
+    }
+
+    /** Generates lines of text up to a given size, without keeping them in memory. */
+    private static class GeneratedTextInputStream extends InputStream {
+        final long mSize;
+        long mPosition = 0;
+        byte[] mLine = new byte[0];
+        int mLinePosition = 0;
+        int mLineNumber = 0;
+
+        GeneratedTextInputStream(long size) {
+            mSize = size;
+        }
+
+        @Override
+        public int read() {
+            if (mPosition >= mSize) {
+                return -1;
+            }
+            if (mLinePosition >= mLine.length) {
+                mLine = ("line " + (mLineNumber++) + " of some generated text, with trailing space \n")
+                        .getBytes();
+                mLinePosition = 0;
+            }
+            mPosition += 1;
+            return mLine[mLinePosition++];
+        }
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        long mCount = 0;
+
+        @Override
+        public void write(int b) {
+            mCount += 1;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            mCount += len;
+        }
+    }
+
     private PgpDecryptVerifyOperation operationWithFakePassphraseCache(
             final Passphrase passphrase, final Long checkMasterKeyId, final Long checkSubKeyId) {
 
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogEntryParcel;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.support.KeyringBuilder;
+
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Iterator;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class SelfCertVerifierTest {
+
+    static final int NUM_COPIES = 500;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+        ShadowLog.stream = System.out;
+    }
+
+    @Test
+    public void testParallelVerify() throws Exception {
+        UncachedKeyRing ring = KeyringBuilder.ringWithManySelfCertificates(NUM_COPIES);
+
+        OperationLog sequentialLog = new OperationLog(), parallelLog = new OperationLog();
+        CanonicalizedKeyRing sequential = ring.canonicalize(sequentialLog, 0, false, Integer.MAX_VALUE);
+        CanonicalizedKeyRing parallel = ring.canonicalize(parallelLog, 0, false, 0);
+
+        Assert.assertNotNull("sequential canonicalization should succeed", sequential);
+        Assert.assertNotNull("parallel canonicalization should succeed", parallel);
+        Assert.assertArrayEquals("parallel canonicalization should yield the same keyring",
+                sequential.getEncoded(), parallel.getEncoded());
+        Assert.assertTrue("bad certificates should be logged", parallelLog.containsType(LogType.MSG_KC_UID_BAD));
+
+        Iterator<LogEntryParcel> it = parallelLog.iterator();
+        for (LogEntryParcel expected : sequentialLog) {
+            Assert.assertTrue("parallel log should not be shorter", it.hasNext());
+            LogEntryParcel entry = it.next();
+            Assert.assertEquals("log entries should be in the same order", expected.mType, entry.mType);
+            Assert.assertEquals("log entries should have the same indent", expected.mIndent, entry.mIndent);
+            Assert.assertTrue("log entries should have the same parameters",
+                    Arrays.equals(expected.mParameters, entry.mParameters));
+        }
+        Assert.assertFalse("parallel log should not be longer", it.hasNext());
+    }
+
+}
@@ -33,6 +33,8 @@ import org.spongycastle.bcpg.S2K;
 import org.spongycastle.bcpg.SecretKeyPacket;
 import org.spongycastle.bcpg.sig.KeyFlags;
 import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPSignature;
 import org.spongycastle.util.Strings;
 import org.sufficientlysecure.keychain.BuildConfig;
 import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
@@ -45,17 +47,22 @@ import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
 import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
 import org.sufficientlysecure.keychain.service.SaveKeyringParcel.ChangeUnlockParcel;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.support.KeyringBuilder;
 import org.sufficientlysecure.keychain.support.KeyringTestingHelper;
 import org.sufficientlysecure.keychain.support.KeyringTestingHelper.RawPacket;
+import org.sufficientlysecure.keychain.util.IterableIterator;
 import org.sufficientlysecure.keychain.util.Passphrase;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 
 import java.io.ByteArrayInputStream;
 import java.security.Security;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
 
 /** Tests for the UncachedKeyring.merge method.
  *
@@ -85,6 +92,8 @@ import java.util.Random;
 @Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
 public class UncachedKeyringMergeTest {
 
+    static final int NUM_FLOOD_CERTS = 10000;
+
     static UncachedKeyRing staticRingA, staticRingB;
     UncachedKeyRing ringA, ringB;
     ArrayList<RawPacket> onlyA = new ArrayList<RawPacket>();
@@ -494,4 +503,60 @@ public class UncachedKeyringMergeTest {
 
     }
 
+    @Test
+    public void testMergeMatchesEncodedComparison() throws Exception {
+        // two flooded keyrings, which have half of their certificates in common
+        CertFloodFilter noLimit = new CertFloodFilter(Integer.MAX_VALUE, null);
+        UncachedKeyRing floodedA = UncachedKeyRing.decodeFromData(
+                KeyringBuilder.encodedRingWithManyThirdPartyCertificates(0, NUM_FLOOD_CERTS), noLimit);
+        UncachedKeyRing floodedB = UncachedKeyRing.decodeFromData(
+                KeyringBuilder.encodedRingWithManyThirdPartyCertificates(NUM_FLOOD_CERTS / 2, NUM_FLOOD_CERTS), noLimit);
+
+        // encoded certificates in a sorted set, compared byte by byte
+        Set<byte[]> encodedCerts = new TreeSet<>(new Comparator<byte[]>() {
+            public int compare(byte[] left, byte[] right) {
+                if (left.length != right.length) {
+                    return left.length - right.length;
+                }
+                for (int i = 0; i < left.length; i++) {
+                    if (left[i] != right[i]) {
+                        return (left[i] & 0xff) - (right[i] & 0xff);
+                    }
+                }
+                return 0;
+            }
+        });
+        for (UncachedKeyRing ring : new UncachedKeyRing[] { floodedA, floodedB }) {
+            for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(ring.mRing.getPublicKeys())) {
+                for (PGPSignature cert : new IterableIterator<PGPSignature>(key.getSignatures())) {
+                    encodedCerts.add(cert.getEncoded());
+                }
+            }
+        }
+
+        CertDigestSet digestCerts = new CertDigestSet();
+        for (UncachedKeyRing ring : new UncachedKeyRing[] { floodedA, floodedB }) {
+            for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(ring.mRing.getPublicKeys())) {
+                for (PGPSignature cert : new IterableIterator<PGPSignature>(key.getSignatures())) {
+                    digestCerts.add(cert);
+                }
+            }
+        }
+
+        UncachedKeyRing merged = floodedA.merge(floodedB, new OperationLog(), 0);
+
+        Assert.assertEquals("digests should find the same certificates as encodings",
+                encodedCerts.size(), digestCerts.size());
+        Assert.assertNotNull("merge should succeed", merged);
+        Iterator<WrappedSignature> it = merged.getPublicKey().getSignaturesForRawId(
+                merged.getPublicKey().getUnorderedRawUserIds().get(0));
+        int mergedCerts = 0;
+        while (it.hasNext()) {
+            it.next();
+            mergedCerts += 1;
+        }
+        Assert.assertEquals("merged keyring should contain each certificate once",
+                1 + NUM_FLOOD_CERTS * 3 / 2, mergedCerts);
+    }
+
 }
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import android.content.Intent;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.spongycastle.bcpg.sig.KeyFlags;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.service.PassphraseCacheService;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.support.KeyringTestingHelper;
+import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.Preferences;
+import org.sufficientlysecure.keychain.util.ProgressScaler;
+import org.sufficientlysecure.keychain.util.TestingUtils;
+
+import java.security.Security;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class UnlockedKeyCacheTest {
+
+    static final int NUM_UNLOCKS = 20;
+
+    static UncachedKeyRing mStaticRing;
+    static Passphrase mKeyPhrase = TestingUtils.genPassphrase(true);
+
+    ProviderHelper mProviderHelper;
+    UnlockedKeyCache mCache;
+    long mSubKeyId;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+        ShadowLog.stream = System.out;
+
+        SaveKeyringParcel parcel = new SaveKeyringParcel();
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.SIGN_DATA, 0L));
+        parcel.mAddUserIds.add("twiggy");
+        parcel.mNewUnlock = new ChangeUnlockParcel(mKeyPhrase);
+
+        PgpEditKeyResult result = new PgpKeyOperation(null).createSecretKeyRing(parcel);
+        Assert.assertTrue("initial test key creation must succeed", result.success());
+        mStaticRing = result.getRing();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mProviderHelper = new ProviderHelper(RuntimeEnvironment.application);
+        mProviderHelper.saveSecretKeyRing(mStaticRing, new ProgressScaler());
+        mSubKeyId = KeyringTestingHelper.getSubkeyId(mStaticRing, 1);
+
+        Preferences.getPreferences(RuntimeEnvironment.application).setPassphraseCacheUnlockedKeys(true);
+        mCache = UnlockedKeyCache.getInstance(RuntimeEnvironment.application);
+    }
+
+    @Test
+    public void testUnlockFromCache() throws Exception {
+        Assert.assertTrue("first unlock must succeed", getSigningKey().unlock(mKeyPhrase, mCache));
+        Assert.assertEquals("first unlock must be a cache miss", 1, mCache.getMissCount());
+
+        CanonicalizedSecretKey key = getSigningKey();
+        Assert.assertTrue("second unlock must succeed", key.unlock(mKeyPhrase, mCache));
+        Assert.assertEquals("second unlock must be a cache hit", 1, mCache.getHitCount());
+        Assert.assertNotNull("unlocked key must be usable for signing",
+                key.getDataSignatureGenerator(PgpSecurityConstants.DEFAULT_HASH_ALGORITHM, false,
+                        null, null));
+
+        Assert.assertFalse("unlock with wrong passphrase must fail even if cached",
+                getSigningKey().unlock(new Passphrase("wrong"), mCache));
+        Assert.assertEquals("wrong passphrase must not be a cache hit", 1, mCache.getHitCount());
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        Preferences.getPreferences(RuntimeEnvironment.application).setPassphraseCacheUnlockedKeys(false);
+
+        Assert.assertTrue("first unlock must succeed", getSigningKey().unlock(mKeyPhrase, mCache));
+        Assert.assertTrue("second unlock must succeed", getSigningKey().unlock(mKeyPhrase, mCache));
+        Assert.assertEquals("disabled cache must never hit", 0, mCache.getHitCount());
+    }
+
+    @Test
+    public void testRemovedOnPassphraseTimeout() throws Exception {
+        getSigningKey().unlock(mKeyPhrase, mCache);
+        Assert.assertNotNull("key must be cached", mCache.get(mSubKeyId, mKeyPhrase));
+
+        // the alarm of the PassphraseCacheService fires for the master key id by default
+        Intent intent = new Intent(PassphraseCacheService.BROADCAST_ACTION_PASSPHRASE_CACHE_SERVICE);
+        intent.putExtra(PassphraseCacheService.EXTRA_KEY_ID, mStaticRing.getMasterKeyId());
+        PassphraseCacheService.sendCacheBroadcast(RuntimeEnvironment.application, intent);
+        Robolectric.flushForegroundThreadScheduler();
+
+        Assert.assertNull("key must be removed after timeout", mCache.get(mSubKeyId, mKeyPhrase));
+    }
+
+    @Test
+    public void testRemovedOnPassphraseClear() throws Exception {
+        getSigningKey().unlock(mKeyPhrase, mCache);
+        Assert.assertNotNull("key must be cached", mCache.get(mSubKeyId, mKeyPhrase));
+
+        PassphraseCacheService.sendCacheBroadcast(RuntimeEnvironment.application,
+                new Intent(PassphraseCacheService.BROADCAST_ACTION_PASSPHRASE_CACHE_CLEARED));
+        Robolectric.flushForegroundThreadScheduler();
+
+        Assert.assertNull("key must be removed after clear", mCache.get(mSubKeyId, mKeyPhrase));
+    }
+
+    @Test
+    public void testRepeatedUnlock() throws Exception {
+        for (int i = 0; i < NUM_UNLOCKS; i++) {
+            Assert.assertTrue("unlock must succeed", getSigningKey().unlock(mKeyPhrase, mCache));
+        }
+
+        // each miss runs the s2k, each hit skips it
+        Assert.assertEquals("only the first unlock must run the s2k", 1, mCache.getMissCount());
+        Assert.assertEquals("all but the first unlock must be cache hits",
+                NUM_UNLOCKS - 1, mCache.getHitCount());
+    }
+
+    private CanonicalizedSecretKey getSigningKey() throws Exception {
+        return mProviderHelper.getCanonicalizedSecretKeyRing(mStaticRing.getMasterKeyId())
+                .getSecretKey(mSubKeyId);
+    }
+
+}
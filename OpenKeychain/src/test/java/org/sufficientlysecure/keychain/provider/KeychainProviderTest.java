@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.ContentObserver;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+
+import java.util.ArrayList;
+
+/** Batch operations of the KeychainProvider, with synthetic keyrings as they are saved by
+ * ProviderHelper.saveCanonicalizedPublicKeyRing.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class KeychainProviderTest {
+
+    static final int NUM_KEYRINGS = 20;
+    static final int NUM_SUBKEYS = 4;
+    static final int NUM_USER_IDS = 4;
+
+    ContentResolver mResolver = RuntimeEnvironment.application.getContentResolver();
+    int mNotifications = 0;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        ShadowLog.stream = System.out;
+    }
+
+    @Test
+    public void testBatchIsAtomic() throws Exception {
+        long masterKeyId = 1234;
+        mResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, buildOperations(masterKeyId));
+
+        ArrayList<ContentProviderOperation> operations = buildOperations(masterKeyId);
+        // fails at the end of the batch, after the old keyring was deleted
+        operations.add(ContentProviderOperation.newAssertQuery(Keys.buildKeysUri(masterKeyId))
+                .withValue(Keys.MASTER_KEY_ID, masterKeyId).withExpectedCount(99).build());
+        try {
+            mResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+            Assert.fail("batch with failing assertion should throw");
+        } catch (OperationApplicationException e) {
+            // good
+        }
+
+        SQLiteDatabase db = new KeychainDatabase(RuntimeEnvironment.application).getReadableDatabase();
+        Assert.assertEquals("old keyring should be kept if the batch fails",
+                1, DatabaseUtils.queryNumEntries(db, Tables.KEY_RINGS_PUBLIC));
+        Assert.assertEquals("old keys should be kept if the batch fails",
+                NUM_SUBKEYS, DatabaseUtils.queryNumEntries(db, Tables.KEYS));
+    }
+
+    @Test
+    public void testBatchNotifications() throws Exception {
+        registerObserver();
+
+        mResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, buildOperations(1234));
+        Assert.assertEquals("a batch for one keyring should notify once", 1, mNotifications);
+    }
+
+    @Test
+    public void testBatchNotificationCount() throws Exception {
+        registerObserver();
+
+        // before: every operation on its own, each notifying on its own
+        for (int i = 0; i < NUM_KEYRINGS; i++) {
+            applySeparately(buildOperations(i));
+        }
+        int separateNotifications = mNotifications;
+
+        mNotifications = 0;
+        for (int i = 0; i < NUM_KEYRINGS; i++) {
+            mResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, buildOperations(i));
+        }
+
+        Assert.assertEquals("batches should notify once per keyring", NUM_KEYRINGS, mNotifications);
+        Assert.assertTrue("separate operations should notify once per operation",
+                separateNotifications >= NUM_KEYRINGS * (NUM_SUBKEYS + NUM_USER_IDS));
+    }
+
+    private void registerObserver() {
+        mResolver.registerContentObserver(KeyRings.CONTENT_URI, true, new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                mNotifications += 1;
+            }
+        });
+    }
+
+    private void applySeparately(ArrayList<ContentProviderOperation> operations) {
+        // the first operation is the delete, all others are inserts
+        mResolver.delete(operations.get(0).getUri(), null, null);
+        for (ContentProviderOperation operation : operations.subList(1, operations.size())) {
+            mResolver.insert(operation.getUri(), operation.resolveValueBackReferences(null, 0));
+        }
+    }
+
+    /** Builds operations like those of saveCanonicalizedPublicKeyRing for a synthetic keyring */
+    private static ArrayList<ContentProviderOperation> buildOperations(long masterKeyId) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+
+        operations.add(ContentProviderOperation
+                .newDelete(KeyRingData.buildPublicKeyRingUri(masterKeyId)).build());
+
+        ContentValues values = new ContentValues();
+        values.put(KeyRingData.MASTER_KEY_ID, masterKeyId);
+        values.put(KeyRingData.KEY_RING_DATA, new byte[512]);
+        operations.add(ContentProviderOperation
+                .newInsert(KeyRingData.buildPublicKeyRingUri(masterKeyId)).withValues(values).build());
+
+        for (int rank = 0; rank < NUM_SUBKEYS; rank++) {
+            values = new ContentValues();
+            values.put(Keys.MASTER_KEY_ID, masterKeyId);
+            values.put(Keys.RANK, rank);
+            values.put(Keys.KEY_ID, rank == 0 ? masterKeyId : masterKeyId * 100 + rank);
+            values.put(Keys.CAN_CERTIFY, rank == 0);
+            values.put(Keys.CAN_SIGN, rank == 1);
+            values.put(Keys.CAN_ENCRYPT, rank > 1);
+            values.put(Keys.CAN_AUTHENTICATE, false);
+            values.put(Keys.IS_REVOKED, false);
+            values.put(Keys.HAS_SECRET, 0);
+            operations.add(ContentProviderOperation
+                    .newInsert(Keys.buildKeysUri(masterKeyId)).withValues(values).build());
+        }
+
+        for (int rank = 0; rank < NUM_USER_IDS; rank++) {
+            values = new ContentValues();
+            values.put(UserPackets.MASTER_KEY_ID, masterKeyId);
+            values.put(UserPackets.RANK, rank);
+            values.put(UserPackets.USER_ID, "user " + masterKeyId + "." + rank);
+            values.put(UserPackets.IS_PRIMARY, rank == 0);
+            values.put(UserPackets.IS_REVOKED, false);
+            operations.add(ContentProviderOperation
+                    .newInsert(UserPackets.buildUserIdsUri(masterKeyId)).withValues(values).build());
+        }
+
+        operations.add(ContentProviderOperation
+                .newInsert(KeyRings.buildKeyRingSummaryUri(masterKeyId))
+                .withValues(new ContentValues()).build());
+
+        return operations;
+    }
+
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.pgp.KeyRing;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+
+/** Lookup paths of ProviderHelper on a database with a large number of (synthetic) keys. */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class ProviderHelperLookupTest {
+
+    static final int NUM_KEYS = 20000;
+    static final int NUM_LOOKUPS = 500;
+    static final int NUM_SEARCHES = 20;
+
+    ProviderHelper mProviderHelper = new ProviderHelper(RuntimeEnvironment.application);
+    long[] mMasterKeyIds = new long[NUM_KEYS];
+    long[] mSubKeyIds = new long[NUM_KEYS];
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        ShadowLog.stream = System.out;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        // fill the database directly, parsing is not what we are measuring here
+        SQLiteDatabase db = new KeychainDatabase(RuntimeEnvironment.application).getWritableDatabase();
+        Random random = new Random(1234);
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < NUM_KEYS; i++) {
+                long masterKeyId = random.nextLong();
+                mMasterKeyIds[i] = masterKeyId;
+                mSubKeyIds[i] = random.nextLong();
+                db.execSQL("INSERT INTO " + Tables.KEY_RINGS_PUBLIC
+                        + " (master_key_id, key_ring_data) VALUES (?, ?)",
+                        new Object[] { masterKeyId, new byte[] { 0 } });
+                db.execSQL("INSERT INTO " + Tables.KEYS
+                        + " (master_key_id, rank, key_id) VALUES (?, 0, ?)",
+                        new Object[] { masterKeyId, masterKeyId });
+                db.execSQL("INSERT INTO " + Tables.KEYS
+                        + " (master_key_id, rank, key_id) VALUES (?, 1, ?)",
+                        new Object[] { masterKeyId, mSubKeyIds[i] });
+                db.execSQL("INSERT INTO " + Tables.USER_PACKETS
+                        + " (master_key_id, rank, user_id, email) VALUES (?, 0, ?, ?)",
+                        new Object[] { masterKeyId, "user " + i + " <user" + i + "@example.com>",
+                                "user" + i + "@example.com" });
+                db.execSQL("INSERT INTO " + Tables.KEY_RINGS_SEARCH
+                        + " (docid, primary_user_id, key_ids) VALUES (?, ?, ?)",
+                        new Object[] { masterKeyId, "user " + i + " <user" + i + "@example.com>",
+                                Long.toHexString(masterKeyId) + " " + Long.toHexString(mSubKeyIds[i]) });
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        KeychainDatabase.updateKeyRingSummary(db, null);
+    }
+
+    @Test
+    public void testSubkeyLookupUsesIndex() throws Exception {
+        SQLiteDatabase db = new KeychainDatabase(RuntimeEnvironment.application).getReadableDatabase();
+        Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN SELECT master_key_id FROM "
+                + Tables.KEYS + " WHERE key_id = 1", null);
+        StringBuilder plan = new StringBuilder();
+        while (cursor.moveToNext()) {
+            plan.append(cursor.getString(cursor.getColumnCount() - 1)).append('\n');
+        }
+        cursor.close();
+        Assert.assertTrue("lookup by key id should use the index, plan was: " + plan,
+                plan.toString().contains("keys_key_id_index"));
+    }
+
+    @Test
+    public void testEmailLookupUsesIndex() throws Exception {
+        SQLiteDatabase db = new KeychainDatabase(RuntimeEnvironment.application).getReadableDatabase();
+        Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN SELECT master_key_id FROM "
+                + Tables.USER_PACKETS + " WHERE email IN ('a@example.com', 'b@example.com')", null);
+        StringBuilder plan = new StringBuilder();
+        while (cursor.moveToNext()) {
+            plan.append(cursor.getString(cursor.getColumnCount() - 1)).append('\n');
+        }
+        cursor.close();
+        Assert.assertTrue("lookup by email should use the index, plan was: " + plan,
+                plan.toString().contains("user_packets_email_index"));
+    }
+
+    @Test
+    public void testEmailLookup() throws Exception {
+        Cursor cursor = RuntimeEnvironment.application.getContentResolver().query(
+                KeyRings.buildUnifiedKeyRingsFindByEmailUri("User42@Example.COM, user43@example.com"),
+                new String[] { KeyRings.MASTER_KEY_ID }, null, null, null);
+        Assert.assertNotNull(cursor);
+        HashSet<Long> found = new HashSet<>();
+        while (cursor.moveToNext()) {
+            found.add(cursor.getLong(0));
+        }
+        cursor.close();
+
+        Assert.assertEquals("lookup should find exactly the two keys", 2, found.size());
+        Assert.assertTrue("lookup should be case insensitive", found.contains(mMasterKeyIds[42]));
+        Assert.assertTrue("lookup should find second email", found.contains(mMasterKeyIds[43]));
+
+        cursor = RuntimeEnvironment.application.getContentResolver().query(
+                KeyRings.buildUnifiedKeyRingsFindByEmailUri("User42@Example.COM, user43@example.com"),
+                new String[] { KeyRings.MASTER_KEY_ID, KeyRings.EMAIL }, null, null, null);
+        Assert.assertNotNull(cursor);
+        HashMap<String, Long> foundByEmail = new HashMap<>();
+        while (cursor.moveToNext()) {
+            foundByEmail.put(cursor.getString(1), cursor.getLong(0));
+        }
+        cursor.close();
+
+        Assert.assertEquals("lookup should return one row per email", 2, foundByEmail.size());
+        Assert.assertEquals("lookup should return the matched email",
+                mMasterKeyIds[42], (long) foundByEmail.get("user42@example.com"));
+        Assert.assertEquals("lookup should return the matched email",
+                mMasterKeyIds[43], (long) foundByEmail.get("user43@example.com"));
+
+        Assert.assertEquals("email should be extracted and lower-cased",
+                "foo@bar.com", KeyRing.extractEmail("Foo Bar (comment) <Foo@Bar.com>"));
+        Assert.assertEquals("email should be extracted from bare email user id",
+                "foo@bar.com", KeyRing.extractEmail("<foo@bar.com>"));
+        Assert.assertNull("user id without email should have no email",
+                KeyRing.extractEmail("Foo Bar"));
+        Assert.assertNull("email must be at the end of the user id",
+                KeyRing.extractEmail("<foo@bar.com> Foo Bar"));
+    }
+
+    @Test
+    public void testSearch() throws Exception {
+        Assert.assertEquals("user42* example*",
+                KeychainProvider.buildSearchMatch(" User42 @example", null));
+        Assert.assertEquals("key id should be searchable with 0x prefix", "primary_user_id:abcd*",
+                KeychainProvider.buildSearchMatch("0xABCD", "primary_user_id"));
+        Assert.assertNull("query without words should match nothing",
+                KeychainProvider.buildSearchMatch(" *\"- ", null));
+
+        Assert.assertEquals("search for a user id should find exactly that key",
+                1, countSearchResults("user4711@example.com"));
+        Assert.assertEquals("search should match word prefixes",
+                11, countSearchResults("user1999"));
+        Assert.assertEquals("search should find key by subkey id",
+                1, countSearchResults(Long.toHexString(mSubKeyIds[99])));
+
+        // a key where the query is only found in a secondary user id
+        SQLiteDatabase db = new KeychainDatabase(RuntimeEnvironment.application).getWritableDatabase();
+        db.execSQL("DELETE FROM " + Tables.KEY_RINGS_SEARCH + " WHERE docid = ?",
+                new Object[] { mMasterKeyIds[1] });
+        db.execSQL("INSERT INTO " + Tables.KEY_RINGS_SEARCH
+                + " (docid, primary_user_id, user_ids) VALUES (?, ?, ?)",
+                new Object[] { mMasterKeyIds[1], "user 1 <user1@example.com>", "user4711 at work" });
+
+        Cursor cursor = RuntimeEnvironment.application.getContentResolver().query(
+                KeyRings.buildUnifiedKeyRingsFindByQueryUri("User4711"),
+                new String[] { KeyRings.MASTER_KEY_ID, KeyRings.SEARCH_RANK }, null, null,
+                KeyRings.SEARCH_RANK + " DESC, " + KeyRings.USER_ID + " ASC");
+        Assert.assertNotNull(cursor);
+        Assert.assertEquals("search should find both keys", 2, cursor.getCount());
+        cursor.moveToFirst();
+        Assert.assertEquals("match in primary user id should be ranked first",
+                mMasterKeyIds[4711], cursor.getLong(0));
+        cursor.moveToNext();
+        Assert.assertEquals("match in other user id should be ranked second",
+                mMasterKeyIds[1], cursor.getLong(0));
+        cursor.close();
+
+        db.execSQL("DELETE FROM " + Tables.KEY_RINGS_PUBLIC + " WHERE master_key_id = ?",
+                new Object[] { mMasterKeyIds[4711] });
+        Assert.assertEquals("deleting a keyring should remove it from the search index",
+                0, DatabaseUtils.queryNumEntries(db, Tables.KEY_RINGS_SEARCH,
+                        "docid = ?", new String[] { Long.toString(mMasterKeyIds[4711]) }));
+    }
+
+    @Test
+    public void testSearchMatchesLike() throws Exception {
+        Random random = new Random(2345);
+        ContentResolver resolver = RuntimeEnvironment.application.getContentResolver();
+
+        for (int i = 0; i < NUM_SEARCHES; i++) {
+            String query = "user" + random.nextInt(NUM_KEYS);
+
+            // before: a substring match on the user ids, which scans all of them
+            Cursor cursor = resolver.query(KeyRings.buildUnifiedKeyRingsUri(),
+                    new String[] { KeyRings.MASTER_KEY_ID },
+                    KeyRings.USER_ID + " LIKE ?", new String[] { "%" + query + "%" }, null);
+            HashSet<Long> likeResults = getMasterKeyIds(cursor);
+
+            cursor = resolver.query(KeyRings.buildUnifiedKeyRingsFindByQueryUri(query),
+                    new String[] { KeyRings.MASTER_KEY_ID, KeyRings.SEARCH_RANK }, null, null, null);
+            HashSet<Long> ftsResults = getMasterKeyIds(cursor);
+
+            Assert.assertFalse("search should find at least one key", ftsResults.isEmpty());
+            Assert.assertEquals("fts search should find the same keys as like for " + query,
+                    likeResults, ftsResults);
+        }
+    }
+
+    @Test
+    public void testKeyListSummaryMatchesJoin() throws Exception {
+        SQLiteDatabase db = new KeychainDatabase(RuntimeEnvironment.application).getWritableDatabase();
+
+        // some secret keys and duplicate user ids, so the flags aren't all zero
+        for (int i = 1900; i < 1905; i++) {
+            db.execSQL("INSERT INTO " + Tables.KEY_RINGS_SECRET
+                    + " (master_key_id, key_ring_data) VALUES (?, ?)",
+                    new Object[] { mMasterKeyIds[i], new byte[] { 0 } });
+        }
+        db.execSQL("UPDATE " + Tables.USER_PACKETS + " SET user_id = ? WHERE master_key_id = ?",
+                new Object[] { "user 1910 <user1910@example.com>", mMasterKeyIds[1911] });
+        KeychainDatabase.updateKeyRingSummary(db, null);
+
+        // a page of the key list, the query-time duplicate check is quadratic otherwise
+        String selection = KeyRings.USER_ID + " LIKE 'user 19%'";
+        int expected = 1111;
+
+        // the flags as they were computed at query time, before keyring_summary
+        Cursor cursor = db.rawQuery("SELECT keys.master_key_id,"
+                + " (SELECT COUNT(*) FROM user_packets AS dups"
+                    + " WHERE dups.master_key_id != keys.master_key_id AND dups.rank = 0"
+                    + " AND dups.user_id = user_packets.user_id) AS has_duplicate_user_id,"
+                + " (EXISTS (SELECT * FROM keyrings_secret"
+                    + " WHERE keyrings_secret.master_key_id = keys.master_key_id)) AS has_any_secret"
+                + " FROM keys INNER JOIN user_packets ON (keys.master_key_id = user_packets.master_key_id"
+                    + " AND user_packets.rank = 0)"
+                + " WHERE keys.rank = 0 AND " + selection + " ORDER BY user_packets.user_id", null);
+        HashMap<Long, String> joinFlags = getFlags(cursor);
+
+        cursor = RuntimeEnvironment.application.getContentResolver().query(
+                KeyRings.buildUnifiedKeyRingsUri(), new String[] {
+                        KeyRings.MASTER_KEY_ID, KeyRings.HAS_DUPLICATE_USER_ID, KeyRings.HAS_ANY_SECRET
+                }, selection, null, KeyRings.USER_ID);
+        HashMap<Long, String> summaryFlags = getFlags(cursor);
+
+        Assert.assertEquals("join should find the whole page", expected, joinFlags.size());
+        Assert.assertEquals("summary flags should match the flags computed by the join",
+                joinFlags, summaryFlags);
+        Assert.assertEquals("duplicates should be flagged", "1 0", summaryFlags.get(mMasterKeyIds[1911]));
+        Assert.assertEquals("secret keys should be flagged", "0 1", summaryFlags.get(mMasterKeyIds[1900]));
+    }
+
+    /** Returns the flags in columns 1 and 2 by the master key id in column 0. */
+    private static HashMap<Long, String> getFlags(Cursor cursor) {
+        Assert.assertNotNull(cursor);
+        HashMap<Long, String> result = new HashMap<>();
+        while (cursor.moveToNext()) {
+            result.put(cursor.getLong(0), cursor.getInt(1) + " " + cursor.getInt(2));
+        }
+        cursor.close();
+        return result;
+    }
+
+    private static HashSet<Long> getMasterKeyIds(Cursor cursor) {
+        Assert.assertNotNull(cursor);
+        HashSet<Long> result = new HashSet<>();
+        while (cursor.moveToNext()) {
+            result.add(cursor.getLong(0));
+        }
+        cursor.close();
+        return result;
+    }
+
+    private int countSearchResults(String query) {
+        Cursor cursor = RuntimeEnvironment.application.getContentResolver().query(
+                KeyRings.buildUnifiedKeyRingsFindByQueryUri(query),
+                new String[] { KeyRings.MASTER_KEY_ID }, null, null, null);
+        Assert.assertNotNull(cursor);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    @Test
+    public void testSubkeyLookupMatchesUnified() throws Exception {
+        Random random = new Random(4321);
+
+        for (int i = 0; i < NUM_LOOKUPS; i++) {
+            int index = random.nextInt(NUM_KEYS);
+            long subKeyId = mSubKeyIds[index];
+
+            long unified = (Long) mProviderHelper.getGenericData(
+                    KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(subKeyId),
+                    KeyRings.MASTER_KEY_ID, ProviderHelper.FIELD_TYPE_INTEGER);
+            long lean = mProviderHelper.getMasterKeyId(subKeyId);
+
+            Assert.assertEquals("lean lookup should find the same master key as the unified query",
+                    unified, lean);
+            Assert.assertEquals("lookup should return the master key of the subkey",
+                    mMasterKeyIds[index], lean);
+        }
+    }
+
+}
@@ -18,6 +18,14 @@
 
 package org.sufficientlysecure.keychain.provider;
 
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.support.v4.util.LongSparseArray;
+
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -32,18 +40,41 @@ import org.spongycastle.bcpg.sig.KeyFlags;
 import org.spongycastle.util.encoders.Hex;
 import org.sufficientlysecure.keychain.BuildConfig;
 import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.keyimport.KeyserverValidators;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKey;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey.SecretKeyType;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
+import org.sufficientlysecure.keychain.pgp.PgpCertifyOperation;
+import org.sufficientlysecure.keychain.pgp.PgpCertifyOperation.PgpCertifyResult;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
 import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
+import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.VerifiedCerts;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+import org.sufficientlysecure.keychain.service.CertifyActionsParcel.CertifyAction;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.support.KeyringTestingHelper;
 import org.sufficientlysecure.keychain.util.IterableIterator;
+import org.sufficientlysecure.keychain.util.Passphrase;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
 
 @RunWith(RobolectricGradleTestRunner.class)
 @Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
@@ -249,6 +280,437 @@ public class ProviderHelperSaveTest {
 
     }
 
+    @Test public void testKeyRingCache() throws Exception {
+
+        UncachedKeyRing seckey = readRingFromResource("/test-keys/symantec_secret.asc");
+        UncachedKeyRing pubkey = readRingFromResource("/test-keys/symantec_public.asc");
+        long masterKeyId = pubkey.getMasterKeyId();
+
+        SaveKeyringResult result;
+
+        result = mProviderHelper.savePublicKeyRing(pubkey);
+        Assert.assertTrue("public keyring import should succeed", result.success());
+
+        KeyRingCache cache = mProviderHelper.getKeyRingCache();
+        int hits = cache.getHitCount();
+
+        CanonicalizedPublicKeyRing first = mProviderHelper.getCanonicalizedPublicKeyRing(masterKeyId);
+        CanonicalizedPublicKeyRing second = mProviderHelper.getCanonicalizedPublicKeyRing(masterKeyId);
+        Assert.assertSame("second retrieval should be served from cache", first, second);
+        Assert.assertEquals("cache should count exactly one hit", hits + 1, cache.getHitCount());
+
+        result = mProviderHelper.saveSecretKeyRing(seckey, new ProgressScaler());
+        Assert.assertTrue("secret keyring import should succeed", result.success());
+
+        CanonicalizedPublicKeyRing third = mProviderHelper.getCanonicalizedPublicKeyRing(masterKeyId);
+        Assert.assertNotSame("cache should be invalidated after save", first, third);
+
+        new KeychainDatabase(RuntimeEnvironment.application).clearDatabase();
+        try {
+            mProviderHelper.getCanonicalizedPublicKeyRing(masterKeyId);
+            Assert.fail("keyring should not be available after clearing the database");
+        } catch (ProviderHelper.NotFoundException e) {
+            // good
+        }
+
+    }
+
+    @Test public void testTrustedKeysCache() throws Exception {
+
+        UncachedKeyRing seckey = readRingFromResource("/test-keys/symantec_secret.asc");
+        SaveKeyringResult result = mProviderHelper.saveSecretKeyRing(seckey, new ProgressScaler());
+        Assert.assertTrue("secret keyring import should succeed", result.success());
+
+        result = mProviderHelper.savePublicKeyRing(
+                readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc"));
+        Assert.assertTrue("public keyring import should succeed", result.success());
+
+        KeyRingCache cache = mProviderHelper.getKeyRingCache();
+        LongSparseArray<CanonicalizedPublicKey> trustedKeys = cache.getTrustedKeys();
+        Assert.assertNotNull("trusted keys should be cached after a save", trustedKeys);
+        Assert.assertEquals("trusted keys should contain the secret keyring",
+                seckey.getMasterKeyId(), trustedKeys.keyAt(0));
+
+        result = mProviderHelper.savePublicKeyRing(
+                readRingFromResource("/test-keys/stripped_flags.asc"));
+        Assert.assertTrue("public keyring import should succeed", result.success());
+        Assert.assertSame("trusted keys should be kept over public keyring saves",
+                trustedKeys, cache.getTrustedKeys());
+
+        result = mProviderHelper.saveSecretKeyRing(
+                createRing("trusted <trusted@example.com>", 0L), new ProgressScaler());
+        Assert.assertTrue("secret keyring import should succeed", result.success());
+        Assert.assertNull("trusted keys should be invalidated by a new secret keyring",
+                cache.getTrustedKeys());
+
+    }
+
+    @Test public void testBulkRetrieval() throws Exception {
+
+        UncachedKeyRing first = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+        UncachedKeyRing second = readRingFromResource("/test-keys/stripped_flags.asc");
+        mProviderHelper.savePublicKeyRing(first);
+        mProviderHelper.savePublicKeyRing(second);
+
+        // retrieve one of them first, so it is served from cache
+        CanonicalizedPublicKeyRing cached =
+                mProviderHelper.getCanonicalizedPublicKeyRing(first.getMasterKeyId());
+
+        long unknownId = 0x1234567812345678L;
+        ArrayList<Long> brokenIds = new ArrayList<>();
+        LongSparseArray<CanonicalizedPublicKeyRing> rings =
+                mProviderHelper.getCanonicalizedPublicKeyRings(new long[] {
+                        first.getMasterKeyId(), second.getMasterKeyId(), unknownId
+                }, brokenIds);
+
+        Assert.assertEquals("bulk retrieval should return both known keyrings", 2, rings.size());
+        Assert.assertSame("cached keyring should be returned from cache",
+                cached, rings.get(first.getMasterKeyId()));
+        Assert.assertEquals("queried keyring should have the requested master key id",
+                second.getMasterKeyId(), rings.get(second.getMasterKeyId()).getMasterKeyId());
+        Assert.assertNull("unknown key should be missing from result", rings.get(unknownId));
+        Assert.assertTrue("unknown key should not be reported as broken", brokenIds.isEmpty());
+
+        Assert.assertSame("queried keyring should be put into the cache",
+                rings.get(second.getMasterKeyId()),
+                mProviderHelper.getCanonicalizedPublicKeyRing(second.getMasterKeyId()));
+
+    }
+
+    @Test public void testBulkRetrievalBroken() throws Exception {
+
+        UncachedKeyRing ring = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+        mProviderHelper.savePublicKeyRing(ring);
+
+        // break the stored keyring data, bypassing all checks on save
+        SQLiteDatabase db = new KeychainDatabase(RuntimeEnvironment.application).getWritableDatabase();
+        db.execSQL("UPDATE " + Tables.KEY_RINGS_PUBLIC + " SET " + KeyRingData.KEY_RING_DATA
+                + " = X'deadbeef' WHERE " + KeyRingData.MASTER_KEY_ID + " = " + ring.getMasterKeyId());
+        mProviderHelper.getKeyRingCache().invalidateAll();
+
+        long unknownId = 0x1234567812345678L;
+        ArrayList<Long> brokenIds = new ArrayList<>();
+        LongSparseArray<CanonicalizedPublicKeyRing> rings =
+                mProviderHelper.getCanonicalizedPublicKeyRings(new long[] {
+                        ring.getMasterKeyId(), unknownId
+                }, brokenIds);
+
+        Assert.assertEquals("broken keyring should be missing from result", 0, rings.size());
+        Assert.assertEquals("broken keyring should be reported, unknown key should not",
+                Collections.singletonList(ring.getMasterKeyId()), brokenIds);
+
+    }
+
+    @Test public void testKeyRingSummary() throws Exception {
+
+        UncachedKeyRing first = createRing("summary <summary@example.com>", 0L);
+        UncachedKeyRing second = createRing("summary <summary@example.com>", 0L);
+        long firstId = first.getMasterKeyId();
+        long secondId = second.getMasterKeyId();
+
+        SaveKeyringResult result;
+
+        result = mProviderHelper.savePublicKeyRing(first.extractPublicKeyRing());
+        Assert.assertTrue("public keyring import should succeed", result.success());
+        Cursor summary = querySummary(firstId);
+        Assert.assertEquals("public keyring should have no secret", 0, summary.getInt(0));
+        Assert.assertFalse("public keyring should be able to encrypt", summary.isNull(1));
+        Assert.assertTrue("public keyring should not be able to sign", summary.isNull(2));
+        Assert.assertEquals("single keyring should have no duplicate", 0, summary.getInt(4));
+        summary.close();
+
+        result = mProviderHelper.saveSecretKeyRing(first, new ProgressScaler());
+        Assert.assertTrue("secret keyring import should succeed", result.success());
+        summary = querySummary(firstId);
+        Assert.assertEquals("secret keyring should have a secret", 1, summary.getInt(0));
+        Assert.assertFalse("secret keyring should be able to sign", summary.isNull(2));
+        Assert.assertFalse("secret keyring should be able to certify", summary.isNull(3));
+        summary.close();
+
+        result = mProviderHelper.savePublicKeyRing(second.extractPublicKeyRing());
+        Assert.assertTrue("second keyring import should succeed", result.success());
+        summary = querySummary(firstId);
+        Assert.assertEquals("first keyring should have a duplicate", 1, summary.getInt(4));
+        summary.close();
+        summary = querySummary(secondId);
+        Assert.assertEquals("second keyring should have a duplicate", 1, summary.getInt(4));
+        summary.close();
+
+        RuntimeEnvironment.application.getContentResolver().delete(
+                KeyRingData.buildPublicKeyRingUri(secondId), null, null);
+        summary = querySummary(firstId);
+        Assert.assertEquals("duplicate should be gone after delete", 0, summary.getInt(4));
+        summary.close();
+
+        RuntimeEnvironment.application.getContentResolver().delete(
+                KeyRingData.buildSecretKeyRingUri(firstId), null, null);
+        summary = querySummary(firstId);
+        Assert.assertEquals("secret should be gone after delete", 0, summary.getInt(0));
+        summary.close();
+
+    }
+
+    @Test public void testKeyExpiryState() throws Exception {
+
+        long expiry = System.currentTimeMillis() / 1000 + 3600;
+        UncachedKeyRing ring = createRing("expiry <expiry@example.com>", expiry);
+        long masterKeyId = ring.getMasterKeyId();
+        long encryptKeyId = KeyringTestingHelper.getSubkeyId(ring, 2);
+
+        SaveKeyringResult result = mProviderHelper.saveSecretKeyRing(ring, new ProgressScaler());
+        Assert.assertTrue("secret keyring import should succeed", result.success());
+
+        SQLiteDatabase db = new KeychainDatabase(RuntimeEnvironment.application).getWritableDatabase();
+        Assert.assertEquals("next expiry should be that of the encryption subkey",
+                Long.valueOf(expiry), KeychainDatabase.getNextKeyExpiry(db));
+        Cursor summary = querySummary(masterKeyId);
+        Assert.assertEquals("key should be able to encrypt before expiry",
+                encryptKeyId, summary.getLong(1));
+        summary.close();
+
+        ContentResolver resolver = RuntimeEnvironment.application.getContentResolver();
+        Assert.assertEquals("no keyring should expire before its time",
+                0, resolver.update(KeyRings.buildExpiryUri(), new ContentValues(), null, null));
+
+        // pretend the expiry time has come
+        db.execSQL("UPDATE " + Tables.KEYS + " SET expiry = ? WHERE key_id = ?",
+                new Object[] { System.currentTimeMillis() / 1000 - 1, encryptKeyId });
+        Assert.assertEquals("one keyring should have keys expire",
+                1, resolver.update(KeyRings.buildExpiryUri(), new ContentValues(), null, null));
+
+        summary = querySummary(masterKeyId);
+        Assert.assertTrue("key should not be able to encrypt after expiry", summary.isNull(1));
+        Assert.assertFalse("key should still be able to sign", summary.isNull(2));
+        summary.close();
+        Assert.assertNull("no key should be left to expire", KeychainDatabase.getNextKeyExpiry(db));
+
+    }
+
+    @Test public void testIncrementalUpdate() throws Exception {
+
+        UncachedKeyRing ring = createRing("incremental <incremental@example.com>", 0L);
+        long masterKeyId = ring.getMasterKeyId();
+        SaveKeyringResult result = mProviderHelper.saveSecretKeyRing(ring, new ProgressScaler());
+        Assert.assertTrue("secret keyring import should succeed", result.success());
+        mProviderHelper.renewKeyLastUpdatedTime(masterKeyId, 1234, TimeUnit.SECONDS);
+
+        SQLiteDatabase db = new KeychainDatabase(RuntimeEnvironment.application).getReadableDatabase();
+        String keysRowIds = queryRowIds(db, Tables.KEYS, masterKeyId);
+        String userPacketsRowIds = queryRowIds(db, Tables.USER_PACKETS, masterKeyId);
+
+        SaveKeyringParcel parcel = new SaveKeyringParcel(masterKeyId, ring.getFingerprint());
+        parcel.mAddUserIds.add("second <second@example.com>");
+        UncachedKeyRing modified = new PgpKeyOperation(null).modifySecretKeyRing(
+                new CanonicalizedSecretKeyRing(ring.getEncoded(), false, 0),
+                new CryptoInputParcel(new Date(), new Passphrase()), parcel).getRing();
+        result = mProviderHelper.savePublicKeyRing(modified.extractPublicKeyRing());
+        Assert.assertTrue("public keyring update should succeed", result.success());
+        Assert.assertTrue("public keyring update should be an update",
+                (result.getResult() & SaveKeyringResult.UPDATED) == SaveKeyringResult.UPDATED);
+
+        Assert.assertEquals("unchanged keys should not be rewritten",
+                keysRowIds, queryRowIds(db, Tables.KEYS, masterKeyId));
+        Assert.assertTrue("unchanged user ids should not be rewritten", queryRowIds(
+                db, Tables.USER_PACKETS, masterKeyId).startsWith(userPacketsRowIds + ","));
+        Assert.assertEquals("new user id should be inserted with its self cert", 2,
+                DatabaseUtils.queryNumEntries(db, Tables.CERTS, "master_key_id = " + masterKeyId));
+        Assert.assertEquals("last updated time should be kept", 1234, DatabaseUtils.longForQuery(db,
+                "SELECT last_updated FROM updated_keys WHERE master_key_id = " + masterKeyId, null));
+
+        CanonicalizedSecretKeyRing secretRing = mProviderHelper.getCanonicalizedSecretKeyRing(masterKeyId);
+        Assert.assertEquals("secret keyring should be updated with the new user id",
+                2, secretRing.getUnorderedUserIds().size());
+        Assert.assertEquals("secret keys should still be available", SecretKeyType.PASSPHRASE_EMPTY,
+                secretRing.getSecretKey(KeyringTestingHelper.getSubkeyId(ring, 1)).getSecretKeyType());
+
+    }
+
+    @Test public void testKeyserverValidators() throws Exception {
+
+        UncachedKeyRing ring = createRing("validators <validators@example.com>", 0L);
+        long masterKeyId = ring.getMasterKeyId();
+        SaveKeyringResult result = mProviderHelper.savePublicKeyRing(ring.extractPublicKeyRing());
+        Assert.assertTrue("public keyring import should succeed", result.success());
+        Assert.assertNull("keyring was never updated from a keyserver",
+                mProviderHelper.getKeyserverValidators(masterKeyId));
+
+        byte[] digest = KeyserverValidators.digest("armored key");
+        mProviderHelper.renewKeyLastUpdatedTime(masterKeyId, 1234, TimeUnit.SECONDS,
+                new KeyserverValidators("\"etag\"", null, digest));
+        KeyserverValidators validators = mProviderHelper.getKeyserverValidators(masterKeyId);
+        Assert.assertNotNull("validators should be stored", validators);
+        Assert.assertEquals("etag should be stored", "\"etag\"", validators.mETag);
+        Assert.assertNull("missing last modified should be stored as such", validators.mLastModified);
+        Assert.assertArrayEquals("digest should be stored", digest, validators.mDigest);
+
+        mProviderHelper.renewKeyLastUpdatedTime(masterKeyId, 1235, TimeUnit.SECONDS);
+        Assert.assertNull("validators should be dropped on an update without them",
+                mProviderHelper.getKeyserverValidators(masterKeyId));
+
+        mProviderHelper.renewKeyLastUpdatedTime(masterKeyId, 1236, TimeUnit.SECONDS,
+                new KeyserverValidators(null, null, digest));
+        RuntimeEnvironment.application.getContentResolver().delete(
+                KeyRingData.buildPublicKeyRingUri(masterKeyId), null, null);
+        Assert.assertNull("validators should be deleted with the keyring",
+                mProviderHelper.getKeyserverValidators(masterKeyId));
+
+    }
+
+    String queryRowIds(SQLiteDatabase db, String table, long masterKeyId) {
+        return DatabaseUtils.stringForQuery(db, "SELECT group_concat(oid) FROM (SELECT oid FROM "
+                + table + " WHERE master_key_id = " + masterKeyId + " ORDER BY rank)", null);
+    }
+
+    Cursor querySummary(long masterKeyId) {
+        Cursor cursor = RuntimeEnvironment.application.getContentResolver().query(
+                KeyRings.buildUnifiedKeyRingUri(masterKeyId), new String[] {
+                        KeyRings.HAS_ANY_SECRET, KeyRings.HAS_ENCRYPT, KeyRings.HAS_SIGN,
+                        KeyRings.HAS_CERTIFY, KeyRings.HAS_DUPLICATE_USER_ID
+                }, null, null, null);
+        Assert.assertNotNull(cursor);
+        Assert.assertTrue("keyring should be in the unified query", cursor.moveToFirst());
+        return cursor;
+    }
+
+    UncachedKeyRing createRing(String userId, long encryptExpiry) throws Exception {
+        SaveKeyringParcel parcel = new SaveKeyringParcel();
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.SIGN_DATA, 0L));
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.ECDH, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.ENCRYPT_COMMS,
+                encryptExpiry));
+        parcel.mAddUserIds.add(userId);
+        parcel.mNewUnlock = new ChangeUnlockParcel(new Passphrase());
+
+        PgpEditKeyResult result = new PgpKeyOperation(null).createSecretKeyRing(parcel);
+        Assert.assertTrue("test key creation must succeed", result.success());
+        return result.getRing();
+    }
+
+    @Test public void testKeyRingLocks() throws Exception {
+        final UncachedKeyRing first = readRingFromResource("/test-keys/symantec_public.asc");
+        UncachedKeyRing second = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+
+        final SaveKeyringResult[] firstResult = new SaveKeyringResult[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                firstResult[0] = new ProviderHelper(RuntimeEnvironment.application)
+                        .savePublicKeyRing(first);
+            }
+        });
+
+        // hold the lock of the first keyring, like a concurrent save of it would
+        KeyRingLocks.lock(first.getMasterKeyId());
+        try {
+            thread.start();
+            Assert.assertTrue("save of another keyring must not wait for the lock",
+                    mProviderHelper.savePublicKeyRing(second).success());
+            thread.join(500);
+            Assert.assertTrue("save of the same keyring must wait for the lock", thread.isAlive());
+        } finally {
+            KeyRingLocks.unlock(first.getMasterKeyId());
+        }
+
+        thread.join();
+        Assert.assertTrue("save must succeed once the lock is released", firstResult[0].success());
+    }
+
+    @Test public void testImportDigest() throws Exception {
+        UncachedKeyRing pub = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+        long keyId = pub.getMasterKeyId();
+
+        SaveKeyringResult result = mProviderHelper.savePublicKeyRing(pub);
+        Assert.assertTrue("initial import must succeed", result.success());
+
+        SQLiteDatabase db = new KeychainDatabase(RuntimeEnvironment.application).getReadableDatabase();
+        Assert.assertEquals("digest of the imported keyring must be stored", 1,
+                DatabaseUtils.queryNumEntries(db, Tables.KEY_RINGS_PUBLIC,
+                        KeyRingData.MASTER_KEY_ID + " = ? AND " + KeyRingData.IMPORT_DIGEST
+                                + " IS NOT NULL", new String[] { Long.toString(keyId) }));
+
+        result = new ProviderHelper(RuntimeEnvironment.application).savePublicKeyRing(pub);
+        Assert.assertTrue("identical re-import must succeed", result.success());
+        Assert.assertTrue("identical re-import must count as update", result.updated());
+        Assert.assertTrue("identical re-import must be detected",
+                result.getLog().containsType(LogType.MSG_IP_SUCCESS_IDENTICAL));
+        Assert.assertFalse("identical re-import must not merge",
+                result.getLog().containsType(LogType.MSG_IP_MERGE_PUBLIC));
+    }
+
+    @Test public void testVerifiedCertsCache() throws Exception {
+        UncachedKeyRing certifier = createRing("certifier <certifier@example.com>", 0L);
+        SaveKeyringResult result = mProviderHelper.saveSecretKeyRing(certifier, new ProgressScaler());
+        Assert.assertTrue("secret keyring import should succeed", result.success());
+
+        UncachedKeyRing target = createRing("target <target@example.com>", 0L).extractPublicKeyRing();
+        long masterKeyId = target.getMasterKeyId();
+        Uri verifiedCertsUri = VerifiedCerts.buildVerifiedCertsUri(masterKeyId);
+
+        long now = System.currentTimeMillis();
+        result = mProviderHelper.savePublicKeyRing(
+                certifyRing(certifier, target, new Date(now - 2000 * 1000)));
+        Assert.assertTrue("public keyring import should succeed", result.success());
+        Assert.assertTrue("certificate should be verified",
+                result.getLog().containsType(LogType.MSG_IP_UID_CERT_GOOD));
+        Assert.assertFalse("no stored verification results should exist yet",
+                result.getLog().containsType(LogType.MSG_IP_CERTS_VERIFIED_EARLIER));
+        Assert.assertEquals("verification result should be stored",
+                1, countRows(verifiedCertsUri));
+
+        // the same certificate again, plus a newer one
+        result = mProviderHelper.savePublicKeyRing(
+                certifyRing(certifier, target, new Date(now - 1000 * 1000)));
+        Assert.assertTrue("public keyring import should succeed", result.success());
+        Assert.assertTrue("stored verification result should be used",
+                result.getLog().containsType(LogType.MSG_IP_CERTS_VERIFIED_EARLIER));
+        Assert.assertEquals("verification result of the new certificate should be stored",
+                2, countRows(verifiedCertsUri));
+        Cursor cursor = RuntimeEnvironment.application.getContentResolver().query(
+                KeyRings.buildUnifiedKeyRingUri(masterKeyId), new String[] { KeyRings.VERIFIED },
+                null, null, null);
+        Assert.assertNotNull(cursor);
+        try {
+            Assert.assertTrue("keyring should be in the unified query", cursor.moveToFirst());
+            Assert.assertEquals("keyring should still be verified by the certifier",
+                    Certs.VERIFIED_SECRET, cursor.getInt(0));
+        } finally {
+            cursor.close();
+        }
+
+        RuntimeEnvironment.application.getContentResolver().delete(
+                KeyRingData.buildSecretKeyRingUri(certifier.getMasterKeyId()), null, null);
+        Assert.assertEquals("verification results should be deleted with the secret keyring",
+                0, countRows(verifiedCertsUri));
+    }
+
+    UncachedKeyRing certifyRing(UncachedKeyRing certifier, UncachedKeyRing target, Date date)
+            throws Exception {
+        CanonicalizedSecretKey secretKey = new CanonicalizedSecretKeyRing(
+                certifier.getEncoded(), false, 0).getSecretKey();
+        secretKey.unlock(new Passphrase());
+        CanonicalizedPublicKeyRing publicRing = new CanonicalizedPublicKeyRing(target.getEncoded(), 0);
+        CertifyAction action = new CertifyAction(target.getMasterKeyId(),
+                publicRing.getPublicKey().getUnorderedUserIds(), null);
+        PgpCertifyResult result = new PgpCertifyOperation().certify(
+                secretKey, publicRing, new OperationLog(), 0, action, null, date);
+        Assert.assertTrue("certification must succeed", result.success());
+        return result.getCertifiedRing();
+    }
+
+    int countRows(Uri uri) {
+        Cursor cursor = RuntimeEnvironment.application.getContentResolver().query(
+                uri, null, null, null, null);
+        Assert.assertNotNull(cursor);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
     UncachedKeyRing readRingFromResource(String name) throws Exception {
         return UncachedKeyRing.fromStream(ProviderHelperSaveTest.class.getResourceAsStream(name)).next();
     }
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.service;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class KeyserverSyncSchedulerTest {
+
+    ProviderHelper mProviderHelper = new ProviderHelper(RuntimeEnvironment.application);
+    UncachedKeyRing mUnused, mUsed;
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLog.stream = System.out;
+
+        mUnused = readRingFromResource("/test-keys/symantec_public.asc");
+        mUsed = readRingFromResource(
+                "/test-keys/cooperpair/9E669861368BCA0BE42DAF7DDDA252EBB8EBE1AF.asc");
+        Assert.assertTrue("first keyring import should succeed",
+                mProviderHelper.savePublicKeyRing(mUnused).success());
+        Assert.assertTrue("second keyring import should succeed",
+                mProviderHelper.savePublicKeyRing(mUsed).success());
+    }
+
+    @Test
+    public void testPriority() throws Exception {
+        long now = TimeUnit.DAYS.toSeconds(10000);
+        long day = TimeUnit.DAYS.toSeconds(1);
+        long lastUpdated = now - 2 * KeyserverSyncAdapterService.KEY_UPDATE_LIMIT;
+        double stale = KeyserverSyncScheduler.getPriority(now, lastUpdated, null, null, false);
+
+        Assert.assertTrue("keys which were never updated should be preferred",
+                KeyserverSyncScheduler.getPriority(now, null, null, null, false) > stale);
+        Assert.assertTrue("staler keys should be preferred", stale > KeyserverSyncScheduler
+                .getPriority(now, now - KeyserverSyncAdapterService.KEY_UPDATE_LIMIT, null, null, false));
+        Assert.assertTrue("recently used keys should be preferred", KeyserverSyncScheduler
+                .getPriority(now, lastUpdated, now - day, null, false) > stale);
+        Assert.assertEquals("keys used long ago should not be preferred", stale, KeyserverSyncScheduler
+                .getPriority(now, lastUpdated, now - 100 * day, null, false), 0.0);
+        Assert.assertTrue("keys about to expire should be preferred", KeyserverSyncScheduler
+                .getPriority(now, lastUpdated, null, now + day, false) > stale);
+        Assert.assertTrue("recently expired keys should be preferred", KeyserverSyncScheduler
+                .getPriority(now, lastUpdated, null, now - day, false) > stale);
+        Assert.assertEquals("keys expiring much later should not be preferred", stale, KeyserverSyncScheduler
+                .getPriority(now, lastUpdated, null, now + 100 * day, false), 0.0);
+        Assert.assertTrue("keys deferred by the last sync should be preferred", KeyserverSyncScheduler
+                .getPriority(now, lastUpdated, null, null, true) > stale);
+    }
+
+    @Test
+    public void testBudget() throws Exception {
+        mProviderHelper.renewKeyLastUsedTime(mUsed.getMasterKeyId(),
+                System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+
+        KeyserverSyncScheduler scheduler =
+                new KeyserverSyncScheduler(RuntimeEnvironment.application, 1, 60000);
+        Assert.assertEquals("both keys should be due", 2, scheduler.loadQueue());
+        Assert.assertTrue("there should be budget for a key", scheduler.hasNext());
+        ArrayList<ParcelableKeyRing> batch = scheduler.next(10);
+        Assert.assertEquals("batch should be limited by the budget", 1, batch.size());
+        Assert.assertEquals("used key should come first",
+                KeyFormattingUtils.convertFingerprintToHex(mUsed.getFingerprint()),
+                batch.get(0).mExpectedFingerprint);
+        Assert.assertFalse("budget of keys should be spent", scheduler.hasNext());
+        scheduler.saveQueue();
+
+        mProviderHelper.renewKeyLastUpdatedTime(mUsed.getMasterKeyId(),
+                System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+
+        scheduler = new KeyserverSyncScheduler(RuntimeEnvironment.application, 10, 60000);
+        Assert.assertEquals("updated key should not be due anymore", 1, scheduler.loadQueue());
+        Assert.assertTrue("there should be budget for a key", scheduler.hasNext());
+        scheduler.spend(60000);
+        Assert.assertFalse("budget of import time should be spent", scheduler.hasNext());
+    }
+
+    UncachedKeyRing readRingFromResource(String name) throws Exception {
+        return UncachedKeyRing.fromStream(KeyserverSyncSchedulerTest.class.getResourceAsStream(name)).next();
+    }
+
+}
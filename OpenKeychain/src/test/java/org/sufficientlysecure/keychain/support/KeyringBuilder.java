@@ -110,6 +110,7 @@ public class KeyringBuilder {
             , 16
     );
     public static final BigInteger KEY_ID = BigInteger.valueOf(0x15130BCF071AE6BFL);
+    public static final long THIRD_PARTY_KEY_ID_BASE = 0x1000L;
 
     public static UncachedKeyRing correctRing() {
         return convertToKeyring(correctKeyringPackets());
@@ -122,6 +123,77 @@ public class KeyringBuilder {
         return convertToKeyring(packets);
     }
 
+    /**
+     * Adds redundant copies of the user id and subkey binding certificates, all of which
+     * verify, with an incorrect user id certificate among every ten copies.
+     */
+    public static UncachedKeyRing ringWithManySelfCertificates(int copies) {
+        List<ContainedPacket> packets = correctKeyringPackets();
+        for (int i = 0; i < copies; i++) {
+            BigInteger signature = i % 10 == 5 ? CORRECT_SIGNATURE.subtract(BigInteger.ONE) : CORRECT_SIGNATURE;
+            packets.add(2, createSignaturePacket(signature));
+            packets.add(createSubkeySignaturePacket());
+        }
+        return convertToKeyring(packets);
+    }
+
+    /**
+     * Adds certificates by many different keys on the user id, as on a flooded key. They are
+     * ordered from old to new, and the one at position i is issued by key id
+     * THIRD_PARTY_KEY_ID_BASE + i. Returned as raw data, since parsing already drops most of them.
+     */
+    public static byte[] encodedRingWithManyThirdPartyCertificates(int count) {
+        return encodedRingWithManyThirdPartyCertificates(0, count);
+    }
+
+    /** Like encodedRingWithManyThirdPartyCertificates(count), with positions starting at first. */
+    public static byte[] encodedRingWithManyThirdPartyCertificates(int first, int count) {
+        List<ContainedPacket> packets = correctKeyringPackets();
+        for (int i = 0; i < count; i++) {
+            Date date = new Date(SIGNATURE_DATE.getTime() + TimeUnit.MINUTES.toMillis(first + i));
+            packets.add(3 + i, createThirdPartySignaturePacket(PGPSignature.DEFAULT_CERTIFICATION,
+                    THIRD_PARTY_KEY_ID_BASE + first + i, date));
+        }
+        return TestDataUtil.concatAll(packets);
+    }
+
+    /**
+     * Like encodedRingWithManyThirdPartyCertificates(count), followed by certification
+     * revocations by the issuers of the certificates at positions starting at firstRevoker.
+     * Issuers at positions from count on have no certificate on the user id.
+     */
+    public static byte[] encodedRingWithThirdPartyRevocations(int count, int firstRevoker,
+                                                              int revocations) {
+        List<ContainedPacket> packets = correctKeyringPackets();
+        for (int i = 0; i < count; i++) {
+            Date date = new Date(SIGNATURE_DATE.getTime() + TimeUnit.MINUTES.toMillis(i));
+            packets.add(3 + i, createThirdPartySignaturePacket(PGPSignature.DEFAULT_CERTIFICATION,
+                    THIRD_PARTY_KEY_ID_BASE + i, date));
+        }
+        for (int i = 0; i < revocations; i++) {
+            Date date = new Date(SIGNATURE_DATE.getTime() + TimeUnit.MINUTES.toMillis(count + i));
+            packets.add(3 + count + i, createThirdPartySignaturePacket(
+                    PGPSignature.CERTIFICATION_REVOCATION, THIRD_PARTY_KEY_ID_BASE + firstRevoker + i,
+                    date));
+        }
+        return TestDataUtil.concatAll(packets);
+    }
+
+    /**
+     * Adds certificates on the user id which claim to be issued by the master key, but don't
+     * verify, after the correct self certificate. Returned as raw data, like
+     * encodedRingWithManyThirdPartyCertificates.
+     */
+    public static byte[] encodedRingWithForgedSelfCertificates(int count) {
+        List<ContainedPacket> packets = correctKeyringPackets();
+        for (int i = 0; i < count; i++) {
+            Date date = new Date(SIGNATURE_DATE.getTime() + TimeUnit.MINUTES.toMillis(i));
+            packets.add(3 + i, createThirdPartySignaturePacket(PGPSignature.DEFAULT_CERTIFICATION,
+                    KEY_ID.longValue(), date));
+        }
+        return TestDataUtil.concatAll(packets);
+    }
+
     private static UncachedKeyRing convertToKeyring(List<ContainedPacket> packets) {
         try {
             return UncachedKeyRing.decodeFromData(TestDataUtil.concatAll(packets));
@@ -196,6 +268,28 @@ public class KeyringBuilder {
                 signatureArray);
     }
 
+    private static SignaturePacket createThirdPartySignaturePacket(int type, long keyId, Date date) {
+        SignatureSubpacket[] hashedData = new SignatureSubpacket[]{
+                new SignatureCreationTime(false, date)
+        };
+        SignatureSubpacket[] unhashedData = new SignatureSubpacket[]{
+                new IssuerKeyID(false, keyId)
+        };
+        byte[] fingerPrint = new BigInteger("1234", 16).toByteArray();
+        MPInteger[] signature = new MPInteger[]{
+                new MPInteger(CORRECT_SIGNATURE)
+        };
+        // the signature doesn't verify, but third-party certificates are only checked by trusted keys
+        return new SignaturePacket(type,
+                keyId,
+                SignaturePacket.RSA_GENERAL,
+                HashAlgorithmTags.SHA1,
+                hashedData,
+                unhashedData,
+                fingerPrint,
+                signature);
+    }
+
     /**
      * There is no Preferences subpacket in BouncyCastle, so we have
      * to create one manually.
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import com.squareup.okhttp.OkHttpClient;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URL;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class OkHttpClientFactoryTest {
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLog.stream = System.out;
+    }
+
+    @Test
+    public void testClientsAreShared() throws Exception {
+        URL first = new URL("https://keyserver.example.com/pks/lookup?op=get&search=0x1");
+        URL second = new URL("https://keyserver.example.com/pks/lookup?op=get&search=0x2");
+        Proxy proxy = new Proxy(Proxy.Type.HTTP, InetSocketAddress.createUnresolved("127.0.0.1", 8118));
+        Proxy sameProxy = new Proxy(Proxy.Type.HTTP, InetSocketAddress.createUnresolved("127.0.0.1", 8118));
+
+        OkHttpClient direct = OkHttpClientFactory.getClient(first, null);
+        Assert.assertSame("requests without proxy should share a client",
+                direct, OkHttpClientFactory.getClient(second, null));
+        Assert.assertSame("no proxy should be the same as a direct connection",
+                direct, OkHttpClientFactory.getClient(second, Proxy.NO_PROXY));
+        Assert.assertEquals("client should connect directly", Proxy.NO_PROXY, direct.getProxy());
+
+        OkHttpClient proxied = OkHttpClientFactory.getClient(first, proxy);
+        Assert.assertNotSame("a proxy should get its own client", direct, proxied);
+        Assert.assertSame("requests with an equal proxy should share a client",
+                proxied, OkHttpClientFactory.getClient(second, sameProxy));
+        Assert.assertEquals("client should use the proxy", proxy, proxied.getProxy());
+
+        Assert.assertSame("all clients should share a connection pool",
+                direct.getConnectionPool(), proxied.getConnectionPool());
+        Assert.assertSame("clones should share the connection pool as well",
+                direct.getConnectionPool(), direct.clone().getConnectionPool());
+    }
+
+    @Test
+    public void testPinnedClientWithoutCertificate() throws Exception {
+        try {
+            OkHttpClientFactory.getPinnedClient(new URL("https://unpinned.example.com/"), null);
+            Assert.fail("pinned client without pinned certificate should fail");
+        } catch (IOException e) {
+            // good
+        }
+    }
+
+}